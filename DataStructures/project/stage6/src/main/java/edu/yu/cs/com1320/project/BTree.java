@@ -3,10 +3,187 @@ package edu.yu.cs.com1320.project;
 import edu.yu.cs.com1320.project.stage6.PersistenceManager;
 
 import java.io.IOException;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiFunction;
+import java.util.function.UnaryOperator;
 
 public interface BTree<Key extends Comparable<Key>, Value> {
     Value get(Key k);
+
+    /**
+     * @return the order the tree keeps its keys in. Keys passed to bulkLoad() must be ascending in this order
+     */
+    default Comparator<? super Key> comparator() {
+        return Comparator.naturalOrder();
+    }
+
     Value put(Key k, Value v);
+
+    /**
+     * put the value without reading the value it replaces. If the old value was moved to disk,
+     * its copy on disk is deleted instead of being read back
+     * @param k the key to put
+     * @param v the new value
+     * @return true if the key was already in the tree
+     * @throws IllegalArgumentException if the key or value is null
+     */
+    boolean putBlind(Key k, Value v);
+
+    /**
+     * find or create the key's slot in a single descent of the tree and set its value to the result of the function.
+     * If the function returns null the key is removed.
+     * Unlike {@link java.util.Map#compute}, the value that was there BEFORE is returned
+     * @param k the key to update
+     * @param remappingFunction given the key and its current value (null if there is none), returns the new value
+     * @return the previous value, or null if the key was not in the tree
+     */
+    Value compute(Key k, BiFunction<? super Key, ? super Value, ? extends Value> remappingFunction);
+
+    /**
+     * remove the key and its value from the tree, rebalancing the nodes it was stored in
+     * @param k the key to remove
+     * @return the value that was removed, or null if the key was not in the tree
+     */
+    Value delete(Key k);
+
+    /**
+     * @param fromKey lowest key to include, or null to start at the first key in the tree
+     * @param toKey key to stop before (exclusive), or null to continue to the last key in the tree
+     * @return the keys in the given range, in ascending order. Values are not read, so nothing is loaded from disk
+     */
+    List<Key> range(Key fromKey, Key toKey);
+
+    /**
+     * @param fromKey key to position the cursor at, or null to position it before the first key in the tree
+     * @return a cursor positioned just before the first key that is greater than or equal to fromKey
+     */
+    Cursor<Key, Value> cursor(Key fromKey);
+
+    /**
+     * build the tree bottom-up in a single pass, packing every node as full as it can be
+     * @param sortedEntries key-value pairs in strictly ascending order of their keys
+     * @throws IllegalStateException if the tree is not empty
+     * @throws IllegalArgumentException if a key or value is null or the keys are not in strictly ascending order
+     */
+    void bulkLoad(Iterator<? extends Map.Entry<Key, Value>> sortedEntries);
+
+    /**
+     * build the tree like bulkLoad from keys whose values the persistence manager already holds. Each entry starts out
+     * on disk, and its value is read back the first time it is asked for
+     * @param sortedKeys keys in strictly ascending order
+     * @throws IllegalStateException if the tree is not empty or has no persistence manager
+     * @throws IllegalArgumentException if a key is null or the keys are not in strictly ascending order
+     * @throws UnsupportedOperationException if the tree can't be loaded this way
+     */
+    default void bulkLoadOnDisk(Iterator<? extends Key> sortedKeys) {
+        throw new UnsupportedOperationException("loading entries on disk is not supported");
+    }
+
+    /**
+     * @return a read-only view of the tree as it is now, which later changes to the tree don't show up in.
+     * Changing the view throws UnsupportedOperationException
+     * @throws UnsupportedOperationException if the tree doesn't support snapshots
+     */
+    default BTree<Key, Value> snapshot() {
+        throw new UnsupportedOperationException("snapshots are not supported");
+    }
+
+    /**
+     * snapshot(), for values that are changed in place: while the view is reachable, the tree copies a value it
+     * shares with the view before handing it out, so changes to it don't show up in the view
+     * @param copyValue a copy of a value
+     * @throws UnsupportedOperationException if the tree doesn't support snapshots
+     */
+    default BTree<Key, Value> snapshot(UnaryOperator<Value> copyValue) {
+        throw new UnsupportedOperationException("snapshots are not supported");
+    }
+
     void moveToDisk(Key k) throws IOException;
+
+    /**
+     * move the values of several keys to disk as one batch. The default moves them one at a time
+     */
+    default void moveAllToDisk(Collection<Key> keys) throws IOException {
+        for (Key k : keys) {
+            moveToDisk(k);
+        }
+    }
+
     void setPersistenceManager(PersistenceManager<Key,Value> pm);
-}
\ No newline at end of file
+
+    /**
+     * keep a stand-in in memory for each value moved to disk, such as a document without its body, instead of nothing.
+     * get() returns the stand-in without reading the disk. The entry stays on disk until prefetch(), compute() or
+     * delete() reads the value back and hands it to the stand-in
+     * @param standIns what to keep, or null to keep nothing
+     * @throws UnsupportedOperationException if the tree can't keep stand-ins
+     */
+    default void setStandIns(StandIns<Value> standIns) {
+        throw new UnsupportedOperationException("stand-ins are not supported");
+    }
+
+    /**
+     * read the values of the keys that are on disk back into memory as one batch, so a get of any of them afterwards
+     * doesn't wait on the disk. The default gets them one at a time
+     */
+    default void prefetch(Collection<Key> keys) {
+        for (Key k : keys) {
+            get(k);
+        }
+    }
+
+    /**
+     * what a tree keeps in memory for the values it moves to disk, see setStandIns
+     */
+    interface StandIns<Value> {
+        /**
+         * @param value a value that has just been handed to the persistence manager
+         * @return what to keep in memory in its place, or null to keep nothing. The value itself isn't changed, since a
+         * persistence manager that writes in the background may not have written it yet
+         */
+        Value standIn(Value value);
+
+        /**
+         * @param standIn what was kept in place of the value
+         * @param value the value read back from disk
+         * @return the value to keep in memory from now on
+         */
+        Value restore(Value standIn, Value value);
+    }
+
+    /**
+     * walks the keys of a BTree in order, forwards or backwards, starting from the position it was created at.
+     * A cursor becomes invalid once a key is added to or removed from the tree
+     */
+    interface Cursor<Key, Value> {
+        /**
+         * move to the next key in ascending order
+         * @return false if there is no next key
+         * @throws java.util.ConcurrentModificationException if a key was added or removed since the cursor was created
+         */
+        boolean next();
+
+        /**
+         * move to the previous key in ascending order
+         * @return false if there is no previous key
+         * @throws java.util.ConcurrentModificationException if a key was added or removed since the cursor was created
+         */
+        boolean previous();
+
+        /**
+         * @return the key the cursor is at
+         * @throws java.util.NoSuchElementException if the cursor is not at a key
+         */
+        Key getKey();
+
+        /**
+         * @return the value of the key the cursor is at, reading it back from disk if it was moved there
+         * @throws java.util.NoSuchElementException if the cursor is not at a key
+         */
+        Value getValue();
+    }
+}
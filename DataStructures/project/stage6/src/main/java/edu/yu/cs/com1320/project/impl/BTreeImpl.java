@@ -2,157 +2,464 @@ package edu.yu.cs.com1320.project.impl;
 import edu.yu.cs.com1320.project.BTree;
 import edu.yu.cs.com1320.project.stage6.PersistenceManager;
 import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.ConcurrentModificationException;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.function.UnaryOperator;
 
 public class BTreeImpl <Key extends Comparable<Key>, Value> implements BTree<Key, Value> {
 
 
+    //default order used by the no-arg constructor
+    private static final int DEFAULT_ORDER = 4;
+    private static final byte[] NO_BYTES = new byte[0];
     //max children per B-tree node = MAX-1 (must be an even number and greater than 2)
-    private static final int MAX = 4;
+    private final int MAX;
+    //binary keys: turns the toString() of a key back into the key. null if keys are compared with compareTo()
+    private final Function<String, Key> keyParser;
     private Node root; //root of the B-tree
-    private int height; //height of the B-tree
-    private int n; //number of key-value pairs in the B-tree
+    //height, n and the other gauges are volatile so stats() can be read from any thread without locking
+    private volatile int height; //height of the B-tree
+    private volatile int n; //number of key-value pairs in the B-tree
+    private volatile int internalNodes;
+    private volatile int externalNodes;
+    private volatile int onDiskCount; //number of entries whose value was moved to disk
+    private int modCount; //number of keys added or removed, so cursors can detect changes
+    //nodes stamped with an older generation may be shared with a snapshot and are copied before they are changed
+    private volatile int generation;
+    private final boolean readOnly; //a snapshot
+    //a snapshot's: copies the tree's values, so the tree's changes to the values themselves don't show up in it
+    private final UnaryOperator<Value> copyValue;
+    //the snapshots taken of this tree that may still be read. While any is, what they read is left alone
+    private final List<WeakReference<BTreeImpl<Key, Value>>> snapshots = new ArrayList<>();
+    //keys whose values a snapshot may read from disk. While one can, the tree peeks at them, and doesn't write over or delete them
+    private final Set<Key> keptForSnapshots = new HashSet<>();
 
     private PersistenceManager<Key,Value> pm;
+    //what is kept in memory for a value moved to disk, or null for nothing
+    private StandIns<Value> standIns;
 
+    //operation counters
+    private final LongAdder gets = new LongAdder();
+    private final LongAdder memoryHits = new LongAdder(); //gets answered without the persistence manager
+    private final LongAdder diskReads = new LongAdder(); //values read back through the persistence manager
+    private final LongAdder diskReadBatches = new LongAdder(); //calls to prefetch that read anything
+    private final LongAdder diskWrites = new LongAdder(); //values moved to disk
+    private final LongAdder diskWriteBatches = new LongAdder(); //calls to moveAllToDisk that wrote anything
+    private final LongAdder diskWriteBatchNanos = new LongAdder(); //time those spent in the persistence manager
+    private final LongAdder splits = new LongAdder();
+    private final LongAdder merges = new LongAdder();
 
 
 
 
-    //B-tree node data type
+
+    //B-tree node data type.
+    //entry j is keys[j] with vals[j] and onDisk[j] in external nodes, or with children[j] in internal nodes
     private static final class Node
     {
+        private int generation; // generation of the tree the node was created or copied in, or restamped in by owns()
         private int entryCount; // number of entries
-        private Entry[] entries = new Entry[MAX]; // the array of children
-        private Node next;
-        private Node previous;
+        //the keys, or with binary keys the part of each key's bytes that comes after the prefix
+        private final Object[] keys;
+        //binary keys: the bytes every key in the node starts with
+        private byte[] prefix = NO_BYTES;
+        private final Object[] vals; // external nodes only
+        private final boolean[] onDisk; // external nodes only: the value was moved to disk
+        private final Node[] children; // internal nodes only
 
-        // create a node with k entries
-        private Node(int k)
-        {this.entryCount = k;}
+        // create a node with k entries and room for max entries
+        private Node(int k, int max, boolean external, int generation)
+        {
+            this.generation = generation;
+            this.entryCount = k;
+            this.keys = new Object[max];
+            this.vals = external ? new Object[max] : null;
+            this.onDisk = external ? new boolean[max] : null;
+            this.children = external ? null : new Node[max];
+        }
 
-        private void setNext(Node next)
+        // copy a node into a new generation. Prefixes and key suffixes are never changed in place, so they can be shared
+        private Node(Node original, int generation)
         {
-            this.next = next;
+            this.generation = generation;
+            this.entryCount = original.entryCount;
+            this.keys = original.keys.clone();
+            this.prefix = original.prefix;
+            this.vals = original.vals == null ? null : original.vals.clone();
+            this.onDisk = original.onDisk == null ? null : original.onDisk.clone();
+            this.children = original.children == null ? null : original.children.clone();
         }
-        private Node getNext()
+
+        private boolean isExternal()
         {
-            return this.next;
+            return this.children == null;
+        }
+
+    }
+
+    public BTreeImpl() {
+        this(DEFAULT_ORDER);
+    }
+
+    /**
+     * @param order the number of entries at which a node is split. Larger orders give a shallower tree,
+     *              e.g. 64-512 for stores holding millions of keys
+     * @throws IllegalArgumentException if order is not an even number greater than 2
+     */
+    public BTreeImpl(int order) {
+        this(order, null);
+    }
+
+    /**
+     * a tree with binary keys: each key is stored as the UTF-8 bytes of its toString(), with the bytes shared by
+     * every key in a node stored once per node, and keys are ordered by comparing those bytes.
+     * This suits keys with long common prefixes, such as URIs
+     * @param order the number of entries at which a node is split
+     * @param keyParser turns the toString() of a key back into the key, for range() and cursors
+     * @throws IllegalArgumentException if order is not an even number greater than 2
+     */
+    public BTreeImpl(int order, Function<String, Key> keyParser) {
+        if (order <= 2 || order % 2 != 0) {
+            throw new IllegalArgumentException("order must be an even number greater than 2");
         }
-        private void setPrevious(Node previous) {
+        this.MAX = order;
+        this.keyParser = keyParser;
+        this.readOnly = false;
+        this.copyValue = null;
+        this.root = this.newNode(0, true);
+        this.externalNodes = 1;
+    }
+
+    //a snapshot of the tree: it shares the tree's nodes as they are now
+    private BTreeImpl(BTreeImpl<Key, Value> tree, UnaryOperator<Value> copyValue)
+    {
+        this.MAX = tree.MAX;
+        this.keyParser = tree.keyParser;
+        this.readOnly = true;
+        this.copyValue = copyValue;
+        this.root = tree.root;
+        this.height = tree.height;
+        this.n = tree.n;
+        this.internalNodes = tree.internalNodes;
+        this.externalNodes = tree.externalNodes;
+        this.onDiskCount = tree.onDiskCount;
+        this.pm = tree.pm;
+    }
+
+    /**
+     * nodes are shared with the snapshot until the tree changes them; the first change to a node after a snapshot
+     * copies it and the nodes above it (path copying), so taking a snapshot is O(1) and the tree only pays for what it changes.
+     * Values the tree moves to disk after the snapshot stay in memory for the snapshot as long as it is reachable.
+     * A value that was already on disk when the snapshot was taken is read with pm.peek, which leaves it on disk. While
+     * the snapshot is reachable the tree leaves it there too: it peeks at it, keeps it in memory rather than moving it
+     * to disk over the snapshot's copy, and doesn't delete it. Once no snapshot is reachable, the next change to the
+     * tree deletes the files it left that it no longer has on disk, and get() and prefetch() take values off disk into
+     * the leaves the snapshot shared as they do into any other.
+     * Neither changes a node they share or writes to the persistence manager for the other, so once the snapshot has
+     * been handed to another thread (through an executor, a lock or a volatile field) it can be read there while the
+     * tree goes on changing. The tree itself, and each snapshot, is for one thread at a time
+     */
+    @Override
+    public BTree<Key, Value> snapshot()
+    {
+        return this.takeSnapshot(null);
+    }
 
-            this.previous = previous;
+    /**
+     * snapshot(), for values that are changed in place, like documents whose metadata is set: while the snapshot is
+     * reachable, the tree replaces each value it shares with the snapshot by a copy the first time it gets, changes
+     * or hands out the value, so the snapshot keeps the value as it was
+     * @param copyValue a copy of the value, which changing doesn't change the value
+     */
+    @Override
+    public BTree<Key, Value> snapshot(UnaryOperator<Value> copyValue)
+    {
+        if (copyValue == null)
+        {
+            throw new IllegalArgumentException("argument to snapshot() is null");
         }
-        private Node getPrevious()
+        return this.takeSnapshot(copyValue);
+    }
+
+    //a snapshot never changes, so one taken of a snapshot is the snapshot itself
+    private BTree<Key, Value> takeSnapshot(UnaryOperator<Value> copyValue)
+    {
+        if (this.readOnly)
         {
-            return this.previous;
+            return this;
         }
+        //everything that exists now belongs to the snapshot too
+        this.generation++;
+        BTreeImpl<Key, Value> snapshot = new BTreeImpl<>(this, copyValue);
+        this.snapshots.add(new WeakReference<>(snapshot));
+        return snapshot;
+    }
 
-        private Entry[] getEntries()
+    private Node newNode(int k, boolean external)
+    {
+        return new Node(k, this.MAX, external, this.generation);
+    }
+
+    //the node itself if it was created in this generation, otherwise a copy that can be changed without changing a snapshot
+    private Node writable(Node node)
+    {
+        if (node.generation == this.generation)
         {
-            return Arrays.copyOf(this.entries, this.entryCount);
+            return node;
         }
+        Node copy = new Node(node, this.generation);
+        if (!copy.isExternal() || this.snapshots.isEmpty())
+        {
+            return copy;
+        }
+        UnaryOperator<Value> copier = this.valueCopier();
+        for (int j = 0; j < copy.entryCount && !this.snapshots.isEmpty(); j++)
+        {
+            if (copy.onDisk[j])
+            {
+                //the node may be a snapshot's, and the value on disk what the snapshot reads
+                this.keptForSnapshots.add(this.keyAt(copy, j));
+            }
+            else if (copy.vals[j] != null && copier != null)
+            {
+                copy.vals[j] = copier.apply(this.value(copy, j));
+            }
+        }
+        return copy;
+    }
 
+    //the copy function of a reachable snapshot taken with one, or null. Forgets the snapshots that aren't reachable
+    private UnaryOperator<Value> valueCopier()
+    {
+        UnaryOperator<Value> copier = null;
+        Iterator<WeakReference<BTreeImpl<Key, Value>>> it = this.snapshots.iterator();
+        while (it.hasNext())
+        {
+            BTreeImpl<Key, Value> snapshot = it.next().get();
+            if (snapshot == null)
+            {
+                it.remove();
+            }
+            else if (snapshot.copyValue != null)
+            {
+                copier = snapshot.copyValue;
+            }
+        }
+        return copier;
     }
 
-    //internal nodes: only use key and child
-    //external nodes: only use key and value
-    private static class Entry
+    //whether the key's value on disk is left there for a snapshot
+    private boolean keptForSnapshot(Key k)
     {
-        private Comparable key;
-        private Object val;
-        private Node child;
-        Boolean onDisk;
+        if (this.keptForSnapshots.isEmpty() || !this.keptForSnapshots.contains(k))
+        {
+            return false;
+        }
+        this.valueCopier();
+        return !this.snapshots.isEmpty();
+    }
 
-        public Entry(Comparable key, Object val, Node child)
+    //once no snapshot is reachable, delete the files left for them that the tree no longer has on disk:
+    //the key is gone, or its value was read back or replaced
+    private void releaseKept()
+    {
+        if (this.keptForSnapshots.isEmpty())
         {
-            this.key = key;
-            this.val = val;
-            this.child = child;
-            this.onDisk = false;
+            return;
         }
-        public Object getValue()
+        this.valueCopier();
+        if (!this.snapshots.isEmpty())
         {
-            return this.val;
+            return;
         }
-        public Comparable getKey()
+        for (Key k : this.keptForSnapshots)
         {
-            return this.key;
+            Node leaf = this.leafFor(this.searchKey(k));
+            int j = indexOf(leaf, this.searchKey(k));
+            if (j < 0 || !leaf.onDisk[j])
+            {
+                this.deleteFromDisk(k);
+            }
         }
+        this.keptForSnapshots.clear();
     }
 
-    public BTreeImpl() {
-        this.root = new Node(0);
+    //whether the tree can change the external node in place. One from before the last snapshot may be a snapshot's,
+    //until no snapshot is reachable: then it is the tree's alone, and is restamped so it isn't asked about again
+    private boolean owns(Node leaf)
+    {
+        if (this.readOnly)
+        {
+            return false;
+        }
+        if (leaf.generation == this.generation)
+        {
+            return true;
+        }
+        this.valueCopier();
+        if (!this.snapshots.isEmpty())
+        {
+            return false;
+        }
+        leaf.generation = this.generation;
+        return true;
+    }
 
+    //the tree's own copy of a leaf it may share with a snapshot that copies values, so the values it hands out aren't the snapshot's
+    private Node ownLeaf(Node leaf, Object searchKey)
+    {
+        return this.sharesValues(leaf) ? this.writablePath(searchKey) : leaf;
+    }
+
+    //whether ownLeaf would copy the leaf, checked before its search key is worked out
+    private boolean sharesValues(Node leaf)
+    {
+        return !this.readOnly && leaf.generation != this.generation && !this.snapshots.isEmpty() && this.valueCopier() != null;
+    }
+
+    private void checkWritable()
+    {
+        if (this.readOnly)
+        {
+            throw new UnsupportedOperationException("a snapshot cannot be changed");
+        }
+    }
+
+    /**
+     * @return the order of the keys: compareTo(), or with binary keys the unsigned order of their UTF-8 bytes
+     */
+    @Override
+    public Comparator<? super Key> comparator()
+    {
+        if (this.keyParser == null)
+        {
+            return Comparator.naturalOrder();
+        }
+        return (a, b) -> compareBytes(encode(a), encode(b));
     }
+
     @Override
     public Value get(Key k){
         if (k == null)
         {
             throw new IllegalArgumentException("argument to get() is null");
         }
-        Entry entry = this.get(this.root, k, this.height);
-        if (entry == null){
+        Object searchKey = this.searchKey(k);
+        Node leaf = this.leafFor(searchKey);
+        int j = indexOf(leaf, searchKey);
+        this.gets.increment();
+        if (j < 0){
             return null;
         }
-
-        if(entry.val != null){
-            return (Value) entry.val;
+        if (leaf.vals[j] != null) {
+            this.memoryHits.increment();
+            leaf = this.ownLeaf(leaf, searchKey);
         }
+        return this.valueOf(leaf, j, k);
+    }
 
-        if (entry.onDisk && pm != null) {
-            try {
-                Value val = pm.deserialize(k);
-                if (val != null) {
-                    put(k, val);
-                    return val;
-                }
-            } catch (Exception e) {
+    //the value of entry j of the external node, or the stand-in kept for it, read back into the node if it was moved to disk
+    private Value valueOf(Node leaf, int j, Key k)
+    {
+        if(leaf.vals[j] != null){
+            return this.value(leaf, j);
+        }
 
-                return null;
-            }
+        if (leaf.onDisk[j] && pm != null) {
+            return this.readBack(leaf, j, k);
         }
 
         return null;
     }
 
-
-
-    private Entry get(Node currentNode, Key key, int height)
+    //the value of entry j whole: a stand-in is handed its value, read back from disk
+    private Value wholeValueOf(Node leaf, int j, Key k)
     {
-        Entry[] entries = currentNode.entries;
+        if (!leaf.onDisk[j] || pm == null) {
+            return this.value(leaf, j);
+        }
+        Value val = this.readBack(leaf, j, k);
+        return val != null ? val : this.value(leaf, j);
+    }
 
-        //current node is external (i.e. height == 0)
-        if (height == 0){
-            for (int j = 0; j < currentNode.entryCount; j++)
-            {
-                if(isEqual(key, entries[j].key))
-                {
-                    //found desired key. Return its value
-                    return entries[j];
-                }
+    //read the value of an entry on disk back into the node
+    private Value readBack(Node leaf, int j, Key k)
+    {
+        this.diskReads.increment();
+        try {
+            if (!this.owns(leaf)) {
+                //the leaf is a snapshot's: it isn't changed, and the value stays on disk for the snapshot to read
+                return pm.peek(k);
             }
-            //didn't find the key
+            //a snapshot may read the value from disk too, so it is left there
+            Value val = this.keptForSnapshot(k) ? pm.peek(k) : pm.deserialize(k);
+            return val == null ? null : this.readIn(leaf, j, val);
+        } catch (Exception e) {
+
             return null;
         }
+    }
 
-        //current node is internal (height > 0)
-        else
+    //put a value read back from disk into the node. A stand-in kept for it is handed the value, and stays in its place
+    private Value readIn(Node leaf, int j, Value val)
+    {
+        if (leaf.vals[j] != null && this.standIns != null) {
+            val = this.standIns.restore(this.value(leaf, j), val);
+        }
+        leaf.vals[j] = val;
+        leaf.onDisk[j] = false;
+        this.onDiskCount--;
+        return val;
+    }
+
+    //what stays in memory for a value moved to disk
+    private Object standInFor(Value val)
+    {
+        return this.standIns == null ? null : this.standIns.standIn(val);
+    }
+
+    //the external node whose range covers the key, with it and every node above it made writable
+    private Node writablePath(Object key)
+    {
+        this.root = this.writable(this.root);
+        Node currentNode = this.root;
+        for (int h = this.height; h > 0; h--)
         {
-            for (int j = 0; j < currentNode.entryCount; j++)
-            {
-                //if (we are at the last key in this node OR the key we
-                //are looking for is less than the next key, i.e. the
-                //desired key must be in the subtree below the current entry),
-                //then recurse into the current entry’s child
-                if (j + 1 == currentNode.entryCount || less(key, entries[j + 1].key))
-                {
-                    return this.get(entries[j].child, key, height - 1);
-                }
-            }
-            //didn't find the key
-            return null;
+            int j = childIndex(currentNode, key);
+            Node child = this.writable(currentNode.children[j]);
+            currentNode.children[j] = child;
+            currentNode = child;
+        }
+        return currentNode;
+    }
+
+    //the external node whose range covers the key
+    private Node leafFor(Object key)
+    {
+        Node currentNode = this.root;
+        //recurse into the child of the last entry whose key is not greater than the key we want,
+        //i.e. the desired key must be in the subtree below that entry
+        for (int h = this.height; h > 0; h--)
+        {
+            currentNode = currentNode.children[childIndex(currentNode, key)];
         }
+        return currentNode;
     }
 
 
@@ -163,103 +470,147 @@ public class BTreeImpl <Key extends Comparable<Key>, Value> implements BTree<Key
         {
             throw new IllegalArgumentException("argument key to put() is null");
         }
-        //if the key already exists in the b-tree, simply replace the value
-        Entry alreadyThere = this.get(this.root, k, this.height);
-        if(alreadyThere != null) {
-            Value existingValue = (Value) alreadyThere.val;
-            if (existingValue != null){
-                alreadyThere.val = v;
-                return existingValue;
-
-            } else {
-                try {
-                    Value recoveredValue = pm.deserialize(k);
-                    alreadyThere.val = v;
-                    return recoveredValue;
-                } catch (IOException e){
-                    alreadyThere.val=v;
-                    return null;
-                }
-            }
+        //putting null is a delete
+        if (v == null)
+        {
+            return this.delete(k);
         }
+        //if the key already exists in the b-tree, its value is replaced on the same way down
+        return this.compute(k, (key, existingValue) -> v);
+    }
 
-        Node newNode = this.put(this.root, k, v, this.height);
-        this.n++;
-        if (newNode == null)
+    @Override
+    public Value compute(Key k, BiFunction<? super Key, ? super Value, ? extends Value> remappingFunction)
+    {
+        if (k == null || remappingFunction == null)
         {
-            return null;
+            throw new IllegalArgumentException("argument to compute() is null");
         }
+        Slot slot = new Slot(remappingFunction, false);
+        this.compute(k, slot);
+        return slot.previous;
+    }
 
-        //split the root:
-        //Create a new node to be the root.
-        //Set the old root to be new root's first entry.
-        //Set the node returned from the call to put to be new root's second entry
-        Node newRoot = new Node(2);
-        newRoot.entries[0] = new Entry(this.root.entries[0].key, null, this.root);
-        newRoot.entries[1] = new Entry(newNode.entries[0].key, null, newNode);
-        this.root = newRoot;
-        //a split at the root always increases the tree height by 1
-        this.height++;
-        return null;
+    @Override
+    public boolean putBlind(Key k, Value v)
+    {
+        if (k == null || v == null)
+        {
+            throw new IllegalArgumentException("argument to putBlind() is null");
+        }
+        Slot slot = new Slot((key, existingValue) -> v, true);
+        this.compute(k, slot);
+        return slot.found;
+    }
+
+    private void compute(Key k, Slot slot)
+    {
+        this.checkWritable();
+        this.releaseKept();
+        this.root = this.writable(this.root);
+        Node newNode = this.compute(this.root, k, this.searchKey(k), slot, this.height);
+        if (newNode != null)
+        {
+            this.splitRoot(newNode);
+        }
+        if (slot.inserted)
+        {
+            this.n++;
+            this.modCount++;
+        }
+        if (slot.remove)
+        {
+            //the old value was already handed to the function, so the delete doesn't need to read it again
+            this.delete(k);
+        }
+    }
+
+    //what a single descent of compute() found and did at the key's slot
+    private class Slot
+    {
+        private final BiFunction<? super Key, ? super Value, ? extends Value> remappingFunction;
+        private final boolean blind; //don't read the old value back from disk
+        private Value previous;
+        private boolean found;
+        private boolean inserted;
+        private boolean remove;
+
+        private Slot(BiFunction<? super Key, ? super Value, ? extends Value> remappingFunction, boolean blind)
+        {
+            this.remappingFunction = remappingFunction;
+            this.blind = blind;
+        }
     }
 
-    private Node put(Node currentNode, Key key, Value val, int height)
+    private Node compute(Node currentNode, Key key, Object searchKey, Slot slot, int height)
     {
         int j;
-        Entry newEntry = new Entry(key, val, null);
 
         //external node
         if (height == 0)
         {
-            //find index in currentNode’s entry[] to insert new entry
-            //we look for key < entry.key since we want to leave j
-            //pointing to the slot to insert the new entry, hence we want to find
-            //the first entry in the current node that key is LESS THAN
-            for (j = 0; j < currentNode.entryCount; j++)
+            j = binarySearch(currentNode, searchKey, 0);
+            if (j >= 0)
             {
-                if (less(key, currentNode.entries[j].key))
+                //the key is already in the b-tree: replace its value in place
+                slot.found = true;
+                if (slot.blind && currentNode.onDisk[j])
+                {
+                    //drop the copy on disk without reading it, unless a snapshot may read it. A stand-in goes with it
+                    if (!this.keptForSnapshot(key))
+                    {
+                        this.deleteFromDisk(key);
+                    }
+                }
+                else
+                {
+                    slot.previous = this.wholeValueOf(currentNode, j, key);
+                }
+                Value newValue = slot.remappingFunction.apply(key, slot.previous);
+                currentNode.vals[j] = newValue;
+                if (currentNode.onDisk[j])
+                {
+                    //the value couldn't be read back, or wasn't read because the put was blind
+                    currentNode.onDisk[j] = false;
+                    this.onDiskCount--;
+                }
+                if (newValue == null)
                 {
-                    break;
+                    slot.remove = true;
                 }
+                return null;
             }
+            Value newValue = slot.remappingFunction.apply(key, null);
+            if (newValue == null)
+            {
+                return null;
+            }
+            //binary search leaves j pointing to the slot to insert the new entry,
+            //i.e. the first entry in the current node that key is LESS THAN
+            j = -(j + 1);
+            this.insertEntry(currentNode, j, searchKey, newValue, null);
+            slot.inserted = true;
         }
 
         // internal node
         else
         {
-            //find index in node entry array to insert the new entry
-            for (j = 0; j < currentNode.entryCount; j++)
+            //find the entry whose subtree the key must be added to, then do a recursive call
+            //to compute on that entry’s child
+            j = childIndex(currentNode, searchKey);
+            //increment j (j++) after the call so that a new entry created by a split
+            //will be inserted in the next slot
+            Node child = this.writable(currentNode.children[j]);
+            currentNode.children[j++] = child;
+            Node newNode = this.compute(child, key, searchKey, slot, height - 1);
+            if (newNode == null)
             {
-                //if (we are at the last key in this node OR the key we
-                //are looking for is less than the next key, i.e. the
-                //desired key must be added to the subtree below the current entry),
-                //then do a recursive call to put on the current entry’s child
-                if ((j + 1 == currentNode.entryCount) || less(key, currentNode.entries[j + 1].key))
-                {
-                    //increment j (j++) after the call so that a new entry created by a split
-                    //will be inserted in the next slot
-                    Node newNode = this.put(currentNode.entries[j++].child, key, val, height - 1);
-                    if (newNode == null)
-                    {
-                        return null;
-                    }
-                    //if the call to put returned a node, it means I need to add a new entry to
-                    //the current node
-                    newEntry.key = newNode.entries[0].key;
-                    newEntry.val = null;
-                    newEntry.child = newNode;
-                    break;
-                }
+                return null;
             }
+            //if the call to compute returned a node, it means I need to add a new entry to
+            //the current node
+            this.insertEntry(currentNode, j, this.fullKey(newNode, 0), null, newNode);
         }
-        //shift entries over one place to make room for new entry
-        for (int i = currentNode.entryCount; i > j; i--)
-        {
-            currentNode.entries[i] = currentNode.entries[i - 1];
-        }
-        //add new entry
-        currentNode.entries[j] = newEntry;
-        currentNode.entryCount++;
         if (currentNode.entryCount < MAX)
         {
             //no structural changes needed in the tree
@@ -275,61 +626,1204 @@ public class BTreeImpl <Key extends Comparable<Key>, Value> implements BTree<Key
         }
     }
 
+    private void splitRoot(Node newNode)
+    {
+        //split the root:
+        //Create a new node to be the root.
+        //Set the old root to be new root's first entry.
+        //Set the node returned from the call to put to be new root's second entry
+        Node newRoot = this.newNode(0, false);
+        this.insertEntry(newRoot, 0, this.fullKey(this.root, 0), null, this.root);
+        this.insertEntry(newRoot, 1, this.fullKey(newNode, 0), null, newNode);
+        this.root = newRoot;
+        this.internalNodes++;
+        //a split at the root always increases the tree height by 1
+        this.height++;
+    }
+
     private Node split(Node currentNode, int height)
     {
-        Node newNode = new Node(MAX / 2);
+        Node newNode = this.newNode(MAX / 2, height == 0);
+        this.splits.increment();
+        if (height == 0)
+        {
+            this.externalNodes++;
+        }
+        else
+        {
+            this.internalNodes++;
+        }
         //by changing currentNode.entryCount, we will treat any value
         //at index higher than the new currentNode.entryCount as if
         //it doesn't exist
         currentNode.entryCount = MAX / 2;
         //copy top half of h into t
-        for (int j = 0; j < MAX / 2; j++)
-        {
-            newNode.entries[j] = currentNode.entries[MAX / 2 + j];
-        }
+        newNode.prefix = currentNode.prefix;
+        moveEntries(currentNode, MAX / 2, newNode, 0, MAX / 2);
+        Arrays.fill(currentNode.keys, MAX / 2, MAX, null);
+        //each half may share more bytes than the whole did
+        this.extendPrefix(currentNode);
+        this.extendPrefix(newNode);
         //external node
         if (height == 0)
         {
-            newNode.setNext(currentNode.getNext());
-            newNode.setPrevious(currentNode);
-            currentNode.setNext(newNode);
+            Arrays.fill(currentNode.vals, MAX / 2, MAX, null);
+        }
+        else
+        {
+            Arrays.fill(currentNode.children, MAX / 2, MAX, null);
         }
         return newNode;
     }
 
-    private static boolean less(Comparable k1, Comparable k2)
+    @Override
+    public Value delete(Key k)
     {
-        return k1.compareTo(k2) < 0;
+        if (k == null)
+        {
+            throw new IllegalArgumentException("argument key to delete() is null");
+        }
+        this.checkWritable();
+        this.releaseKept();
+        this.root = this.writable(this.root);
+        Removed removed = this.delete(this.root, this.searchKey(k), this.height);
+        if (removed == null)
+        {
+            return null;
+        }
+        this.n--;
+        this.modCount++;
+        //an internal root with a single child is no longer needed:
+        //make the child the new root, which decreases the tree height by 1
+        while (this.height > 0 && this.root.entryCount == 1)
+        {
+            this.root = this.root.children[0];
+            this.internalNodes--;
+            this.height--;
+        }
+        if (removed.onDisk)
+        {
+            this.onDiskCount--;
+        }
+        //a snapshot may read the value from disk, so its copy there is left until no snapshot can
+        boolean kept = this.keptForSnapshot(k);
+        if (!removed.onDisk || this.pm == null)
+        {
+            //a persistence manager can keep a copy of a value after reading it back, so it is told of the delete
+            if (!kept)
+            {
+                this.deleteFromDisk(k);
+            }
+            return cast(removed.val);
+        }
+        //the value was on disk. A stand-in kept for it is handed it
+        this.diskReads.increment();
+        try
+        {
+            Value val = kept ? this.pm.peek(k) : this.pm.deserialize(k);
+            if (val != null && removed.val != null && this.standIns != null)
+            {
+                val = this.standIns.restore(cast(removed.val), val);
+            }
+            return val != null ? val : cast(removed.val);
+        }
+        catch (IOException e)
+        {
+            return cast(removed.val);
+        }
+        finally
+        {
+            if (!kept)
+            {
+                this.deleteFromDisk(k);
+            }
+        }
     }
 
-    private static boolean isEqual(Comparable k1, Comparable k2)
+    //the value of an entry removed by delete(), and whether it had been moved to disk
+    private static final class Removed
     {
-        return k1.compareTo(k2) == 0;
-    }
+        private final Object val;
+        private final boolean onDisk;
 
+        private Removed(Object val, boolean onDisk)
+        {
+            this.val = val;
+            this.onDisk = onDisk;
+        }
+    }
 
-    @Override
-    public void moveToDisk(Key k) throws IOException {
-        if(pm == null) {
-            throw new IllegalStateException("pm not yet set");
+    private void deleteFromDisk(Key k)
+    {
+        if (this.pm == null)
+        {
+            return;
         }
-        if(k == null) {
-            throw new IllegalArgumentException("key cannot be null");
+        try
+        {
+            this.pm.delete(k);
         }
-        Entry entry = this.get(this.root, k, this.height);
-        if (entry != null && entry.val != null) {
-            pm.serialize(k, (Value) entry.val);
-           put(k,null);
-            entry.onDisk = true; // Mark the entry as being on disk
-    }
+        catch (IOException ignored)
+        {
         }
-    @Override
-    public void setPersistenceManager(PersistenceManager<Key,Value> pm){
-        this.pm = pm;
+    }
 
+    private Removed delete(Node currentNode, Object key, int height)
+    {
+        //external node
+        if (height == 0)
+        {
+            int j = indexOf(currentNode, key);
+            if (j < 0)
+            {
+                //didn't find the key
+                return null;
+            }
+            Removed removed = new Removed(currentNode.vals[j], currentNode.onDisk[j]);
+            removeEntry(currentNode, j);
+            return removed;
+        }
 
+        //internal node: delete from the child whose subtree covers the key,
+        //then fix the child if it was left less than half full
+        int j = childIndex(currentNode, key);
+        Node child = this.writable(currentNode.children[j]);
+        currentNode.children[j] = child;
+        Removed removed = this.delete(child, key, height - 1);
+        if (removed != null && child.entryCount < MAX / 2)
+        {
+            this.rebalance(currentNode, j, height - 1);
+        }
+        return removed;
+    }
 
+    //the child at index j of parent has too few entries:
+    //borrow an entry from a sibling that can spare one, otherwise merge with a sibling
+    private void rebalance(Node parent, int j, int childHeight)
+    {
+        Node child = parent.children[j];
+        if (j > 0)
+        {
+            Node left = this.writable(parent.children[j - 1]);
+            parent.children[j - 1] = left;
+            if (left.entryCount > MAX / 2)
+            {
+                //move the last entry of the left sibling to the front of the child
+                int last = left.entryCount - 1;
+                Object borrowedKey = this.fullKey(left, last);
+                if (childHeight > 0)
+                {
+                    //the child's first key becomes a separator inside the child, so use the one from the parent
+                    this.setKey(child, 0, this.fullKey(parent, j));
+                }
+                this.insertEntry(child, 0, borrowedKey, childHeight == 0 ? left.vals[last] : null, childHeight == 0 ? null : left.children[last]);
+                if (childHeight == 0)
+                {
+                    child.onDisk[0] = left.onDisk[last];
+                }
+                removeEntry(left, last);
+                this.setKey(parent, j, borrowedKey);
+            }
+            else
+            {
+                this.merge(parent, j - 1, childHeight);
+            }
+        }
+        else if (j + 1 < parent.entryCount)
+        {
+            Node right = this.writable(parent.children[j + 1]);
+            parent.children[j + 1] = right;
+            if (right.entryCount > MAX / 2)
+            {
+                //move the first entry of the right sibling to the end of the child
+                //with internal nodes its key becomes a separator inside the child, so use the one from the parent
+                Object borrowedKey = childHeight > 0 ? this.fullKey(parent, j + 1) : this.fullKey(right, 0);
+                int end = child.entryCount;
+                this.insertEntry(child, end, borrowedKey, childHeight == 0 ? right.vals[0] : null, childHeight == 0 ? null : right.children[0]);
+                if (childHeight == 0)
+                {
+                    child.onDisk[end] = right.onDisk[0];
+                }
+                removeEntry(right, 0);
+                this.setKey(parent, j + 1, this.fullKey(right, 0));
+            }
+            else
+            {
+                this.merge(parent, j, childHeight);
+            }
+        }
+    }
+
+    //merge the child at index j + 1 of parent into the child at index j, and remove its entry from parent
+    private void merge(Node parent, int j, int childHeight)
+    {
+        Node left = parent.children[j];
+        Node right = parent.children[j + 1];
+        if (childHeight > 0)
+        {
+            //the right node's first key becomes a separator inside the left node, so use the one from the parent
+            this.setKey(right, 0, this.fullKey(parent, j + 1));
+        }
+        //the left node's prefix has to cover every key moving into it
+        byte[] rightPrefix = right.prefix;
+        if (this.keyParser != null && !startsWith(rightPrefix, left.prefix))
+        {
+            shrinkPrefix(left, commonPrefixLength(left.prefix, rightPrefix));
+        }
+        int start = left.entryCount;
+        moveEntries(right, 0, left, start, right.entryCount);
+        if (this.keyParser != null)
+        {
+            //the moved suffixes were relative to the right node's prefix
+            byte[] extra = Arrays.copyOfRange(rightPrefix, left.prefix.length, rightPrefix.length);
+            for (int i = start; i < start + right.entryCount; i++)
+            {
+                byte[] suffix = (byte[]) left.keys[i];
+                left.keys[i] = concat(extra, suffix, 0, suffix.length);
+            }
+        }
+        left.entryCount += right.entryCount;
+        removeEntry(parent, j + 1);
+        this.merges.increment();
+        if (childHeight == 0)
+        {
+            this.externalNodes--;
+        }
+        else
+        {
+            this.internalNodes--;
+        }
+    }
+
+    //shift entries over one place to make room for a new entry at index j
+    private void insertEntry(Node currentNode, int j, Object fullKey, Object val, Node child)
+    {
+        int after = currentNode.entryCount - j;
+        moveEntries(currentNode, j, currentNode, j + 1, after);
+        currentNode.entryCount++;
+        if (currentNode.isExternal())
+        {
+            currentNode.vals[j] = val;
+            currentNode.onDisk[j] = false;
+        }
+        else
+        {
+            currentNode.children[j] = child;
+        }
+        if (this.keyParser != null && currentNode.entryCount == 1)
+        {
+            //the only key in the node: all of it is prefix
+            currentNode.prefix = (byte[]) fullKey;
+        }
+        this.setKey(currentNode, j, fullKey);
+    }
+
+    //shift entries over one place to close the gap left by the entry at index j
+    private static void removeEntry(Node currentNode, int j)
+    {
+        moveEntries(currentNode, j + 1, currentNode, j, currentNode.entryCount - j - 1);
+        currentNode.entryCount--;
+        int last = currentNode.entryCount;
+        currentNode.keys[last] = null;
+        if (currentNode.isExternal())
+        {
+            currentNode.vals[last] = null;
+            currentNode.onDisk[last] = false;
+        }
+        else
+        {
+            currentNode.children[last] = null;
+        }
+    }
+
+    //copy count entries of one node into another, or within the same node
+    private static void moveEntries(Node from, int fromIndex, Node to, int toIndex, int count)
+    {
+        System.arraycopy(from.keys, fromIndex, to.keys, toIndex, count);
+        if (from.isExternal())
+        {
+            System.arraycopy(from.vals, fromIndex, to.vals, toIndex, count);
+            System.arraycopy(from.onDisk, fromIndex, to.onDisk, toIndex, count);
+        }
+        else
+        {
+            System.arraycopy(from.children, fromIndex, to.children, toIndex, count);
+        }
+    }
+
+    //the form of a key that is stored and searched for: the key itself, or with binary keys its bytes
+    private Object searchKey(Key k)
+    {
+        return this.keyParser == null ? k : encode(k);
+    }
+
+    private static byte[] encode(Object k)
+    {
+        return k.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    //the key at index j as searchKey() would give it, with binary keys the node's prefix and the suffix joined together
+    private Object fullKey(Node currentNode, int j)
+    {
+        if (this.keyParser == null)
+        {
+            return currentNode.keys[j];
+        }
+        byte[] suffix = (byte[]) currentNode.keys[j];
+        return concat(currentNode.prefix, suffix, 0, suffix.length);
+    }
+
+    //the value of entry j of an external node. Nodes aren't generic, so keys and values are kept as Object and cast
+    //back here and in cast()
+    private Value value(Node leaf, int j)
+    {
+        return cast(leaf.vals[j]);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T cast(Object o)
+    {
+        return (T) o;
+    }
+
+    //compareTo() of two keys that aren't binary. Every key in a tree is a Key, so either can be compared to the other
+    @SuppressWarnings("unchecked")
+    private static int compareKeys(Object a, Object b)
+    {
+        return ((Comparable<Object>) a).compareTo(b);
+    }
+
+    //the key at index j, turned back into a key object with binary keys
+    private Key keyAt(Node currentNode, int j)
+    {
+        if (this.keyParser == null)
+        {
+            return cast(currentNode.keys[j]);
+        }
+        return this.keyParser.apply(new String((byte[]) this.fullKey(currentNode, j), StandardCharsets.UTF_8));
+    }
+
+    //set the key at index j. With binary keys the node's prefix is cut back first if the key doesn't start with it
+    private void setKey(Node currentNode, int j, Object fullKey)
+    {
+        if (this.keyParser == null)
+        {
+            currentNode.keys[j] = fullKey;
+            return;
+        }
+        byte[] bytes = (byte[]) fullKey;
+        if (!startsWith(bytes, currentNode.prefix))
+        {
+            shrinkPrefix(currentNode, commonPrefixLength(currentNode.prefix, bytes));
+        }
+        currentNode.keys[j] = Arrays.copyOfRange(bytes, currentNode.prefix.length, bytes.length);
+    }
+
+    //cut the node's prefix back to its first length bytes, moving the rest onto the front of every suffix
+    private static void shrinkPrefix(Node currentNode, int length)
+    {
+        byte[] moved = Arrays.copyOfRange(currentNode.prefix, length, currentNode.prefix.length);
+        for (int i = 0; i < currentNode.entryCount; i++)
+        {
+            byte[] suffix = (byte[]) currentNode.keys[i];
+            if (suffix != null)
+            {
+                currentNode.keys[i] = concat(moved, suffix, 0, suffix.length);
+            }
+        }
+        currentNode.prefix = Arrays.copyOf(currentNode.prefix, length);
+    }
+
+    //move the bytes every suffix in the node starts with onto the end of the prefix
+    private void extendPrefix(Node currentNode)
+    {
+        if (this.keyParser == null || currentNode.entryCount == 0)
+        {
+            return;
+        }
+        byte[] first = (byte[]) currentNode.keys[0];
+        int length = first.length;
+        for (int i = 1; i < currentNode.entryCount && length > 0; i++)
+        {
+            length = Math.min(length, commonPrefixLength(first, (byte[]) currentNode.keys[i]));
+        }
+        if (length == 0)
+        {
+            return;
+        }
+        currentNode.prefix = concat(currentNode.prefix, first, 0, length);
+        for (int i = 0; i < currentNode.entryCount; i++)
+        {
+            byte[] suffix = (byte[]) currentNode.keys[i];
+            currentNode.keys[i] = Arrays.copyOfRange(suffix, length, suffix.length);
+        }
+    }
+
+    //a followed by length bytes of b, starting at index bFrom
+    private static byte[] concat(byte[] a, byte[] b, int bFrom, int length)
+    {
+        byte[] joined = Arrays.copyOf(a, a.length + length);
+        System.arraycopy(b, bFrom, joined, a.length, length);
+        return joined;
+    }
+
+    private static boolean startsWith(byte[] bytes, byte[] prefix)
+    {
+        return bytes.length >= prefix.length && Arrays.equals(bytes, 0, prefix.length, prefix, 0, prefix.length);
+    }
+
+    private static int commonPrefixLength(byte[] a, byte[] b)
+    {
+        int mismatch = Arrays.mismatch(a, b);
+        return mismatch < 0 ? a.length : mismatch;
+    }
+
+    private static int compareBytes(byte[] a, byte[] b)
+    {
+        return Arrays.compareUnsigned(a, b);
+    }
+
+    //compare two keys in the tree's order
+    private int compareKeys(Key a, Key b)
+    {
+        if (this.keyParser == null)
+        {
+            return a.compareTo(b);
+        }
+        return compareBytes(encode(a), encode(b));
+    }
+
+    @Override
+    public void bulkLoad(Iterator<? extends Map.Entry<Key, Value>> sortedEntries)
+    {
+        if (sortedEntries == null)
+        {
+            throw new IllegalArgumentException("argument to bulkLoad() is null");
+        }
+        this.bulkLoad(sortedEntries, false);
+    }
+
+    @Override
+    public void bulkLoadOnDisk(Iterator<? extends Key> sortedKeys)
+    {
+        if (sortedKeys == null)
+        {
+            throw new IllegalArgumentException("argument to bulkLoadOnDisk() is null");
+        }
+        if (this.pm == null)
+        {
+            throw new IllegalStateException("pm not yet set");
+        }
+        this.bulkLoad(new Iterator<Map.Entry<Key, Value>>()
+        {
+            @Override
+            public boolean hasNext()
+            {
+                return sortedKeys.hasNext();
+            }
+
+            @Override
+            public Map.Entry<Key, Value> next()
+            {
+                return new AbstractMap.SimpleImmutableEntry<>(sortedKeys.next(), null);
+            }
+        }, true);
+    }
+
+    //fill the tree bottom-up. Entries on disk have no value in memory
+    private void bulkLoad(Iterator<? extends Map.Entry<Key, Value>> sortedEntries, boolean onDisk)
+    {
+        this.checkWritable();
+        if (this.n > 0)
+        {
+            throw new IllegalStateException("bulkLoad() requires an empty tree");
+        }
+        //fill leaves left to right
+        List<Node> level = new ArrayList<>();
+        Node leaf = this.newNode(0, true);
+        level.add(leaf);
+        Object lastKey = null;
+        int count = 0;
+        while (sortedEntries.hasNext())
+        {
+            Map.Entry<Key, Value> entry = sortedEntries.next();
+            Key key = entry.getKey();
+            if (key == null || (entry.getValue() == null && !onDisk))
+            {
+                throw new IllegalArgumentException("bulkLoad() does not accept null keys or values");
+            }
+            Object searchKey = this.searchKey(key);
+            if (lastKey != null && this.compareSearchKeys(searchKey, lastKey) <= 0)
+            {
+                throw new IllegalArgumentException("bulkLoad() keys must be in strictly ascending order");
+            }
+            //a node holding MAX entries would be split, so MAX - 1 is as full as it gets
+            if (leaf.entryCount == MAX - 1)
+            {
+                leaf = this.newNode(0, true);
+                level.add(leaf);
+            }
+            this.insertEntry(leaf, leaf.entryCount, searchKey, onDisk ? null : entry.getValue(), null);
+            leaf.onDisk[leaf.entryCount - 1] = onDisk;
+            lastKey = searchKey;
+            count++;
+        }
+        this.fillLastNode(level);
+        this.externalNodes = level.size();
+
+        //build each internal level from the one below it until a single root is left
+        int levelHeight = 0;
+        int internal = 0;
+        while (level.size() > 1)
+        {
+            List<Node> parents = new ArrayList<>();
+            Node parent = null;
+            for (Node child : level)
+            {
+                if (parent == null || parent.entryCount == MAX - 1)
+                {
+                    parent = this.newNode(0, false);
+                    parents.add(parent);
+                }
+                this.insertEntry(parent, parent.entryCount, this.fullKey(child, 0), null, child);
+            }
+            this.fillLastNode(parents);
+            internal += parents.size();
+            level = parents;
+            levelHeight++;
+        }
+        this.internalNodes = internal;
+        this.root = level.get(0);
+        this.height = levelHeight;
+        this.n = count;
+        this.onDiskCount = onDisk ? count : 0;
+        this.modCount++;
+    }
+
+    private int compareSearchKeys(Object a, Object b)
+    {
+        if (this.keyParser == null)
+        {
+            return compareKeys(a, b);
+        }
+        return compareBytes((byte[]) a, (byte[]) b);
+    }
+
+    //the last node of a packed level can be left less than half full -
+    //even it out with the node before it so every node meets the minimum
+    private void fillLastNode(List<Node> level)
+    {
+        if (level.size() < 2)
+        {
+            return;
+        }
+        Node last = level.get(level.size() - 1);
+        if (last.entryCount >= MAX / 2)
+        {
+            return;
+        }
+        Node previous = level.get(level.size() - 2);
+        int move = (previous.entryCount + last.entryCount) / 2 - last.entryCount;
+        for (int i = 0; i < move; i++)
+        {
+            int j = previous.entryCount - 1;
+            this.insertEntry(last, 0, this.fullKey(previous, j), last.isExternal() ? previous.vals[j] : null, last.isExternal() ? null : previous.children[j]);
+            if (last.isExternal())
+            {
+                last.onDisk[0] = previous.onDisk[j];
+            }
+            removeEntry(previous, j);
+        }
+        this.extendPrefix(previous);
+    }
+
+    @Override
+    public List<Key> range(Key fromKey, Key toKey)
+    {
+        List<Key> keys = new ArrayList<>();
+        Cursor<Key, Value> cursor = this.cursor(fromKey);
+        while (cursor.next())
+        {
+            Key key = cursor.getKey();
+            if (toKey != null && this.compareKeys(key, toKey) >= 0)
+            {
+                break;
+            }
+            keys.add(key);
+        }
+        return keys;
+    }
+
+    @Override
+    public Cursor<Key, Value> cursor(Key fromKey)
+    {
+        //descend to the leaf whose range covers fromKey, or to the first leaf, remembering the way down
+        Object searchKey = fromKey == null ? null : this.searchKey(fromKey);
+        Node[] path = new Node[this.height + 1];
+        int[] indexes = new int[this.height + 1];
+        Node currentNode = this.root;
+        for (int level = 0; level < this.height; level++)
+        {
+            int j = searchKey == null ? 0 : childIndex(currentNode, searchKey);
+            path[level] = currentNode;
+            indexes[level] = j;
+            currentNode = currentNode.children[j];
+        }
+        int first = 0;
+        if (searchKey != null)
+        {
+            int j = binarySearch(currentNode, searchKey, 0);
+            first = j >= 0 ? j : -(j + 1);
+        }
+        path[this.height] = currentNode;
+        indexes[this.height] = first - 1;
+        return new PathCursor(path, indexes);
+    }
+
+    //walks the leaves in order by moving along the path from the root to the current leaf.
+    //nodes can be shared with snapshots, so there are no links between leaves to follow: a shared leaf would need a
+    //different neighbour in each tree. Instead, stepping past the end of a leaf climbs to the nearest ancestor with
+    //another child and goes back down, which is at most height steps once per leaf - so a scan still costs about the
+    //same per key as a walk along leaf links would, and far less than a descent per key (see BTreeImplBenchmark)
+    private class PathCursor implements Cursor<Key, Value>
+    {
+        private final Node[] path; //the nodes from the root down to the leaf the cursor is in
+        private final int[] indexes; //the entry followed at each level; at the leaf, -1 or entryCount when it is before or after its entries
+        private final int leafLevel;
+        private final int expectedModCount;
+
+        private PathCursor(Node[] path, int[] indexes)
+        {
+            this.path = path;
+            this.indexes = indexes;
+            this.leafLevel = path.length - 1;
+            this.expectedModCount = modCount;
+        }
+
+        @Override
+        public boolean next()
+        {
+            checkForModification();
+            Node leaf = this.path[this.leafLevel];
+            if (this.indexes[this.leafLevel] + 1 < leaf.entryCount)
+            {
+                this.indexes[this.leafLevel]++;
+                return true;
+            }
+            //go up to the nearest node with a child to the right, then down its leftmost path
+            int level = this.leafLevel - 1;
+            while (level >= 0 && this.indexes[level] + 1 >= this.path[level].entryCount)
+            {
+                level--;
+            }
+            if (level < 0)
+            {
+                //stay just after the last entry so previous() can walk back
+                this.indexes[this.leafLevel] = leaf.entryCount;
+                return false;
+            }
+            this.indexes[level]++;
+            for (level++; level <= this.leafLevel; level++)
+            {
+                this.path[level] = this.path[level - 1].children[this.indexes[level - 1]];
+                this.indexes[level] = 0;
+            }
+            return true;
+        }
+
+        @Override
+        public boolean previous()
+        {
+            checkForModification();
+            if (this.indexes[this.leafLevel] > 0)
+            {
+                this.indexes[this.leafLevel]--;
+                return true;
+            }
+            //go up to the nearest node with a child to the left, then down its rightmost path
+            int level = this.leafLevel - 1;
+            while (level >= 0 && this.indexes[level] == 0)
+            {
+                level--;
+            }
+            if (level < 0)
+            {
+                //stay just before the first entry so next() can walk forward
+                this.indexes[this.leafLevel] = -1;
+                return false;
+            }
+            this.indexes[level]--;
+            for (level++; level <= this.leafLevel; level++)
+            {
+                this.path[level] = this.path[level - 1].children[this.indexes[level - 1]];
+                this.indexes[level] = this.path[level].entryCount - 1;
+            }
+            return true;
+        }
+
+        @Override
+        public Key getKey()
+        {
+            this.checkPosition();
+            return keyAt(this.path[this.leafLevel], this.indexes[this.leafLevel]);
+        }
+
+        @Override
+        public Value getValue()
+        {
+            this.checkPosition();
+            Node leaf = this.path[this.leafLevel];
+            int j = this.indexes[this.leafLevel];
+            if (leaf.vals[j] != null)
+            {
+                if (sharesValues(leaf))
+                {
+                    //the tree's own copy of a value it shares with a snapshot
+                    leaf = writablePath(fullKey(leaf, j));
+                    this.path[this.leafLevel] = leaf;
+                }
+                return value(leaf, j);
+            }
+            return valueOf(leaf, j, keyAt(leaf, j));
+        }
+
+        private void checkPosition()
+        {
+            checkForModification();
+            int j = this.indexes[this.leafLevel];
+            if (j < 0 || j >= this.path[this.leafLevel].entryCount)
+            {
+                throw new NoSuchElementException("cursor is not at a key");
+            }
+        }
+
+        private void checkForModification()
+        {
+            if (modCount != this.expectedModCount)
+            {
+                throw new ConcurrentModificationException();
+            }
+        }
+    }
+
+    //binary search over the node's entries from index low onwards
+    //returns the index of the key if present, otherwise -(insertion point) - 1
+    private static int binarySearch(Node currentNode, Object key, int low)
+    {
+        int high = currentNode.entryCount - 1;
+        if (key instanceof byte[])
+        {
+            //binary keys: compare the prefix once, then only the suffixes
+            byte[] bytes = (byte[]) key;
+            byte[] prefix = currentNode.prefix;
+            int mismatch = Arrays.mismatch(bytes, 0, Math.min(bytes.length, prefix.length), prefix, 0, Math.min(bytes.length, prefix.length));
+            if (mismatch >= 0 || bytes.length < prefix.length)
+            {
+                //the key is before or after every key in the node
+                boolean before = mismatch >= 0 ? Byte.toUnsignedInt(bytes[mismatch]) < Byte.toUnsignedInt(prefix[mismatch]) : true;
+                return before ? -(low + 1) : -(high + 2);
+            }
+            while (low <= high)
+            {
+                int mid = (low + high) >>> 1;
+                byte[] suffix = (byte[]) currentNode.keys[mid];
+                int cmp = Arrays.compareUnsigned(bytes, prefix.length, bytes.length, suffix, 0, suffix.length);
+                if (cmp > 0)
+                {
+                    low = mid + 1;
+                }
+                else if (cmp < 0)
+                {
+                    high = mid - 1;
+                }
+                else
+                {
+                    return mid;
+                }
+            }
+            return -(low + 1);
+        }
+        while (low <= high)
+        {
+            int mid = (low + high) >>> 1;
+            int cmp = compareKeys(key, currentNode.keys[mid]);
+            if (cmp > 0)
+            {
+                low = mid + 1;
+            }
+            else if (cmp < 0)
+            {
+                high = mid - 1;
+            }
+            else
+            {
+                return mid;
+            }
+        }
+        return -(low + 1);
+    }
+
+    //index of the key in an external node, or a negative number if it isn't there
+    private static int indexOf(Node currentNode, Object key)
+    {
+        return binarySearch(currentNode, key, 0);
+    }
+
+    //index of the entry in an internal node whose child's subtree covers the given key:
+    //the last entry whose key is less than or equal to it, or the first entry if there is none.
+    //the first entry's key is never compared - it can be stale on the leftmost path, so it acts as -infinity
+    private static int childIndex(Node currentNode, Object key)
+    {
+        int j = binarySearch(currentNode, key, 1);
+        if (j >= 0)
+        {
+            return j;
+        }
+        return -(j + 1) - 1;
+    }
+
+
+    @Override
+    public void moveToDisk(Key k) throws IOException {
+        if(pm == null) {
+            throw new IllegalStateException("pm not yet set");
+        }
+        if(k == null) {
+            throw new IllegalArgumentException("key cannot be null");
+        }
+        this.checkWritable();
+        this.releaseKept();
+        Object searchKey = this.searchKey(k);
+        Node leaf = this.leafFor(searchKey);
+        int j = indexOf(leaf, searchKey);
+        if (j >= 0 && leaf.vals[j] != null && !leaf.onDisk[j] && !this.keptForSnapshot(k)) {
+            if (!this.owns(leaf)) {
+                //a snapshot shares the leaf and keeps the value in memory
+                leaf = this.writablePath(searchKey);
+            }
+            Value val = this.value(leaf, j);
+            pm.serialize(k, val);
+            leaf.vals[j] = this.standInFor(val);
+            leaf.onDisk[j] = true; // Mark the entry as being on disk
+            this.onDiskCount++;
+            this.diskWrites.increment();
+    }
+        }
+    /**
+     * move the values of the keys to disk with a single pm.serializeAll, so a persistence manager that batches its
+     * writes gets them together. Keys not in the tree, or whose value is already on disk - stand-in or not - are
+     * skipped. If the batch fails, no value is moved
+     */
+    @Override
+    public void moveAllToDisk(Collection<Key> keys) throws IOException {
+        if(pm == null) {
+            throw new IllegalStateException("pm not yet set");
+        }
+        if(keys == null) {
+            throw new IllegalArgumentException("keys cannot be null");
+        }
+        this.checkWritable();
+        this.releaseKept();
+        List<Map.Entry<Key, Value>> batch = new ArrayList<>(keys.size());
+        List<Node> leaves = new ArrayList<>(keys.size());
+        int[] positions = new int[keys.size()];
+        //a key given twice is only written once
+        for (Key k : new LinkedHashSet<>(keys)) {
+            if(k == null) {
+                throw new IllegalArgumentException("key cannot be null");
+            }
+            Object searchKey = this.searchKey(k);
+            Node leaf = this.leafFor(searchKey);
+            int j = indexOf(leaf, searchKey);
+            if (j < 0 || leaf.vals[j] == null || leaf.onDisk[j] || this.keptForSnapshot(k)) {
+                continue;
+            }
+            if (!this.owns(leaf)) {
+                //a snapshot shares the leaf and keeps the value in memory
+                leaf = this.writablePath(searchKey);
+            }
+            positions[batch.size()] = j;
+            leaves.add(leaf);
+            batch.add(new AbstractMap.SimpleImmutableEntry<>(k, this.value(leaf, j)));
+        }
+        if (batch.isEmpty()) {
+            return;
+        }
+        long start = System.nanoTime();
+        pm.serializeAll(batch);
+        this.diskWriteBatchNanos.add(System.nanoTime() - start);
+        this.diskWriteBatches.increment();
+        for (int i = 0; i < batch.size(); i++) {
+            Node leaf = leaves.get(i);
+            int j = positions[i];
+            leaf.vals[j] = this.standInFor(batch.get(i).getValue());
+            leaf.onDisk[j] = true;
+            this.onDiskCount++;
+            this.diskWrites.increment();
+        }
+    }
+
+    /**
+     * read the values of the keys that are on disk back with a single pm.deserializeAll, so a persistence manager that
+     * reads in parallel takes about as long as its slowest read. Each stand-in is handed its value. Keys not in the tree,
+     * or whose value is in memory, are skipped. A value that couldn't be read stays on disk, and the next get tries again
+     */
+    @Override
+    public void prefetch(Collection<Key> keys) {
+        if(keys == null) {
+            throw new IllegalArgumentException("keys cannot be null");
+        }
+        if (this.pm == null || this.readOnly) {
+            return;
+        }
+        this.releaseKept();
+        List<Key> batch = new ArrayList<>();
+        List<Node> leaves = new ArrayList<>();
+        List<Integer> positions = new ArrayList<>();
+        //a key given twice is only read back once
+        for (Key k : new LinkedHashSet<>(keys)) {
+            if(k == null) {
+                throw new IllegalArgumentException("key cannot be null");
+            }
+            Object searchKey = this.searchKey(k);
+            Node leaf = this.leafFor(searchKey);
+            int j = indexOf(leaf, searchKey);
+            if (j < 0 || !leaf.onDisk[j]) {
+                continue;
+            }
+            if (!this.owns(leaf) || this.keptForSnapshot(k)) {
+                //a snapshot may read the value from disk, so it is left there for get to peek at
+                continue;
+            }
+            batch.add(k);
+            leaves.add(leaf);
+            positions.add(j);
+        }
+        if (batch.isEmpty()) {
+            return;
+        }
+        List<Value> values = pm.deserializeAll(batch);
+        this.diskReads.add(batch.size());
+        this.diskReadBatches.increment();
+        for (int i = 0; i < batch.size(); i++) {
+            Node leaf = leaves.get(i);
+            int j = positions.get(i);
+            if (values.get(i) != null) {
+                this.readIn(leaf, j, values.get(i));
+            }
+        }
+    }
+
+    @Override
+    public void setPersistenceManager(PersistenceManager<Key,Value> pm){
+        this.checkWritable();
+        this.pm = pm;
+
+
+
+    }
+
+    /**
+     * values moved to disk from now on leave their stand-ins in memory. An entry already on disk keeps what it has
+     */
+    @Override
+    public void setStandIns(StandIns<Value> standIns)
+    {
+        this.checkWritable();
+        this.standIns = standIns;
+    }
+
+    /**
+     * the shape of the tree and counts of what it has done, read without locking so it can be called from any thread
+     * while the tree is in use. Each figure is current when read, but they are read one at a time, so a stats() taken
+     * during a change can mix figures from before and after it
+     */
+    public Stats stats()
+    {
+        return new Stats(this.MAX, this.height, this.internalNodes, this.externalNodes, this.n, this.onDiskCount,
+                this.gets.sum(), this.memoryHits.sum(), this.diskReads.sum(), this.diskReadBatches.sum(), this.diskWrites.sum(),
+                this.diskWriteBatches.sum(), this.diskWriteBatchNanos.sum(), this.splits.sum(), this.merges.sum());
+    }
+
+    /**
+     * figures returned by stats(). The counters start at zero when the tree is created; a snapshot starts its own
+     */
+    public static final class Stats
+    {
+        private final int order;
+        private final int height;
+        private final int internalNodes;
+        private final int externalNodes;
+        private final int entries;
+        private final int onDiskEntries;
+        private final long gets;
+        private final long memoryHits;
+        private final long diskReads;
+        private final long diskReadBatches;
+        private final long diskWrites;
+        private final long diskWriteBatches;
+        private final long diskWriteBatchNanos;
+        private final long splits;
+        private final long merges;
+
+        private Stats(int order, int height, int internalNodes, int externalNodes, int entries, int onDiskEntries,
+                      long gets, long memoryHits, long diskReads, long diskReadBatches, long diskWrites, long diskWriteBatches,
+                      long diskWriteBatchNanos, long splits, long merges)
+        {
+            this.order = order;
+            this.height = height;
+            this.internalNodes = internalNodes;
+            this.externalNodes = externalNodes;
+            this.entries = entries;
+            this.onDiskEntries = onDiskEntries;
+            this.gets = gets;
+            this.memoryHits = memoryHits;
+            this.diskReads = diskReads;
+            this.diskReadBatches = diskReadBatches;
+            this.diskWrites = diskWrites;
+            this.diskWriteBatches = diskWriteBatches;
+            this.diskWriteBatchNanos = diskWriteBatchNanos;
+            this.splits = splits;
+            this.merges = merges;
+        }
+
+        public int getOrder()
+        {
+            return this.order;
+        }
+
+        /**
+         * @return the number of internal levels above the external nodes: 0 while the root is an external node
+         */
+        public int getHeight()
+        {
+            return this.height;
+        }
+
+        public int getInternalNodeCount()
+        {
+            return this.internalNodes;
+        }
+
+        public int getExternalNodeCount()
+        {
+            return this.externalNodes;
+        }
+
+        public int getNodeCount()
+        {
+            return this.internalNodes + this.externalNodes;
+        }
+
+        public int getEntryCount()
+        {
+            return this.entries;
+        }
+
+        /**
+         * @return the number of entries whose value has been moved to disk, with or without a stand-in in memory
+         */
+        public int getOnDiskCount()
+        {
+            return this.onDiskEntries;
+        }
+
+        /**
+         * @return entries per external node as a fraction of the most a node holds (order - 1). Splits leave nodes
+         * about half full, so this settles between 0.5 and 1; near 0.5 the order could be smaller
+         */
+        public double getAverageFill()
+        {
+            if (this.externalNodes == 0)
+            {
+                return 0;
+            }
+            return (double) this.entries / ((long) this.externalNodes * (this.order - 1));
+        }
+
+        /**
+         * @return calls to get()
+         */
+        public long getGets()
+        {
+            return this.gets;
+        }
+
+        /**
+         * @return calls to get() that found the value, or its stand-in, in memory
+         */
+        public long getMemoryHits()
+        {
+            return this.memoryHits;
+        }
+
+        /**
+         * @return values read back through the persistence manager, by get(), put(), compute(), delete() or prefetch()
+         */
+        public long getDiskReads()
+        {
+            return this.diskReads;
+        }
+
+        /**
+         * @return calls to prefetch() that read at least one value
+         */
+        public long getDiskReadBatches()
+        {
+            return this.diskReadBatches;
+        }
+
+        /**
+         * @return values moved to disk by moveToDisk() or moveAllToDisk()
+         */
+        public long getDiskWrites()
+        {
+            return this.diskWrites;
+        }
+
+        /**
+         * @return calls to moveAllToDisk() that moved at least one value
+         */
+        public long getDiskWriteBatches()
+        {
+            return this.diskWriteBatches;
+        }
+
+        /**
+         * @return time the persistence manager took to write those batches
+         */
+        public long getDiskWriteBatchNanos()
+        {
+            return this.diskWriteBatchNanos;
+        }
+
+        /**
+         * @return the average time to write a batch, 0 before the first one
+         */
+        public long getAverageDiskWriteBatchNanos()
+        {
+            return this.diskWriteBatches == 0 ? 0 : this.diskWriteBatchNanos / this.diskWriteBatches;
+        }
+
+        public long getSplits()
+        {
+            return this.splits;
+        }
+
+        public long getMerges()
+        {
+            return this.merges;
+        }
+
+        @Override
+        public String toString()
+        {
+            return String.format("height=%d nodes=%d (%d internal) entries=%d onDisk=%d fill=%.2f gets=%d memoryHits=%d diskReads=%d diskReadBatches=%d diskWrites=%d diskWriteBatches=%d (%dus avg) splits=%d merges=%d",
+                    this.height, this.getNodeCount(), this.internalNodes, this.entries, this.onDiskEntries, this.getAverageFill(),
+                    this.gets, this.memoryHits, this.diskReads, this.diskReadBatches, this.diskWrites, this.diskWriteBatches,
+                    this.getAverageDiskWriteBatchNanos() / 1000, this.splits, this.merges);
+        }
     }
 
 
-}
\ No newline at end of file
+}
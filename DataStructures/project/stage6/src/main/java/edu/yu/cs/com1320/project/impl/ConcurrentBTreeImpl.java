@@ -0,0 +1,1102 @@
+package edu.yu.cs.com1320.project.impl;
+import edu.yu.cs.com1320.project.BTree;
+import edu.yu.cs.com1320.project.stage6.PersistenceManager;
+import java.io.IOException;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiFunction;
+
+/**
+ * A BTree that can be shared by many threads.
+ * Every node has its own read/write latch, and operations couple latches on the way down the tree:
+ * the child is latched before the parent is released. Lookups run in parallel with each other and with
+ * inserts, deletes and splits in other parts of the tree.
+ * Writers first go down optimistically, holding read latches and write-latching only the leaf. If the leaf
+ * would have to split or be merged, they start again from the root holding write latches, and release the
+ * latches above a node as soon as that node can absorb the change without passing it up.
+ * Cursors and range() re-descend from the root for each leaf instead of following sideways links,
+ * so they never deadlock with writers; they are weakly consistent and never throw ConcurrentModificationException.
+ */
+public class ConcurrentBTreeImpl <Key extends Comparable<Key>, Value> implements BTree<Key, Value> {
+
+    //default order used by the no-arg constructor
+    private static final int DEFAULT_ORDER = 64;
+    //what a node must be able to absorb to be safe during a pessimistic descent
+    private static final int INSERT = 1;
+    private static final int REMOVE = 2;
+    //max children per B-tree node = MAX-1 (must be an even number and greater than 2)
+    private final int MAX;
+    //guards root and height
+    private final ReentrantReadWriteLock rootLatch = new ReentrantReadWriteLock();
+    //held shared by every operation and exclusively by bulkLoad, which replaces the whole tree
+    private final ReentrantReadWriteLock treeLatch = new ReentrantReadWriteLock();
+    private Node root; //root of the B-tree
+    private int height; //height of the B-tree
+    private final AtomicInteger n = new AtomicInteger(); //number of key-value pairs in the B-tree
+
+    private volatile PersistenceManager<Key,Value> pm;
+
+    //B-tree node data type
+    private static final class Node
+    {
+        private final ReentrantReadWriteLock latch = new ReentrantReadWriteLock();
+        private int entryCount; // number of entries
+        private Entry[] entries; // the array of children
+
+        // create a node with k entries and room for max entries
+        private Node(int k, int max)
+        {
+            this.entryCount = k;
+            this.entries = new Entry[max];
+        }
+    }
+
+    //internal nodes: only use key and child
+    //external nodes: only use key and value
+    //keys and values are kept as Object since nodes aren't generic - see keyAt() and value()
+    private static class Entry
+    {
+        private Object key;
+        private Object val;
+        private Node child;
+        private boolean onDisk;
+
+        private Entry(Object key, Object val, Node child)
+        {
+            this.key = key;
+            this.val = val;
+            this.child = child;
+        }
+    }
+
+    //a leaf write-latched by an optimistic descent
+    private static final class LatchedLeaf
+    {
+        private final Node node;
+        private final boolean isRoot;
+
+        private LatchedLeaf(Node node, boolean isRoot)
+        {
+            this.node = node;
+            this.isRoot = isRoot;
+        }
+    }
+
+    //what compute() found and did at the key's slot
+    private class Slot
+    {
+        private final BiFunction<? super Key, ? super Value, ? extends Value> remappingFunction;
+        private final boolean blind; //don't read the old value back from disk
+        private final boolean mayRemove; //the function can return null
+        private Value previous;
+        private boolean found;
+
+        private Slot(BiFunction<? super Key, ? super Value, ? extends Value> remappingFunction, boolean blind, boolean mayRemove)
+        {
+            this.remappingFunction = remappingFunction;
+            this.blind = blind;
+            this.mayRemove = mayRemove;
+        }
+    }
+
+    public ConcurrentBTreeImpl() {
+        this(DEFAULT_ORDER);
+    }
+
+    /**
+     * @param order the number of entries at which a node is split
+     * @throws IllegalArgumentException if order is not an even number greater than 2
+     */
+    public ConcurrentBTreeImpl(int order) {
+        if (order <= 2 || order % 2 != 0) {
+            throw new IllegalArgumentException("order must be an even number greater than 2");
+        }
+        this.MAX = order;
+        this.root = new Node(0, this.MAX);
+    }
+
+    @Override
+    public Value get(Key k)
+    {
+        if (k == null)
+        {
+            throw new IllegalArgumentException("argument to get() is null");
+        }
+        boolean onDisk;
+        this.treeLatch.readLock().lock();
+        try
+        {
+            Node leaf = this.readLatchLeaf(k);
+            try
+            {
+                int j = binarySearch(leaf, k, 0);
+                if (j < 0)
+                {
+                    return null;
+                }
+                Entry entry = leaf.entries[j];
+                if (entry.val != null)
+                {
+                    return this.value(entry);
+                }
+                onDisk = entry.onDisk;
+            }
+            finally
+            {
+                leaf.latch.readLock().unlock();
+            }
+            if (!onDisk || this.pm == null)
+            {
+                return null;
+            }
+            //the value is on disk: reading it back changes the entry, so the leaf has to be write-latched
+            LatchedLeaf latched = this.writeLatchLeaf(k);
+            try
+            {
+                int j = binarySearch(latched.node, k, 0);
+                return j < 0 ? null : this.valueOf(latched.node.entries[j], k);
+            }
+            finally
+            {
+                latched.node.latch.writeLock().unlock();
+            }
+        }
+        finally
+        {
+            this.treeLatch.readLock().unlock();
+        }
+    }
+
+    //the entry's value, read back into the entry if it was moved to disk. The entry's leaf must be write-latched
+    private Value valueOf(Entry entry, Key k)
+    {
+        if (entry.val != null || !entry.onDisk || this.pm == null)
+        {
+            return this.value(entry);
+        }
+        try
+        {
+            Value val = this.pm.deserialize(k);
+            if (val != null)
+            {
+                entry.val = val;
+                entry.onDisk = false;
+            }
+            return val;
+        }
+        catch (Exception e)
+        {
+            return null;
+        }
+    }
+
+    // If replace or delete, return old value. Otherwise return null.
+    @Override
+    public Value put(Key k, Value v)
+    {
+        if (k == null)
+        {
+            throw new IllegalArgumentException("argument key to put() is null");
+        }
+        //putting null is a delete
+        if (v == null)
+        {
+            return this.delete(k);
+        }
+        Slot slot = new Slot((key, existingValue) -> v, false, false);
+        this.compute(k, slot);
+        return slot.previous;
+    }
+
+    @Override
+    public boolean putBlind(Key k, Value v)
+    {
+        if (k == null || v == null)
+        {
+            throw new IllegalArgumentException("argument to putBlind() is null");
+        }
+        Slot slot = new Slot((key, existingValue) -> v, true, false);
+        this.compute(k, slot);
+        return slot.found;
+    }
+
+    @Override
+    public Value compute(Key k, BiFunction<? super Key, ? super Value, ? extends Value> remappingFunction)
+    {
+        if (k == null || remappingFunction == null)
+        {
+            throw new IllegalArgumentException("argument to compute() is null");
+        }
+        Slot slot = new Slot(remappingFunction, false, true);
+        this.compute(k, slot);
+        return slot.previous;
+    }
+
+    private void compute(Key k, Slot slot)
+    {
+        this.treeLatch.readLock().lock();
+        try
+        {
+            //optimistic: the leaf can take the change without splitting or merging
+            LatchedLeaf latched = this.writeLatchLeaf(k);
+            try
+            {
+                Node leaf = latched.node;
+                boolean present = binarySearch(leaf, k, 0) >= 0;
+                boolean canInsert = leaf.entryCount < MAX - 1;
+                boolean canRemove = latched.isRoot || leaf.entryCount > MAX / 2;
+                if ((present && (!slot.mayRemove || canRemove)) || (!present && canInsert))
+                {
+                    this.computeInLeaf(leaf, k, slot);
+                    return;
+                }
+            }
+            finally
+            {
+                latched.node.latch.writeLock().unlock();
+            }
+            //pessimistic: hold every node above the leaf that might have to change
+            this.writePessimistically(k, slot.mayRemove ? INSERT | REMOVE : INSERT, slot);
+        }
+        finally
+        {
+            this.treeLatch.readLock().unlock();
+        }
+    }
+
+    //apply the slot's function in a write-latched leaf. The leaf may be left overfull or underfull
+    private void computeInLeaf(Node leaf, Key key, Slot slot)
+    {
+        int j = binarySearch(leaf, key, 0);
+        if (j >= 0)
+        {
+            Entry existing = leaf.entries[j];
+            slot.found = true;
+            if (slot.blind && existing.val == null && existing.onDisk)
+            {
+                //drop the copy on disk without reading it
+                this.deleteFromDisk(key);
+            }
+            else
+            {
+                slot.previous = this.valueOf(existing, key);
+            }
+            Value newValue = slot.remappingFunction.apply(key, slot.previous);
+            if (newValue == null)
+            {
+                removeEntry(leaf, j);
+                this.n.decrementAndGet();
+            }
+            else
+            {
+                existing.val = newValue;
+                existing.onDisk = false;
+            }
+            return;
+        }
+        Value newValue = slot.remappingFunction.apply(key, null);
+        if (newValue != null)
+        {
+            insertEntry(leaf, -(j + 1), new Entry(key, newValue, null));
+            this.n.incrementAndGet();
+        }
+    }
+
+    @Override
+    public Value delete(Key k)
+    {
+        if (k == null)
+        {
+            throw new IllegalArgumentException("argument key to delete() is null");
+        }
+        Slot slot = new Slot((key, existingValue) -> null, false, true);
+        this.compute(k, slot);
+        return slot.previous;
+    }
+
+    //descend from the root holding write latches, releasing everything above a node once it is safe,
+    //apply the slot at the leaf, then split or merge nodes back up the latched path
+    private void writePessimistically(Key k, int mode, Slot slot)
+    {
+        this.rootLatch.writeLock().lock();
+        boolean rootLatched = true;
+        Node[] path = new Node[this.height + 1];
+        int[] childIndexes = new int[this.height + 1];
+        int top = 0; //highest node on the path whose latch is still held
+        int depth = 0;
+        Node currentNode = this.root;
+        int h = this.height;
+        currentNode.latch.writeLock().lock();
+        path[0] = currentNode;
+        try
+        {
+            if (this.isSafe(currentNode, true, h, mode))
+            {
+                this.rootLatch.writeLock().unlock();
+                rootLatched = false;
+            }
+            while (h > 0)
+            {
+                int j = childIndex(currentNode, k);
+                childIndexes[depth] = j;
+                Node child = currentNode.entries[j].child;
+                child.latch.writeLock().lock();
+                path[++depth] = child;
+                h--;
+                if (this.isSafe(child, false, h, mode))
+                {
+                    //nothing above the child can change: release it all
+                    for (int i = top; i < depth; i++)
+                    {
+                        path[i].latch.writeLock().unlock();
+                    }
+                    top = depth;
+                    if (rootLatched)
+                    {
+                        this.rootLatch.writeLock().unlock();
+                        rootLatched = false;
+                    }
+                }
+                currentNode = child;
+            }
+
+            this.computeInLeaf(currentNode, k, slot);
+
+            //fix the nodes back up the path, from the leaf to the highest one still latched
+            for (int d = depth; d > top; d--)
+            {
+                Node node = path[d];
+                Node parent = path[d - 1];
+                int j = childIndexes[d - 1];
+                int childHeight = depth - d;
+                if (node.entryCount >= MAX)
+                {
+                    Node newNode = this.split(node);
+                    insertEntry(parent, j + 1, new Entry(newNode.entries[0].key, null, newNode));
+                }
+                else if (node.entryCount < MAX / 2)
+                {
+                    this.rebalance(parent, j, childHeight);
+                }
+            }
+            if (rootLatched)
+            {
+                //the root itself may have to split or be collapsed
+                if (this.root.entryCount >= MAX)
+                {
+                    Node newNode = this.split(this.root);
+                    Node newRoot = new Node(2, MAX);
+                    newRoot.entries[0] = new Entry(this.root.entries[0].key, null, this.root);
+                    newRoot.entries[1] = new Entry(newNode.entries[0].key, null, newNode);
+                    this.root = newRoot;
+                    this.height++;
+                }
+                else if (this.height > 0 && this.root.entryCount == 1)
+                {
+                    //an internal root with a single child is no longer needed
+                    this.root = this.root.entries[0].child;
+                    this.height--;
+                }
+            }
+        }
+        finally
+        {
+            for (int i = top; i <= depth; i++)
+            {
+                path[i].latch.writeLock().unlock();
+            }
+            if (rootLatched)
+            {
+                this.rootLatch.writeLock().unlock();
+            }
+        }
+    }
+
+    //can the node take an insert and/or a removal without passing a split or merge up to its parent?
+    private boolean isSafe(Node node, boolean isRoot, int height, int mode)
+    {
+        if ((mode & INSERT) != 0 && node.entryCount >= MAX - 1)
+        {
+            return false;
+        }
+        if ((mode & REMOVE) != 0)
+        {
+            if (isRoot)
+            {
+                //a leaf root can be emptied, an internal root is collapsed when it gets down to one child
+                return height == 0 || node.entryCount > 2;
+            }
+            return node.entryCount > MAX / 2;
+        }
+        return true;
+    }
+
+    private Node split(Node currentNode)
+    {
+        Node newNode = new Node(MAX / 2, MAX);
+        //by changing currentNode.entryCount, we will treat any value
+        //at index higher than the new currentNode.entryCount as if
+        //it doesn't exist
+        currentNode.entryCount = MAX / 2;
+        //copy top half of h into t
+        for (int j = 0; j < MAX / 2; j++)
+        {
+            newNode.entries[j] = currentNode.entries[MAX / 2 + j];
+            currentNode.entries[MAX / 2 + j] = null;
+        }
+        return newNode;
+    }
+
+    //the child at index j of the write-latched parent has too few entries:
+    //borrow an entry from a sibling that can spare one, otherwise merge with a sibling.
+    //siblings are only ever latched while their parent is write-latched, so no one else can be waiting on them from above
+    private void rebalance(Node parent, int j, int childHeight)
+    {
+        Node child = parent.entries[j].child;
+        if (j > 0)
+        {
+            Node left = parent.entries[j - 1].child;
+            left.latch.writeLock().lock();
+            try
+            {
+                if (left.entryCount > MAX / 2)
+                {
+                    //move the last entry of the left sibling to the front of the child
+                    Entry borrowed = left.entries[left.entryCount - 1];
+                    if (childHeight > 0)
+                    {
+                        child.entries[0].key = parent.entries[j].key;
+                    }
+                    removeEntry(left, left.entryCount - 1);
+                    insertEntry(child, 0, borrowed);
+                    parent.entries[j].key = borrowed.key;
+                }
+                else
+                {
+                    merge(parent, j - 1, left, child, childHeight);
+                }
+            }
+            finally
+            {
+                left.latch.writeLock().unlock();
+            }
+        }
+        else if (j + 1 < parent.entryCount)
+        {
+            Node right = parent.entries[j + 1].child;
+            right.latch.writeLock().lock();
+            try
+            {
+                if (right.entryCount > MAX / 2)
+                {
+                    //move the first entry of the right sibling to the end of the child
+                    Entry borrowed = right.entries[0];
+                    if (childHeight > 0)
+                    {
+                        borrowed.key = parent.entries[j + 1].key;
+                    }
+                    removeEntry(right, 0);
+                    insertEntry(child, child.entryCount, borrowed);
+                    parent.entries[j + 1].key = right.entries[0].key;
+                }
+                else
+                {
+                    merge(parent, j, child, right, childHeight);
+                }
+            }
+            finally
+            {
+                right.latch.writeLock().unlock();
+            }
+        }
+    }
+
+    //merge right (the child at index j + 1 of parent) into left (the child at index j), and remove its entry from parent
+    private static void merge(Node parent, int j, Node left, Node right, int childHeight)
+    {
+        if (childHeight > 0)
+        {
+            //the right node's first key becomes a separator inside the left node, so use the one from the parent
+            right.entries[0].key = parent.entries[j + 1].key;
+        }
+        System.arraycopy(right.entries, 0, left.entries, left.entryCount, right.entryCount);
+        left.entryCount += right.entryCount;
+        removeEntry(parent, j + 1);
+    }
+
+    @Override
+    public void moveToDisk(Key k) throws IOException
+    {
+        PersistenceManager<Key, Value> persistenceManager = this.pm;
+        if (persistenceManager == null)
+        {
+            throw new IllegalStateException("pm not yet set");
+        }
+        if (k == null)
+        {
+            throw new IllegalArgumentException("key cannot be null");
+        }
+        this.treeLatch.readLock().lock();
+        try
+        {
+            LatchedLeaf latched = this.writeLatchLeaf(k);
+            try
+            {
+                int j = binarySearch(latched.node, k, 0);
+                if (j >= 0 && latched.node.entries[j].val != null)
+                {
+                    Entry entry = latched.node.entries[j];
+                    persistenceManager.serialize(k, this.value(entry));
+                    entry.val = null;
+                    entry.onDisk = true; // Mark the entry as being on disk
+                }
+            }
+            finally
+            {
+                latched.node.latch.writeLock().unlock();
+            }
+        }
+        finally
+        {
+            this.treeLatch.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void setPersistenceManager(PersistenceManager<Key,Value> pm)
+    {
+        this.pm = pm;
+    }
+
+    private void deleteFromDisk(Key k)
+    {
+        PersistenceManager<Key, Value> persistenceManager = this.pm;
+        if (persistenceManager == null)
+        {
+            return;
+        }
+        try
+        {
+            persistenceManager.delete(k);
+        }
+        catch (IOException ignored)
+        {
+        }
+    }
+
+    //descend with read latches, coupling each child's latch before releasing its parent.
+    //returns the leaf whose range covers the key, still read-latched
+    private Node readLatchLeaf(Key k)
+    {
+        this.rootLatch.readLock().lock();
+        Node currentNode = this.root;
+        int h = this.height;
+        currentNode.latch.readLock().lock();
+        this.rootLatch.readLock().unlock();
+        while (h > 0)
+        {
+            Node child = currentNode.entries[childIndex(currentNode, k)].child;
+            child.latch.readLock().lock();
+            currentNode.latch.readLock().unlock();
+            currentNode = child;
+            h--;
+        }
+        return currentNode;
+    }
+
+    //descend with read latches, but write-latch the leaf
+    private LatchedLeaf writeLatchLeaf(Key k)
+    {
+        this.rootLatch.readLock().lock();
+        Node currentNode = this.root;
+        int h = this.height;
+        if (h == 0)
+        {
+            currentNode.latch.writeLock().lock();
+            this.rootLatch.readLock().unlock();
+            return new LatchedLeaf(currentNode, true);
+        }
+        currentNode.latch.readLock().lock();
+        this.rootLatch.readLock().unlock();
+        while (h > 0)
+        {
+            Node child = currentNode.entries[childIndex(currentNode, k)].child;
+            if (h == 1)
+            {
+                child.latch.writeLock().lock();
+            }
+            else
+            {
+                child.latch.readLock().lock();
+            }
+            currentNode.latch.readLock().unlock();
+            currentNode = child;
+            h--;
+        }
+        return new LatchedLeaf(currentNode, false);
+    }
+
+    //the keys of one leaf, and the separators that bound the leaf's range in the tree
+    private final class LeafKeys
+    {
+        private final List<Key> keys;
+        private final Key lower; //every key in the leaf is >= lower; null if it is the first leaf
+        private final Key upper; //every key in the leaf is < upper; null if it is the last leaf
+
+        private LeafKeys(List<Key> keys, Key lower, Key upper)
+        {
+            this.keys = keys;
+            this.lower = lower;
+            this.upper = upper;
+        }
+
+        private boolean covers(Key key)
+        {
+            return (this.lower == null || key.compareTo(this.lower) >= 0) && (this.upper == null || key.compareTo(this.upper) < 0);
+        }
+    }
+
+    //read the keys of the leaf covering the key, or, if before is true, of the leaf holding the largest key less than it.
+    //a null key means the first leaf, or the last leaf if before is true
+    private LeafKeys readLeafKeys(Key key, boolean before)
+    {
+        Key lower = null;
+        Key upper = null;
+        this.rootLatch.readLock().lock();
+        Node currentNode = this.root;
+        int h = this.height;
+        currentNode.latch.readLock().lock();
+        this.rootLatch.readLock().unlock();
+        try
+        {
+            while (h > 0)
+            {
+                int j;
+                if (key == null)
+                {
+                    j = before ? currentNode.entryCount - 1 : 0;
+                }
+                else if (before)
+                {
+                    j = childIndexBefore(currentNode, key);
+                }
+                else
+                {
+                    j = childIndex(currentNode, key);
+                }
+                //the separators around the chosen child narrow the range at every level
+                if (j > 0)
+                {
+                    lower = keyAt(currentNode, j);
+                }
+                if (j + 1 < currentNode.entryCount)
+                {
+                    upper = keyAt(currentNode, j + 1);
+                }
+                Node child = currentNode.entries[j].child;
+                child.latch.readLock().lock();
+                currentNode.latch.readLock().unlock();
+                currentNode = child;
+                h--;
+            }
+            List<Key> keys = new ArrayList<>(currentNode.entryCount);
+            for (int i = 0; i < currentNode.entryCount; i++)
+            {
+                keys.add(keyAt(currentNode, i));
+            }
+            return new LeafKeys(keys, lower, upper);
+        }
+        finally
+        {
+            currentNode.latch.readLock().unlock();
+        }
+    }
+
+    @Override
+    public List<Key> range(Key fromKey, Key toKey)
+    {
+        List<Key> keys = new ArrayList<>();
+        Cursor<Key, Value> cursor = this.cursor(fromKey);
+        while (cursor.next())
+        {
+            Key key = cursor.getKey();
+            if (toKey != null && key.compareTo(toKey) >= 0)
+            {
+                break;
+            }
+            keys.add(key);
+        }
+        return keys;
+    }
+
+    @Override
+    public Cursor<Key, Value> cursor(Key fromKey)
+    {
+        return new FenceCursor(fromKey);
+    }
+
+    //reads one leaf at a time, finding the next or previous leaf by descending from the root with the leaf's fence keys
+    private class FenceCursor implements Cursor<Key, Value>
+    {
+        private LeafKeys leaf; //the last leaf read
+        private Key current; //the key the cursor is at
+        private Key anchor; //when not at a key: the cursor is just before this key (null means before the first key)
+        private boolean atKey;
+        private boolean afterEnd;
+
+        private FenceCursor(Key fromKey)
+        {
+            this.anchor = fromKey;
+        }
+
+        @Override
+        public boolean next()
+        {
+            Key next;
+            if (this.afterEnd)
+            {
+                return false;
+            }
+            if (this.atKey)
+            {
+                next = this.successor(this.current, false);
+            }
+            else
+            {
+                next = this.successor(this.anchor, true);
+            }
+            if (next == null)
+            {
+                this.atKey = false;
+                this.afterEnd = true;
+                return false;
+            }
+            this.current = next;
+            this.atKey = true;
+            return true;
+        }
+
+        @Override
+        public boolean previous()
+        {
+            Key previous;
+            if (this.afterEnd)
+            {
+                previous = this.predecessor(null);
+            }
+            else if (this.atKey)
+            {
+                previous = this.predecessor(this.current);
+            }
+            else if (this.anchor != null)
+            {
+                previous = this.predecessor(this.anchor);
+            }
+            else
+            {
+                return false;
+            }
+            this.afterEnd = false;
+            if (previous == null)
+            {
+                //stay just before the first key
+                this.atKey = false;
+                this.anchor = null;
+                return false;
+            }
+            this.current = previous;
+            this.atKey = true;
+            return true;
+        }
+
+        //the smallest key greater than (or equal to, if inclusive) the given key; a null key means the first key
+        private Key successor(Key key, boolean inclusive)
+        {
+            if (this.leaf == null || key == null || !this.leaf.covers(key))
+            {
+                this.leaf = readLeafKeys(key, false);
+            }
+            while (true)
+            {
+                for (Key candidate : this.leaf.keys)
+                {
+                    if (key == null || (inclusive ? candidate.compareTo(key) >= 0 : candidate.compareTo(key) > 0))
+                    {
+                        return candidate;
+                    }
+                }
+                if (this.leaf.upper == null)
+                {
+                    return null;
+                }
+                key = this.leaf.upper;
+                inclusive = true;
+                this.leaf = readLeafKeys(key, false);
+            }
+        }
+
+        //the largest key less than the given key; a null key means the last key
+        private Key predecessor(Key key)
+        {
+            if (this.leaf == null || key == null || !this.leaf.covers(key))
+            {
+                this.leaf = readLeafKeys(key, true);
+            }
+            while (true)
+            {
+                for (int i = this.leaf.keys.size() - 1; i >= 0; i--)
+                {
+                    if (key == null || this.leaf.keys.get(i).compareTo(key) < 0)
+                    {
+                        return this.leaf.keys.get(i);
+                    }
+                }
+                if (this.leaf.lower == null)
+                {
+                    return null;
+                }
+                key = this.leaf.lower;
+                this.leaf = readLeafKeys(key, true);
+            }
+        }
+
+        @Override
+        public Key getKey()
+        {
+            if (!this.atKey)
+            {
+                throw new NoSuchElementException("cursor is not at a key");
+            }
+            return this.current;
+        }
+
+        @Override
+        public Value getValue()
+        {
+            return get(this.getKey());
+        }
+    }
+
+    @Override
+    public void bulkLoad(Iterator<? extends Map.Entry<Key, Value>> sortedEntries)
+    {
+        if (sortedEntries == null)
+        {
+            throw new IllegalArgumentException("argument to bulkLoad() is null");
+        }
+        this.bulkLoad(sortedEntries, false);
+    }
+
+    @Override
+    public void bulkLoadOnDisk(Iterator<? extends Key> sortedKeys)
+    {
+        if (sortedKeys == null)
+        {
+            throw new IllegalArgumentException("argument to bulkLoadOnDisk() is null");
+        }
+        if (this.pm == null)
+        {
+            throw new IllegalStateException("pm not yet set");
+        }
+        this.bulkLoad(new Iterator<Map.Entry<Key, Value>>()
+        {
+            @Override
+            public boolean hasNext()
+            {
+                return sortedKeys.hasNext();
+            }
+
+            @Override
+            public Map.Entry<Key, Value> next()
+            {
+                return new AbstractMap.SimpleImmutableEntry<>(sortedKeys.next(), null);
+            }
+        }, true);
+    }
+
+    //fill the tree bottom-up. Entries on disk have no value in memory
+    private void bulkLoad(Iterator<? extends Map.Entry<Key, Value>> sortedEntries, boolean onDisk)
+    {
+        this.treeLatch.writeLock().lock();
+        try
+        {
+            if (this.n.get() > 0)
+            {
+                throw new IllegalStateException("bulkLoad() requires an empty tree");
+            }
+            //fill leaves left to right
+            List<Node> level = new ArrayList<>();
+            Node leaf = new Node(0, MAX);
+            level.add(leaf);
+            Key lastKey = null;
+            int count = 0;
+            while (sortedEntries.hasNext())
+            {
+                Map.Entry<Key, Value> entry = sortedEntries.next();
+                Key key = entry.getKey();
+                if (key == null || (entry.getValue() == null && !onDisk))
+                {
+                    throw new IllegalArgumentException("bulkLoad() does not accept null keys or values");
+                }
+                if (lastKey != null && key.compareTo(lastKey) <= 0)
+                {
+                    throw new IllegalArgumentException("bulkLoad() keys must be in strictly ascending order");
+                }
+                //a node holding MAX entries would be split, so MAX - 1 is as full as it gets
+                if (leaf.entryCount == MAX - 1)
+                {
+                    leaf = new Node(0, MAX);
+                    level.add(leaf);
+                }
+                Entry loaded = new Entry(key, onDisk ? null : entry.getValue(), null);
+                loaded.onDisk = onDisk;
+                leaf.entries[leaf.entryCount++] = loaded;
+                lastKey = key;
+                count++;
+            }
+            this.fillLastNode(level);
+
+            //build each internal level from the one below it until a single root is left
+            int levelHeight = 0;
+            while (level.size() > 1)
+            {
+                List<Node> parents = new ArrayList<>();
+                Node parent = null;
+                for (Node child : level)
+                {
+                    if (parent == null || parent.entryCount == MAX - 1)
+                    {
+                        parent = new Node(0, MAX);
+                        parents.add(parent);
+                    }
+                    parent.entries[parent.entryCount++] = new Entry(child.entries[0].key, null, child);
+                }
+                this.fillLastNode(parents);
+                level = parents;
+                levelHeight++;
+            }
+            this.rootLatch.writeLock().lock();
+            try
+            {
+                this.root = level.get(0);
+                this.height = levelHeight;
+            }
+            finally
+            {
+                this.rootLatch.writeLock().unlock();
+            }
+            this.n.set(count);
+        }
+        finally
+        {
+            this.treeLatch.writeLock().unlock();
+        }
+    }
+
+    //the last node of a packed level can be left less than half full -
+    //even it out with the node before it so every node meets the minimum
+    private void fillLastNode(List<Node> level)
+    {
+        if (level.size() < 2)
+        {
+            return;
+        }
+        Node last = level.get(level.size() - 1);
+        if (last.entryCount >= MAX / 2)
+        {
+            return;
+        }
+        Node previous = level.get(level.size() - 2);
+        int move = (previous.entryCount + last.entryCount) / 2 - last.entryCount;
+        System.arraycopy(last.entries, 0, last.entries, move, last.entryCount);
+        System.arraycopy(previous.entries, previous.entryCount - move, last.entries, 0, move);
+        Arrays.fill(previous.entries, previous.entryCount - move, previous.entryCount, null);
+        previous.entryCount -= move;
+        last.entryCount += move;
+    }
+
+    //binary search over the node's entries from index low onwards
+    //returns the index of the key if present, otherwise -(insertion point) - 1
+    private static <K extends Comparable<K>> int binarySearch(Node currentNode, K key, int low)
+    {
+        int high = currentNode.entryCount - 1;
+        while (low <= high)
+        {
+            int mid = (low + high) >>> 1;
+            int cmp = key.compareTo(ConcurrentBTreeImpl.<K>keyAt(currentNode, mid));
+            if (cmp > 0)
+            {
+                low = mid + 1;
+            }
+            else if (cmp < 0)
+            {
+                high = mid - 1;
+            }
+            else
+            {
+                return mid;
+            }
+        }
+        return -(low + 1);
+    }
+
+    //index of the entry in an internal node whose child's subtree covers the given key.
+    //the first entry's key is never compared - it can be stale on the leftmost path, so it acts as -infinity
+    private static <K extends Comparable<K>> int childIndex(Node currentNode, K key)
+    {
+        int j = binarySearch(currentNode, key, 1);
+        if (j >= 0)
+        {
+            return j;
+        }
+        return -(j + 1) - 1;
+    }
+
+    //index of the entry in an internal node whose child's subtree holds the largest key less than the given key
+    private static <K extends Comparable<K>> int childIndexBefore(Node currentNode, K key)
+    {
+        int j = binarySearch(currentNode, key, 1);
+        if (j >= 0)
+        {
+            return j - 1;
+        }
+        return -(j + 1) - 1;
+    }
+
+    //the key of entry j. Every key in a tree is a Key, so this is the one place it is cast back
+    @SuppressWarnings("unchecked")
+    private static <K> K keyAt(Node currentNode, int j)
+    {
+        return (K) currentNode.entries[j].key;
+    }
+
+    //the value of an external node's entry, cast back like keyAt()
+    @SuppressWarnings("unchecked")
+    private Value value(Entry entry)
+    {
+        return (Value) entry.val;
+    }
+
+    //shift entries over one place to make room for the given entry at index j
+    private static void insertEntry(Node currentNode, int j, Entry entry)
+    {
+        System.arraycopy(currentNode.entries, j, currentNode.entries, j + 1, currentNode.entryCount - j);
+        currentNode.entries[j] = entry;
+        currentNode.entryCount++;
+    }
+
+    //shift entries over one place to close the gap left by the entry at index j
+    private static void removeEntry(Node currentNode, int j)
+    {
+        System.arraycopy(currentNode.entries, j + 1, currentNode.entries, j, currentNode.entryCount - j - 1);
+        currentNode.entryCount--;
+        currentNode.entries[currentNode.entryCount] = null;
+    }
+}
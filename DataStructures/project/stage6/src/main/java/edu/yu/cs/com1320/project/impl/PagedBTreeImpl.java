@@ -0,0 +1,1168 @@
+package edu.yu.cs.com1320.project.impl;
+import edu.yu.cs.com1320.project.BTree;
+import edu.yu.cs.com1320.project.stage6.PersistenceManager;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.ConcurrentModificationException;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+/**
+ * A B+tree whose nodes live in fixed-size pages of a single file instead of on the heap, so the number of keys
+ * is limited by disk space rather than memory. Only a bounded pool of recently used pages is kept in memory;
+ * the rest are read back through a FileChannel when a descent needs them.
+ * Keys are written to pages as the UTF-8 bytes of their toString() and read back with the parser the tree
+ * is created with, so parser.apply(key.toString()) must give back an equal key.
+ * Values themselves are never written to pages. Next to each key a leaf holds the slot of its value in a table of the
+ * values in memory, or no slot for a value moved to disk through the PersistenceManager, the same as in BTreeImpl -
+ * so a value on disk takes no memory at all, and one in memory costs a slot rather than a map entry with its key.
+ * The file is scratch space for this tree only - it is truncated when the tree is created and deleted by close(). It
+ * can't be reopened, since the slots only mean something to the tree that wrote them.
+ * Nodes split when their page is full. A node a delete leaves less than half full is merged with a sibling if the two
+ * fit in one page, and otherwise takes entries from it until it is half full again.
+ */
+public class PagedBTreeImpl <Key extends Comparable<Key>, Value> implements BTree<Key, Value>, Closeable {
+
+    private static final int DEFAULT_PAGE_SIZE = 4096;
+    private static final int DEFAULT_POOL_PAGES = 1024;
+    private static final int MIN_PAGE_SIZE = 256;
+    private static final int MIN_POOL_PAGES = 8;
+    //page header: leaf flag, entry count, next leaf, previous leaf
+    private static final int HEADER_BYTES = 1 + 2 + 4 + 4;
+    private static final int NO_PAGE = -1;
+    //the slot of a leaf entry whose value is on disk
+    private static final int NO_VALUE = -1;
+    //what delete finds for a key that isn't in the tree
+    private static final int NOT_FOUND = -2;
+
+    private final File file;
+    private final FileChannel channel;
+    private final Function<String, Key> keyParser;
+    private final int pageSize;
+    //longest key that still leaves room for at least four entries in a page, so every split has two halves that fit
+    private final int maxKeyBytes;
+    private final BufferPool pool;
+    //values that are in memory, at the slot their leaf entry holds. Slots given up by values leaving memory are reused
+    private final List<Value> values = new ArrayList<>();
+    private final Deque<Integer> freeSlots = new ArrayDeque<>();
+    //pages freed by deletes, reused before the file is grown
+    private final Deque<Integer> freePages = new ArrayDeque<>();
+    private int pageCount;
+    private int rootId; //page of the root of the B-tree
+    private int height; //height of the B-tree
+    private int n; //number of key-value pairs in the B-tree
+    private int modCount; //number of times a key was added or removed, used to detect cursors that are out of date
+
+    private PersistenceManager<Key,Value> pm;
+
+    //a node, as read from its page. Internal nodes use keys and children, leaves use keys and the leaf links
+    private static final class Page
+    {
+        private final int id;
+        private final boolean leaf;
+        private final List<PageKey> keys = new ArrayList<>();
+        //child pages of an internal node; value slots of a leaf, NO_VALUE for a value on disk
+        private final List<Integer> children = new ArrayList<>();
+        private int next = NO_PAGE;
+        private int previous = NO_PAGE;
+        private int bytes = HEADER_BYTES; //size of the page when written out
+        private boolean dirty; //changed since it was last written
+        private int pins; //number of times it is in use by the current operation
+
+        private Page(int id, boolean leaf)
+        {
+            this.id = id;
+            this.leaf = leaf;
+        }
+
+        private static int entryBytes(PageKey key)
+        {
+            return 2 + key.bytes.length + 4;
+        }
+
+        private void add(int j, PageKey key, int child)
+        {
+            this.keys.add(j, key);
+            this.children.add(j, child);
+            this.bytes += entryBytes(key);
+            this.dirty = true;
+        }
+
+        private void remove(int j)
+        {
+            this.bytes -= entryBytes(this.keys.remove(j));
+            this.children.remove(j);
+            this.dirty = true;
+        }
+
+        private void setChild(int j, int child)
+        {
+            this.children.set(j, child);
+            this.dirty = true;
+        }
+
+        private void setKey(int j, PageKey key)
+        {
+            this.bytes += key.bytes.length - this.keys.set(j, key).bytes.length;
+            this.dirty = true;
+        }
+    }
+
+    //a key together with its encoded form, so the page size can be tracked without encoding it again.
+    //the key is kept as Object since pages aren't generic - see keyAt()
+    private static final class PageKey
+    {
+        private final Object key;
+        private final byte[] bytes;
+
+        private PageKey(Object key, byte[] bytes)
+        {
+            this.key = key;
+            this.bytes = bytes;
+        }
+    }
+
+    //the pages that are in memory, least recently used first.
+    //pages fetched by the current operation are pinned and are not evicted until it finishes
+    private final class BufferPool
+    {
+        private final int capacity;
+        private final LinkedHashMap<Integer, Page> pages = new LinkedHashMap<>(16, 0.75f, true);
+        private final List<Page> pinned = new ArrayList<>();
+
+        private BufferPool(int capacity)
+        {
+            this.capacity = capacity;
+        }
+
+        private Page fetch(int id)
+        {
+            Page page = this.pages.get(id);
+            if (page == null)
+            {
+                page = readPage(id);
+                this.pages.put(id, page);
+            }
+            page.pins++;
+            this.pinned.add(page);
+            return page;
+        }
+
+        private Page create(boolean leaf)
+        {
+            int id = freePages.isEmpty() ? pageCount++ : freePages.pop();
+            Page page = new Page(id, leaf);
+            page.dirty = true;
+            this.pages.put(id, page);
+            page.pins++;
+            this.pinned.add(page);
+            return page;
+        }
+
+        private void free(Page page)
+        {
+            this.pages.remove(page.id);
+            freePages.push(page.id);
+        }
+
+        //end of an operation: unpin everything it fetched and shrink back to capacity
+        private void unpinAll()
+        {
+            for (Page page : this.pinned)
+            {
+                page.pins--;
+            }
+            this.pinned.clear();
+            Iterator<Page> pages = this.pages.values().iterator();
+            while (this.pages.size() > this.capacity && pages.hasNext())
+            {
+                Page page = pages.next();
+                if (page.pins == 0)
+                {
+                    if (page.dirty)
+                    {
+                        writePage(page);
+                    }
+                    pages.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * @param file the file to keep the pages in, as scratch space. Anything already in it is discarded
+     * @param keyParser turns the toString() of a key back into the key
+     */
+    public PagedBTreeImpl(File file, Function<String, Key> keyParser) throws IOException {
+        this(file, keyParser, DEFAULT_PAGE_SIZE, DEFAULT_POOL_PAGES);
+    }
+
+    /**
+     * @param file the file to keep the pages in, as scratch space. Anything already in it is discarded
+     * @param keyParser turns the toString() of a key back into the key
+     * @param pageSize bytes per page
+     * @param poolPages the number of pages kept in memory
+     */
+    public PagedBTreeImpl(File file, Function<String, Key> keyParser, int pageSize, int poolPages) throws IOException {
+        if (file == null || keyParser == null)
+        {
+            throw new IllegalArgumentException("file and keyParser cannot be null");
+        }
+        if (pageSize < MIN_PAGE_SIZE || poolPages < MIN_POOL_PAGES)
+        {
+            throw new IllegalArgumentException("pageSize must be at least " + MIN_PAGE_SIZE + " and poolPages at least " + MIN_POOL_PAGES);
+        }
+        this.file = file;
+        this.keyParser = keyParser;
+        this.pageSize = pageSize;
+        this.maxKeyBytes = (pageSize - HEADER_BYTES) / 4 - 6;
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (parent != null)
+        {
+            parent.mkdirs();
+        }
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        this.pool = new BufferPool(poolPages);
+        this.rootId = this.pool.create(true).id;
+        this.pool.unpinAll();
+    }
+
+    private PageKey encode(Key k)
+    {
+        byte[] bytes = k.toString().getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > this.maxKeyBytes)
+        {
+            throw new IllegalArgumentException("key is longer than " + this.maxKeyBytes + " bytes");
+        }
+        return new PageKey(k, bytes);
+    }
+
+    private Page readPage(int id)
+    {
+        ByteBuffer buffer = ByteBuffer.allocate(this.pageSize);
+        try
+        {
+            long position = (long) id * this.pageSize;
+            while (buffer.hasRemaining() && this.channel.read(buffer, position + buffer.position()) >= 0)
+            {
+            }
+        }
+        catch (IOException e)
+        {
+            throw new UncheckedIOException(e);
+        }
+        buffer.flip();
+        Page page = new Page(id, buffer.get() == 1);
+        int count = buffer.getShort() & 0xFFFF;
+        page.next = buffer.getInt();
+        page.previous = buffer.getInt();
+        for (int j = 0; j < count; j++)
+        {
+            byte[] bytes = new byte[buffer.getShort() & 0xFFFF];
+            buffer.get(bytes);
+            int child = buffer.getInt();
+            page.add(j, new PageKey(this.keyParser.apply(new String(bytes, StandardCharsets.UTF_8)), bytes), child);
+        }
+        page.dirty = false;
+        return page;
+    }
+
+    private void writePage(Page page)
+    {
+        ByteBuffer buffer = ByteBuffer.allocate(this.pageSize);
+        buffer.put((byte) (page.leaf ? 1 : 0));
+        buffer.putShort((short) page.keys.size());
+        buffer.putInt(page.next);
+        buffer.putInt(page.previous);
+        for (int j = 0; j < page.keys.size(); j++)
+        {
+            byte[] bytes = page.keys.get(j).bytes;
+            buffer.putShort((short) bytes.length);
+            buffer.put(bytes);
+            buffer.putInt(page.children.get(j));
+        }
+        buffer.rewind();
+        try
+        {
+            long position = (long) page.id * this.pageSize;
+            while (buffer.hasRemaining())
+            {
+                this.channel.write(buffer, position + buffer.position());
+            }
+        }
+        catch (IOException e)
+        {
+            throw new UncheckedIOException(e);
+        }
+        page.dirty = false;
+    }
+
+    @Override
+    public Value get(Key k)
+    {
+        if (k == null)
+        {
+            throw new IllegalArgumentException("argument to get() is null");
+        }
+        try
+        {
+            Page leaf = this.findLeaf(k);
+            int j = search(leaf, k, 0);
+            if (j < 0)
+            {
+                return null;
+            }
+            return this.valueOf(leaf, j, k);
+        }
+        finally
+        {
+            this.pool.unpinAll();
+        }
+    }
+
+    //the value of entry j of the leaf, read back into memory if it was moved to disk
+    private Value valueOf(Page leaf, int j, Key k)
+    {
+        int slot = leaf.children.get(j);
+        if (slot != NO_VALUE)
+        {
+            return this.values.get(slot);
+        }
+        Value val = this.load(k);
+        if (val != null)
+        {
+            leaf.setChild(j, this.keep(val));
+        }
+        return val;
+    }
+
+    //read the value of a key in the tree back from disk
+    private Value load(Key k)
+    {
+        if (this.pm == null)
+        {
+            return null;
+        }
+        try
+        {
+            return this.pm.deserialize(k);
+        }
+        catch (Exception e)
+        {
+            return null;
+        }
+    }
+
+    //a slot for a value in memory
+    private int keep(Value val)
+    {
+        if (this.freeSlots.isEmpty())
+        {
+            this.values.add(val);
+            return this.values.size() - 1;
+        }
+        int slot = this.freeSlots.pop();
+        this.values.set(slot, val);
+        return slot;
+    }
+
+    //give up the slot of a value leaving memory
+    private Value release(int slot)
+    {
+        Value val = this.values.set(slot, null);
+        this.freeSlots.push(slot);
+        return val;
+    }
+
+    private Page findLeaf(Key k)
+    {
+        Page currentNode = this.pool.fetch(this.rootId);
+        for (int h = this.height; h > 0; h--)
+        {
+            int j = k == null ? 0 : childIndex(currentNode, k);
+            currentNode = this.pool.fetch(currentNode.children.get(j));
+        }
+        return currentNode;
+    }
+
+    // If replace or delete, return old value. Otherwise return null.
+    @Override
+    public Value put(Key k, Value v)
+    {
+        if (k == null)
+        {
+            throw new IllegalArgumentException("argument key to put() is null");
+        }
+        //putting null is a delete
+        if (v == null)
+        {
+            return this.delete(k);
+        }
+        return this.compute(k, (key, existingValue) -> v);
+    }
+
+    @Override
+    public boolean putBlind(Key k, Value v)
+    {
+        if (k == null || v == null)
+        {
+            throw new IllegalArgumentException("argument to putBlind() is null");
+        }
+        Slot slot = new Slot((key, existingValue) -> v, true);
+        this.compute(k, slot);
+        return slot.found;
+    }
+
+    @Override
+    public Value compute(Key k, BiFunction<? super Key, ? super Value, ? extends Value> remappingFunction)
+    {
+        if (k == null || remappingFunction == null)
+        {
+            throw new IllegalArgumentException("argument to compute() is null");
+        }
+        Slot slot = new Slot(remappingFunction, false);
+        this.compute(k, slot);
+        return slot.previous;
+    }
+
+    private void compute(Key k, Slot slot)
+    {
+        try
+        {
+            Page root = this.pool.fetch(this.rootId);
+            Page newNode = this.compute(root, this.encode(k), k, slot, this.height);
+            if (newNode != null)
+            {
+                //split root: create a new root one level up, pointing to the old root and its new sibling
+                Page newRoot = this.pool.create(false);
+                newRoot.add(0, root.keys.get(0), root.id);
+                newRoot.add(1, newNode.keys.get(0), newNode.id);
+                this.rootId = newRoot.id;
+                this.height++;
+            }
+        }
+        finally
+        {
+            this.pool.unpinAll();
+        }
+        if (slot.inserted)
+        {
+            this.n++;
+            this.modCount++;
+        }
+        if (slot.remove)
+        {
+            //the old value is in memory now, so the delete doesn't need to read it again
+            this.delete(k);
+        }
+    }
+
+    //what a single descent of compute() found and did at the key's slot
+    private class Slot
+    {
+        private final BiFunction<? super Key, ? super Value, ? extends Value> remappingFunction;
+        private final boolean blind; //don't read the old value back from disk
+        private Value previous;
+        private boolean found;
+        private boolean inserted;
+        private boolean remove;
+
+        private Slot(BiFunction<? super Key, ? super Value, ? extends Value> remappingFunction, boolean blind)
+        {
+            this.remappingFunction = remappingFunction;
+            this.blind = blind;
+        }
+    }
+
+    //returns the new sibling if the node was split
+    private Page compute(Page currentNode, PageKey key, Key k, Slot slot, int height)
+    {
+        if (height == 0)
+        {
+            int j = search(currentNode, k, 0);
+            if (j >= 0)
+            {
+                slot.found = true;
+                if (slot.blind && currentNode.children.get(j) == NO_VALUE)
+                {
+                    //drop the copy on disk without reading it
+                    this.deleteFromDisk(k);
+                }
+                else
+                {
+                    slot.previous = this.valueOf(currentNode, j, k);
+                }
+                Value newValue = slot.remappingFunction.apply(k, slot.previous);
+                if (newValue == null)
+                {
+                    slot.remove = true;
+                }
+                else if (currentNode.children.get(j) == NO_VALUE)
+                {
+                    currentNode.setChild(j, this.keep(newValue));
+                }
+                else
+                {
+                    //the page doesn't change, only what its slot holds
+                    this.values.set(currentNode.children.get(j), newValue);
+                }
+                return null;
+            }
+            Value newValue = slot.remappingFunction.apply(k, null);
+            if (newValue == null)
+            {
+                return null;
+            }
+            currentNode.add(-(j + 1), key, this.keep(newValue));
+            slot.inserted = true;
+        }
+        else
+        {
+            int j = childIndex(currentNode, k);
+            Page child = this.pool.fetch(currentNode.children.get(j));
+            Page newNode = this.compute(child, key, k, slot, height - 1);
+            if (newNode == null)
+            {
+                return null;
+            }
+            currentNode.add(j + 1, newNode.keys.get(0), newNode.id);
+        }
+        return currentNode.bytes > this.pageSize ? this.split(currentNode) : null;
+    }
+
+    //move the upper half of the node's bytes into a new page
+    private Page split(Page currentNode)
+    {
+        int half = (currentNode.bytes - HEADER_BYTES) / 2;
+        int m = 0;
+        for (int used = 0; used < half && m < currentNode.keys.size() - 1; m++)
+        {
+            used += Page.entryBytes(currentNode.keys.get(m));
+        }
+        Page newNode = this.pool.create(currentNode.leaf);
+        while (currentNode.keys.size() > m)
+        {
+            PageKey key = currentNode.keys.get(m);
+            int child = currentNode.children.get(m);
+            currentNode.remove(m);
+            newNode.add(newNode.keys.size(), key, child);
+        }
+        if (currentNode.leaf)
+        {
+            newNode.next = currentNode.next;
+            newNode.previous = currentNode.id;
+            if (currentNode.next != NO_PAGE)
+            {
+                Page next = this.pool.fetch(currentNode.next);
+                next.previous = newNode.id;
+                next.dirty = true;
+            }
+            currentNode.next = newNode.id;
+        }
+        return newNode;
+    }
+
+    @Override
+    public Value delete(Key k)
+    {
+        if (k == null)
+        {
+            throw new IllegalArgumentException("argument key to delete() is null");
+        }
+        int slot;
+        try
+        {
+            Page root = this.pool.fetch(this.rootId);
+            slot = this.delete(root, k, this.height);
+            if (slot == NOT_FOUND)
+            {
+                return null;
+            }
+            //an internal root with a single child is no longer needed:
+            //make the child the new root, which decreases the tree height by 1
+            while (this.height > 0 && root.keys.size() == 1)
+            {
+                this.rootId = root.children.get(0);
+                this.pool.free(root);
+                root = this.pool.fetch(this.rootId);
+                this.height--;
+            }
+        }
+        finally
+        {
+            this.pool.unpinAll();
+        }
+        this.n--;
+        this.modCount++;
+        if (slot != NO_VALUE || this.pm == null)
+        {
+            return slot == NO_VALUE ? null : this.release(slot);
+        }
+        //the value was on disk - reading it back also removes the file
+        try
+        {
+            return this.pm.deserialize(k);
+        }
+        catch (IOException e)
+        {
+            this.deleteFromDisk(k);
+            return null;
+        }
+    }
+
+    //returns the value slot of the key that was removed, or NOT_FOUND. A page left less than half full is merged with
+    //a sibling, or takes entries from it
+    private int delete(Page currentNode, Key k, int height)
+    {
+        if (height == 0)
+        {
+            int j = search(currentNode, k, 0);
+            if (j < 0)
+            {
+                return NOT_FOUND;
+            }
+            int slot = currentNode.children.get(j);
+            currentNode.remove(j);
+            return slot;
+        }
+        int j = childIndex(currentNode, k);
+        Page child = this.pool.fetch(currentNode.children.get(j));
+        int slot = this.delete(child, k, height - 1);
+        if (slot != NOT_FOUND && child.bytes < this.minBytes() && currentNode.keys.size() > 1)
+        {
+            this.rebalance(currentNode, j, child);
+        }
+        return slot;
+    }
+
+    //a page below this many bytes is merged or refilled
+    private int minBytes()
+    {
+        return HEADER_BYTES + (this.pageSize - HEADER_BYTES) / 2;
+    }
+
+    //merge the parent's child j with its left sibling, or its right one if it is the first child, if the two fit in one
+    //page. Otherwise move entries over from the sibling until the child is half full
+    private void rebalance(Page parent, int j, Page child)
+    {
+        boolean fromLeft = j > 0;
+        Page sibling = this.pool.fetch(parent.children.get(fromLeft ? j - 1 : j + 1));
+        Page left = fromLeft ? sibling : child;
+        Page right = fromLeft ? child : sibling;
+        int rightIndex = fromLeft ? j : j + 1;
+        if (left.bytes + right.bytes - HEADER_BYTES <= this.pageSize)
+        {
+            //the right page's first key is its separator in the parent, so it stays a valid one in the left page
+            while (!right.keys.isEmpty())
+            {
+                PageKey key = right.keys.get(0);
+                int ref = right.children.get(0);
+                right.remove(0);
+                left.add(left.keys.size(), key, ref);
+            }
+            if (right.leaf)
+            {
+                this.unlink(right);
+            }
+            this.pool.free(right);
+            parent.remove(rightIndex);
+            return;
+        }
+        while (child.bytes < this.minBytes() && sibling.keys.size() > 1)
+        {
+            //the new separator mustn't overflow the parent; the child is then left as it is
+            PageKey separator = fromLeft ? sibling.keys.get(sibling.keys.size() - 1) : sibling.keys.get(1);
+            int oldSeparator = parent.keys.get(rightIndex).bytes.length;
+            if (parent.bytes + separator.bytes.length - oldSeparator > this.pageSize)
+            {
+                return;
+            }
+            if (fromLeft)
+            {
+                //the left sibling's last entry becomes the child's first, and the child's separator
+                int last = sibling.keys.size() - 1;
+                PageKey key = sibling.keys.get(last);
+                int ref = sibling.children.get(last);
+                sibling.remove(last);
+                child.add(0, key, ref);
+                parent.setKey(j, key);
+            }
+            else
+            {
+                //the right sibling's first entry becomes the child's last, and its next key the sibling's separator
+                PageKey key = sibling.keys.get(0);
+                int ref = sibling.children.get(0);
+                sibling.remove(0);
+                child.add(child.keys.size(), key, ref);
+                parent.setKey(j + 1, sibling.keys.get(0));
+            }
+        }
+    }
+
+    //take a leaf out of the chain of leaves
+    private void unlink(Page leaf)
+    {
+        if (leaf.previous != NO_PAGE)
+        {
+            Page previous = this.pool.fetch(leaf.previous);
+            previous.next = leaf.next;
+            previous.dirty = true;
+        }
+        if (leaf.next != NO_PAGE)
+        {
+            Page next = this.pool.fetch(leaf.next);
+            next.previous = leaf.previous;
+            next.dirty = true;
+        }
+    }
+
+    @Override
+    public List<Key> range(Key fromKey, Key toKey)
+    {
+        List<Key> keys = new ArrayList<>();
+        Cursor<Key, Value> cursor = this.cursor(fromKey);
+        while (cursor.next())
+        {
+            Key key = cursor.getKey();
+            if (toKey != null && key.compareTo(toKey) >= 0)
+            {
+                break;
+            }
+            keys.add(key);
+        }
+        return keys;
+    }
+
+    @Override
+    public Cursor<Key, Value> cursor(Key fromKey)
+    {
+        try
+        {
+            Page leaf = this.findLeaf(fromKey);
+            int j = fromKey == null ? 0 : search(leaf, fromKey, 0);
+            return new PageCursor(leaf.id, j >= 0 ? j - 1 : -(j + 1) - 1);
+        }
+        finally
+        {
+            this.pool.unpinAll();
+        }
+    }
+
+    //walks the chain of leaves, fetching each leaf from the pool by its page number
+    private class PageCursor implements Cursor<Key, Value>
+    {
+        private int pageId; //leaf the cursor is in
+        private int index; //key the cursor is at; -1 or the key count when it is before or after the leaf's keys
+        private final int expectedModCount;
+
+        private PageCursor(int pageId, int index)
+        {
+            this.pageId = pageId;
+            this.index = index;
+            this.expectedModCount = modCount;
+        }
+
+        @Override
+        public boolean next()
+        {
+            checkForModification();
+            try
+            {
+                Page currentNode = pool.fetch(this.pageId);
+                int j = this.index + 1;
+                while (j >= currentNode.keys.size())
+                {
+                    if (currentNode.next == NO_PAGE)
+                    {
+                        //stay just after the last key so previous() can walk back
+                        this.pageId = currentNode.id;
+                        this.index = currentNode.keys.size();
+                        return false;
+                    }
+                    currentNode = pool.fetch(currentNode.next);
+                    j = 0;
+                }
+                this.pageId = currentNode.id;
+                this.index = j;
+                return true;
+            }
+            finally
+            {
+                pool.unpinAll();
+            }
+        }
+
+        @Override
+        public boolean previous()
+        {
+            checkForModification();
+            try
+            {
+                Page currentNode = pool.fetch(this.pageId);
+                int j = this.index - 1;
+                while (j < 0)
+                {
+                    if (currentNode.previous == NO_PAGE)
+                    {
+                        //stay just before the first key so next() can walk forward
+                        this.pageId = currentNode.id;
+                        this.index = -1;
+                        return false;
+                    }
+                    currentNode = pool.fetch(currentNode.previous);
+                    j = currentNode.keys.size() - 1;
+                }
+                this.pageId = currentNode.id;
+                this.index = j;
+                return true;
+            }
+            finally
+            {
+                pool.unpinAll();
+            }
+        }
+
+        @Override
+        public Key getKey()
+        {
+            checkForModification();
+            try
+            {
+                Page currentNode = pool.fetch(this.pageId);
+                if (this.index < 0 || this.index >= currentNode.keys.size())
+                {
+                    throw new NoSuchElementException("cursor is not at a key");
+                }
+                return keyAt(currentNode, this.index);
+            }
+            finally
+            {
+                pool.unpinAll();
+            }
+        }
+
+        @Override
+        public Value getValue()
+        {
+            return PagedBTreeImpl.this.get(this.getKey());
+        }
+
+        private void checkForModification()
+        {
+            if (modCount != this.expectedModCount)
+            {
+                throw new ConcurrentModificationException();
+            }
+        }
+    }
+
+    @Override
+    public void bulkLoad(Iterator<? extends Map.Entry<Key, Value>> sortedEntries)
+    {
+        if (sortedEntries == null)
+        {
+            throw new IllegalArgumentException("argument to bulkLoad() is null");
+        }
+        this.bulkLoad(sortedEntries, false);
+    }
+
+    @Override
+    public void bulkLoadOnDisk(Iterator<? extends Key> sortedKeys)
+    {
+        if (sortedKeys == null)
+        {
+            throw new IllegalArgumentException("argument to bulkLoadOnDisk() is null");
+        }
+        if (this.pm == null)
+        {
+            throw new IllegalStateException("pm not yet set");
+        }
+        this.bulkLoad(new Iterator<Map.Entry<Key, Value>>()
+        {
+            @Override
+            public boolean hasNext()
+            {
+                return sortedKeys.hasNext();
+            }
+
+            @Override
+            public Map.Entry<Key, Value> next()
+            {
+                return new AbstractMap.SimpleImmutableEntry<>(sortedKeys.next(), null);
+            }
+        }, true);
+    }
+
+    //fill the pages bottom-up. A key whose value is on disk has no slot, and is read back when it is asked for
+    private void bulkLoad(Iterator<? extends Map.Entry<Key, Value>> sortedEntries, boolean onDisk)
+    {
+        if (this.n > 0)
+        {
+            throw new IllegalStateException("bulkLoad() requires an empty tree");
+        }
+        //fill leaves left to right, remembering the page and first key of each for the level above
+        List<Integer> pageIds = new ArrayList<>();
+        List<PageKey> firstKeys = new ArrayList<>();
+        List<Integer> slots = new ArrayList<>();
+        int count = 0;
+        try
+        {
+            Page leaf = this.pool.create(true);
+            pageIds.add(leaf.id);
+            Key lastKey = null;
+            while (sortedEntries.hasNext())
+            {
+                Map.Entry<Key, Value> entry = sortedEntries.next();
+                Key key = entry.getKey();
+                if (key == null || (entry.getValue() == null && !onDisk))
+                {
+                    throw new IllegalArgumentException("bulkLoad() does not accept null keys or values");
+                }
+                if (lastKey != null && key.compareTo(lastKey) <= 0)
+                {
+                    throw new IllegalArgumentException("bulkLoad() keys must be in strictly ascending order");
+                }
+                PageKey encoded = this.encode(key);
+                if (leaf.bytes + Page.entryBytes(encoded) > this.pageSize)
+                {
+                    leaf = this.nextPage(leaf, pageIds);
+                }
+                if (leaf.keys.isEmpty())
+                {
+                    firstKeys.add(encoded);
+                }
+                int slot = NO_VALUE;
+                if (!onDisk)
+                {
+                    slot = this.keep(entry.getValue());
+                    slots.add(slot);
+                }
+                leaf.add(leaf.keys.size(), encoded, slot);
+                lastKey = key;
+                count++;
+            }
+        }
+        catch (RuntimeException e)
+        {
+            //leave the tree as it was
+            for (int id : pageIds)
+            {
+                this.pool.free(this.pool.fetch(id));
+            }
+            for (int slot : slots)
+            {
+                this.release(slot);
+            }
+            this.pool.unpinAll();
+            throw e;
+        }
+        try
+        {
+            //build each internal level from the one below it until a single root is left
+            int levelHeight = 0;
+            while (pageIds.size() > 1)
+            {
+                List<Integer> parentIds = new ArrayList<>();
+                List<PageKey> parentKeys = new ArrayList<>();
+                Page parent = this.pool.create(false);
+                parentIds.add(parent.id);
+                for (int i = 0; i < pageIds.size(); i++)
+                {
+                    PageKey key = firstKeys.get(i);
+                    if (parent.bytes + Page.entryBytes(key) > this.pageSize)
+                    {
+                        parent = this.nextPage(parent, parentIds);
+                    }
+                    if (parent.keys.isEmpty())
+                    {
+                        parentKeys.add(key);
+                    }
+                    parent.add(parent.keys.size(), key, pageIds.get(i));
+                }
+                pageIds = parentIds;
+                firstKeys = parentKeys;
+                levelHeight++;
+            }
+            this.pool.free(this.pool.fetch(this.rootId));
+            this.rootId = pageIds.get(0);
+            this.height = levelHeight;
+            this.n = count;
+            this.modCount++;
+        }
+        finally
+        {
+            this.pool.unpinAll();
+        }
+    }
+
+    //start the next page of a level being bulk loaded. The full page is unpinned so the pool never holds more than a few of them
+    private Page nextPage(Page full, List<Integer> pageIds)
+    {
+        Page page = this.pool.create(full.leaf);
+        if (full.leaf)
+        {
+            full.next = page.id;
+            page.previous = full.id;
+        }
+        pageIds.add(page.id);
+        this.pool.unpinAll();
+        return this.pool.fetch(page.id);
+    }
+
+    @Override
+    public void moveToDisk(Key k) throws IOException {
+        if(pm == null) {
+            throw new IllegalStateException("pm not yet set");
+        }
+        if(k == null) {
+            throw new IllegalArgumentException("key cannot be null");
+        }
+        try {
+            Page leaf = this.findLeaf(k);
+            int j = search(leaf, k, 0);
+            if (j >= 0 && leaf.children.get(j) != NO_VALUE) {
+                pm.serialize(k, this.values.get(leaf.children.get(j)));
+                this.release(leaf.children.get(j));
+                leaf.setChild(j, NO_VALUE);
+            }
+        } finally {
+            this.pool.unpinAll();
+        }
+    }
+
+    /**
+     * move the values of the keys to disk with a single pm.serializeAll. Keys not in the tree, or whose value is already
+     * on disk, are skipped. If the batch fails, no value is moved
+     */
+    @Override
+    public void moveAllToDisk(Collection<Key> keys) throws IOException {
+        if(pm == null) {
+            throw new IllegalStateException("pm not yet set");
+        }
+        if(keys == null) {
+            throw new IllegalArgumentException("keys cannot be null");
+        }
+        //one descent per key to find the values, and another to drop them once they are written, so only one leaf is
+        //pinned at a time however many keys there are
+        Map<Key, Value> batch = new LinkedHashMap<>();
+        for (Key k : keys) {
+            try {
+                Page leaf = this.findLeaf(k);
+                int j = search(leaf, k, 0);
+                if (j >= 0 && leaf.children.get(j) != NO_VALUE) {
+                    //a key given twice is written once
+                    batch.put(k, this.values.get(leaf.children.get(j)));
+                }
+            } finally {
+                this.pool.unpinAll();
+            }
+        }
+        if (batch.isEmpty()) {
+            return;
+        }
+        pm.serializeAll(new ArrayList<>(batch.entrySet()));
+        for (Key k : batch.keySet()) {
+            try {
+                Page leaf = this.findLeaf(k);
+                int j = search(leaf, k, 0);
+                if (j >= 0 && leaf.children.get(j) != NO_VALUE) {
+                    this.release(leaf.children.get(j));
+                    leaf.setChild(j, NO_VALUE);
+                }
+            } finally {
+                this.pool.unpinAll();
+            }
+        }
+    }
+
+    @Override
+    public void setPersistenceManager(PersistenceManager<Key,Value> pm){
+        this.pm = pm;
+    }
+
+    private void deleteFromDisk(Key k)
+    {
+        if (this.pm == null)
+        {
+            return;
+        }
+        try
+        {
+            this.pm.delete(k);
+        }
+        catch (IOException ignored)
+        {
+        }
+    }
+
+    /**
+     * close the page file and delete it. Values moved to disk through the PersistenceManager are left where they are
+     */
+    @Override
+    public void close() throws IOException
+    {
+        this.channel.close();
+        this.file.delete();
+    }
+
+    //binary search over the page's keys from index low onwards
+    //returns the index of the key if present, otherwise -(insertion point) - 1
+    private static <K extends Comparable<K>> int search(Page currentNode, K key, int low)
+    {
+        int high = currentNode.keys.size() - 1;
+        while (low <= high)
+        {
+            int mid = (low + high) >>> 1;
+            int cmp = key.compareTo(PagedBTreeImpl.<K>keyAt(currentNode, mid));
+            if (cmp > 0)
+            {
+                low = mid + 1;
+            }
+            else if (cmp < 0)
+            {
+                high = mid - 1;
+            }
+            else
+            {
+                return mid;
+            }
+        }
+        return -(low + 1);
+    }
+
+    //index of the entry in an internal page whose child's subtree covers the given key.
+    //the first key is never compared - it can be stale on the leftmost path, so it acts as -infinity
+    private static <K extends Comparable<K>> int childIndex(Page currentNode, K key)
+    {
+        int j = search(currentNode, key, 1);
+        if (j >= 0)
+        {
+            return j;
+        }
+        return -(j + 1) - 1;
+    }
+
+    //the key of entry j. Every key in a tree is a Key, so this is the one place it is cast back
+    @SuppressWarnings("unchecked")
+    private static <K> K keyAt(Page currentNode, int j)
+    {
+        return (K) currentNode.keys.get(j).key;
+    }
+}
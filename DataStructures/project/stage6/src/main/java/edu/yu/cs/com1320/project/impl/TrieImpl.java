@@ -2,7 +2,24 @@ package edu.yu.cs.com1320.project.impl;
 
 import edu.yu.cs.com1320.project.Trie;
 
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
 
 /**
  * FOR STAGE 3
@@ -12,6 +29,10 @@ public class TrieImpl<Value> implements Trie<Value> {
 
     private static final int alphabetSize = 256; // extended ASCII
 
+    //start of a snapshot file, "TRIE", and the version of its format
+    private static final int SNAPSHOT_MAGIC = 0x54524945;
+    private static final int SNAPSHOT_VERSION = 2;
+
     private Node root;
 
     private static class Node<Value> {
@@ -266,6 +287,247 @@ public class TrieImpl<Value> implements Trie<Value> {
         }
     }
 
+    /**
+     * write every key and the values at it to a snapshot file that load reads back. Values are written as their
+     * toString, each once however many keys it is at. Keys are written in order, each as what it shares with the key
+     * before it and the rest:
+     * <pre>
+     * magic, version     int, int
+     * stamp              long, whatever the caller saved it with
+     * values             varint count, then each as a varint length and UTF-8 bytes
+     * keys               varint count, then each as varint shared chars, varint length and UTF-8 bytes of the rest,
+     *                    varint value count, and the value numbers in ascending order as varint gaps
+     * checksum           int, CRC32 of everything before it
+     * </pre>
+     * The file is replaced as a whole, so a load never sees half of it
+     * @param stamp names what the trie was built from, e.g. a version of it, so load can tell a stale snapshot
+     */
+    public void save(File file, long stamp) throws IOException {
+        if (file == null) {
+            throw new IllegalArgumentException("file cannot be null");
+        }
+        //number every value, and find the keys that have values
+        Map<Value, Integer> numbers = new LinkedHashMap<>();
+        List<String> keys = new ArrayList<>();
+        List<Set<Value>> postings = new ArrayList<>();
+        collectKeys(typedRoot(), new StringBuilder(), keys, postings);
+        for (Set<Value> values : postings) {
+            for (Value value : values) {
+                numbers.putIfAbsent(value, numbers.size());
+            }
+        }
+
+        File temp = new File(file.getPath() + ".tmp");
+        try {
+            CRC32 crc = new CRC32();
+            try (OutputStream fileOut = new BufferedOutputStream(Files.newOutputStream(temp.toPath()))) {
+                DataOutputStream out = new DataOutputStream(new CheckedOutputStream(fileOut, crc));
+                out.writeInt(SNAPSHOT_MAGIC);
+                out.writeInt(SNAPSHOT_VERSION);
+                out.writeLong(stamp);
+                writeVarint(out, numbers.size());
+                for (Value value : numbers.keySet()) {
+                    writeString(out, String.valueOf(value));
+                }
+                writeVarint(out, keys.size());
+                String previous = "";
+                for (int i = 0; i < keys.size(); i++) {
+                    String key = keys.get(i);
+                    int shared = 0;
+                    while (shared < previous.length() && shared < key.length() && previous.charAt(shared) == key.charAt(shared)) {
+                        shared++;
+                    }
+                    writeVarint(out, shared);
+                    writeString(out, key.substring(shared));
+                    int[] ids = new int[postings.get(i).size()];
+                    int n = 0;
+                    for (Value value : postings.get(i)) {
+                        ids[n++] = numbers.get(value);
+                    }
+                    Arrays.sort(ids);
+                    writeVarint(out, ids.length);
+                    int last = 0;
+                    for (int id : ids) {
+                        writeVarint(out, id - last);
+                        last = id;
+                    }
+                    previous = key;
+                }
+                out.flush();
+                //the checksum itself isn't checksummed
+                new DataOutputStream(fileOut).writeInt((int) crc.getValue());
+            }
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            temp.delete();
+        }
+    }
+
+    /**
+     * fill this empty trie from a snapshot written by save. The file is mapped and read front to back, and each key's
+     * node is reached from the node of the key before it, so nothing is looked up from the root
+     * @param valueParser turns a value's toString back into the value
+     * @param stamp what the trie should have been built from, as given to save
+     * @return false, leaving the trie empty, if there is no snapshot, or it is from another version, damaged, or stale:
+     * it was saved with another stamp
+     * @throws IllegalStateException if the trie isn't empty
+     */
+    public boolean load(File file, Function<String, Value> valueParser, long stamp) throws IOException {
+        if (file == null || valueParser == null) {
+            throw new IllegalArgumentException("file or value parser cannot be null");
+        }
+        if (!getAllWithPrefixSorted("", null).isEmpty()) {
+            throw new IllegalStateException("a snapshot can only be loaded into an empty trie");
+        }
+        if (!file.exists() || file.length() < 20 || file.length() > Integer.MAX_VALUE) {
+            return false;
+        }
+        MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        int end = buffer.capacity() - 4;
+        CRC32 crc = new CRC32();
+        crc.update(buffer.duplicate().limit(end));
+        if (buffer.getInt(end) != (int) crc.getValue()
+                || buffer.getInt() != SNAPSHOT_MAGIC || buffer.getInt() != SNAPSHOT_VERSION || buffer.getLong() != stamp) {
+            return false;
+        }
+        try {
+            List<Value> values = new ArrayList<>();
+            for (int count = readVarint(buffer); values.size() < count; ) {
+                values.add(valueParser.apply(readString(buffer)));
+            }
+            Node<Value> loaded = new Node<>();
+            //the nodes along the key before this one, path.get(d) at depth d
+            List<Node<Value>> path = new ArrayList<>();
+            path.add(loaded);
+            for (int count = readVarint(buffer); count > 0; count--) {
+                int shared = readVarint(buffer);
+                String rest = readString(buffer);
+                Node<Value> x = path.get(shared);
+                while (path.size() > shared + 1) {
+                    path.remove(path.size() - 1);
+                }
+                for (int i = 0; i < rest.length(); i++) {
+                    char c = rest.charAt(i);
+                    if (x.next[c] == null) {
+                        x.next[c] = new Node<>();
+                    }
+                    x = child(x, c);
+                    path.add(x);
+                }
+                int last = 0;
+                for (int n = readVarint(buffer); n > 0; n--) {
+                    last += readVarint(buffer);
+                    x.values.add(values.get(last));
+                }
+            }
+            if (buffer.position() != end) {
+                return false;
+            }
+            this.root = loaded;
+            return true;
+        } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+            //the checksum matched, so only a file written by something else gets here
+            return false;
+        }
+    }
+
+    /**
+     * remove every value that fails the test from every key it is at, and the nodes left with nothing under them,
+     * e.g. values a loaded snapshot names that are gone
+     */
+    public void retainValues(Predicate<? super Value> keep) {
+        if (keep == null) {
+            throw new IllegalArgumentException("keep cannot be null");
+        }
+        if (this.root != null) {
+            retainValues(typedRoot(), keep);
+        }
+    }
+
+    //false if nothing is left at or under x
+    private boolean retainValues(Node<Value> x, Predicate<? super Value> keep) {
+        x.values.removeIf(value -> !keep.test(value));
+        boolean left = !x.values.isEmpty();
+        for (int c = 0; c < alphabetSize; c++) {
+            if (x.next[c] != null) {
+                if (retainValues(child(x, c), keep)) {
+                    left = true;
+                } else {
+                    x.next[c] = null;
+                }
+            }
+        }
+        return left;
+    }
+
+    //every key with values under x, in order, with its values
+    private void collectKeys(Node<Value> x, StringBuilder key, List<String> keys, List<Set<Value>> postings) {
+        if (x == null) {
+            return;
+        }
+        if (!x.values.isEmpty()) {
+            keys.add(key.toString());
+            postings.add(x.values);
+        }
+        for (int c = 0; c < alphabetSize; c++) {
+            if (x.next[c] != null) {
+                key.append((char) c);
+                collectKeys(child(x, c), key, keys, postings);
+                key.setLength(key.length() - 1);
+            }
+        }
+    }
+
+    //the root and the children of a node, as Node<Value>. The trie keeps raw Nodes, so this is where the snapshot code casts back
+    @SuppressWarnings("unchecked")
+    private Node<Value> typedRoot() {
+        return this.root;
+    }
+
+    @SuppressWarnings("unchecked")
+    private Node<Value> child(Node<Value> x, int c) {
+        return x.next[c];
+    }
+
+    private static void writeVarint(DataOutputStream out, int value) throws IOException {
+        while ((value & ~0x7f) != 0) {
+            out.writeByte((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    private static int readVarint(ByteBuffer buffer) {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            byte b = buffer.get();
+            value |= (b & 0x7f) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IndexOutOfBoundsException("varint is too long");
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        writeVarint(out, bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        int length = readVarint(buffer);
+        if (length < 0 || length > buffer.remaining()) {
+            throw new IndexOutOfBoundsException("string runs past the end");
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
     private void prune(Node<Value> x, String key, String lastkey) {
 
         //makes sure the values of x. values is empty
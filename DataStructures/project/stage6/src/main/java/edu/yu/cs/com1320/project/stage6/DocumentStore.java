@@ -170,4 +170,15 @@ public interface DocumentStore
      * @throws IllegalArgumentException if limit < 1
      */
     void setMaxDocumentBytes(int limit);
-}
\ No newline at end of file
+
+    //**********URI RANGE ADDITIONS
+
+    /**
+     * Retrieve all documents whose URI starts with the given prefix, e.g. every document under http://host/path/
+     * Documents are returned in ascending order of their URIs.
+     * @param uriPrefix
+     * @return a List of the matches. If there are no matches, return an empty list.
+     * @throws IllegalArgumentException if the prefix is null, blank, or not a valid URI
+     */
+    List<Document> getAllWithUriPrefix(String uriPrefix) throws IOException;
+}
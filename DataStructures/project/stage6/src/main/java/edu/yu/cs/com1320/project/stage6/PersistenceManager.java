@@ -1,10 +1,55 @@
 package edu.yu.cs.com1320.project.stage6;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 
 public interface PersistenceManager<Key,Value> {
     void serialize(Key key, Value val) throws IOException;
+
+    /**
+     * write several values as one batch. The default writes them one at a time; a persistence manager that can write
+     * a batch in fewer, larger writes overrides it
+     */
+    default void serializeAll(List<? extends Map.Entry<Key, Value>> entries) throws IOException {
+        for (Map.Entry<Key, Value> entry : entries) {
+            serialize(entry.getKey(), entry.getValue());
+        }
+    }
+
     Value deserialize(Key key) throws IOException;
+
+    /**
+     * read a value back without taking it off disk, so the next deserialize or peek finds it where it was. The default
+     * reads it with deserialize and writes it back; a persistence manager that can read without removing overrides it
+     * @return the value, or null if it isn't there
+     */
+    default Value peek(Key key) throws IOException {
+        Value val = deserialize(key);
+        if (val != null) {
+            serialize(key, val);
+        }
+        return val;
+    }
+
+    /**
+     * read several values back as one batch. The default reads them one at a time; a persistence manager that can read
+     * them in parallel overrides it
+     * @return the value of each key, in the order of the keys: null for one that isn't there or couldn't be read, so one
+     * failed read doesn't lose the values the others took off disk
+     */
+    default List<Value> deserializeAll(List<Key> keys) {
+        List<Value> values = new ArrayList<>(keys.size());
+        for (Key key : keys) {
+            try {
+                values.add(deserialize(key));
+            } catch (IOException e) {
+                values.add(null);
+            }
+        }
+        return values;
+    }
     /**
      * delete the file stored on disk that corresponds to the given key
      * @param key
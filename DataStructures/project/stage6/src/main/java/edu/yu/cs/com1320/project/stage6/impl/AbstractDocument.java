@@ -0,0 +1,130 @@
+package edu.yu.cs.com1320.project.stage6.impl;
+
+
+import edu.yu.cs.com1320.project.stage6.Document;
+
+import java.net.URI;
+import java.util.*;
+
+/**
+ * what every document in the store has whatever holds its body: the uri, the metadata and the last use time.
+ * Two documents of the same class are equal when their hash codes are, which hashCode(URI, String, int) computes the
+ * same way for each of them
+ */
+abstract class AbstractDocument implements Document {
+
+    private final URI uri;
+    private HashMap<String, String> metadata;
+
+    private long nanoTime;
+
+    AbstractDocument(URI uri, HashMap<String, String> metadata) {
+        this.uri = uri;
+        this.metadata = metadata == null ? new HashMap<>() : metadata;
+        this.nanoTime = System.nanoTime();
+    }
+
+    /**
+     * called before the metadata is changed
+     */
+    void metadataChanging() {
+    }
+
+    /**
+     * @param key   key of document metadata to store a value for
+     * @param value value to store
+     * @return old value, or null if there was no old value
+     */
+    @Override
+    public String setMetadataValue(String key, String value) {
+        if (key == null || key.isBlank()) {
+            throw new IllegalArgumentException("Metadata key cannot be null or empty");
+        }
+        metadataChanging();
+        return metadata.put(key, value);
+    }
+
+    /**
+     * @param key metadata key whose value we want to retrieve
+     * @return corresponding value, or null if there is no such key
+     */
+    @Override
+    public String getMetadataValue(String key) {
+        if (key == null || key.isBlank()) {
+            throw new IllegalArgumentException("key cannot be null or empty");
+        }
+        return metadata.get(key);
+    }
+
+    /**
+     * @return a COPY of the metadata saved in this document
+     */
+    @Override
+    public HashMap<String, String> getMetadata() {
+        return new HashMap<>(this.metadata);
+    }
+
+    @Override
+    public void setMetadata(HashMap<String, String> metadata) {
+        metadataChanging();
+        this.metadata = metadata;
+    }
+
+    /**
+     * @return URI which uniquely identifies this document
+     */
+    @Override
+    public URI getKey() {
+        return this.uri;
+    }
+
+    /**
+     * return the last time this document was used, via put/get or via a search result
+     * (for stage 4 of project)
+     */
+    @Override
+    public long getLastUseTime() {
+        return this.nanoTime;
+    }
+
+    @Override
+    public void setLastUseTime(long timeInNanoseconds) {
+        this.nanoTime = timeInNanoseconds;
+    }
+
+    //bytes of the uri and metadata, which stay on the heap whatever happens to the body
+    int getHeaderBytes() {
+        int bytes = this.uri.toString().length();
+        for (Map.Entry<String, String> entry : this.metadata.entrySet()) {
+            bytes += entry.getKey().length() + (entry.getValue() == null ? 0 : entry.getValue().length());
+        }
+        return bytes;
+    }
+
+    /**
+     * @param dataHash Arrays.hashCode of the binary data, which is 0 for a text document
+     * @return the hash code of a document with the uri, text (null for binary) and data
+     */
+    static int hashCode(URI uri, String text, int dataHash) {
+        int result = uri.hashCode();
+        result = 31 * result + (text != null ? text.hashCode() : 0);
+        result = 31 * result + dataHash;
+        return Math.abs(result);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (obj == null || this.getClass() != obj.getClass()) {
+            return false;
+        }
+        return this.hashCode() == obj.hashCode();
+    }
+
+    @Override
+    public int compareTo(Document o) {
+        return Long.compare(this.nanoTime, o.getLastUseTime());
+    }
+}
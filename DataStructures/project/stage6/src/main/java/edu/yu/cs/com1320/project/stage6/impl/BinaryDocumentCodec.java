@@ -0,0 +1,192 @@
+package edu.yu.cs.com1320.project.stage6.impl;
+
+import edu.yu.cs.com1320.project.stage6.Document;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * documents in a compact binary format: binary data is written as is, text as UTF-8, and every length and count as a varint.
+ * The word counts of a text document are stored, so reading it back doesn't split the text into words again.
+ * <pre>
+ * version  byte (1)
+ * kind     byte: 0 text, 1 binary
+ * uri      string
+ * content  varint length, then the UTF-8 text or the binary data
+ * metadata varint count, then count pairs of string key and nullable string value
+ * words    text only: varint count, then count pairs of string word and varint count
+ * </pre>
+ * A string is a varint length followed by UTF-8; a nullable string stores length + 1, with 0 for null
+ */
+public class BinaryDocumentCodec implements DocumentCodec {
+    private static final int VERSION = 1;
+    private static final int TEXT = 0;
+    private static final int BINARY = 1;
+
+    @Override
+    public String extension() {
+        return ".bin";
+    }
+
+    @Override
+    public void write(Document document, OutputStream out) throws IOException {
+        byte[] binaryData = document.getDocumentBinaryData();
+        byte[] uri = utf8(document.getKey().toString());
+        byte[] content = binaryData != null ? binaryData : utf8(document.getDocumentTxt());
+        Map<String, String> metadata = document.getMetadata();
+        Map<String, Integer> words = binaryData != null ? Map.of() : document.getWordMap();
+
+        //build the whole record first so it goes to the stream in one write
+        Buffer buffer = new Buffer(content.length + uri.length + 16 * (metadata.size() + words.size()) + 16);
+        buffer.write(VERSION);
+        buffer.write(binaryData != null ? BINARY : TEXT);
+        buffer.writeBytes(uri);
+        buffer.writeBytes(content);
+        buffer.writeVarint(metadata.size());
+        for (Map.Entry<String, String> entry : metadata.entrySet()) {
+            buffer.writeBytes(utf8(entry.getKey()));
+            if (entry.getValue() == null) {
+                buffer.writeVarint(0);
+            } else {
+                byte[] value = utf8(entry.getValue());
+                buffer.writeVarint(value.length + 1);
+                buffer.write(value, 0, value.length);
+            }
+        }
+        if (binaryData == null) {
+            buffer.writeVarint(words.size());
+            for (Map.Entry<String, Integer> entry : words.entrySet()) {
+                buffer.writeBytes(utf8(entry.getKey()));
+                buffer.writeVarint(entry.getValue());
+            }
+        }
+        buffer.writeTo(out);
+    }
+
+    @Override
+    public Document read(InputStream in) throws IOException {
+        DataInputStream data = new DataInputStream(in);
+        int version = data.read();
+        if (version != VERSION) {
+            throw new IOException("unsupported document format version " + version);
+        }
+        int kind = data.readUnsignedByte();
+        if (kind != TEXT && kind != BINARY) {
+            throw new IOException("unknown document kind " + kind);
+        }
+        URI uri;
+        try {
+            uri = new URI(readString(data));
+        } catch (URISyntaxException e) {
+            throw new IOException("bad document uri", e);
+        }
+        byte[] content = readBytes(data, readVarint(data));
+        HashMap<String, String> metadata = new HashMap<>();
+        for (int i = readVarint(data); i > 0; i--) {
+            String key = readString(data);
+            int length = readVarint(data);
+            metadata.put(key, length == 0 ? null : new String(readBytes(data, length - 1), StandardCharsets.UTF_8));
+        }
+        DocumentImpl document;
+        if (kind == BINARY) {
+            document = new DocumentImpl(uri, content);
+        } else {
+            int count = readVarint(data);
+            HashMap<String, Integer> words = new HashMap<>(count * 4 / 3 + 1);
+            for (int i = 0; i < count; i++) {
+                String word = readString(data);
+                words.put(word, readVarint(data));
+            }
+            document = new DocumentImpl(uri, new String(content, StandardCharsets.UTF_8), words);
+        }
+        document.setMetadata(metadata);
+        return document;
+    }
+
+    private static byte[] utf8(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return new String(readBytes(in, readVarint(in)), StandardCharsets.UTF_8);
+    }
+
+    private static byte[] readBytes(DataInputStream in, int length) throws IOException {
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    //7 bits at a time, low bits first, with the high bit set on every byte but the last
+    private static int readVarint(DataInputStream in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = in.read();
+            if (b < 0) {
+                throw new EOFException();
+            }
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                if (value < 0) {
+                    throw new IOException("negative length or count");
+                }
+                return value;
+            }
+        }
+        throw new IOException("varint too long");
+    }
+
+    //a growable byte array that writes varints and length-prefixed bytes
+    private static final class Buffer {
+        private byte[] bytes;
+        private int size;
+
+        private Buffer(int capacity) {
+            this.bytes = new byte[capacity];
+        }
+
+        private void write(int b) {
+            this.ensureCapacity(1);
+            this.bytes[this.size++] = (byte) b;
+        }
+
+        private void write(byte[] b, int offset, int length) {
+            this.ensureCapacity(length);
+            System.arraycopy(b, offset, this.bytes, this.size, length);
+            this.size += length;
+        }
+
+        private void writeBytes(byte[] b) {
+            this.writeVarint(b.length);
+            this.write(b, 0, b.length);
+        }
+
+        private void writeVarint(int value) {
+            while ((value & ~0x7F) != 0) {
+                this.write((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            this.write(value);
+        }
+
+        private void ensureCapacity(int extra) {
+            if (this.size + extra > this.bytes.length) {
+                byte[] bigger = new byte[Math.max(this.bytes.length * 2, this.size + extra)];
+                System.arraycopy(this.bytes, 0, bigger, 0, this.size);
+                this.bytes = bigger;
+            }
+        }
+
+        private void writeTo(OutputStream out) throws IOException {
+            out.write(this.bytes, 0, this.size);
+        }
+    }
+}
@@ -0,0 +1,236 @@
+package edu.yu.cs.com1320.project.stage6.impl;
+
+import edu.yu.cs.com1320.project.stage6.Document;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * documents in another codec's format, compressed with Deflater. Text compresses well, so evicted text documents
+ * cost far fewer bytes on disk and to read back, for some CPU time; stats() reports both.
+ * <pre>
+ * rawLength         int, the length of the inner codec's record
+ * compressedLength  int
+ * data              compressedLength bytes of zlib data
+ * </pre>
+ * The lengths let read() take exactly one record from the stream and inflate it into a buffer of the right size
+ */
+public class CompressedDocumentCodec implements DocumentCodec {
+    private final DocumentCodec codec;
+    private final int level;
+    private final LongAdder documentsWritten = new LongAdder();
+    private final LongAdder documentsRead = new LongAdder();
+    private final LongAdder rawBytesWritten = new LongAdder();
+    private final LongAdder compressedBytesWritten = new LongAdder();
+    private final LongAdder rawBytesRead = new LongAdder();
+    private final LongAdder compressedBytesRead = new LongAdder();
+    private final LongAdder compressNanos = new LongAdder();
+    private final LongAdder decompressNanos = new LongAdder();
+
+    /**
+     * compress BinaryDocumentCodec records at Deflater.BEST_SPEED
+     */
+    public CompressedDocumentCodec() {
+        this(new BinaryDocumentCodec(), Deflater.BEST_SPEED);
+    }
+
+    /**
+     * @param codec the format of the data that is compressed
+     * @param level a Deflater level, from Deflater.BEST_SPEED (1) to Deflater.BEST_COMPRESSION (9), 0 to store
+     *              without compressing, or Deflater.DEFAULT_COMPRESSION
+     */
+    public CompressedDocumentCodec(DocumentCodec codec, int level) {
+        if (codec == null) {
+            throw new IllegalArgumentException("codec cannot be null");
+        }
+        if ((level < Deflater.NO_COMPRESSION || level > Deflater.BEST_COMPRESSION) && level != Deflater.DEFAULT_COMPRESSION) {
+            throw new IllegalArgumentException("invalid compression level " + level);
+        }
+        this.codec = codec;
+        this.level = level;
+    }
+
+    @Override
+    public String extension() {
+        return this.codec.extension() + ".z";
+    }
+
+    @Override
+    public void write(Document document, OutputStream out) throws IOException {
+        ByteArrayOutputStream raw = new ByteArrayOutputStream();
+        this.codec.write(document, raw);
+        byte[] input = raw.toByteArray();
+
+        long start = System.nanoTime();
+        Deflater deflater = new Deflater(this.level);
+        byte[] output;
+        int length;
+        try {
+            deflater.setInput(input);
+            deflater.finish();
+            //deflate can add a few bytes to data that doesn't compress
+            output = new byte[input.length + input.length / 1000 + 64];
+            length = 0;
+            while (!deflater.finished()) {
+                if (length == output.length) {
+                    output = Arrays.copyOf(output, output.length * 2);
+                }
+                length += deflater.deflate(output, length, output.length - length);
+            }
+        } finally {
+            deflater.end();
+        }
+        this.compressNanos.add(System.nanoTime() - start);
+
+        DataOutputStream data = new DataOutputStream(out);
+        data.writeInt(input.length);
+        data.writeInt(length);
+        data.write(output, 0, length);
+        data.flush();
+        this.documentsWritten.increment();
+        this.rawBytesWritten.add(input.length);
+        this.compressedBytesWritten.add(length);
+    }
+
+    @Override
+    public Document read(InputStream in) throws IOException {
+        DataInputStream data = new DataInputStream(in);
+        int rawLength;
+        int compressedLength;
+        try {
+            rawLength = data.readInt();
+            compressedLength = data.readInt();
+        } catch (EOFException e) {
+            throw new IOException("no document in stream", e);
+        }
+        if (rawLength < 0 || compressedLength < 0) {
+            throw new IOException("not a compressed document");
+        }
+        byte[] input = new byte[compressedLength];
+        data.readFully(input);
+
+        long start = System.nanoTime();
+        Inflater inflater = new Inflater();
+        byte[] output = new byte[rawLength];
+        try {
+            inflater.setInput(input);
+            int length = 0;
+            while (length < rawLength && !inflater.finished()) {
+                int inflated = inflater.inflate(output, length, rawLength - length);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                length += inflated;
+            }
+            if (length != rawLength) {
+                throw new IOException("compressed document is cut short");
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("not a compressed document", e);
+        } finally {
+            inflater.end();
+        }
+        this.decompressNanos.add(System.nanoTime() - start);
+        this.documentsRead.increment();
+        this.rawBytesRead.add(rawLength);
+        this.compressedBytesRead.add(compressedLength);
+        return this.codec.read(new ByteArrayInputStream(output));
+    }
+
+    /**
+     * @return the bytes and time spent since this codec was created. Safe to call while documents are being written
+     */
+    public Stats stats() {
+        return new Stats(this.documentsWritten.sum(), this.documentsRead.sum(), this.rawBytesWritten.sum(),
+                this.compressedBytesWritten.sum(), this.rawBytesRead.sum(), this.compressedBytesRead.sum(),
+                this.compressNanos.sum(), this.decompressNanos.sum());
+    }
+
+    /**
+     * figures returned by stats(). Times cover only compressing and inflating, not the inner codec or the disk
+     */
+    public static final class Stats {
+        private final long documentsWritten;
+        private final long documentsRead;
+        private final long rawBytesWritten;
+        private final long compressedBytesWritten;
+        private final long rawBytesRead;
+        private final long compressedBytesRead;
+        private final long compressNanos;
+        private final long decompressNanos;
+
+        private Stats(long documentsWritten, long documentsRead, long rawBytesWritten, long compressedBytesWritten,
+                      long rawBytesRead, long compressedBytesRead, long compressNanos, long decompressNanos) {
+            this.documentsWritten = documentsWritten;
+            this.documentsRead = documentsRead;
+            this.rawBytesWritten = rawBytesWritten;
+            this.compressedBytesWritten = compressedBytesWritten;
+            this.rawBytesRead = rawBytesRead;
+            this.compressedBytesRead = compressedBytesRead;
+            this.compressNanos = compressNanos;
+            this.decompressNanos = decompressNanos;
+        }
+
+        public long getDocumentsWritten() {
+            return this.documentsWritten;
+        }
+
+        public long getDocumentsRead() {
+            return this.documentsRead;
+        }
+
+        /**
+         * @return bytes the inner codec produced for the documents written
+         */
+        public long getRawBytesWritten() {
+            return this.rawBytesWritten;
+        }
+
+        public long getCompressedBytesWritten() {
+            return this.compressedBytesWritten;
+        }
+
+        public long getRawBytesRead() {
+            return this.rawBytesRead;
+        }
+
+        public long getCompressedBytesRead() {
+            return this.compressedBytesRead;
+        }
+
+        public long getCompressNanos() {
+            return this.compressNanos;
+        }
+
+        public long getDecompressNanos() {
+            return this.decompressNanos;
+        }
+
+        /**
+         * @return raw bytes written per compressed byte written, e.g. 3.0 when documents shrank to a third; 1.0 before
+         * anything was written
+         */
+        public double getCompressionRatio() {
+            return this.compressedBytesWritten == 0 ? 1.0 : (double) this.rawBytesWritten / this.compressedBytesWritten;
+        }
+
+        @Override
+        public String toString() {
+            return "documentsWritten=" + this.documentsWritten + ", documentsRead=" + this.documentsRead
+                    + ", rawBytesWritten=" + this.rawBytesWritten + ", compressedBytesWritten=" + this.compressedBytesWritten
+                    + ", compressionRatio=" + String.format("%.2f", getCompressionRatio())
+                    + ", compressMillis=" + this.compressNanos / 1_000_000 + ", decompressMillis=" + this.decompressNanos / 1_000_000;
+        }
+    }
+}
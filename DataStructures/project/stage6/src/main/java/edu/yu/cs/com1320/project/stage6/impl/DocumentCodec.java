@@ -0,0 +1,28 @@
+package edu.yu.cs.com1320.project.stage6.impl;
+
+import edu.yu.cs.com1320.project.stage6.Document;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * the format DocumentPersistenceManager writes documents to disk in
+ */
+public interface DocumentCodec {
+    /**
+     * @return the file extension for documents in this format, e.g. ".json"
+     */
+    String extension();
+
+    /**
+     * write the document to the stream. The stream is not closed
+     */
+    void write(Document document, OutputStream out) throws IOException;
+
+    /**
+     * read back a document written by write(). The stream is not closed
+     * @throws IOException if the stream doesn't hold a document in this format
+     */
+    Document read(InputStream in) throws IOException;
+}
@@ -3,97 +3,102 @@ package edu.yu.cs.com1320.project.stage6.impl;
 
 import edu.yu.cs.com1320.project.stage6.Document;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.net.URI;
 import java.util.*;
 
 
-public class DocumentImpl implements Document {
+public class DocumentImpl extends AbstractDocument {
 
-    private final URI uri;
-    private final String text;
-    private final byte[] binaryData;
-    private HashMap<String, String> metadata;
+    private String text;
+    private byte[] binaryData;
 
     private HashMap<String, Integer> wordCounts;
 
-    private long nanoTime;
+    //which copy on disk this document still matches, 0 for none - see DocumentPersistenceManager.setKeepCleanCopies
+    private transient long cleanCopy;
+
+    //set while the text or binary data is on disk - see standIn
+    private transient BodyLoader bodyLoader;
+    private transient boolean textBody;
+    private transient int bodyBytes;
+    private transient int bodyHashCode;
+    //the metadata was set while the body was on disk, so the file doesn't have it
+    private transient boolean metadataChanged;
+
+    /**
+     * reads back the body of a stand-in
+     */
+    interface BodyLoader {
+        /**
+         * @return whether a body read because it was asked for stays in memory, rather than being read again next time
+         */
+        boolean keepBody(URI uri);
+
+        /**
+         * read the document back into memory through whatever holds the stand-in, which hands it the body
+         */
+        void load(URI uri) throws IOException;
+
+        /**
+         * @return the document as it was written to disk, left there, or null if it isn't there
+         */
+        Document peek(URI uri) throws IOException;
+    }
 
     public DocumentImpl(URI uri, String text, Map<String, Integer> wordCountMap){
+        super(uri, null);
         if (uri == null || text == null || text.isBlank() || uri.toString().isBlank()) {
             throw new IllegalArgumentException("URI or text cannot be null or empty");
         }
-        this.uri = uri;
         this.text = text;
         this.binaryData = null;
-        this.metadata = new HashMap<>();
         if(wordCountMap == null) {
             this.wordCounts = new HashMap<>();
             addWords(text);
         } else{
             wordCounts = (HashMap<String, Integer>) wordCountMap;
         }
-        this.nanoTime = System.nanoTime();
 
     }
+    //a stand-in for the document, whose body has been written to disk
+    private DocumentImpl(DocumentImpl document, BodyLoader loader) {
+        super(document.getKey(), document.getMetadata());
+        this.wordCounts = document.wordCounts;
+        this.setLastUseTime(document.getLastUseTime());
+        this.cleanCopy = document.cleanCopy;
+        this.bodyBytes = document.getBodyBytes();
+        this.bodyHashCode = document.hashCode();
+        this.textBody = document.text != null;
+        this.bodyLoader = loader;
+    }
+
     public DocumentImpl(URI uri, byte[] binaryData) {
+        super(uri, null);
         if (uri == null || binaryData == null || uri.toString().isBlank() || binaryData.length == 0 ) {
             throw new IllegalArgumentException("URI or binaryData cannot be null");
         }
-        this.uri = uri;
         this.binaryData = binaryData;
         this.text = null;
-        this.metadata = new HashMap();
         this.wordCounts = null;
-        this.nanoTime = System.nanoTime();
     }
 
 
-    /**
-     * @param key   key of document metadata to store a value for
-     * @param value value to store
-     * @return old value, or null if there was no old value
-     */
-    @Override
-    public String setMetadataValue(String key, String value) {
-        if (key == null || key.isBlank()) {
-            throw new IllegalArgumentException("Metadata key cannot be null or empty");
-        }
-        return metadata.put(key,value);
-    }
-
-    /**
-     * @param key metadata key whose value we want to retrieve
-     * @return corresponding value, or null if there is no such key
-     */
     @Override
-    public String getMetadataValue(String key) {
-        if (key == null || key.isBlank()){
-            throw new IllegalArgumentException("key cannot be null or empty");
-        }
-        return metadata.get(key);
+    void metadataChanging() {
+        this.cleanCopy = 0;
+        this.metadataChanged = this.bodyLoader != null;
     }
 
-    /**
-     * @return a COPY of the metadata saved in this document
-     */
-    @Override
-    public HashMap<String, String> getMetadata() {
-        HashMap<String, String> copyMetadata = new HashMap<>();
-        for (String key : metadata.keySet()) {
-            copyMetadata.put(key, metadata.get(key));
-        }
-        return copyMetadata;
-    }
-
-    @Override
-    public void setMetadata(HashMap<String, String> metadata) {
-        this.metadata = metadata;
-    }
     /**
      * @return content of text document
      */
     @Override
     public String getDocumentTxt() {
+        if (this.bodyLoader != null) {
+            return this.textBody ? body().getDocumentTxt() : null;
+        }
         return this.text;
     }
 
@@ -102,17 +107,12 @@ public class DocumentImpl implements Document {
      */
     @Override
     public byte[] getDocumentBinaryData() {
+        if (this.bodyLoader != null) {
+            return this.textBody ? null : body().getDocumentBinaryData();
+        }
         return this.binaryData;
     }
 
-    /**
-     * @return URI which uniquely identifies this document
-     */
-    @Override
-    public URI getKey() {
-        return this.uri;
-    }
-
 
 
 
@@ -167,36 +167,13 @@ public class DocumentImpl implements Document {
 
     @Override
     public int hashCode() {
-        int result = uri.hashCode();
-        result = 31 * result + (text != null ? text.hashCode() : 0);
-        result = 31 * result + Arrays.hashCode(binaryData);
-        return Math.abs(result);
-    }
-
-
-    @Override
-    public boolean equals(Object obj) {
-
-        if (this == obj) {
-            return true;
-        }
-        if (obj == null || this.getClass() != obj.getClass()) {
-            return false;
+        if (this.bodyLoader != null) {
+            //the same as when the body was here, without reading it back
+            return this.bodyHashCode;
         }
-        DocumentImpl document = (DocumentImpl) obj;
-        return this.hashCode() == document.hashCode();
+        return hashCode(getKey(), text, Arrays.hashCode(binaryData));
     }
 
-    /**
-     * return the last time this document was used, via put/get or via a search result
-     * (for stage 4 of project)
-     */
-    public long getLastUseTime(){
-        return this.nanoTime;
-    }
-    public void setLastUseTime(long timeInNanoseconds){
-        this.nanoTime = timeInNanoseconds;
-    }
 
     /**
      * @return a copy of the word to count map so it can be serialized
@@ -212,24 +189,107 @@ public class DocumentImpl implements Document {
      * @param wordMap
      */
     public void setWordMap(HashMap<String, Integer> wordMap){
+        this.cleanCopy = 0;
         this.wordCounts = wordMap;
 
     }
 
 
-    @Override
-    public int compareTo(Document o) {
+    /**
+     * @return a document like this one without the text or binary data, which has just been written to disk. The uri,
+     * metadata, word counts and size are there, so searching, ranking and metadata don't need the body;
+     * getDocumentTxt and getDocumentBinaryData read it back through the loader. While the body is on disk the metadata
+     * here is the document's, whatever the file holds. This document isn't changed, since a persistence manager that
+     * writes in the background may not have written it yet
+     */
+    DocumentImpl standIn(BodyLoader loader) {
+        return this.bodyLoader != null ? this : new DocumentImpl(this, loader);
+    }
 
-        if (this.nanoTime > o.getLastUseTime()){
+    /**
+     * take the body of the document read back from disk
+     * @return this document, whole again
+     */
+    DocumentImpl restoreBody(Document body) {
+        if (this.bodyLoader != null) {
+            keep(body);
+        }
+        return this;
+    }
 
-            return 1;
-        } else if(this.nanoTime< o.getLastUseTime()){
-            return -1;
+    boolean isBodyLoaded() {
+        return this.bodyLoader == null;
+    }
 
-        } else {
-            return 0;
+    /**
+     * @return whether the metadata was set while the body was on disk, so the document on disk is out of date. Loading
+     * the body clears it: the document is then written again whenever it is next moved to disk
+     */
+    boolean isMetadataChanged() {
+        return this.metadataChanged;
+    }
+
+    /**
+     * read the body back from disk, if it is there, and keep it
+     */
+    void loadBody() throws IOException {
+        if (this.bodyLoader != null) {
+            this.bodyLoader.load(getKey());
         }
+        if (this.bodyLoader != null) {
+            //a stand-in the store no longer holds isn't handed its body, so it reads it itself
+            keep(peek());
+        }
+    }
+
+    /**
+     * @return the length of the text, as the store measures it, or of the binary data, without reading it back from disk
+     */
+    int getBodyBytes() {
+        if (this.bodyLoader != null) {
+            return this.bodyBytes;
+        }
+        return this.text != null ? this.text.getBytes().length : this.binaryData.length;
+    }
+
+    //the body read back from disk, kept if the loader says so
+    private Document body() {
+        try {
+            if (this.bodyLoader.keepBody(getKey())) {
+                loadBody();
+                return this;
+            }
+            return peek();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private Document peek() throws IOException {
+        Document body = this.bodyLoader.peek(getKey());
+        if (body == null) {
+            throw new IOException("the body of " + getKey() + " is not on disk");
+        }
+        return body;
+    }
+
+    private void keep(Document body) {
+        this.text = body.getDocumentTxt();
+        this.binaryData = body.getDocumentBinaryData();
+        this.bodyLoader = null;
+        this.metadataChanged = false;
+        //still the copy on disk, unless the metadata changed while the body was there
+        if (body instanceof DocumentImpl && body.getMetadata().equals(getMetadata())) {
+            this.cleanCopy = ((DocumentImpl) body).cleanCopy;
+        }
+    }
+
+    long getCleanCopy() {
+        return this.cleanCopy;
+    }
 
+    void setCleanCopy(long cleanCopy) {
+        this.cleanCopy = cleanCopy;
     }
 
 }
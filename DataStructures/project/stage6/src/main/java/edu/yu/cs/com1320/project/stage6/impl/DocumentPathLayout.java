@@ -0,0 +1,14 @@
+package edu.yu.cs.com1320.project.stage6.impl;
+
+import java.net.URI;
+
+/**
+ * where DocumentPersistenceManager puts the files of a document, relative to its base directory
+ */
+public interface DocumentPathLayout {
+    /**
+     * @return the path of the document's files without an extension, with / between directories. Distinct keys must get
+     * distinct paths
+     */
+    String pathFor(URI key);
+}
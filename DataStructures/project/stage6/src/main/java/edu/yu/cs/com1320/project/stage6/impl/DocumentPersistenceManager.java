@@ -3,74 +3,557 @@ package edu.yu.cs.com1320.project.stage6.impl;
 import edu.yu.cs.com1320.project.stage6.Document;
 import edu.yu.cs.com1320.project.stage6.PersistenceManager;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
-import java.io.FileReader;
-import java.io.FileWriter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.URI;
-import com.google.gson.Gson;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.stream.Collector;
 
 
 
-public class DocumentPersistenceManager implements PersistenceManager<URI, Document> {
-
+public class DocumentPersistenceManager implements PersistenceManager<URI, Document>, Closeable {
+    /**
+     * binary data at least this long is written as is to a .raw file beside the document's record, see
+     * DocumentPersistenceManager(File, DocumentCodec, int)
+     */
+    public static final int DEFAULT_RAW_THRESHOLD = 64 * 1024;
+    //stands in for the binary data in the record of a document whose data is in its .raw file
+    private static final byte[] RAW_PLACEHOLDER = {0};
+    //files a scan task reads itself rather than splitting
+    private static final int SCAN_CHUNK = 32;
+    //threads deserializeAll reads on. Reads mostly wait on the disk, so there can be more of them than processors
+    private static final int READ_THREADS = Math.min(16, 2 * Runtime.getRuntime().availableProcessors());
+    //how long an idle reader thread waits for another read before it exits
+    private static final long READER_KEEP_ALIVE_SECONDS = 30;
+    //holds the generation of the documents under the base directory. Not a record, since it has no codec's extension
+    private static final String GENERATION_NAME = "documents.generation";
 
     private final File baseDir;
+    private final DocumentCodec codec;
+    private final int rawThreshold;
+    private final DocumentPathLayout layout;
+    private volatile boolean keepCleanCopies;
+    //the copy each kept file holds, matched against DocumentImpl.getCleanCopy of the document being written
+    private final ConcurrentHashMap<URI, Long> cleanCopies = new ConcurrentHashMap<>();
+    private final AtomicLong nextCopy = new AtomicLong();
+    //started by the first deserializeAll, and shut down by close
+    private ThreadPoolExecutor readers;
+    private boolean closed;
+    //binary data at least this long is read back as a MappedDocument, 0 for never
+    private volatile int mapThreshold;
+    private volatile boolean syncWrites;
+    //the generation, once looked for; whether it is kept in its file, which only happens once one is stamped; and
+    //whether it was handed out by snapshotGeneration since it last changed
+    private long generation;
+    private boolean generationRead;
+    private boolean generationKept;
+    private boolean generationStamped = true;
     public DocumentPersistenceManager(File baseDir) {
+        this(baseDir, new JsonDocumentCodec());
+    }
 
+    /**
+     * @param baseDir directory documents are written under, or null for the working directory
+     * @param codec the format documents are written in, e.g. BinaryDocumentCodec for smaller files that are faster to read back
+     */
+    public DocumentPersistenceManager(File baseDir, DocumentCodec codec) {
+        this(baseDir, codec, DEFAULT_RAW_THRESHOLD);
+    }
+
+    /**
+     * @param rawThreshold binary data at least this many bytes long skips the codec: it is written to a file of its own
+     *                     with a channel, and openBinaryData and transferBinaryData serve it without reading it onto the heap
+     */
+    public DocumentPersistenceManager(File baseDir, DocumentCodec codec, int rawThreshold) {
+        this(baseDir, codec, rawThreshold, new MirroredPathLayout());
+    }
+
+    /**
+     * @param layout where a document's files go under baseDir. The default MirroredPathLayout follows the uri;
+     *               HashedPathLayout keeps directories small when many documents share a host or path
+     */
+    public DocumentPersistenceManager(File baseDir, DocumentCodec codec, int rawThreshold, DocumentPathLayout layout) {
+        if (codec == null || layout == null) {
+            throw new IllegalArgumentException("codec or layout cannot be null");
+        }
+        if (rawThreshold < 1) {
+            throw new IllegalArgumentException("rawThreshold must be positive");
+        }
 
         if (baseDir==null){
             this.baseDir = new File(System.getProperty("user.dir"));
         } else{
             this.baseDir= baseDir;
         }
+        this.codec = codec;
+        this.rawThreshold = rawThreshold;
+        this.layout = layout;
+
+    }
+
+    /**
+     * when keeping clean copies, deserialize leaves the file on disk, and a document read back, or written, that hasn't changed since
+     * (its metadata or words weren't set) is dropped by serialize without writing anything, since the file still holds it.
+     * delete removes the file when the document is deleted. Off by default, so that reading a document moves it off disk
+     * @param keep true to keep files after reading them back
+     */
+    public void setKeepCleanCopies(boolean keep) {
+        this.keepCleanCopies = keep;
+        if (!keep) {
+            this.cleanCopies.clear();
+        }
+    }
 
+    /**
+     * force the files serialize and serializeAll write to the disk before they return, rather than leaving them in the
+     * operating system's cache, so they survive the machine going down. serializeAll forces a whole batch together.
+     * Off by default
+     */
+    public void setSyncWrites(boolean sync) {
+        this.syncWrites = sync;
+    }
+
+    /**
+     * binary data in a .raw file at least this long is read back as a MappedDocument over the file instead of onto the
+     * heap, and DocumentStoreImpl puts binary documents this long through map. Only data at least rawThreshold long is
+     * in a .raw file. Off by default; DocumentStoreImpl(File, int) turns it on for the store's own manager
+     * @param bytes the smallest data to map, or 0 to never map
+     */
+    public void setMapThreshold(int bytes) {
+        if (bytes < 0) {
+            throw new IllegalArgumentException("map threshold cannot be negative");
+        }
+        this.mapThreshold = bytes;
+    }
+
+    /**
+     * @return the smallest data that is mapped, or 0 if none is
+     */
+    public int getMapThreshold() {
+        return this.mapThreshold;
+    }
+
+    /**
+     * write binary data straight from the stream to the key's .raw file and map it. The data is never all on the heap.
+     * The document's record is written when it is serialized; until then the mapping is all there is of it
+     * @param data the data, which is read to the end but not closed
+     * @return a document over the data, with no metadata
+     */
+    public MappedDocument map(URI key, InputStream data) throws IOException {
+        return map(key, data, document -> true);
+    }
+
+    /**
+     * map, for data that may turn out not to be wanted, e.g. too big for a store. The data is written beside the key's
+     * files and mapped there, and only replaces them if the document over it is accepted
+     * @param accept given the document over the data, decides whether it replaces whatever is at the key. It runs
+     *               before the key's files change, so it can still read the document they hold
+     * @return the document, or null if it wasn't accepted, and nothing at the key changed
+     */
+    public MappedDocument map(URI key, InputStream data, Predicate<? super MappedDocument> accept) throws IOException {
+        if (key == null || data == null || accept == null) {
+            throw new IllegalArgumentException("key, data or accept cannot be null");
+        }
+        File file = fileFor(key);
+        file.getParentFile().mkdirs();
+        File raw = rawFileFor(file);
+        File temp = new File(raw.getPath() + ".tmp");
+        try {
+            try (OutputStream out = Files.newOutputStream(temp.toPath())) {
+                data.transferTo(out);
+            }
+            //the mapping is of the file, not its name, so it is still this document's once the file is moved
+            MappedDocument document = new MappedDocument(key, temp, null);
+            if (!accept.test(document)) {
+                return null;
+            }
+            cleanCopies.remove(key);
+            changed();
+            Files.move(temp.toPath(), raw.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            //a record left by an older document at the key would be read back in place of this one
+            file.delete();
+            return document;
+        } finally {
+            temp.delete();
+        }
     }
 
     public void serialize(URI key, Document val) throws IOException {
         if (key == null || val == null) {
             throw new IllegalArgumentException("key or value cannot be null");
         }
+        Replacements replacements = new Replacements();
+        try {
+            write(key, val, replacements);
+            replacements.commit(syncWrites);
+        } finally {
+            replacements.abandon();
+        }
+        markClean(replacements);
+    }
+
+    /**
+     * write every document's files, and only then move them over the old ones, so with setSyncWrites the whole batch
+     * is forced to disk in one pass at the end rather than one document at a time. Every document has files of its own,
+     * so a batch still forces each of them; what it saves is waiting on the disk between one document and the next
+     */
+    @Override
+    public void serializeAll(List<? extends Map.Entry<URI, Document>> entries) throws IOException {
+        if (entries == null) {
+            throw new IllegalArgumentException("entries cannot be null");
+        }
+        Replacements replacements = new Replacements();
+        try {
+            for (Map.Entry<URI, Document> entry : entries) {
+                if (entry.getKey() == null || entry.getValue() == null) {
+                    throw new IllegalArgumentException("key or value cannot be null");
+                }
+                write(entry.getKey(), entry.getValue(), replacements);
+            }
+            replacements.commit(syncWrites);
+        } finally {
+            replacements.abandon();
+        }
+        markClean(replacements);
+    }
+
+    //a document that was just written is, like one just read back, what its file holds until it changes
+    private void markClean(Replacements replacements) {
+        if (!keepCleanCopies) {
+            return;
+        }
+        for (Map.Entry<URI, DocumentImpl> written : replacements.written.entrySet()) {
+            long copy = nextCopy.incrementAndGet();
+            cleanCopies.put(written.getKey(), copy);
+            written.getValue().setCleanCopy(copy);
+        }
+    }
 
-        // Convert URI to a file path
-        String filePath = key.toString().replaceFirst("^https?://", "") + ".json";
-        File file = new File(baseDir,filePath);
+    //write the document's files beside the ones they replace
+    private void write(URI key, Document val, Replacements replacements) throws IOException {
+        if (keepCleanCopies && val instanceof DocumentImpl) {
+            long copy = ((DocumentImpl) val).getCleanCopy();
+            Long onDisk = cleanCopies.get(key);
+            if (copy != 0 && onDisk != null && onDisk == copy) {
+                return;
+            }
+        }
+        //whatever the file held, it won't be what a document read back from it holds
+        cleanCopies.remove(key);
+        changed();
+        if (val instanceof DocumentImpl) {
+            replacements.written.put(key, (DocumentImpl) val);
+        } else {
+            replacements.written.remove(key);
+        }
+
+        File file = fileFor(key);
         file.getParentFile().mkdirs();
 
-        Gson gson = new Gson();
+        File raw = rawFileFor(file);
+        byte[] binaryData = val instanceof MappedDocument ? null : val.getDocumentBinaryData();
+        if (val instanceof MappedDocument) {
+            MappedDocument mapped = (MappedDocument) val;
+            //mapped from this very file, so only the record is missing
+            if (!mapped.isBackedBy(raw)) {
+                try (FileChannel channel = FileChannel.open(replacements.temp(raw).toPath(), StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                    mapped.writeTo(channel);
+                }
+            }
+            Document stub = new DocumentImpl(key, RAW_PLACEHOLDER);
+            stub.setMetadata(val.getMetadata());
+            val = stub;
+        } else if (binaryData != null && binaryData.length >= rawThreshold) {
+            try (FileChannel channel = FileChannel.open(replacements.temp(raw).toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                ByteBuffer buffer = ByteBuffer.wrap(binaryData);
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            }
+            //the record keeps the uri and metadata
+            Document stub = new DocumentImpl(key, RAW_PLACEHOLDER);
+            stub.setMetadata(val.getMetadata());
+            val = stub;
+        } else {
+            replacements.remove(raw);
+        }
 
-        try (FileWriter writer = new FileWriter(file)) {
-            gson.toJson(val, writer);
-        } catch (IOException e) {
-            throw e;
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(replacements.temp(file)))) {
+            codec.write(val, out);
         }
     }
+
+    /**
+     * files written beside the ones they replace, as name.tmp, and moved over them together. Nothing is replaced until
+     * every file is written, and a record is never seen half written, even after a crash
+     */
+    private static final class Replacements {
+        //each file being replaced, and the file written in its place. A file written twice keeps the last write
+        private final Map<File, File> temps = new LinkedHashMap<>();
+        private final Set<File> removed = new LinkedHashSet<>();
+        //the document each key was last written from
+        private final Map<URI, DocumentImpl> written = new LinkedHashMap<>();
+
+        private File temp(File file) {
+            this.removed.remove(file);
+            return this.temps.computeIfAbsent(file, f -> new File(f.getPath() + ".tmp"));
+        }
+
+        //the file goes, e.g. a .raw file whose data now fits in the record
+        private void remove(File file) {
+            File temp = this.temps.remove(file);
+            if (temp != null) {
+                temp.delete();
+            }
+            this.removed.add(file);
+        }
+
+        private void commit(boolean sync) throws IOException {
+            if (sync) {
+                for (File temp : this.temps.values()) {
+                    force(temp, StandardOpenOption.WRITE);
+                }
+            }
+            Set<File> directories = new LinkedHashSet<>();
+            for (Map.Entry<File, File> replacement : this.temps.entrySet()) {
+                Files.move(replacement.getValue().toPath(), replacement.getKey().toPath(),
+                        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                directories.add(replacement.getKey().getAbsoluteFile().getParentFile());
+            }
+            this.temps.clear();
+            for (File file : this.removed) {
+                file.delete();
+            }
+            if (sync) {
+                //the moves themselves are in the directories
+                for (File directory : directories) {
+                    try {
+                        force(directory, StandardOpenOption.READ);
+                    } catch (IOException ignored) {
+                        //not every platform can open a directory to force it
+                    }
+                }
+            }
+        }
+
+        //whatever wasn't moved, after a failure
+        private void abandon() {
+            for (File temp : this.temps.values()) {
+                temp.delete();
+            }
+        }
+
+        private static void force(File file, StandardOpenOption mode) throws IOException {
+            try (FileChannel channel = FileChannel.open(file.toPath(), mode)) {
+                channel.force(true);
+            }
+        }
+    }
+
     @Override
     public Document deserialize(URI key) throws IOException {
+        return read(key, true);
+    }
+
+    /**
+     * read the document back and leave its files as they are, whether or not clean copies are kept
+     */
+    @Override
+    public Document peek(URI key) throws IOException {
+        return read(key, false);
+    }
+
+    //the document at the key, or null. take: it is leaving disk, so unless clean copies are kept its files go with it
+    private Document read(URI key, boolean take) throws IOException {
         if (key == null) {
             throw new IllegalArgumentException("key cannot be null");
         }
 
-        String filePath = key.toString().replaceFirst("^https?://", "") + ".json";
-
-        File file = new File(baseDir, filePath);
+        File file = fileFor(key);
 
         if (!file.exists()) {
             return null;
         }
 
-        Gson gson = new Gson();
-
-        try (FileReader reader = new FileReader(file)) {
-            DocumentImpl doc = gson.fromJson(reader, DocumentImpl.class);
+        Document doc = read(file);
+        File raw = rawFileFor(file);
+        if (raw.exists() && mapThreshold > 0 && raw.length() >= mapThreshold) {
+            //the .raw file stays: it is the document's data now
+            doc = new MappedDocument(key, raw, doc.getMetadata());
             doc.setLastUseTime(System.nanoTime());
-            delete(key);
+            if (take) {
+                cleanCopies.remove(key);
+                if (!keepCleanCopies) {
+                    changed();
+                    file.delete();
+                }
+            }
+            return doc;
+        }
+        if (raw.exists()) {
+            byte[] binaryData;
+            try (FileChannel channel = FileChannel.open(raw.toPath(), StandardOpenOption.READ)) {
+                //read straight into an array of the right size
+                binaryData = new byte[(int) channel.size()];
+                ByteBuffer buffer = ByteBuffer.wrap(binaryData);
+                while (buffer.hasRemaining()) {
+                    if (channel.read(buffer) < 0) {
+                        throw new IOException("raw data of " + key + " is cut short");
+                    }
+                }
+            }
+            Document stub = doc;
+            doc = new DocumentImpl(key, binaryData);
+            doc.setMetadata(stub.getMetadata());
+        }
+        doc.setLastUseTime(System.nanoTime());
+        if (!take) {
             return doc;
-        } catch (IOException e) {
+        }
+        if (keepCleanCopies && doc instanceof DocumentImpl) {
+            long copy = nextCopy.incrementAndGet();
+            cleanCopies.put(key, copy);
+            ((DocumentImpl) doc).setCleanCopy(copy);
+        } else {
+            delete(key);
+        }
+        return doc;
+    }
+    /**
+     * read the documents in parallel, on up to READ_THREADS threads of this persistence manager's own, so the batch
+     * takes about as long as its slowest read rather than all of them one after another. The threads exit when they have
+     * been idle for a while, and close stops them; after close the documents are read one at a time
+     * @return the document of each key, in the order of the keys, null for one that isn't on disk or couldn't be read
+     */
+    @Override
+    public List<Document> deserializeAll(List<URI> keys) {
+        if (keys == null) {
+            throw new IllegalArgumentException("keys cannot be null");
+        }
+        ThreadPoolExecutor readers = keys.size() < 2 ? null : readers();
+        if (readers == null) {
+            return PersistenceManager.super.deserializeAll(keys);
+        }
+        List<Future<Document>> reads = new ArrayList<>(keys.size());
+        for (URI key : keys) {
+            try {
+                reads.add(readers.submit(() -> deserialize(key)));
+            } catch (RejectedExecutionException e) {
+                //closed since: the rest are read here
+                reads.add(CompletableFuture.completedFuture(deserializeOrNull(key)));
+            }
+        }
+        List<Document> documents = new ArrayList<>(keys.size());
+        boolean interrupted = false;
+        for (Future<Document> read : reads) {
+            Document document = null;
+            //every read is waited for: one that finished took its document off disk, and it must not be lost
+            while (true) {
+                try {
+                    document = read.get();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    break;
+                }
+            }
+            documents.add(document);
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        return documents;
+    }
 
-            throw e;
+    /**
+     * stop the threads deserializeAll reads on. The documents on disk stay there, and can still be read and written
+     */
+    @Override
+    public void close() {
+        ThreadPoolExecutor readers;
+        synchronized (this) {
+            this.closed = true;
+            readers = this.readers;
+        }
+        if (readers != null) {
+            readers.shutdown();
         }
     }
+
+    //the pool deserializeAll reads on, started the first time it is needed. null once closed
+    private synchronized ThreadPoolExecutor readers() {
+        if (this.closed) {
+            return null;
+        }
+        if (this.readers == null) {
+            this.readers = new ThreadPoolExecutor(READ_THREADS, READ_THREADS, READER_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<>(), new ReaderThreadFactory());
+            this.readers.allowCoreThreadTimeOut(true);
+        }
+        return this.readers;
+    }
+
+    private Document deserializeOrNull(URI key) {
+        try {
+            return deserialize(key);
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    //reader threads shouldn't keep the jvm alive
+    private static final class ReaderThreadFactory implements ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "document-reader-" + count.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
     /**
      * delete the file stored on disk that corresponds to the given key
      * @param key
@@ -83,8 +566,13 @@ public class DocumentPersistenceManager implements PersistenceManager<URI, Docum
             throw new IllegalArgumentException("key cannot be null");
         }
 
-        String filePath = key.toString().replaceFirst("^https?://", "") + ".json";
-        File file = new File(baseDir, filePath);
+        cleanCopies.remove(key);
+        File file = fileFor(key);
+        File raw = rawFileFor(file);
+        if (file.exists() || raw.exists()) {
+            changed();
+        }
+        raw.delete();
         if (!file.exists()) {
             return false;
         } else {
@@ -97,6 +585,277 @@ public class DocumentPersistenceManager implements PersistenceManager<URI, Docum
         }
     }
 
+    /**
+     * the generation of the documents under the base directory. Once snapshotGeneration has handed one out it is kept
+     * in a file beside them, and changes, before they do, the first time any of them is written or removed after it was
+     * handed out, whether by this manager or one on the same directory after a restart. Until then there is no file,
+     * and the generation is one no snapshot was stamped with
+     */
+    public synchronized long getGeneration() throws IOException {
+        if (!generationRead) {
+            File file = new File(baseDir, GENERATION_NAME);
+            if (file.exists()) {
+                try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+                    generation = in.readLong();
+                } catch (IOException e) {
+                    //damaged: a new generation, unlike any an index could have been stamped with
+                    generation = ThreadLocalRandom.current().nextLong();
+                    writeGeneration();
+                }
+                generationKept = true;
+            } else {
+                generation = ThreadLocalRandom.current().nextLong();
+            }
+            generationRead = true;
+        }
+        return generation;
+    }
+
+    /**
+     * the generation, for stamping something built from the documents as they are now, e.g. an index of their words.
+     * The next write or removal of a document moves to a new generation, so a later getGeneration that still returns
+     * it means none has changed since
+     */
+    public synchronized long snapshotGeneration() throws IOException {
+        long current = getGeneration();
+        if (!generationKept) {
+            writeGeneration();
+            generationKept = true;
+        }
+        generationStamped = true;
+        return current;
+    }
+
+    //called before a document's files change. Only a kept generation moves on, and only once for all the changes
+    //between one stamp and the next
+    private synchronized void changed() throws IOException {
+        getGeneration();
+        if (generationKept && generationStamped) {
+            generation++;
+            writeGeneration();
+            generationStamped = false;
+        }
+    }
+
+    private void writeGeneration() throws IOException {
+        baseDir.mkdirs();
+        replace(new File(baseDir, GENERATION_NAME), temp -> {
+            try (FileOutputStream fileOut = new FileOutputStream(temp)) {
+                DataOutputStream out = new DataOutputStream(fileOut);
+                out.writeLong(generation);
+                out.flush();
+                if (syncWrites) {
+                    fileOut.getFD().sync();
+                }
+            }
+        });
+    }
+
+    /**
+     * a stream over the binary data of a document on disk. The document stays on disk, and data in a .raw file is
+     * streamed from it rather than read onto the heap
+     * @return the stream, which the caller closes, or null if no binary document is on disk at the key
+     */
+    public InputStream openBinaryData(URI key) throws IOException {
+        if (key == null) {
+            throw new IllegalArgumentException("key cannot be null");
+        }
+        File file = fileFor(key);
+        File raw = rawFileFor(file);
+        if (raw.exists() && file.exists()) {
+            return Channels.newInputStream(FileChannel.open(raw.toPath(), StandardOpenOption.READ));
+        }
+        byte[] binaryData = inlineBinaryData(file);
+        return binaryData == null ? null : new ByteArrayInputStream(binaryData);
+    }
+
+    /**
+     * write the binary data of a document on disk to the channel. The document stays on disk; data in a .raw file
+     * goes with FileChannel.transferTo, which can move it without copying it through the heap
+     * @return the number of bytes written, or -1 if no binary document is on disk at the key
+     */
+    public long transferBinaryData(URI key, WritableByteChannel target) throws IOException {
+        if (key == null || target == null) {
+            throw new IllegalArgumentException("key or target cannot be null");
+        }
+        File file = fileFor(key);
+        File raw = rawFileFor(file);
+        if (raw.exists() && file.exists()) {
+            try (FileChannel channel = FileChannel.open(raw.toPath(), StandardOpenOption.READ)) {
+                long size = channel.size();
+                long position = 0;
+                while (position < size) {
+                    position += channel.transferTo(position, size - position, target);
+                }
+                return size;
+            }
+        }
+        byte[] binaryData = inlineBinaryData(file);
+        if (binaryData == null) {
+            return -1;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(binaryData);
+        while (buffer.hasRemaining()) {
+            target.write(buffer);
+        }
+        return binaryData.length;
+    }
+
+    /**
+     * what scan reads from a document's record: what the store indexes it by, without its text or binary data
+     */
+    public static final class ScannedDocument {
+        private final URI key;
+        private final Set<String> words;
+        private final Map<String, String> metadata;
+
+        private ScannedDocument(Document document) {
+            this.key = document.getKey();
+            this.words = document.getWords();
+            this.metadata = document.getMetadata();
+        }
+
+        public URI getKey() {
+            return this.key;
+        }
+
+        public Set<String> getWords() {
+            return this.words;
+        }
+
+        public Map<String, String> getMetadata() {
+            return this.metadata;
+        }
+    }
+
+    /**
+     * read the record of every document under the base directory, in parallel on the common fork-join pool, handing
+     * each to the visitor as soon as it is read. Only its uri, words and metadata are handed over, so the documents are
+     * never all in memory at once. Nothing is taken off disk, and data in a .raw file isn't read. Files that aren't
+     * records in this manager's codec and layout are skipped
+     * @param visitor called once per document, in no particular order, from several threads at once
+     */
+    public void scan(Consumer<? super ScannedDocument> visitor) {
+        this.scan(Collector.<ScannedDocument, Consumer<? super ScannedDocument>>of(() -> visitor, Consumer::accept, (a, b) -> a));
+    }
+
+    /**
+     * scan(Consumer), collecting what is read instead of handing it to one visitor. Each task reading part of the base
+     * directory accumulates into its own container, and the containers are combined as the tasks finish, so the
+     * collector needs no locks of its own
+     * @return the collector's result, from an empty container if there are no records
+     */
+    public <A, R> R scan(Collector<? super ScannedDocument, A, R> collector) {
+        File[] files = baseDir.listFiles();
+        A container = files == null
+                ? collector.supplier().get()
+                : ForkJoinPool.commonPool().invoke(new ScanTask<>(files, 0, files.length, collector));
+        return collector.finisher().apply(container);
+    }
+
+    //reads the records among files[from, to), splitting big directories in half and forking one task per subdirectory
+    private final class ScanTask<A> extends RecursiveTask<A> {
+        private static final long serialVersionUID = 1L;
+        private final File[] files;
+        private final int from;
+        private final int to;
+        private final transient Collector<? super ScannedDocument, A, ?> collector;
+
+        private ScanTask(File[] files, int from, int to, Collector<? super ScannedDocument, A, ?> collector) {
+            this.files = files;
+            this.from = from;
+            this.to = to;
+            this.collector = collector;
+        }
+
+        @Override
+        protected A compute() {
+            if (to - from > SCAN_CHUNK) {
+                int middle = (from + to) >>> 1;
+                ScanTask<A> left = new ScanTask<>(files, from, middle, collector);
+                left.fork();
+                A right = new ScanTask<>(files, middle, to, collector).compute();
+                return collector.combiner().apply(left.join(), right);
+            }
+            A container = collector.supplier().get();
+            List<ScanTask<A>> directories = new ArrayList<>();
+            for (int i = from; i < to; i++) {
+                File file = files[i];
+                if (file.isDirectory()) {
+                    File[] children = file.listFiles();
+                    if (children != null && children.length > 0) {
+                        ScanTask<A> task = new ScanTask<>(children, 0, children.length, collector);
+                        task.fork();
+                        directories.add(task);
+                    }
+                } else if (file.getName().endsWith(codec.extension())) {
+                    Document document = scan(file);
+                    if (document != null) {
+                        collector.accumulator().accept(container, new ScannedDocument(document));
+                    }
+                }
+            }
+            for (ScanTask<A> task : directories) {
+                container = collector.combiner().apply(container, task.join());
+            }
+            return container;
+        }
+    }
+
+    //the document in the record, or null if the file isn't the record of the document it holds
+    private Document scan(File file) {
+        try {
+            Document document = read(file);
+            if (document == null || document.getKey() == null || !fileFor(document.getKey()).equals(file)) {
+                return null;
+            }
+            return document;
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    private interface FileWriter {
+        void write(File file) throws IOException;
+    }
+
+    //write a new file in place of file. The old one is replaced, not written over, since a MappedDocument may still be
+    //reading it
+    private static void replace(File file, FileWriter writer) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        try {
+            writer.write(temp);
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            temp.delete();
+        }
+    }
+
+    //the binary data of a document on disk whose data is in its record, or null if there is no binary document
+    private byte[] inlineBinaryData(File file) throws IOException {
+        if (!file.exists()) {
+            return null;
+        }
+        return read(file).getDocumentBinaryData();
+    }
+
+    private Document read(File file) throws IOException {
+        try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+            return codec.read(in);
+        }
+    }
+
+    // Convert URI to a file path
+    private File fileFor(URI key) {
+        return new File(baseDir, layout.pathFor(key) + codec.extension());
+    }
+
+    //the .raw file beside a document's record
+    private File rawFileFor(File file) {
+        String path = file.getPath();
+        return new File(path.substring(0, path.length() - codec.extension().length()) + ".raw");
+    }
+
 
 
-}
\ No newline at end of file
+}
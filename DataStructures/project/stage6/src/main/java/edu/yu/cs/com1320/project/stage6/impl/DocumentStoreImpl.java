@@ -7,24 +7,54 @@ import edu.yu.cs.com1320.project.Stack;
 import edu.yu.cs.com1320.project.Trie;
 import edu.yu.cs.com1320.project.impl.BTreeImpl;
 import edu.yu.cs.com1320.project.impl.MinHeapImpl;
+import edu.yu.cs.com1320.project.impl.PagedBTreeImpl;
 import edu.yu.cs.com1320.project.impl.StackImpl;
 import edu.yu.cs.com1320.project.impl.TrieImpl;
 import edu.yu.cs.com1320.project.stage6.Document;
 import edu.yu.cs.com1320.project.stage6.DocumentStore;
+import edu.yu.cs.com1320.project.stage6.PersistenceManager;
 import edu.yu.cs.com1320.project.undo.CommandSet;
 import edu.yu.cs.com1320.project.undo.GenericCommand;
 import edu.yu.cs.com1320.project.undo.Undoable;
 
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.io.UncheckedIOException;
 import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
 import java.util.*;
 import java.util.function.Consumer;
+import java.util.stream.Collector;
 
 
-public class DocumentStoreImpl implements DocumentStore {
+public class DocumentStoreImpl implements DocumentStore, Closeable {
+    //entries per btree node - wide nodes keep the tree shallow for large stores.
+    //uris are kept as binary keys: they share long scheme/host/path prefixes, which each node stores only once
+    private static final int BTREE_ORDER = 128;
+    //name of the write-ahead log in the base directory
+    private static final String LOG_NAME = "documentstore.wal";
+    //a logged store checkpoints before the log grows past this, or this long after the last checkpoint
+    private static final long CHECKPOINT_BYTES = 64L * 1024 * 1024;
+    private static final long CHECKPOINT_MILLIS = 60_000;
+    //at most this much of a binary put is read onto the heap to tell whether it is long enough to map
+    private static final int MAP_PROBE_BYTES = 64 * 1024;
+
     private final BTree<URI, Document> documentStore;
+    private PersistenceManager<URI, Document> persistenceManager;
+    //null unless the store was created with a base directory
+    private WriteAheadLog log;
+    //documents changed since the last checkpoint, whose files may not have the change yet
+    private final Set<URI> unsaved = new HashSet<>();
+    private long checkpointBytes = CHECKPOINT_BYTES;
+    private long checkpointNanos = CHECKPOINT_MILLIS * 1_000_000;
+    private long lastCheckpoint;
+    //a persistence manager the store created, and so closes
+    private Closeable ownedPersistenceManager;
     private final Stack<Undoable> commandStack;
 
     private final Trie<URI> documentTrie;
@@ -40,6 +70,42 @@ public class DocumentStoreImpl implements DocumentStore {
     private int CurrentDocumentBytes;
     private Set<URI> currentUris;
     private Map<URI, Map<String,String>> metaTracking;
+    //what enforceLimits has done, for getEvictionStats
+    private long evictionBatches;
+    private long documentsEvicted;
+    private long documentsWritten;
+    private long evictionNanos;
+    //reads back the body of a document enforceLimits moved to disk. A document counted as in memory keeps it
+    private final DocumentImpl.BodyLoader bodyLoader = new DocumentImpl.BodyLoader() {
+        @Override
+        public boolean keepBody(URI uri) {
+            return currentUris.contains(uri);
+        }
+
+        @Override
+        public void load(URI uri) {
+            //through the btree, so its entry is in memory again
+            documentStore.prefetch(List.of(uri));
+        }
+
+        @Override
+        public Document peek(URI uri) throws IOException {
+            //a body that isn't kept has to stay on disk
+            return persistenceManager.peek(uri);
+        }
+    };
+    //a document moved to disk stays in the btree without its body, so its words, counts and metadata never need the disk
+    private final BTree.StandIns<Document> standIns = new BTree.StandIns<>() {
+        @Override
+        public Document standIn(Document document) {
+            return document instanceof DocumentImpl ? ((DocumentImpl) document).standIn(bodyLoader) : null;
+        }
+
+        @Override
+        public Document restore(Document standIn, Document document) {
+            return ((DocumentImpl) standIn).restoreBody(document);
+        }
+    };
 
     private class minHeapNode implements Comparable<minHeapNode> {
         private URI uri;
@@ -69,7 +135,7 @@ public class DocumentStoreImpl implements DocumentStore {
 
         public boolean equals(Object other) {
             if (other != null) {
-                if (this.uri == ((minHeapNode) other).getUri()) {
+                if (this.uri.equals(((minHeapNode) other).getUri())) {
 
                     return true;
 
@@ -79,22 +145,93 @@ public class DocumentStoreImpl implements DocumentStore {
             return false;
 
         }
+
+        @Override
+        public int hashCode() {
+            return this.uri.hashCode();
+        }
     }
     public DocumentStoreImpl(){
-        this.documentStore = new BTreeImpl<>();
-        this.commandStack = new StackImpl<>();
-        this.documentTrie = new TrieImpl<>();
-        this.MaxDocumentCount = Integer.MAX_VALUE;
-        this.MaxDocumentBytes = Integer.MAX_VALUE;
-        this.documentMinHeap = new MinHeapImpl<>();
-        this.CurrentDocumentCount = 0;
-        this.CurrentDocumentBytes = 0;
-        this.currentUris = new HashSet<>();
-        this.metaTracking = new HashMap<>();
-        documentStore.setPersistenceManager(new DocumentPersistenceManager(null));
+        this(null);
     }
+    /**
+     * @param baseDir directory documents are moved to when over the limits, or null for the working directory. Nothing
+     *                is logged; see DocumentStoreImpl(File, WriteAheadLog.SyncPolicy) for a store that survives a restart
+     */
     public DocumentStoreImpl(File baseDir){
-        this.documentStore = new BTreeImpl<>();
+        this(new DocumentPersistenceManager(baseDir), new BTreeImpl<>(BTREE_ORDER, URI::create));
+    }
+
+    /**
+     * keep binary documents at least mapThreshold bytes long in files mapped into memory instead of on the heap, see
+     * DocumentPersistenceManager.setMapThreshold. They are put as MappedDocuments, read straight from the stream to disk,
+     * and only their uri and metadata count against the byte limit. Nothing is logged
+     * @param baseDir directory documents are moved to when over the limits and mapped from, or null for the working directory
+     * @param mapThreshold the smallest binary data to map
+     * @throws IllegalArgumentException if mapThreshold isn't positive
+     */
+    public DocumentStoreImpl(File baseDir, int mapThreshold){
+        this(mappingPersistenceManager(baseDir, mapThreshold), new BTreeImpl<>(BTREE_ORDER, URI::create));
+    }
+
+    //data long enough to map has to be in a .raw file of its own, which is what is mapped
+    private static DocumentPersistenceManager mappingPersistenceManager(File baseDir, int mapThreshold) {
+        if (mapThreshold < 1) {
+            throw new IllegalArgumentException("map threshold must be positive");
+        }
+        DocumentPersistenceManager pm = new DocumentPersistenceManager(baseDir, new JsonDocumentCodec(),
+                Math.min(mapThreshold, DocumentPersistenceManager.DEFAULT_RAW_THRESHOLD));
+        pm.setMapThreshold(mapThreshold);
+        return pm;
+    }
+
+    /**
+     * log every change to the base directory and recover what was logged there before.
+     * The documents' files in the directory are the store; the log only holds the changes made since they were last
+     * written, at the last checkpoint. Recovery reads the files like restoreFromDisk, leaving the documents on disk, and
+     * replays the log over them one record at a time, within the limits. Close the store to checkpoint and close the log
+     * @param baseDir directory documents are moved to when over the limits, and for the log
+     * @param syncPolicy how often the log is forced to disk: NONE survives the process dying, ALWAYS and BATCHED the
+     *                   machine going down too. ALWAYS syncs on every change; under BATCHED, changes made at the same
+     *                   time on different threads share a sync.
+     *                   Documents written to the directory are forced to disk too, unless it is NONE
+     */
+    public DocumentStoreImpl(File baseDir, WriteAheadLog.SyncPolicy syncPolicy) throws IOException{
+        this(new DocumentPersistenceManager(baseDir), new BTreeImpl<>(BTREE_ORDER, URI::create));
+        if (baseDir == null || syncPolicy == null) {
+            throw new IllegalArgumentException("base directory and sync policy cannot be null");
+        }
+        openLog(baseDir, syncPolicy);
+    }
+
+    /**
+     * move documents to disk in the background, so a put that goes over the limits doesn't wait for them to be written.
+     * Documents waiting to be written are still read back from memory. Call flush before exiting to make sure they're stored
+     * @param baseDir directory documents are moved to when over the limits, or null for the working directory
+     * @param writerThreads number of threads writing documents to disk
+     * @param queueCapacity number of documents that can wait to be written before a put has to wait too
+     */
+    public DocumentStoreImpl(File baseDir, int writerThreads, int queueCapacity){
+        this(new WriteBehindPersistenceManager<>(new DocumentPersistenceManager(baseDir), writerThreads, queueCapacity),
+                new BTreeImpl<>(BTREE_ORDER, URI::create));
+    }
+
+    /**
+     * keep the uri index in pages of a file instead of on the heap, so the number of documents isn't limited by memory.
+     * A document moved to disk leaves nothing in memory, and is read back whole when it is asked for.
+     * The index file is scratch space: it can't be reopened, and close deletes it. A store restarted on the same
+     * directory rebuilds its index with restoreFromDisk
+     * @param baseDir directory documents are moved to when over the limits, or null for the working directory
+     * @param indexFile file for the index's pages. Anything already in it is discarded
+     */
+    public DocumentStoreImpl(File baseDir, File indexFile) throws IOException{
+        this(new DocumentPersistenceManager(baseDir), new PagedBTreeImpl<>(indexFile, URI::create));
+    }
+
+    private DocumentStoreImpl(PersistenceManager<URI, Document> pm, BTree<URI, Document> index){
+        this.persistenceManager = pm;
+        this.ownedPersistenceManager = (Closeable) pm;
+        this.documentStore = index;
         this.commandStack = new StackImpl<>();
         this.documentTrie = new TrieImpl<>();
         this.MaxDocumentCount = Integer.MAX_VALUE;
@@ -104,7 +241,481 @@ public class DocumentStoreImpl implements DocumentStore {
         this.CurrentDocumentBytes = 0;
         this.currentUris = new HashSet<>();
         this.metaTracking = new HashMap<>();
-        documentStore.setPersistenceManager(new DocumentPersistenceManager(baseDir));
+        documentStore.setPersistenceManager(pm);
+        if (index instanceof BTreeImpl) {
+            //the paged index keeps nothing in memory for a document on disk, so it is read back whole
+            documentStore.setStandIns(standIns);
+        }
+    }
+
+    /**
+     * move documents to disk through the given persistence manager instead, e.g. a SegmentPersistenceManager
+     * @param pm where documents over the limits are written from now on. The one the store created is closed
+     * @throws IllegalArgumentException if pm is null
+     * @throws IllegalStateException if the store already holds documents, since some may be with the old persistence manager,
+     * or has a log, which recovers from the documents' files in its directory
+     */
+    public void setPersistenceManager(PersistenceManager<URI, Document> pm){
+        if (pm == null) {
+            throw new IllegalArgumentException("persistence manager cannot be null");
+        }
+        if (log != null) {
+            throw new IllegalStateException("a store with a log keeps its documents in its base directory");
+        }
+        if (documentStore.cursor(null).next()) {
+            throw new IllegalStateException("persistence manager can only be set while the store is empty");
+        }
+        try {
+            if (ownedPersistenceManager != null) {
+                ownedPersistenceManager.close();
+                ownedPersistenceManager = null;
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        this.persistenceManager = pm;
+        documentStore.setPersistenceManager(pm);
+    }
+
+    /**
+     * start from the documents a DocumentPersistenceManager already has under its directory, e.g. after a restart. Their
+     * records are read in parallel, and their words and metadata go into the trie and metadata index as each is read; the
+     * documents themselves stay on disk, as on-disk entries of the btree, and are read back the first time they are used.
+     * A store with a log recovers this way when it is created, if its log has anything in it. One created on a directory
+     * without a log, or with an empty one, starts empty and can restore the documents there with this; the log then
+     * records that it did, so the next store on the directory recovers them when it is created
+     * @return how many documents were restored and how long it took
+     * @throws IllegalStateException if the store isn't empty or doesn't move documents to a DocumentPersistenceManager
+     */
+    public RestoreStats restoreFromDisk(){
+        try {
+            return restoreFromDisk(null);
+        } catch (IOException e) {
+            //nothing is read or written but the documents, and scan skips those it can't read
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * restoreFromDisk, loading the trie from a snapshot written by saveIndex instead of rebuilding it from every
+     * document's words. A stale snapshot - the documents changed since it was saved - is ignored, and written again
+     * from the rebuilt trie for next time. Whether it is stale is known before anything is read, so a current one
+     * saves the scan from reading any words
+     * @param indexSnapshot the snapshot file, or null to always rebuild
+     */
+    public RestoreStats restoreFromDisk(File indexSnapshot) throws IOException{
+        if (!(persistenceManager instanceof DocumentPersistenceManager)) {
+            throw new IllegalStateException("only documents in a DocumentPersistenceManager can be restored");
+        }
+        if (documentStore.cursor(null).next()) {
+            throw new IllegalStateException("documents can only be restored while the store is empty");
+        }
+        RestoreStats stats = restore(indexSnapshot);
+        logLimits();
+        return stats;
+    }
+
+    //a document's text is never kept: the scan hands over its uri, metadata and words, and the uris are sorted for the btree
+    private RestoreStats restore(File indexSnapshot) throws IOException{
+        DocumentPersistenceManager pm = (DocumentPersistenceManager) persistenceManager;
+        long start = getNanoTime();
+        //a snapshot saved at the documents' generation already holds their words, so the scan doesn't index them
+        Set<URI> named = new HashSet<>();
+        boolean indexLoaded = indexSnapshot != null
+                && ((TrieImpl<URI>) documentTrie).load(indexSnapshot, name -> {
+                    URI uri = URI.create(name);
+                    named.add(uri);
+                    return uri;
+                }, pm.getGeneration());
+        long loaded = getNanoTime();
+        //each scan task collects what it reads on its own, and only the merged result touches the store
+        Scanned scan = pm.scan(Collector.of(() -> new Scanned(!indexLoaded), Scanned::add, Scanned::addAll));
+        List<URI> uris = scan.uris;
+        metaTracking.putAll(scan.metadata);
+        for (Map.Entry<String, List<URI>> word : scan.words.entrySet()) {
+            for (URI url : word.getValue()) {
+                documentTrie.put(word.getKey(), url);
+            }
+        }
+        long scanned = getNanoTime();
+        Set<URI> restored = new HashSet<>(uris);
+        if (indexLoaded && !restored.containsAll(named)) {
+            //a document the snapshot names that isn't on disk, e.g. one whose file was removed, isn't searched for
+            ((TrieImpl<URI>) documentTrie).retainValues(restored::contains);
+        }
+        uris.sort(documentStore.comparator());
+        documentStore.bulkLoadOnDisk(uris.iterator());
+        if (indexSnapshot != null && !indexLoaded) {
+            saveIndex(indexSnapshot);
+        }
+        return new RestoreStats(uris.size(), indexLoaded, scanned - loaded, loaded - start + getNanoTime() - scanned);
+    }
+
+    //what one scan task of restore() read: the uris, the metadata that isn't empty, and the documents of each word
+    private static final class Scanned {
+        private final List<URI> uris = new ArrayList<>();
+        private final Map<URI, Map<String,String>> metadata = new HashMap<>();
+        private final Map<String, List<URI>> words = new HashMap<>();
+        private final boolean indexWords;
+
+        private Scanned(boolean indexWords) {
+            this.indexWords = indexWords;
+        }
+
+        private void add(DocumentPersistenceManager.ScannedDocument document) {
+            URI url = document.getKey();
+            this.uris.add(url);
+            if (!document.getMetadata().isEmpty()) {
+                this.metadata.put(url, document.getMetadata());
+            }
+            if (this.indexWords) {
+                for (String word : document.getWords()) {
+                    this.words.computeIfAbsent(word, w -> new ArrayList<>()).add(url);
+                }
+            }
+        }
+
+        private Scanned addAll(Scanned other) {
+            this.uris.addAll(other.uris);
+            this.metadata.putAll(other.metadata);
+            for (Map.Entry<String, List<URI>> word : other.words.entrySet()) {
+                this.words.merge(word.getKey(), word.getValue(), (mine, theirs) -> {
+                    mine.addAll(theirs);
+                    return mine;
+                });
+            }
+            return this;
+        }
+    }
+
+    /**
+     * write the trie to a snapshot file, for restoreFromDisk(File) to load after a restart instead of rebuilding it.
+     * Every document in memory is written to disk first - a store with a log checkpoints - and stays in memory, so
+     * the snapshot names only documents a restart finds. It is stamped with the generation of the documents in the
+     * DocumentPersistenceManager, so any change to them after it is saved makes it stale
+     * @throws IllegalStateException if the store doesn't move documents to a DocumentPersistenceManager
+     */
+    public void saveIndex(File indexSnapshot) throws IOException{
+        if (indexSnapshot == null) {
+            throw new IllegalArgumentException("snapshot file cannot be null");
+        }
+        if (!(persistenceManager instanceof DocumentPersistenceManager)) {
+            throw new IllegalStateException("only the index of documents in a DocumentPersistenceManager can be saved");
+        }
+        if (log != null) {
+            checkpoint();
+        } else {
+            persistenceManager.serializeAll(toWrite(currentUris));
+        }
+        ((TrieImpl<URI>) documentTrie).save(indexSnapshot, ((DocumentPersistenceManager) persistenceManager).snapshotGeneration());
+    }
+
+    /**
+     * what restoreFromDisk did
+     */
+    public static final class RestoreStats {
+        private final int documents;
+        private final boolean indexLoaded;
+        private final long scanNanos;
+        private final long indexNanos;
+
+        private RestoreStats(int documents, boolean indexLoaded, long scanNanos, long indexNanos) {
+            this.documents = documents;
+            this.indexLoaded = indexLoaded;
+            this.scanNanos = scanNanos;
+            this.indexNanos = indexNanos;
+        }
+
+        public int getDocuments() {
+            return this.documents;
+        }
+
+        /**
+         * @return whether the trie was loaded from a snapshot rather than rebuilt
+         */
+        public boolean isIndexLoaded() {
+            return this.indexLoaded;
+        }
+
+        /**
+         * @return time spent finding and reading the records, and indexing what was read
+         */
+        public long getScanNanos() {
+            return this.scanNanos;
+        }
+
+        /**
+         * @return time spent loading the trie snapshot and the btree, and saving a snapshot that was missing or stale
+         */
+        public long getIndexNanos() {
+            return this.indexNanos;
+        }
+
+        public long getTotalNanos() {
+            return this.scanNanos + this.indexNanos;
+        }
+
+        @Override
+        public String toString() {
+            return "documents=" + this.documents + ", indexLoaded=" + this.indexLoaded + ", scanMillis=" + this.scanNanos / 1_000_000
+                    + ", indexMillis=" + this.indexNanos / 1_000_000 + ", totalMillis=" + getTotalNanos() / 1_000_000;
+        }
+    }
+
+    /**
+     * @return how many documents have been moved out of memory to stay under the limits, in how many batches, and how long
+     * writing them took
+     */
+    public EvictionStats getEvictionStats(){
+        return new EvictionStats(evictionBatches, documentsEvicted, documentsWritten, evictionNanos);
+    }
+
+    /**
+     * what enforcing the limits has done since the store was created. Every change that puts the store over its limits
+     * moves the documents it has to in one batch
+     */
+    public static final class EvictionStats {
+        private final long batches;
+        private final long documentsEvicted;
+        private final long documentsWritten;
+        private final long batchNanos;
+
+        private EvictionStats(long batches, long documentsEvicted, long documentsWritten, long batchNanos) {
+            this.batches = batches;
+            this.documentsEvicted = documentsEvicted;
+            this.documentsWritten = documentsWritten;
+            this.batchNanos = batchNanos;
+        }
+
+        public long getBatches() {
+            return this.batches;
+        }
+
+        /**
+         * @return documents moved out of memory, whether or not anything had to be written for them
+         */
+        public long getDocumentsEvicted() {
+            return this.documentsEvicted;
+        }
+
+        /**
+         * @return documents handed to the persistence manager to write as they were moved out. One whose body was never
+         * read back from disk, and whose metadata hasn't changed since, isn't
+         */
+        public long getDocumentsWritten() {
+            return this.documentsWritten;
+        }
+
+        /**
+         * @return time spent writing the batches, including any that failed
+         */
+        public long getBatchNanos() {
+            return this.batchNanos;
+        }
+
+        public long getAverageBatchNanos() {
+            return this.batches == 0 ? 0 : this.batchNanos / this.batches;
+        }
+
+        @Override
+        public String toString() {
+            return "batches=" + this.batches + ", documentsEvicted=" + this.documentsEvicted + ", documentsWritten="
+                    + this.documentsWritten + ", averageBatchMicros=" + getAverageBatchNanos() / 1000;
+        }
+    }
+
+    /**
+     * wait until every document moved to disk has been written, and force the log to disk.
+     * Only needed when writing in the background or logging without syncing every change
+     * @throws IOException if writing any of them failed
+     */
+    public void flush() throws IOException{
+        if (persistenceManager instanceof WriteBehindPersistenceManager) {
+            ((WriteBehindPersistenceManager<URI, Document>) persistenceManager).flush();
+        }
+        if (log != null) {
+            log.sync();
+        }
+    }
+
+    /**
+     * write every document in memory that changed since the last checkpoint to the base directory, then start the log
+     * over, so recovery only replays what changed after this. A document that was moved to disk was written then.
+     * This also happens whenever the log grows past a size or gets older than a time, see setCheckpointInterval
+     */
+    public void checkpoint() throws IOException{
+        if (log == null) {
+            return;
+        }
+        persistenceManager.serializeAll(toWrite(unsaved));
+        log.reset(MaxDocumentCount, MaxDocumentBytes);
+        unsaved.clear();
+        lastCheckpoint = getNanoTime();
+    }
+
+    //the documents among the uris that are in memory and not already in their files, to write them there
+    private List<Map.Entry<URI, Document>> toWrite(Collection<URI> uris) throws IOException{
+        List<Map.Entry<URI, Document>> toWrite = new ArrayList<>();
+        for (URI uri : uris) {
+            if (!currentUris.contains(uri)) {
+                continue;
+            }
+            Document document = documentStore.get(uri);
+            if (document instanceof DocumentImpl && !((DocumentImpl) document).isBodyLoaded()) {
+                //the file has the body; it needs writing again only if the metadata changed since
+                if (!((DocumentImpl) document).isMetadataChanged()) {
+                    continue;
+                }
+                ((DocumentImpl) document).loadBody();
+            }
+            //a document the file already holds, e.g. read back and unchanged, is skipped by the persistence manager
+            toWrite.add(new AbstractMap.SimpleImmutableEntry<>(uri, document));
+        }
+        return toWrite;
+    }
+
+    /**
+     * how often a store with a log checkpoints. Both are checked whenever a change is logged, so an idle store doesn't
+     * checkpoint until its next change; close checkpoints too
+     * @param bytes checkpoint once the log is this long
+     * @param millis checkpoint once this long has passed since the last one, so recovery never has more than about this
+     *               much to replay however slowly the log grows
+     */
+    public void setCheckpointInterval(long bytes, long millis){
+        if (bytes < 1 || millis < 0) {
+            throw new IllegalArgumentException();
+        }
+        this.checkpointBytes = bytes;
+        this.checkpointNanos = millis * 1_000_000;
+    }
+
+    /**
+     * checkpoint and close the log, wait for documents being written in the background, stop the threads documents are
+     * read back on, and close a paged index.
+     * A persistence manager passed to setPersistenceManager is left open. The store can't be used after
+     */
+    @Override
+    public void close() throws IOException{
+        try {
+            if (log != null) {
+                checkpoint();
+                log.close();
+            }
+        } finally {
+            try {
+                if (ownedPersistenceManager != null) {
+                    ownedPersistenceManager.close();
+                }
+            } finally {
+                if (documentStore instanceof Closeable) {
+                    ((Closeable) documentStore).close();
+                }
+            }
+        }
+    }
+
+    //rebuild the store from the documents in the directory and the changes logged since, then log every change from now on.
+    //an empty log is a directory no logged store has used: its documents, if any, are left for restoreFromDisk
+    private void openLog(File baseDir, WriteAheadLog.SyncPolicy syncPolicy) throws IOException{
+        DocumentPersistenceManager pm = (DocumentPersistenceManager) persistenceManager;
+        //a document read back keeps its file, and one that hasn't changed since isn't written again
+        pm.setKeepCleanCopies(true);
+        pm.setSyncWrites(syncPolicy != WriteAheadLog.SyncPolicy.NONE);
+        //the store checkpoints the log itself, writing the documents out
+        WriteAheadLog wal = new WriteAheadLog(new File(baseDir, LOG_NAME), syncPolicy);
+        if (wal.size() > 0) {
+            restore(null);
+            wal.replay(new WriteAheadLog.Replayer() {
+                @Override
+                public void document(Document document) {
+                    unsaved.add(document.getKey());
+                    putDocument(document.getKey(), document);
+                }
+
+                @Override
+                public void remove(URI uri) {
+                    delete(uri);
+                }
+
+                @Override
+                public void metadata(URI uri, String key, String value) throws IOException {
+                    if (documentStore.get(uri) != null) {
+                        unsaved.add(uri);
+                        setMetadata(uri, key, value);
+                    }
+                }
+
+                @Override
+                public void limits(int maxDocumentCount, int maxDocumentBytes) {
+                    MaxDocumentCount = maxDocumentCount;
+                    setMaxDocumentBytes(maxDocumentBytes);
+                }
+            });
+            //what was replayed can't be undone
+            while (commandStack.size() > 0) {
+                commandStack.pop();
+            }
+        }
+        this.log = wal;
+        this.lastCheckpoint = getNanoTime();
+    }
+
+    //the log's records are written before the change they describe, so a change that couldn't be logged isn't made
+    private void logDocument(Document document){
+        if (log == null) {
+            return;
+        }
+        try {
+            checkpointIfDue();
+            unsaved.add(document.getKey());
+            log.logDocument(document);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void logRemove(URI uri){
+        if (log == null) {
+            return;
+        }
+        try {
+            checkpointIfDue();
+            log.logRemove(uri);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void logMetadata(URI uri, String key, String value){
+        if (log == null) {
+            return;
+        }
+        try {
+            checkpointIfDue();
+            unsaved.add(uri);
+            log.logMetadata(uri, key, value);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void logLimits(){
+        if (log == null) {
+            return;
+        }
+        try {
+            checkpointIfDue();
+            log.logLimits(MaxDocumentCount, MaxDocumentBytes);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    //before the next change is logged, so the checkpoint sees the store as the last change left it
+    private void checkpointIfDue() throws IOException{
+        if (log.size() >= checkpointBytes || getNanoTime() - lastCheckpoint >= checkpointNanos) {
+            checkpoint();
+        }
     }
 
     /**
@@ -128,7 +739,6 @@ public class DocumentStoreImpl implements DocumentStore {
         if (document == null){
             throw new IllegalArgumentException("No document found");
         }
-        currentUris.add(uri);
 
         //get old metadata for undo
         String oldMetaData = document.getMetadataValue(key);
@@ -136,6 +746,7 @@ public class DocumentStoreImpl implements DocumentStore {
 
         //undo logic
         Consumer<URI> undoLogic = (url) -> {
+            logMetadata(uri, key, oldMetaData);
             String oldmetadata = document.setMetadataValue(key,oldMetaData);
             metaTracking.put(uri, oldmetamap );
             if (oldmetadata != null) {
@@ -156,7 +767,9 @@ public class DocumentStoreImpl implements DocumentStore {
         }
         documentMinHeap.reHeapify(new minHeapNode(document.getKey()));
         currentUris.add(document.getKey());
+        updateCounts();
         enforceLimits();
+        logMetadata(uri, key, value);
         String Return = document.setMetadataValue(key,value);
         metaTracking.put(uri, document.getMetadata());
         return Return;
@@ -182,8 +795,13 @@ public class DocumentStoreImpl implements DocumentStore {
         if (document == null) {
             throw new IllegalArgumentException("No document Found");
         }
-        currentUris.add(uri);
         document.setLastUseTime(System.nanoTime());
+        if (!currentUris.contains(uri)) {
+            //a document out of memory is counted again, as with get
+            documentMinHeap.insert(new minHeapNode(uri));
+            currentUris.add(uri);
+            updateCounts();
+        }
         documentMinHeap.reHeapify(new minHeapNode(document.getKey()));
         enforceLimits();
         return document.getMetadataValue(key);
@@ -207,9 +825,9 @@ public class DocumentStoreImpl implements DocumentStore {
             throw new IllegalArgumentException();
         }
 
-        Document previousdoc = documentStore.get(url);
         // null indicates delete
         if (input == null) {
+            Document previousdoc = documentStore.get(url);
             if (previousdoc == null) {
                 return 0;
             } else {
@@ -219,19 +837,52 @@ public class DocumentStoreImpl implements DocumentStore {
         }
         // normal case
 
-        //read data
-        byte[] data = input.readAllBytes();
-        input.close();
+        //read data - binary data as long as the map threshold goes from the stream to disk and is mapped from there.
+        //only the first MAP_PROBE_BYTES are read onto the heap first: data that is longer but turns out shorter than
+        //the threshold is copied back off the mapping, and the file is dropped
+        int mapThreshold = getMapThreshold();
+        boolean mappable = format == DocumentFormat.BINARY && mapThreshold > 0;
+        int probe = Math.min(mapThreshold, MAP_PROBE_BYTES);
+        byte[] data = mappable ? input.readNBytes(probe) : input.readAllBytes();
         //create a document object
         Document document = null;
+        boolean mapped = mappable && data.length == probe;
+        byte[][] unmapped = new byte[1][];
+        if (mapped) {
+            //the data goes beside the files of the doc at the url, and only replaces them if it fits
+            document = ((DocumentPersistenceManager) persistenceManager).map(url,
+                    new SequenceInputStream(new ByteArrayInputStream(data), input), doc -> {
+                        if (doc.length() < mapThreshold) {
+                            unmapped[0] = doc.getDocumentBinaryData();
+                            return false;
+                        }
+                        if (getDocumentBytes(doc) > this.MaxDocumentBytes) {
+                            return false;
+                        }
+                        //the .raw file of the doc being replaced is about to be replaced too
+                        Document previousdoc = documentStore.get(url);
+                        if (previousdoc != null) {
+                            loadBody(previousdoc);
+                        }
+                        return true;
+                    });
+        }
+        input.close();
+        if (unmapped[0] != null) {
+            data = unmapped[0];
+            mapped = false;
+        }
+        if (mapped && document == null) {
+            throw new IllegalArgumentException();
+        }
 
         //if the format is txt create a text document
         if (format == DocumentFormat.TXT) {
             String text = new String(data);
             //create the txt document
             document = new DocumentImpl(url, text, null);
-            //if the format is binary
-        } else if (format == DocumentFormat.BINARY) {
+            //if the format is binary and wasn't mapped
+        } else if (format == DocumentFormat.BINARY && document == null) {
             document = new DocumentImpl(url, data);
         }
 
@@ -241,58 +892,154 @@ public class DocumentStoreImpl implements DocumentStore {
         }
 
 
-        //put the new doc in the store
-        Document existingdoc = documentStore.put(url, document);
-        currentUris.add(url);
+        return putDocument(url, document);
+    }
+
+    //put a document that has been read and fits, in place of any at its uri
+    private int putDocument(URI url, Document document) {
+        Document existingdoc = replaceDocument(url, document);
+        updateCounts();
+        //push the undo logic before the limits, so the put can be undone even if moving other documents to disk fails
+        commandStack.push(getPutUndoLogic(url, existingdoc, document));
+        enforceLimits();
+        return existingdoc == null ? 0 : existingdoc.hashCode();
+    }
+
+    //swap the document in for any at its uri in the btree, trie and heap, leaving the counts, limits and undo to the
+    //caller. Returns the document it replaced, with its body loaded, or null
+    private Document replaceDocument(URI url, Document document) {
+        //put the new doc in the store - a single descent of the btree finds the old doc and replaces it.
+        //not putBlind: the old doc's words come out of the trie, its hash is returned and undo puts it back, so it is
+        //needed whole. A doc in memory or a stub costs no read here; only one the btree moved to disk is read back.
+        //a stub's body is loaded since the new doc's file replaces the one it is in
+        Document newdoc = document;
+        logDocument(newdoc);
+        Document existingdoc = documentStore.compute(url, (uri, previous) -> newdoc);
+        if (existingdoc != null) {
+            loadBody(existingdoc);
+        }
+        //an old doc out of memory isn't in the heap
+        boolean inHeap = !currentUris.add(url);
 
 
         //if there was an existing doc
         if (existingdoc != null) {
-            //remove from the heap
-            existingdoc.setLastUseTime(Long.MIN_VALUE);
-            documentMinHeap.reHeapify(new minHeapNode(existingdoc.getKey()));
-            documentMinHeap.remove();
-            //if it was a txt doc remove it from the trie
-            if (existingdoc.getDocumentBinaryData() != null) {
-                Set<String> oldwords = existingdoc.getWords();
-                for (String word : oldwords) {
-                    documentTrie.delete(word, existingdoc.getKey());
-                }
+            //remove from the heap - the node already finds the new doc in the btree, so that is the one to push to the top
+            if (inHeap) {
+                newdoc.setLastUseTime(Long.MIN_VALUE);
+                documentMinHeap.reHeapify(new minHeapNode(url));
+                documentMinHeap.remove();
+            }
+            newdoc.setLastUseTime(getNanoTime());
+            //if it was a txt doc remove it from the trie - a binary doc has no words
+            Set<String> oldwords = existingdoc.getWords();
+            for (String word : oldwords) {
+                documentTrie.delete(word, existingdoc.getKey());
             }
         }
 
-        // if the new doc is a txt doc put it into the trie
-        if (format == DocumentFormat.TXT ) {
-            Set<String> words = document.getWords();
-            for (String word : words) {
-                documentTrie.put(word, document.getKey());
-            }
+        // put the new doc's words into the trie - a binary doc has none
+        Set<String> words = document.getWords();
+        for (String word : words) {
+            documentTrie.put(word, document.getKey());
         }
 
         //put document into heap
         documentMinHeap.insert(new minHeapNode(url));
+        return existingdoc;
+    }
 
-        //update counts;
-        updateCounts();
 
-        //enforce limit
-        enforceLimits();
 
 
-        //get and push undo logic onto stack
-        GenericCommand<URI> undo = getPutUndoLogic(url, existingdoc, document);
-        commandStack.push(undo);
 
-        if (existingdoc != null) {
-            return existingdoc.hashCode();
-        } else {
+    /**
+     * put a batch of documents that all have the same format.
+     * Every document is read and checked against the byte limit before any is put, so a batch that fails there changes
+     * nothing. When the store is empty, the documents are loaded into the btree in a single bottom-up pass. Otherwise
+     * the bulk load can't merge them into the existing nodes, so each goes in with its own descent of the btree - in
+     * the index's order, so consecutive descents pass through the same nodes - but the counts and limits are still
+     * updated once for the whole batch. Binary documents are never mapped, whatever the map threshold.
+     * Undo treats the whole batch as one command set.
+     * @param inputs the documents being put, keyed by their unique identifiers
+     * @param format indicates which type of document format is being passed
+     * @return the number of documents put
+     * @throws IOException              if there is an issue reading input
+     * @throws IllegalArgumentException if inputs, a url, an input or format are null, or a document can't fit
+     */
+    public int putAll(Map<URI, InputStream> inputs, DocumentFormat format) throws IOException {
+        if (inputs == null || format == null || this.MaxDocumentCount < 1) {
+            throw new IllegalArgumentException();
+        }
+        if (inputs.isEmpty()) {
             return 0;
         }
-    }
 
+        //read and create every document first, sorted in the index's order
+        TreeMap<URI, Document> documents = new TreeMap<>(documentStore.comparator());
+        for (Map.Entry<URI, InputStream> input : inputs.entrySet()) {
+            URI url = input.getKey();
+            if (url == null || url.toString().isEmpty() || input.getValue() == null) {
+                throw new IllegalArgumentException();
+            }
+            byte[] data = input.getValue().readAllBytes();
+            input.getValue().close();
+            Document document;
+            if (format == DocumentFormat.TXT) {
+                document = new DocumentImpl(url, new String(data), null);
+            } else {
+                document = new DocumentImpl(url, data);
+            }
+            //make sure doc can fit
+            if (getDocumentBytes(document) > this.MaxDocumentBytes) {
+                throw new IllegalArgumentException();
+            }
+            documents.put(url, document);
+        }
+        CommandSet<URI> puts = new CommandSet<>();
+
+        //the tree already has keys, so the documents replace or join them one at a time
+        if (documentStore.cursor(null).next()) {
+            try {
+                for (Document document : documents.values()) {
+                    URI url = document.getKey();
+                    Document existingdoc = replaceDocument(url, document);
+                    puts.addCommand(getPutUndoLogic(url, existingdoc, document));
+                }
+            } finally {
+                //whatever was put before a failure can still be undone
+                updateCounts();
+                if (!puts.isEmpty()) {
+                    commandStack.push(puts);
+                }
+            }
+            enforceLimits();
+            return documents.size();
+        }
 
+        for (Document document : documents.values()) {
+            logDocument(document);
+        }
+        documentStore.bulkLoad(documents.entrySet().iterator());
 
+        //index every document and put it into the heap
+        for (Document document : documents.values()) {
+            URI url = document.getKey();
+            for (String word : document.getWords()) {
+                documentTrie.put(word, url);
+            }
+            document.setLastUseTime(getNanoTime());
+            documentMinHeap.insert(new minHeapNode(url));
+            currentUris.add(url);
+            puts.addCommand(getPutUndoLogic(url, null, document));
+        }
 
+        //update counts and enforce limits once for the whole batch
+        updateCounts();
+        commandStack.push(puts);
+        enforceLimits();
+        return documents.size();
+    }
 
     /**
      * @param url the unique identifier of the document to get
@@ -331,12 +1078,15 @@ public class DocumentStoreImpl implements DocumentStore {
         if (existingDoc == null){
             return false;
         }
+        loadBody(existingDoc);
+        logRemove(url);
 
         //undo logic to add the old doc back into the hashtable and trie if it has words(is a txt doc) and heap
         Consumer<URI> undoLogic = (uri) -> {
 
 if(getMaxDocuments() > 0 && !(getDocumentBytes(existingDoc) > getMaxBytes())) {
-    documentStore.put(url, existingDoc);
+    logDocument(existingDoc);
+    documentStore.putBlind(url, existingDoc);
     currentUris.add(url);
     existingDoc.setLastUseTime(getNanoTime());
     documentMinHeap.insert(new minHeapNode(existingDoc.getKey()));
@@ -369,7 +1119,7 @@ if(getMaxDocuments() > 0 && !(getDocumentBytes(existingDoc) > getMaxBytes())) {
         documentMinHeap.reHeapify(new minHeapNode(url));
         documentMinHeap.remove();
         currentUris.remove(url);
-        boolean b = documentStore.put(url, null) != null;
+        boolean b = documentStore.delete(url) != null;
         updateCounts();
 
         //should not be null bec there was an existing doc but its another check
@@ -476,6 +1226,8 @@ if(getMaxDocuments() > 0 && !(getDocumentBytes(existingDoc) > getMaxBytes())) {
             return Integer.compare(count2, count1);
         };
 
+        //ranking needs every hit, so read those on disk back together first
+        documentStore.prefetch(documentTrie.get(keyword));
         List<URI> docList = documentTrie.getSorted(keyword, descendingByKeyWordCount );
         List<Document> docstoreturn = new ArrayList<>();
         for(URI uri:docList){
@@ -514,7 +1266,10 @@ if(getMaxDocuments() > 0 && !(getDocumentBytes(existingDoc) > getMaxBytes())) {
             return Integer.compare(count2, count1);
         };
 
-        List<URI> docList = documentTrie.getAllWithPrefixSorted(keywordPrefix, descendingByPrefixCount );
+        //ranking needs every hit, so read those on disk back together first
+        List<URI> docList = documentTrie.getAllWithPrefixSorted(keywordPrefix, null);
+        documentStore.prefetch(docList);
+        docList.sort(descendingByPrefixCount);
         List<Document> docstoreturn = new ArrayList<>();
         for(URI uri :docList){
             docstoreturn.add(documentStore.get(uri));
@@ -613,6 +1368,7 @@ if(getMaxDocuments() > 0 && !(getDocumentBytes(existingDoc) > getMaxBytes())) {
         if (keysValues.isEmpty()) {
             return list;
         }
+        documentStore.prefetch(searchForMetadataUris(keysValues));
         Set<String> keyset = keysValues.keySet();
         Collection<URI> uriSet = metaTracking.keySet();
 
@@ -674,6 +1430,7 @@ if(getMaxDocuments() > 0 && !(getDocumentBytes(existingDoc) > getMaxBytes())) {
         Set<URI> worddocs = documentTrie.get(keyword);
         List<URI> matches = new ArrayList<>(metadocs);
         matches.retainAll(worddocs);
+        documentStore.prefetch(matches);
         List<Document> matchingDocs= new ArrayList<>();
         for(URI uri: matches){
             matchingDocs.add(documentStore.get(uri));
@@ -739,6 +1496,7 @@ if(getMaxDocuments() > 0 && !(getDocumentBytes(existingDoc) > getMaxBytes())) {
         List<URI> prefixdocs = documentTrie.getAllWithPrefixSorted(keywordPrefix,null);
         List<URI> matchingUris = new ArrayList<>(metadocs);
         matchingUris.retainAll(prefixdocs);
+        documentStore.prefetch(matchingUris);
         Comparator<Document> descendingByPrefixCount = (o1, o2) -> {
             int count1 = countPrefix(o1, keywordPrefix);
             int count2 = countPrefix(o2, keywordPrefix);
@@ -853,6 +1611,106 @@ if(getMaxDocuments() > 0 && !(getDocumentBytes(existingDoc) > getMaxBytes())) {
 
 
 
+    //**********URI RANGE ADDITIONS
+
+    /**
+     * Retrieve all documents whose URI starts with the given prefix, e.g. every document under http://host/path/
+     * Documents are returned in ascending order of their URIs.
+     * @param uriPrefix
+     * @return a List of the matches. If there are no matches, return an empty list.
+     * @throws IllegalArgumentException if the prefix is null, blank, or not a valid URI
+     */
+    @Override
+    public List<Document> getAllWithUriPrefix(String uriPrefix) throws IOException {
+        if (uriPrefix == null || uriPrefix.isBlank()) {
+            throw new IllegalArgumentException();
+        }
+        //URIs sharing a prefix sit next to each other in the btree, so walk forward from the prefix
+        //until the first URI that doesn't match
+        List<URI> matchingUris = new ArrayList<>();
+        BTree.Cursor<URI, Document> cursor = documentStore.cursor(URI.create(uriPrefix));
+        while (cursor.next() && cursor.getKey().toString().startsWith(uriPrefix)) {
+            matchingUris.add(cursor.getKey());
+        }
+        //get each doc through the store so it's marked as used and the limits are enforced
+        List<Document> matches = new ArrayList<>();
+        for (URI uri : matchingUris) {
+            Document document = get(uri);
+            if (document != null) {
+                matches.add(document);
+            }
+        }
+        return matches;
+    }
+
+
+
+    //**********BINARY DATA ADDITIONS
+
+    /**
+     * a stream over the binary data of the document at the uri that doesn't bring the document back into memory: data
+     * in memory or mapped is streamed from there, and data on disk from the document's file, which
+     * DocumentPersistenceManager streams from a .raw file without reading it onto the heap.
+     * Since the document isn't read back, this doesn't count as a use of it the way get does
+     * @return the stream, which the caller closes, or null if there is no binary document at the uri
+     * @throws IllegalArgumentException if the uri is null
+     */
+    public InputStream openBinaryData(URI url) throws IOException {
+        if (url == null) {
+            throw new IllegalArgumentException();
+        }
+        if (isOnDisk(url)) {
+            return ((DocumentPersistenceManager) persistenceManager).openBinaryData(url);
+        }
+        Document document = documentStore.get(url);
+        if (document instanceof MappedDocument) {
+            return ((MappedDocument) document).openStream();
+        }
+        byte[] binaryData = document == null ? null : document.getDocumentBinaryData();
+        return binaryData == null ? null : new ByteArrayInputStream(binaryData);
+    }
+
+    /**
+     * write the binary data of the document at the uri to the channel, like openBinaryData without a stream in between:
+     * data in a .raw file goes with FileChannel.transferTo, and mapped data straight from its mapping
+     * @return the number of bytes written, or -1 if there is no binary document at the uri
+     * @throws IllegalArgumentException if the uri or channel is null
+     */
+    public long transferBinaryData(URI url, WritableByteChannel target) throws IOException {
+        if (url == null || target == null) {
+            throw new IllegalArgumentException();
+        }
+        if (isOnDisk(url)) {
+            return ((DocumentPersistenceManager) persistenceManager).transferBinaryData(url, target);
+        }
+        Document document = documentStore.get(url);
+        if (document instanceof MappedDocument) {
+            ((MappedDocument) document).writeTo(target);
+            return ((MappedDocument) document).length();
+        }
+        byte[] binaryData = document == null ? null : document.getDocumentBinaryData();
+        if (binaryData == null) {
+            return -1;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(binaryData);
+        while (buffer.hasRemaining()) {
+            target.write(buffer);
+        }
+        return binaryData.length;
+    }
+
+    //whether the document at the uri is out of memory, with its data as it is in its DocumentPersistenceManager's files.
+    //the cursor finds the key without reading back a value on disk
+    private boolean isOnDisk(URI url) {
+        if (currentUris.contains(url) || !(persistenceManager instanceof DocumentPersistenceManager)) {
+            return false;
+        }
+        BTree.Cursor<URI, Document> cursor = documentStore.cursor(url);
+        return cursor.next() && cursor.getKey().equals(url);
+    }
+
+
+
     // private methods
 
 
@@ -870,7 +1728,9 @@ if(getMaxDocuments() > 0 && !(getDocumentBytes(existingDoc) > getMaxBytes())) {
                 }
 
                 //add the doc back into the hashtable effectively removing the old one
-                documentStore.put(url, existingdoc);
+                //the doc being replaced is already in hand, so don't read it back if it was moved to disk
+                logDocument(existingdoc);
+                documentStore.putBlind(url, existingdoc);
 
                 //put the doc back into the trie
                 Set<String> Oldwords = existingdoc.getWords();
@@ -904,6 +1764,7 @@ if(getMaxDocuments() > 0 && !(getDocumentBytes(existingDoc) > getMaxBytes())) {
 
             //there is no old doc to put back in and there is a doc that exists with the uri
             } else if(!(documentStore.get(url) == null)){
+                logRemove(url);
                 //remove the doc from the trie
                 Set<String> words = document.getWords();
                 if (!words.isEmpty()) {
@@ -918,7 +1779,7 @@ if(getMaxDocuments() > 0 && !(getDocumentBytes(existingDoc) > getMaxBytes())) {
                 documentMinHeap.reHeapify(new minHeapNode(document.getKey()));
                 documentMinHeap.remove();
                 //remove the doc from the hashmap
-                documentStore.put(url, null);
+                documentStore.delete(url);
                 updateCounts();
             }
         };
@@ -946,6 +1807,7 @@ if(getMaxDocuments() > 0 && !(getDocumentBytes(existingDoc) > getMaxBytes())) {
         // get the uri for all the deleted docs
         for (Document doc : docstodelete) {
            URI uri = doc.getKey();
+            loadBody(doc);
             // undo logic
             Consumer<URI> undoLogic = getDeleteAllUndoLogic(doc, uri);
 
@@ -964,8 +1826,10 @@ if(getMaxDocuments() > 0 && !(getDocumentBytes(existingDoc) > getMaxBytes())) {
                 documentMinHeap.reHeapify(new minHeapNode(doc.getKey()));
                 documentMinHeap.remove();
             }
+            //logged while it is still counted, so a checkpoint taken first still writes it
+            logRemove(uri);
             currentUris.remove(uri);
-            documentStore.put(uri, null);
+            documentStore.delete(uri);
             updateCounts();
 
         }
@@ -984,7 +1848,8 @@ if(getMaxDocuments() > 0 && !(getDocumentBytes(existingDoc) > getMaxBytes())) {
                 documentTrie.put(word, doc.getKey()); // Restore the document in the trie
             }
             doc.setLastUseTime(getNanoTime());
-            documentStore.put(uri, doc); // Restore the document in the hashtable
+            logDocument(doc);
+            documentStore.putBlind(uri, doc); // Restore the document in the hashtable
             currentUris.add(uri);
             documentMinHeap.insert(new minHeapNode(doc.getKey()));
             documentMinHeap.reHeapify(new minHeapNode(doc.getKey()));
@@ -1018,6 +1883,7 @@ if(getMaxDocuments() > 0 && !(getDocumentBytes(existingDoc) > getMaxBytes())) {
      */
     public void setMaxDocumentCount(int limit) {
         this.MaxDocumentCount = limit;
+        logLimits();
         enforceLimits();
     }
 
@@ -1028,6 +1894,7 @@ if(getMaxDocuments() > 0 && !(getDocumentBytes(existingDoc) > getMaxBytes())) {
      */
     public void setMaxDocumentBytes(int limit){
         this.MaxDocumentBytes = limit;
+        logLimits();
         enforceLimits();
 
 
@@ -1036,7 +1903,14 @@ if(getMaxDocuments() > 0 && !(getDocumentBytes(existingDoc) > getMaxBytes())) {
 //stage5 private methods
 
     private int getDocumentBytes(Document document) {
-
+        if (document instanceof MappedDocument) {
+            //the data is paged in and out by the operating system, so only the uri and metadata count
+            return ((MappedDocument) document).getResidentBytes();
+        }
+        if (document instanceof DocumentImpl) {
+            //without reading back a body that is on disk
+            return ((DocumentImpl) document).getBodyBytes();
+        }
         if (document.getDocumentTxt() != null) {
             return document.getDocumentTxt().getBytes().length;
         } else if (document.getDocumentBinaryData() != null) {
@@ -1045,18 +1919,83 @@ if(getMaxDocuments() > 0 && !(getDocumentBytes(existingDoc) > getMaxBytes())) {
         throw new IllegalArgumentException();
     }
 
+    //pick every document that has to go first, then move them to disk through the btree as one batch.
+    //a document whose body is already on disk isn't written again, unless its metadata changed since.
+    //the counts only drop for what was moved: if the batch fails, the documents go back to memory, and the
+    //failure is thrown once the store is as it was
     private void enforceLimits(){
-        while (MaxDocumentCount < CurrentDocumentCount || MaxDocumentBytes < CurrentDocumentBytes){
+        List<URI> toMove = new ArrayList<>();
+        List<URI> stale = new ArrayList<>();
+        List<DocumentImpl> staleDocuments = new ArrayList<>();
+        int written = 0;
+        int count = CurrentDocumentCount;
+        int bytes = CurrentDocumentBytes;
+        while (MaxDocumentCount < count || MaxDocumentBytes < bytes){
             if(currentUris.isEmpty()){
                 break;
             }
-                    Document doctoerase = documentMinHeap.remove().getDoc();
+            Document doctoerase = documentMinHeap.remove().getDoc();
+            currentUris.remove(doctoerase.getKey());
+            toMove.add(doctoerase.getKey());
+            if (doctoerase instanceof DocumentImpl && !((DocumentImpl) doctoerase).isBodyLoaded()) {
+                if (((DocumentImpl) doctoerase).isMetadataChanged()) {
+                    //the file has the metadata from before, so the document is read back to be written again, body and all
+                    stale.add(doctoerase.getKey());
+                    staleDocuments.add((DocumentImpl) doctoerase);
+                    written++;
+                }
+            } else {
+                written++;
+            }
+            count--;
+            bytes -= getDocumentBytes(doctoerase);
+        }
+        if (count == CurrentDocumentCount) {
+            return;
+        }
+        long start = getNanoTime();
+        Exception failure = null;
+        try {
+            documentStore.prefetch(stale);
+            for (DocumentImpl document : staleDocuments) {
+                if (!document.isBodyLoaded()) {
+                    throw new IOException("the body of " + document.getKey() + " is not on disk");
+                }
+            }
+            //the btree moves all of them or none
+            documentStore.moveAllToDisk(toMove);
+        } catch (IOException | RuntimeException e) {
+            failure = e;
+        }
+        evictionNanos += getNanoTime() - start;
+        evictionBatches++;
+        if (failure == null) {
+            documentsEvicted += toMove.size();
+            documentsWritten += written;
+            CurrentDocumentCount = count;
+            CurrentDocumentBytes = bytes;
+            return;
+        }
+        //their use times haven't changed, so they go back to the top of the heap, first to go next time
+        for (URI uri : toMove) {
+            currentUris.add(uri);
+            documentMinHeap.insert(new minHeapNode(uri));
+        }
+        updateCounts();
+        if (failure instanceof IOException) {
+            throw new UncheckedIOException((IOException) failure);
+        }
+        throw (RuntimeException) failure;
+    }
+
+    //a document leaving the store, or replaced in it, takes its body along: the file it is in is about to be deleted
+    //or written over
+    private void loadBody(Document document) {
+        if (document instanceof DocumentImpl) {
             try {
-                currentUris.remove(doctoerase.getKey());
-                documentStore.moveToDisk(doctoerase.getKey());;
-                CurrentDocumentCount--;
-                CurrentDocumentBytes -= getDocumentBytes(doctoerase);
-            } catch (Exception ignored){
+                ((DocumentImpl) document).loadBody();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
             }
         }
     }
@@ -1065,6 +2004,14 @@ if(getMaxDocuments() > 0 && !(getDocumentBytes(existingDoc) > getMaxBytes())) {
 
 
 
+    //binary data at least this long is mapped instead of read onto the heap, 0 for none
+    private int getMapThreshold(){
+        if (persistenceManager instanceof DocumentPersistenceManager) {
+            return ((DocumentPersistenceManager) persistenceManager).getMapThreshold();
+        }
+        return 0;
+    }
+
     private int getMaxDocuments(){
         return this.MaxDocumentCount;
     }
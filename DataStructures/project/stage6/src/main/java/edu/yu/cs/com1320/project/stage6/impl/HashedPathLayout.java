@@ -0,0 +1,90 @@
+package edu.yu.cs.com1320.project.stage6.impl;
+
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * files spread over 65536 directories two levels deep, picked by a hash of the uri, so no directory grows past a
+ * small share of the documents however they are spread over hosts and paths. The file name is the whole uri with
+ * every character but letters, digits, '-', '_' and a '.' that doesn't start the name written as %xx of its UTF-8
+ * bytes, in lowercase hex: http://www.example.com/a%20b is at xx/yy/http%3a%2f%2fwww.example.com%2fa%2520b. An uppercase letter follows a '^',
+ * so uris that differ only in case get names that differ in more than case, and don't share a file on a file system
+ * that ignores case: /Doc is %2f^Doc and /doc is %2fdoc. A name that would be longer than 180 characters is cut short
+ * and ends with the SHA-256 of the uri instead
+ */
+public class HashedPathLayout implements DocumentPathLayout {
+    private static final int MAX_NAME = 180;
+    private static final int KEPT_PREFIX = 100;
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    @Override
+    public String pathFor(URI key) {
+        String uri = key.toString();
+        int hash = mix(uri.hashCode());
+        StringBuilder path = new StringBuilder(uri.length() + 16);
+        appendHex(path, hash >>> 24);
+        path.append('/');
+        appendHex(path, (hash >>> 16) & 0xff);
+        path.append('/');
+        int nameStart = path.length();
+        escape(uri, path);
+        if (path.length() - nameStart > MAX_NAME) {
+            path.setLength(nameStart + KEPT_PREFIX);
+            //don't end on part of an escape
+            int percent = path.lastIndexOf("%", path.length() - 1);
+            if (percent >= path.length() - 2) {
+                path.setLength(percent);
+            }
+            if (path.charAt(path.length() - 1) == '^') {
+                path.setLength(path.length() - 1);
+            }
+            path.append('~');
+            for (byte b : sha256(uri)) {
+                appendHex(path, b & 0xff);
+            }
+        }
+        return path.toString();
+    }
+
+    private static void escape(String uri, StringBuilder out) {
+        int start = out.length();
+        for (byte b : uri.getBytes(StandardCharsets.UTF_8)) {
+            int c = b & 0xff;
+            boolean plain = (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9')
+                    || c == '-' || c == '_' || (c == '.' && out.length() > start);
+            if (c >= 'A' && c <= 'Z') {
+                out.append('^').append((char) c);
+            } else if (plain) {
+                out.append((char) c);
+            } else {
+                out.append('%');
+                appendHex(out, c);
+            }
+        }
+    }
+
+    //String.hashCode is weak in its high bits for similar strings, so spread it before taking the directories from them
+    private static int mix(int h) {
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    private static void appendHex(StringBuilder out, int b) {
+        out.append(HEX[b >>> 4]).append(HEX[b & 0xf]);
+    }
+
+    private static byte[] sha256(String uri) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(uri.getBytes(StandardCharsets.UTF_8));
+        } catch (NoSuchAlgorithmException e) {
+            //every JVM has SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+}
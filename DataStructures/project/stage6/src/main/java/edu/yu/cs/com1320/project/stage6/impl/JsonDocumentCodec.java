@@ -0,0 +1,48 @@
+package edu.yu.cs.com1320.project.stage6.impl;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import edu.yu.cs.com1320.project.stage6.Document;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * documents as Gson's JSON for DocumentImpl. Readable, but binary data is written as an array of numbers
+ */
+public class JsonDocumentCodec implements DocumentCodec {
+    //Gson is thread safe and costly to create, so one instance is shared
+    private static final Gson GSON = new Gson();
+
+    @Override
+    public String extension() {
+        return ".json";
+    }
+
+    @Override
+    public void write(Document document, OutputStream out) throws IOException {
+        Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+        GSON.toJson(document, writer);
+        writer.flush();
+    }
+
+    @Override
+    public Document read(InputStream in) throws IOException {
+        Reader reader = new InputStreamReader(in, StandardCharsets.UTF_8);
+        try {
+            DocumentImpl document = GSON.fromJson(reader, DocumentImpl.class);
+            if (document == null) {
+                throw new IOException("no document in stream");
+            }
+            return document;
+        } catch (JsonParseException e) {
+            throw new IOException("not a json document", e);
+        }
+    }
+}
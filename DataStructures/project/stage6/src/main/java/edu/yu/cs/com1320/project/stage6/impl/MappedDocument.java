@@ -0,0 +1,199 @@
+package edu.yu.cs.com1320.project.stage6.impl;
+
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+
+/**
+ * a read-only binary document whose data is a file on disk mapped into memory, see
+ * DocumentPersistenceManager.setMapThreshold. Only the uri and metadata are on the heap; the operating system pages
+ * the data in as it is read, and out again when memory is short. getBuffer, slice and openStream read it without
+ * copying it. getDocumentBinaryData has to return an array, so it copies all of it onto the heap
+ */
+public class MappedDocument extends AbstractDocument {
+
+    private final MappedByteBuffer data;
+    //identifies the file that was mapped, so a file written over it since is told apart
+    private final Object fileKey;
+
+    //computed the first time it is asked for, since it reads every byte
+    private int hashCode;
+    private boolean hashed;
+
+    /**
+     * @param file the document's data. Replace it with a new file rather than writing into it, or reads of the mapping fail
+     * @throws IOException if the file can't be mapped, or is 2GB or larger
+     */
+    MappedDocument(URI uri, File file, HashMap<String, String> metadata) throws IOException {
+        super(uri, metadata);
+        if (uri == null || file == null || uri.toString().isBlank()) {
+            throw new IllegalArgumentException("URI or file cannot be null");
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException(file + " is too large to map");
+            }
+            //the mapping stays valid after the channel is closed
+            this.data = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        }
+        this.fileKey = Files.readAttributes(file.toPath(), BasicFileAttributes.class).fileKey();
+    }
+
+    /**
+     * @return the number of bytes of data
+     */
+    public int length() {
+        return this.data.capacity();
+    }
+
+    /**
+     * @return a read-only view of all the data, positioned at its start
+     */
+    public ByteBuffer getBuffer() {
+        return this.data.asReadOnlyBuffer();
+    }
+
+    /**
+     * @return a read-only view of length bytes of the data from offset
+     * @throws IndexOutOfBoundsException if the range isn't within the data
+     */
+    public ByteBuffer slice(int offset, int length) {
+        Objects.checkFromIndexSize(offset, length, length());
+        return getBuffer().position(offset).limit(offset + length).slice();
+    }
+
+    /**
+     * @return a stream over the data. It holds nothing that needs closing
+     */
+    public InputStream openStream() {
+        ByteBuffer buffer = getBuffer();
+        return new InputStream() {
+            @Override
+            public int read() {
+                return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) {
+                Objects.checkFromIndexSize(off, len, b.length);
+                if (len == 0) {
+                    return 0;
+                }
+                if (!buffer.hasRemaining()) {
+                    return -1;
+                }
+                int n = Math.min(len, buffer.remaining());
+                buffer.get(b, off, n);
+                return n;
+            }
+
+            @Override
+            public long skip(long n) {
+                int skipped = (int) Math.max(0, Math.min(n, buffer.remaining()));
+                buffer.position(buffer.position() + skipped);
+                return skipped;
+            }
+
+            @Override
+            public int available() {
+                return buffer.remaining();
+            }
+        };
+    }
+
+    //write all the data to the channel without copying it onto the heap
+    void writeTo(WritableByteChannel channel) throws IOException {
+        ByteBuffer buffer = getBuffer();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    //whether the file is the one that was mapped, so its data is this document's
+    boolean isBackedBy(File file) throws IOException {
+        if (this.fileKey == null || !file.exists()) {
+            return false;
+        }
+        return this.fileKey.equals(Files.readAttributes(file.toPath(), BasicFileAttributes.class).fileKey());
+    }
+
+    //bytes this document keeps on the heap: its uri and metadata, not the mapped data
+    int getResidentBytes() {
+        return getHeaderBytes();
+    }
+
+    /**
+     * @return null, a mapped document is always binary
+     */
+    @Override
+    public String getDocumentTxt() {
+        return null;
+    }
+
+    /**
+     * @return a copy of all the data on the heap - use getBuffer, slice or openStream to read it in place
+     */
+    @Override
+    public byte[] getDocumentBinaryData() {
+        byte[] copy = new byte[length()];
+        getBuffer().get(copy);
+        return copy;
+    }
+
+    /**
+     * @return 0, a mapped document is always binary
+     */
+    @Override
+    public int wordCount(String word) {
+        return 0;
+    }
+
+    /**
+     * @return an empty set, a mapped document is always binary
+     */
+    @Override
+    public Set<String> getWords() {
+        return new HashSet<>();
+    }
+
+    /**
+     * @return an empty map, a mapped document is always binary
+     */
+    @Override
+    public HashMap<String, Integer> getWordMap() {
+        return new HashMap<>();
+    }
+
+    @Override
+    public void setWordMap(HashMap<String, Integer> wordMap) {
+    }
+
+    /**
+     * @return the same hash code as a DocumentImpl with the same uri and data
+     */
+    @Override
+    public int hashCode() {
+        if (!this.hashed) {
+            //Arrays.hashCode over the mapping, without copying it
+            int dataHash = 1;
+            ByteBuffer buffer = getBuffer();
+            while (buffer.hasRemaining()) {
+                dataHash = 31 * dataHash + buffer.get();
+            }
+            this.hashCode = hashCode(getKey(), null, dataHash);
+            this.hashed = true;
+        }
+        return this.hashCode;
+    }
+}
@@ -0,0 +1,18 @@
+package edu.yu.cs.com1320.project.stage6.impl;
+
+import java.net.URI;
+import java.util.regex.Pattern;
+
+/**
+ * the uri without its http:// or https:// scheme, so the directories follow the host and path of the uri:
+ * http://www.example.com/docs/a is at www.example.com/docs/a. Easy to find by hand, but every document of a host
+ * lands in one directory tree, and a popular path in one directory
+ */
+public class MirroredPathLayout implements DocumentPathLayout {
+    private static final Pattern SCHEME = Pattern.compile("^https?://");
+
+    @Override
+    public String pathFor(URI key) {
+        return SCHEME.matcher(key.toString()).replaceFirst("");
+    }
+}
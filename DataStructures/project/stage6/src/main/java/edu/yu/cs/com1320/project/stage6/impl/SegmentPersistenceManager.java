@@ -0,0 +1,492 @@
+package edu.yu.cs.com1320.project.stage6.impl;
+
+import edu.yu.cs.com1320.project.stage6.Document;
+import edu.yu.cs.com1320.project.stage6.PersistenceManager;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.CRC32;
+
+/**
+ * A PersistenceManager that appends documents to a few large segment files instead of writing a file per document.
+ * An in-memory index maps each uri to the offset of its latest record. Removing a document appends a small tombstone
+ * record rather than deleting anything, so the file system only sees appends and the occasional new segment.
+ * When the active segment reaches its size limit it is sealed and a new one is started. A background thread compacts
+ * sealed segments once most of their bytes are dead: the records still live are copied to the active segment and the
+ * old file is deleted.
+ * Segments already in the directory are scanned on construction, so documents written before a restart can be read back.
+ * <pre>
+ * record: int crc32 of the rest | int body length | byte type (0 put, 1 tombstone) | short uri length | uri | document
+ * </pre>
+ */
+public class SegmentPersistenceManager implements PersistenceManager<URI, Document> {
+    private static final long DEFAULT_SEGMENT_BYTES = 64L * 1024 * 1024;
+    //a sealed segment is compacted once less than this fraction of it is live
+    private static final double COMPACT_BELOW = 0.5;
+    private static final String SUFFIX = ".seg";
+    private static final int HEADER = 4 + 4 + 1 + 2;
+    private static final byte PUT = 0;
+    private static final byte TOMBSTONE = 1;
+
+    private final File dir;
+    private final DocumentCodec codec;
+    private final long segmentBytes;
+    //segments by id, oldest first. The last is the active one
+    private final TreeMap<Integer, Segment> segments = new TreeMap<>();
+    private final Map<URI, Location> index = new HashMap<>();
+    private Segment active;
+    private final ExecutorService compactor;
+    private final AtomicBoolean compactionQueued = new AtomicBoolean();
+    //only one compaction at a time, whether from the background thread or compact()
+    private final Object compactionLock = new Object();
+    private boolean closed;
+
+    private static final class Segment {
+        private final int id;
+        private final File file;
+        private final FileChannel channel;
+        private long size;
+        private long liveBytes; //bytes of records the index still points to
+
+        private Segment(int id, File file) throws IOException {
+            this.id = id;
+            this.file = file;
+            this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            this.size = this.channel.size();
+        }
+    }
+
+    private static final class Location {
+        private final Segment segment;
+        private final long offset;
+        private final int length;
+
+        private Location(Segment segment, long offset, int length) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    public SegmentPersistenceManager(File dir) throws IOException {
+        this(dir, new BinaryDocumentCodec(), DEFAULT_SEGMENT_BYTES);
+    }
+
+    /**
+     * @param dir directory for the segment files. Segments already in it are read back
+     * @param codec the format of the documents inside each record
+     * @param segmentBytes size at which the active segment is sealed and a new one started
+     */
+    public SegmentPersistenceManager(File dir, DocumentCodec codec, long segmentBytes) throws IOException {
+        if (dir == null || codec == null || segmentBytes < HEADER) {
+            throw new IllegalArgumentException();
+        }
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("cannot create " + dir);
+        }
+        this.dir = dir;
+        this.codec = codec;
+        this.segmentBytes = segmentBytes;
+        this.recover();
+        if (this.active == null) {
+            this.roll();
+        }
+        this.compactor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "segment-compactor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        for (Segment segment : this.segments.values()) {
+            if (segment != this.active && segment.liveBytes < segment.size * COMPACT_BELOW) {
+                this.scheduleCompaction();
+                break;
+            }
+        }
+    }
+
+    @Override
+    public synchronized void serialize(URI key, Document val) throws IOException {
+        if (key == null || val == null) {
+            throw new IllegalArgumentException("key or value cannot be null");
+        }
+        this.checkOpen();
+        ByteArrayOutputStream document = new ByteArrayOutputStream();
+        this.codec.write(val, document);
+        Location location = this.append(PUT, key, document.toByteArray());
+        this.setLive(key, location);
+    }
+
+    /**
+     * append the documents' records with one write per segment they land in, rather than one per document
+     */
+    @Override
+    public synchronized void serializeAll(List<? extends Map.Entry<URI, Document>> entries) throws IOException {
+        this.checkOpen();
+        List<ByteBuffer> records = new ArrayList<>(entries.size());
+        for (Map.Entry<URI, Document> entry : entries) {
+            if (entry.getKey() == null || entry.getValue() == null) {
+                throw new IllegalArgumentException("key or value cannot be null");
+            }
+            ByteArrayOutputStream document = new ByteArrayOutputStream();
+            this.codec.write(entry.getValue(), document);
+            records.add(encode(PUT, entry.getKey(), document.toByteArray()));
+        }
+        List<Location> locations = new ArrayList<>(records.size());
+        int first = 0;
+        while (first < records.size()) {
+            //as many records as fit in the active segment, and at least one
+            int end = first;
+            long size = this.active.size;
+            while (end < records.size() && (end == first || size + records.get(end).remaining() <= this.segmentBytes)) {
+                size += records.get(end).remaining();
+                end++;
+            }
+            if (this.active.size > 0 && size > this.segmentBytes) {
+                this.roll();
+                continue;
+            }
+            ByteBuffer batch = ByteBuffer.allocate((int) (size - this.active.size));
+            for (int i = first; i < end; i++) {
+                batch.put(records.get(i));
+            }
+            batch.flip();
+            long offset = this.active.size;
+            Location written = this.appendRecord(batch);
+            for (int i = first; i < end; i++) {
+                int length = records.get(i).capacity();
+                locations.add(new Location(written.segment, offset, length));
+                offset += length;
+            }
+            first = end;
+        }
+        for (int i = 0; i < locations.size(); i++) {
+            this.setLive(entries.get(i).getKey(), locations.get(i));
+        }
+    }
+
+    @Override
+    public synchronized Document deserialize(URI key) throws IOException {
+        Document doc = this.peek(key);
+        if (doc != null) {
+            this.delete(key);
+        }
+        return doc;
+    }
+
+    /**
+     * read the document's live record without appending a tombstone for it
+     */
+    @Override
+    public synchronized Document peek(URI key) throws IOException {
+        if (key == null) {
+            throw new IllegalArgumentException("key cannot be null");
+        }
+        this.checkOpen();
+        Location location = this.index.get(key);
+        if (location == null) {
+            return null;
+        }
+        ByteBuffer record = read(location.segment, location.offset, location.length);
+        if (record == null) {
+            throw new IOException("corrupt record for " + key + " in " + location.segment.file);
+        }
+        Document doc = this.decode(record);
+        doc.setLastUseTime(System.nanoTime());
+        return doc;
+    }
+
+    /**
+     * remove the document by appending a tombstone for it
+     * @return true if there was a document for the key
+     */
+    @Override
+    public synchronized boolean delete(URI key) throws IOException {
+        if (key == null) {
+            throw new IllegalArgumentException("key cannot be null");
+        }
+        this.checkOpen();
+        if (!this.index.containsKey(key)) {
+            return false;
+        }
+        this.append(TOMBSTONE, key, new byte[0]);
+        this.setLive(key, null);
+        return true;
+    }
+
+    /**
+     * @return the number of documents stored
+     */
+    public synchronized int size() {
+        return this.index.size();
+    }
+
+    /**
+     * @return the number of segment files, including the active one
+     */
+    public synchronized int segmentCount() {
+        return this.segments.size();
+    }
+
+    /**
+     * compact every sealed segment that is mostly dead, on the calling thread.
+     * This also happens in the background, so it only needs to be called to reclaim space right away
+     */
+    public void compact() throws IOException {
+        synchronized (this.compactionLock) {
+            List<Segment> candidates = new ArrayList<>();
+            synchronized (this) {
+                this.checkOpen();
+                for (Segment segment : this.segments.values()) {
+                    if (segment != this.active && segment.liveBytes < segment.size * COMPACT_BELOW) {
+                        candidates.add(segment);
+                    }
+                }
+            }
+            for (Segment segment : candidates) {
+                this.compact(segment);
+            }
+        }
+    }
+
+    /**
+     * wait for a running compaction, then close the segment files. Nothing can be read or written afterwards
+     */
+    public void close() throws IOException {
+        this.compactor.shutdown();
+        synchronized (this.compactionLock) {
+            synchronized (this) {
+                if (this.closed) {
+                    return;
+                }
+                this.closed = true;
+                for (Segment segment : this.segments.values()) {
+                    segment.channel.close();
+                }
+            }
+        }
+    }
+
+    //copy the live records of a sealed segment to the active one, then delete it.
+    //the segment isn't written to any more, so its records are read without holding the lock
+    private void compact(Segment segment) throws IOException {
+        long offset = 0;
+        while (offset < segment.size) {
+            ByteBuffer header = ByteBuffer.allocate(8);
+            readFully(segment.channel, header, offset);
+            int length = 8 + header.getInt(4);
+            ByteBuffer record = read(segment, offset, length);
+            if (record == null) {
+                throw new IOException("corrupt record at " + offset + " in " + segment.file);
+            }
+            byte type = record.get(8);
+            URI key = keyOf(record);
+            synchronized (this) {
+                if (this.closed) {
+                    return;
+                }
+                Location location = this.index.get(key);
+                if (type == PUT && location != null && location.segment == segment && location.offset == offset) {
+                    //still the live record for the key
+                    record.position(0);
+                    this.setLive(key, this.appendRecord(record));
+                } else if (type == TOMBSTONE && location == null && segment.id != this.segments.firstKey()) {
+                    //an older segment may still hold a put for the key, which the tombstone has to keep hidden
+                    record.position(0);
+                    this.appendRecord(record);
+                }
+            }
+            offset += length;
+        }
+        synchronized (this) {
+            if (this.closed) {
+                return;
+            }
+            this.segments.remove(segment.id);
+            segment.channel.close();
+            if (!segment.file.delete()) {
+                throw new IOException("cannot delete " + segment.file);
+            }
+        }
+    }
+
+    private void scheduleCompaction() {
+        if (this.compactor.isShutdown() || !this.compactionQueued.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            this.compactor.execute(() -> {
+                this.compactionQueued.set(false);
+                try {
+                    this.compact();
+                } catch (IOException | IllegalStateException ignored) {
+                    //the segments stay as they are; the next compaction tries again
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            //closed in the meantime
+            this.compactionQueued.set(false);
+        }
+    }
+
+    //point the index at the key's new record, or remove it, and count the bytes of the record it replaces as dead
+    private void setLive(URI key, Location location) {
+        Location old = location == null ? this.index.remove(key) : this.index.put(key, location);
+        if (location != null) {
+            location.segment.liveBytes += location.length;
+        }
+        if (old != null) {
+            old.segment.liveBytes -= old.length;
+            if (old.segment != this.active && old.segment.liveBytes < old.segment.size * COMPACT_BELOW && this.compactor != null) {
+                this.scheduleCompaction();
+            }
+        }
+    }
+
+    private Location append(byte type, URI key, byte[] document) throws IOException {
+        return this.appendRecord(encode(type, key, document));
+    }
+
+    private static ByteBuffer encode(byte type, URI key, byte[] document) {
+        byte[] uri = key.toString().getBytes(StandardCharsets.UTF_8);
+        if (uri.length > 0xFFFF) {
+            throw new IllegalArgumentException("uri too long");
+        }
+        int bodyLength = 1 + 2 + uri.length + document.length;
+        ByteBuffer record = ByteBuffer.allocate(8 + bodyLength);
+        record.position(8);
+        record.put(type).putShort((short) uri.length).put(uri).put(document);
+        //the crc covers the length too
+        record.putInt(4, bodyLength);
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), 4, 4 + bodyLength);
+        record.putInt(0, (int) crc.getValue());
+        record.position(0);
+        return record;
+    }
+
+    private Location appendRecord(ByteBuffer record) throws IOException {
+        int length = record.remaining();
+        if (this.active.size > 0 && this.active.size + length > this.segmentBytes) {
+            this.roll();
+        }
+        long offset = this.active.size;
+        long position = offset;
+        while (record.hasRemaining()) {
+            position += this.active.channel.write(record, position);
+        }
+        this.active.size = position;
+        return new Location(this.active, offset, length);
+    }
+
+    //seal the active segment and start a new one
+    private void roll() throws IOException {
+        int id = this.segments.isEmpty() ? 1 : this.segments.lastKey() + 1;
+        Segment segment = new Segment(id, new File(this.dir, String.format("%08d%s", id, SUFFIX)));
+        this.segments.put(id, segment);
+        Segment sealed = this.active;
+        this.active = segment;
+        if (sealed != null && sealed.liveBytes < sealed.size * COMPACT_BELOW && this.compactor != null) {
+            this.scheduleCompaction();
+        }
+    }
+
+    //rebuild the index from the segments in the directory, oldest first
+    private void recover() throws IOException {
+        File[] files = this.dir.listFiles((d, name) -> name.endsWith(SUFFIX));
+        if (files == null) {
+            throw new IOException("cannot list " + this.dir);
+        }
+        TreeMap<Integer, File> byId = new TreeMap<>();
+        for (File file : files) {
+            try {
+                byId.put(Integer.parseInt(file.getName().substring(0, file.getName().length() - SUFFIX.length())), file);
+            } catch (NumberFormatException ignored) {
+                //not one of ours
+            }
+        }
+        for (Map.Entry<Integer, File> entry : byId.entrySet()) {
+            Segment segment = new Segment(entry.getKey(), entry.getValue());
+            this.segments.put(segment.id, segment);
+            this.active = segment;
+            long offset = 0;
+            while (offset + 8 <= segment.size) {
+                ByteBuffer header = ByteBuffer.allocate(8);
+                readFully(segment.channel, header, offset);
+                int bodyLength = header.getInt(4);
+                if (bodyLength < 3 || offset + 8 + bodyLength > segment.size) {
+                    break;
+                }
+                ByteBuffer record = read(segment, offset, 8 + bodyLength);
+                if (record == null) {
+                    break;
+                }
+                URI key = keyOf(record);
+                this.setLive(key, record.get(8) == PUT ? new Location(segment, offset, 8 + bodyLength) : null);
+                offset += 8 + bodyLength;
+            }
+            if (offset < segment.size) {
+                //a record cut short by a crash: drop it and everything after it
+                segment.channel.truncate(offset);
+                segment.size = offset;
+            }
+        }
+    }
+
+    private Document decode(ByteBuffer record) throws IOException {
+        int uriLength = record.getShort(9) & 0xFFFF;
+        int start = HEADER + uriLength;
+        return this.codec.read(new ByteArrayInputStream(record.array(), start, record.capacity() - start));
+    }
+
+    private static URI keyOf(ByteBuffer record) throws IOException {
+        int uriLength = record.getShort(9) & 0xFFFF;
+        try {
+            return new URI(new String(record.array(), HEADER, uriLength, StandardCharsets.UTF_8));
+        } catch (Exception e) {
+            throw new IOException("bad uri in record", e);
+        }
+    }
+
+    //the record at the offset, or null if its checksum doesn't match
+    private static ByteBuffer read(Segment segment, long offset, int length) throws IOException {
+        ByteBuffer record = ByteBuffer.allocate(length);
+        readFully(segment.channel, record, offset);
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), 4, length - 4);
+        if (record.getInt(0) != (int) crc.getValue() || record.getInt(4) != length - 8) {
+            return null;
+        }
+        return record;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + buffer.position());
+            if (read < 0) {
+                throw new IOException("unexpected end of segment");
+            }
+        }
+    }
+
+    private void checkOpen() {
+        if (this.closed) {
+            throw new IllegalStateException("persistence manager is closed");
+        }
+    }
+}
@@ -0,0 +1,401 @@
+package edu.yu.cs.com1320.project.stage6.impl;
+
+import edu.yu.cs.com1320.project.stage6.Document;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only log of the changes made to a DocumentStoreImpl, so the store can be rebuilt after the process dies.
+ * Each change is one record: a document was stored (with its metadata), a document was removed, a metadata value was set,
+ * or the limits were changed. Replaying the log hands back the changes up to the last record that made it to disk.
+ * The log only grows; its owner keeps the documents elsewhere too, and resets the log once they are all there, so it
+ * only ever holds the changes since.
+ * <pre>
+ * record: int crc32 of the rest | int body length | byte type | body
+ * document body: uri string | the document in BinaryDocumentCodec's format
+ * </pre>
+ */
+public class WriteAheadLog {
+
+    /**
+     * when records are forced from the operating system's cache to the disk.
+     * Every record is handed to the operating system as soon as it is logged, so it survives the process dying under all three;
+     * the policy decides how much can be lost if the machine itself goes down
+     */
+    public enum SyncPolicy {
+        /** never force records to disk; the operating system writes them when it chooses */
+        NONE,
+        /**
+         * force every record before the change it describes is made, like ALWAYS, but as a group commit: a writer that
+         * finds a sync under way waits for the next one, which forces every record logged in the meantime in one go
+         */
+        BATCHED,
+        /** force every record before the change it describes is made */
+        ALWAYS
+    }
+
+    private static final byte DOCUMENT = 0;
+    private static final byte REMOVE = 1;
+    private static final byte METADATA = 2;
+    private static final byte LIMITS = 3;
+
+    private final File file;
+    private final SyncPolicy syncPolicy;
+    private final DocumentCodec codec = new BinaryDocumentCodec();
+    private volatile FileChannel channel;
+    private long size;
+    //bytes logged since the log was opened, across resets, so a writer can tell when a sync covers its record
+    private long logged;
+    //how many of them are known to be on disk, and whether a writer is forcing the channel for the others, guarded by syncLock
+    private final Object syncLock = new Object();
+    private long synced;
+    private boolean syncing;
+
+    /**
+     * @param file the log. It is created if it doesn't exist
+     * @param syncPolicy when records are forced to disk
+     */
+    public WriteAheadLog(File file, SyncPolicy syncPolicy) throws IOException {
+        if (file == null || syncPolicy == null) {
+            throw new IllegalArgumentException();
+        }
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (!parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("cannot create " + parent);
+        }
+        this.file = file;
+        this.syncPolicy = syncPolicy;
+        this.channel = open(file);
+        this.size = this.channel.size();
+    }
+
+    /**
+     * what replay hands each record to, in the order they were logged
+     */
+    public interface Replayer {
+        void document(Document document) throws IOException;
+
+        void remove(URI uri) throws IOException;
+
+        /**
+         * @param value the new value, or null
+         */
+        void metadata(URI uri, String key, String value) throws IOException;
+
+        void limits(int maxDocumentCount, int maxDocumentBytes) throws IOException;
+    }
+
+    /**
+     * read the log from the start, handing each record over as it is read, so only one document is decoded at a time.
+     * A record cut short by a crash, and anything after it, is dropped from the file
+     */
+    public synchronized void replay(Replayer replayer) throws IOException {
+        long offset = 0;
+        while (true) {
+            ByteBuffer record = readRecord(this.channel, offset, this.size);
+            if (record == null) {
+                break;
+            }
+            byte type = record.get(8);
+            record.position(9);
+            switch (type) {
+                case DOCUMENT: {
+                    readUri(record);
+                    replayer.document(this.codec.read(new ByteArrayInputStream(record.array(), record.position(), record.remaining())));
+                    break;
+                }
+                case REMOVE:
+                    replayer.remove(readUri(record));
+                    break;
+                case METADATA: {
+                    URI uri = readUri(record);
+                    String key = readString(record);
+                    replayer.metadata(uri, key, readString(record));
+                    break;
+                }
+                case LIMITS: {
+                    int maxDocumentCount = record.getInt();
+                    replayer.limits(maxDocumentCount, record.getInt());
+                    break;
+                }
+                default:
+                    throw new IOException("unknown record type " + type + " in " + this.file);
+            }
+            offset += record.capacity();
+        }
+        if (offset < this.size) {
+            this.channel.truncate(offset);
+            this.size = offset;
+            this.channel.force(true);
+        }
+    }
+
+    /**
+     * log that the document, with its current metadata, is now stored at its uri
+     */
+    public void logDocument(Document document) throws IOException {
+        //the uri comes first so it can be read without decoding the document
+        String uri = document.getKey().toString();
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        ByteBuffer header = ByteBuffer.allocate(stringLength(uri));
+        putString(header, uri);
+        body.write(header.array());
+        this.codec.write(document, body);
+        this.append(DOCUMENT, body.toByteArray());
+    }
+
+    /**
+     * log that the document at the uri was removed
+     */
+    public void logRemove(URI uri) throws IOException {
+        ByteBuffer body = ByteBuffer.allocate(stringLength(uri.toString()));
+        putString(body, uri.toString());
+        this.append(REMOVE, body.array());
+    }
+
+    /**
+     * log that a metadata value of the document at the uri was set
+     * @param value the new value, or null
+     */
+    public void logMetadata(URI uri, String key, String value) throws IOException {
+        ByteBuffer body = ByteBuffer.allocate(stringLength(uri.toString()) + stringLength(key) + stringLength(value));
+        putString(body, uri.toString());
+        putString(body, key);
+        putString(body, value);
+        this.append(METADATA, body.array());
+    }
+
+    /**
+     * log the store's limits
+     */
+    public void logLimits(int maxDocumentCount, int maxDocumentBytes) throws IOException {
+        this.append(LIMITS, ByteBuffer.allocate(8).putInt(maxDocumentCount).putInt(maxDocumentBytes).array());
+    }
+
+    /**
+     * force everything logged so far to disk, whatever the sync policy
+     */
+    public void sync() throws IOException {
+        long end;
+        synchronized (this) {
+            end = this.logged;
+        }
+        this.awaitSync(end);
+    }
+
+    private void replaceWith(File tmp) throws IOException {
+        Files.move(tmp.toPath(), this.file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        FileChannel old = this.channel;
+        this.channel = open(this.file);
+        old.close();
+        this.size = this.channel.size();
+        //the records logged before are no longer needed, so no writer has to wait for them
+        this.syncedUpTo(this.logged);
+    }
+
+    /**
+     * start the log over once everything in it is stored somewhere else, e.g. the documents have all been written to
+     * disk: the new log holds only the limits. It replaces the old one in a single rename, so a crash leaves one or the other
+     */
+    public synchronized void reset(int maxDocumentCount, int maxDocumentBytes) throws IOException {
+        File tmp = new File(this.file.getPath() + ".tmp");
+        try (FileChannel out = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer record = record(LIMITS, ByteBuffer.allocate(8).putInt(maxDocumentCount).putInt(maxDocumentBytes).array());
+            while (record.hasRemaining()) {
+                out.write(record);
+            }
+            out.force(true);
+        }
+        this.replaceWith(tmp);
+    }
+
+    /**
+     * @return the size of the log in bytes
+     */
+    public synchronized long size() {
+        return this.size;
+    }
+
+    /**
+     * sync and close the log
+     */
+    public synchronized void close() throws IOException {
+        if (this.channel.isOpen()) {
+            this.channel.force(false);
+            this.channel.close();
+        }
+        this.syncedUpTo(this.logged);
+    }
+
+    private void append(byte type, byte[] body) throws IOException {
+        long end = this.write(record(type, body));
+        if (this.syncPolicy == SyncPolicy.BATCHED) {
+            //outside the lock, so other writers can add their records to the next sync meanwhile
+            this.awaitSync(end);
+        }
+    }
+
+    //write the record to the end of the log, and return how many bytes have been logged once it is
+    private synchronized long write(ByteBuffer record) throws IOException {
+        long position = this.size;
+        while (record.hasRemaining()) {
+            position += this.channel.write(record, position);
+        }
+        this.logged += position - this.size;
+        this.size = position;
+        if (this.syncPolicy == SyncPolicy.ALWAYS) {
+            this.channel.force(false);
+            this.syncedUpTo(this.logged);
+        }
+        return this.logged;
+    }
+
+    //wait until a sync has forced the first end bytes logged to disk. If no writer is syncing, this one does, for
+    //everything logged by then; otherwise it waits for that sync to finish and, if it didn't cover its record, leads the next
+    private void awaitSync(long end) throws IOException {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                synchronized (this.syncLock) {
+                    while (this.synced < end && this.syncing) {
+                        try {
+                            this.syncLock.wait();
+                        } catch (InterruptedException e) {
+                            //the record is already logged, so the wait can't be abandoned halfway
+                            interrupted = true;
+                        }
+                    }
+                    if (this.synced >= end) {
+                        return;
+                    }
+                    this.syncing = true;
+                }
+                long target;
+                FileChannel channel;
+                synchronized (this) {
+                    target = this.logged;
+                    channel = this.channel;
+                }
+                try {
+                    channel.force(false);
+                    this.syncedUpTo(target);
+                } catch (IOException e) {
+                    synchronized (this.syncLock) {
+                        //a reset or close may have closed the channel, after putting the records out of need
+                        if (this.synced < end) {
+                            throw e;
+                        }
+                    }
+                } finally {
+                    synchronized (this.syncLock) {
+                        this.syncing = false;
+                        this.syncLock.notifyAll();
+                    }
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void syncedUpTo(long logged) {
+        synchronized (this.syncLock) {
+            if (logged > this.synced) {
+                this.synced = logged;
+                this.syncLock.notifyAll();
+            }
+        }
+    }
+
+    private static ByteBuffer record(byte type, byte[] body) {
+        ByteBuffer record = ByteBuffer.allocate(9 + body.length);
+        record.putInt(4, 1 + body.length);
+        record.put(8, type);
+        record.position(9);
+        record.put(body);
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), 4, record.capacity() - 4);
+        record.putInt(0, (int) crc.getValue());
+        record.position(0);
+        return record;
+    }
+
+    private static FileChannel open(File file) throws IOException {
+        return FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    //the whole record at the offset, or null at the end of the log or if the record is incomplete or corrupt
+    private static ByteBuffer readRecord(FileChannel channel, long offset, long size) throws IOException {
+        if (offset + 9 > size) {
+            return null;
+        }
+        ByteBuffer header = ByteBuffer.allocate(8);
+        readFully(channel, header, offset);
+        int bodyLength = header.getInt(4);
+        if (bodyLength < 1 || offset + 8 + bodyLength > size) {
+            return null;
+        }
+        ByteBuffer record = ByteBuffer.allocate(8 + bodyLength);
+        readFully(channel, record, offset);
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), 4, record.capacity() - 4);
+        if (record.getInt(0) != (int) crc.getValue()) {
+            return null;
+        }
+        return record;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("unexpected end of log");
+            }
+        }
+    }
+
+    //strings are an int length, or -1 for null, then UTF-8
+    private static int stringLength(String s) {
+        return 4 + (s == null ? 0 : s.getBytes(StandardCharsets.UTF_8).length);
+    }
+
+    private static void putString(ByteBuffer buffer, String s) {
+        if (s == null) {
+            buffer.putInt(-1);
+            return;
+        }
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        buffer.putInt(bytes.length).put(bytes);
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0) {
+            return null;
+        }
+        String s = new String(buffer.array(), buffer.position(), length, StandardCharsets.UTF_8);
+        buffer.position(buffer.position() + length);
+        return s;
+    }
+
+    private static URI readUri(ByteBuffer buffer) throws IOException {
+        try {
+            return new URI(readString(buffer));
+        } catch (URISyntaxException e) {
+            throw new IOException("bad uri in log", e);
+        }
+    }
+}
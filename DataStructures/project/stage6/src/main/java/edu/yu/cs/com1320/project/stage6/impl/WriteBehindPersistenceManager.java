@@ -0,0 +1,249 @@
+package edu.yu.cs.com1320.project.stage6.impl;
+
+import edu.yu.cs.com1320.project.stage6.PersistenceManager;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A PersistenceManager that hands values to background writer threads instead of writing them itself.
+ * serialize only queues the value, so moving a value to disk doesn't wait on the delegate's I/O. Until a writer has
+ * stored it, the value is still held here: deserialize returns it straight from the queue, and delete cancels the write.
+ * The queue is bounded - when it is full serialize blocks until a writer catches up.
+ * @param <Key>
+ * @param <Value>
+ */
+public class WriteBehindPersistenceManager<Key, Value> implements PersistenceManager<Key, Value>, Closeable {
+    //number of locks the keys are spread over. A writer and a reader only wait on each other if their keys share one
+    private static final int STRIPES = 64;
+
+    private final PersistenceManager<Key, Value> delegate;
+    private final BlockingQueue<Pending<Key, Value>> queue;
+    //the latest value queued for each key that hasn't been written yet
+    private final ConcurrentHashMap<Key, Pending<Key, Value>> pending;
+    private final ReentrantLock[] stripes;
+    private final Thread[] writers;
+    //values queued or being written, guarded by this
+    private int outstanding;
+    //the first write that failed since the last flush, guarded by this
+    private IOException failure;
+    private volatile boolean closed;
+
+    private static class Pending<Key, Value> {
+        private final Key key;
+        private final Value val;
+
+        private Pending(Key key, Value val) {
+            this.key = key;
+            this.val = val;
+        }
+    }
+
+    /**
+     * @param delegate where the values are actually written
+     * @param writerThreads number of background threads writing to the delegate
+     * @param capacity number of values that can wait to be written before serialize blocks
+     */
+    public WriteBehindPersistenceManager(PersistenceManager<Key, Value> delegate, int writerThreads, int capacity) {
+        if (delegate == null || writerThreads < 1 || capacity < 1) {
+            throw new IllegalArgumentException();
+        }
+        this.delegate = delegate;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.pending = new ConcurrentHashMap<>();
+        this.stripes = new ReentrantLock[STRIPES];
+        for (int i = 0; i < STRIPES; i++) {
+            this.stripes[i] = new ReentrantLock();
+        }
+        this.writers = new Thread[writerThreads];
+        for (int i = 0; i < writerThreads; i++) {
+            this.writers[i] = new Thread(this::write, "write-behind-" + i);
+            //writers shouldn't keep the jvm alive; flush or close before exiting to make sure everything is stored
+            this.writers[i].setDaemon(true);
+            this.writers[i].start();
+        }
+    }
+
+    /**
+     * queue the value to be written. Blocks while the queue is full
+     * @throws IOException if a previous write failed, or if interrupted while waiting for space
+     */
+    @Override
+    public void serialize(Key key, Value val) throws IOException {
+        if (key == null || val == null) {
+            throw new IllegalArgumentException("key or value cannot be null");
+        }
+        if (closed) {
+            throw new IllegalStateException("persistence manager is closed");
+        }
+        throwFailure();
+        Pending<Key, Value> entry = new Pending<>(key, val);
+        synchronized (this) {
+            outstanding++;
+        }
+        //an earlier value for the key that is still queued is now stale - its writer will see it was replaced and skip it
+        pending.put(key, entry);
+        try {
+            queue.put(entry);
+        } catch (InterruptedException e) {
+            pending.remove(key, entry);
+            done();
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while waiting to queue " + key, e);
+        }
+    }
+
+    /**
+     * the value for the key, taken back from the queue if it hasn't been written yet
+     */
+    @Override
+    public Value deserialize(Key key) throws IOException {
+        if (key == null) {
+            throw new IllegalArgumentException("key cannot be null");
+        }
+        ReentrantLock lock = stripe(key);
+        lock.lock();
+        try {
+            Pending<Key, Value> entry = pending.remove(key);
+            if (entry != null) {
+                return entry.val;
+            }
+            return delegate.deserialize(key);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * the value for the key, from the queue if it hasn't been written yet, which leaves it queued
+     */
+    @Override
+    public Value peek(Key key) throws IOException {
+        if (key == null) {
+            throw new IllegalArgumentException("key cannot be null");
+        }
+        ReentrantLock lock = stripe(key);
+        lock.lock();
+        try {
+            Pending<Key, Value> entry = pending.get(key);
+            if (entry != null) {
+                return entry.val;
+            }
+            return delegate.peek(key);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean delete(Key key) throws IOException {
+        if (key == null) {
+            throw new IllegalArgumentException("key cannot be null");
+        }
+        ReentrantLock lock = stripe(key);
+        lock.lock();
+        try {
+            boolean cancelled = pending.remove(key) != null;
+            return delegate.delete(key) || cancelled;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * wait until every value queued so far has been written
+     * @throws IOException if any write failed since the last flush. Values that failed stay readable from here
+     */
+    public void flush() throws IOException {
+        synchronized (this) {
+            while (outstanding > 0) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("interrupted while flushing", e);
+                }
+            }
+        }
+        throwFailure();
+    }
+
+    /**
+     * flush and stop the writer threads. Nothing can be serialized afterwards
+     */
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        try {
+            flush();
+        } finally {
+            closed = true;
+            for (Thread writer : writers) {
+                writer.interrupt();
+            }
+        }
+    }
+
+    /**
+     * number of values waiting to be written
+     */
+    public int pendingCount() {
+        return pending.size();
+    }
+
+    //writer thread loop
+    private void write() {
+        while (!closed) {
+            Pending<Key, Value> entry;
+            try {
+                entry = queue.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            ReentrantLock lock = stripe(entry.key);
+            lock.lock();
+            try {
+                //skip values that were read back, deleted or replaced while queued
+                if (pending.get(entry.key) == entry) {
+                    delegate.serialize(entry.key, entry.val);
+                    pending.remove(entry.key, entry);
+                }
+            } catch (IOException | RuntimeException e) {
+                //the value stays in pending, so it can still be read
+                synchronized (this) {
+                    if (failure == null) {
+                        failure = e instanceof IOException ? (IOException) e : new IOException(e);
+                    }
+                }
+            } finally {
+                lock.unlock();
+                done();
+            }
+        }
+    }
+
+    private synchronized void done() {
+        outstanding--;
+        if (outstanding == 0) {
+            notifyAll();
+        }
+    }
+
+    private synchronized void throwFailure() throws IOException {
+        if (failure != null) {
+            IOException e = failure;
+            failure = null;
+            throw e;
+        }
+    }
+
+    private ReentrantLock stripe(Key key) {
+        int h = key.hashCode();
+        return stripes[(h ^ (h >>> 16)) & (STRIPES - 1)];
+    }
+}
@@ -0,0 +1,181 @@
+package edu.yu.cs.com1320.project.impl;
+
+import edu.yu.cs.com1320.project.BTree;
+
+import java.net.URI;
+import java.util.List;
+import java.util.Random;
+import java.util.function.Supplier;
+
+/**
+ * Rough benchmarks of BTreeImpl: lookup latency against tree size for several node orders,
+ * insert throughput of the single-descent put against a get followed by a put,
+ * lookup latency and heap use of URI keys against binary keys,
+ * and the cost per key of a cursor scan against a descent from the root for every key.
+ * Not a unit test - run the main method directly.
+ */
+public class BTreeImplBenchmark {
+
+    private static final int[] ORDERS = {4, 16, 64, 128, 256, 512};
+    private static final int[] SIZES = {10_000, 100_000, 1_000_000};
+    private static final int LOOKUPS = 200_000;
+    private static final int INSERT_ORDER = 128;
+
+    public static void main(String[] args) {
+        System.out.println("lookup latency (ns/op)");
+        System.out.printf("%10s", "size");
+        for (int order : ORDERS) {
+            System.out.printf("%10s", "order " + order);
+        }
+        System.out.println();
+        for (int size : SIZES) {
+            URI[] keys = createKeys(size);
+            System.out.printf("%10d", size);
+            for (int order : ORDERS) {
+                System.out.printf("%10.1f", lookupLatency(order, keys));
+            }
+            System.out.println();
+        }
+
+        System.out.println();
+        System.out.println("insert throughput, order " + INSERT_ORDER + " (inserts/s)");
+        System.out.printf("%10s%15s%15s%10s%n", "size", "get + put", "put", "gain");
+        for (int size : SIZES) {
+            URI[] keys = createKeys(size);
+            //warm up
+            insertThroughput(keys, true);
+            insertThroughput(keys, false);
+            double twoPass = insertThroughput(keys, true);
+            double singlePass = insertThroughput(keys, false);
+            System.out.printf("%10d%15.0f%15.0f%9.2fx%n", size, twoPass, singlePass, singlePass / twoPass);
+        }
+
+        System.out.println();
+        System.out.println("uri keys against binary keys, order " + INSERT_ORDER);
+        System.out.printf("%10s%15s%15s%15s%15s%n", "size", "uri ns/op", "binary ns/op", "uri MB", "binary MB");
+        for (int size : SIZES) {
+            URI[] keys = createKeys(size);
+            System.out.printf("%10d%15.1f%15.1f%15.1f%15.1f%n", size,
+                    lookupLatency(new BTreeImpl<>(INSERT_ORDER), keys),
+                    lookupLatency(new BTreeImpl<>(INSERT_ORDER, URI::create), keys),
+                    heapUsed(() -> new BTreeImpl<>(INSERT_ORDER), keys),
+                    heapUsed(() -> new BTreeImpl<>(INSERT_ORDER, URI::create), keys));
+        }
+
+        //the cursor has no leaf links to follow, since leaves can be shared with snapshots. It climbs to the nearest
+        //ancestor with another child at the end of each leaf instead, which should cost little next to a descent per key
+        System.out.println();
+        System.out.println("ordered scan, order " + INSERT_ORDER + " (ns/key)");
+        System.out.printf("%10s%15s%15s%n", "size", "cursor", "get per key");
+        for (int size : SIZES) {
+            URI[] keys = createKeys(size);
+            BTree<URI, Integer> tree = new BTreeImpl<>(INSERT_ORDER, URI::create);
+            for (int i = 0; i < keys.length; i++) {
+                tree.put(keys[i], i);
+            }
+            List<URI> sorted = tree.range(null, null);
+            //warm up
+            scanLatency(tree, sorted, true);
+            scanLatency(tree, sorted, false);
+            System.out.printf("%10d%15.1f%15.1f%n", size, scanLatency(tree, sorted, true), scanLatency(tree, sorted, false));
+        }
+    }
+
+    //walk every key in order, with a cursor or with a get per key
+    private static double scanLatency(BTree<URI, Integer> tree, List<URI> sorted, boolean cursor) {
+        long checksum = 0;
+        long start = System.nanoTime();
+        if (cursor) {
+            BTree.Cursor<URI, Integer> keys = tree.cursor(null);
+            while (keys.next()) {
+                checksum += keys.getValue();
+            }
+        } else {
+            for (URI key : sorted) {
+                checksum += tree.get(key);
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        if (checksum == 42) {
+            System.out.print("");
+        }
+        return (double) elapsed / sorted.size();
+    }
+
+    //megabytes retained by a tree holding its own copy of the keys
+    private static double heapUsed(Supplier<BTree<URI, Integer>> trees, URI[] keys) {
+        long before = usedMemory();
+        //keys in a real store are not kept anywhere else, so give the tree its own copies
+        URI[] copies = new URI[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            copies[i] = URI.create(keys[i].toString());
+        }
+        BTree<URI, Integer> tree = trees.get();
+        for (int i = 0; i < copies.length; i++) {
+            tree.put(copies[i], 1);
+        }
+        //the binary tree keeps no reference to the uri objects
+        copies = null;
+        long after = usedMemory();
+        if (tree.get(keys[0]) == null) {
+            System.out.print("");
+        }
+        return (after - before) / (1024.0 * 1024.0);
+    }
+
+    private static long usedMemory() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    //twoPass repeats the lookup the old put did before walking the tree again to insert
+    private static double insertThroughput(URI[] keys, boolean twoPass) {
+        BTree<URI, Integer> tree = new BTreeImpl<>(INSERT_ORDER);
+        long start = System.nanoTime();
+        for (int i = 0; i < keys.length; i++) {
+            if (twoPass) {
+                tree.get(keys[i]);
+            }
+            tree.put(keys[i], i);
+        }
+        long elapsed = System.nanoTime() - start;
+        return keys.length / (elapsed / 1e9);
+    }
+
+    private static double lookupLatency(int order, URI[] keys) {
+        return lookupLatency(new BTreeImpl<>(order), keys);
+    }
+
+    private static double lookupLatency(BTree<URI, Integer> tree, URI[] keys) {
+        for (int i = 0; i < keys.length; i++) {
+            tree.put(keys[i], i);
+        }
+        Random random = new Random(42);
+        //warm up
+        long checksum = 0;
+        for (int i = 0; i < LOOKUPS; i++) {
+            checksum += tree.get(keys[random.nextInt(keys.length)]);
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < LOOKUPS; i++) {
+            checksum += tree.get(keys[random.nextInt(keys.length)]);
+        }
+        long elapsed = System.nanoTime() - start;
+        if (checksum == 42) {
+            System.out.print("");
+        }
+        return (double) elapsed / LOOKUPS;
+    }
+
+    static URI[] createKeys(int size) {
+        Random random = new Random(size);
+        URI[] keys = new URI[size];
+        for (int i = 0; i < size; i++) {
+            keys[i] = URI.create("http://www.example.com/site" + random.nextInt(100) + "/document/" + i);
+        }
+        return keys;
+    }
+}
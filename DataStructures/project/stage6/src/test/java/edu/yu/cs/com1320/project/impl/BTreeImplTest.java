@@ -1,12 +1,23 @@
 package edu.yu.cs.com1320.project.impl;
 
 import edu.yu.cs.com1320.project.BTree;
+import edu.yu.cs.com1320.project.stage6.PersistenceManager;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
 import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.net.URI;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.ConcurrentModificationException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
 import java.util.Set;
+import java.util.TreeMap;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -47,6 +58,629 @@ class BTreeImplTest {
         assertEquals(1, deletedValue);
         assertNull(hashTable.get("one"));
     }
-}
 
+    @Test
+    void testLargerOrder() {
+        BTree<Integer, Integer> tree = new BTreeImpl<>(64);
+        for (int i = 0; i < 10000; i++) {
+            assertNull(tree.put((i * 7919) % 10000, i));
+        }
+        for (int i = 0; i < 10000; i++) {
+            assertEquals(i, tree.get((i * 7919) % 10000));
+        }
+        assertNull(tree.get(10000));
+        assertNull(tree.get(-1));
+    }
+
+    @Test
+    void testDescendingInserts() {
+        BTree<Integer, Integer> tree = new BTreeImpl<>(4);
+        for (int i = 1000; i > 0; i--) {
+            tree.put(i, i);
+        }
+        for (int i = 1; i <= 1000; i++) {
+            assertEquals(i, tree.get(i));
+        }
+    }
+
+    @Test
+    void testDeleteRemovesKey() {
+        assertEquals(2, hashTable.delete("two"));
+        assertNull(hashTable.get("two"));
+        assertNull(hashTable.delete("two"));
+        assertEquals(1, hashTable.get("one"));
+        assertEquals(3, hashTable.get("three"));
+    }
+
+    @Test
+    void testRandomPutsAndDeletes() {
+        BTree<Integer, Integer> tree = new BTreeImpl<>(6);
+        TreeMap<Integer, Integer> expected = new TreeMap<>();
+        Random random = new Random(1320);
+        for (int i = 0; i < 50000; i++) {
+            int key = random.nextInt(2000);
+            if (random.nextInt(3) == 0) {
+                assertEquals(expected.remove(key), tree.delete(key));
+            } else {
+                assertEquals(expected.put(key, i), tree.put(key, i));
+            }
+        }
+        for (int key = 0; key < 2000; key++) {
+            assertEquals(expected.get(key), tree.get(key));
+        }
+        for (int key : expected.keySet()) {
+            assertNotNull(tree.delete(key));
+        }
+        for (int key = 0; key < 2000; key++) {
+            assertNull(tree.get(key));
+        }
+    }
+
+    @Test
+    void testRange() {
+        BTree<Integer, Integer> tree = new BTreeImpl<>(4);
+        for (int i = 0; i < 1000; i += 2) {
+            tree.put(i, i);
+        }
+        for (int i = 0; i < 1000; i += 4) {
+            tree.delete(i);
+        }
+        List<Integer> keys = tree.range(100, 120);
+        assertEquals(List.of(102, 106, 110, 114, 118), keys);
+        assertEquals(250, tree.range(null, null).size());
+        assertEquals(List.of(990, 994, 998), tree.range(989, null));
+        assertTrue(tree.range(2000, null).isEmpty());
+    }
+
+    @Test
+    void testCursor() {
+        BTree<Integer, Integer> tree = new BTreeImpl<>(4);
+        for (int i = 100; i > 0; i--) {
+            tree.put(i, i * 10);
+        }
+        BTree.Cursor<Integer, Integer> cursor = tree.cursor(50);
+        assertTrue(cursor.next());
+        assertEquals(50, cursor.getKey());
+        assertEquals(500, cursor.getValue());
+        assertTrue(cursor.next());
+        assertEquals(51, cursor.getKey());
+        assertTrue(cursor.previous());
+        assertTrue(cursor.previous());
+        assertEquals(49, cursor.getKey());
+
+        cursor = tree.cursor(null);
+        int count = 0;
+        while (cursor.next()) {
+            count++;
+        }
+        assertEquals(100, count);
+        while (cursor.previous()) {
+            count--;
+        }
+        assertEquals(0, count);
+
+        cursor = tree.cursor(1);
+        tree.put(1000, 1000);
+        assertThrows(ConcurrentModificationException.class, cursor::next);
+    }
+
+    @Test
+    void testBulkLoad() {
+        for (int size : new int[]{0, 1, 5, 6, 7, 100, 1001}) {
+            BTree<Integer, Integer> tree = new BTreeImpl<>(6);
+            TreeMap<Integer, Integer> entries = new TreeMap<>();
+            for (int i = 0; i < size; i++) {
+                entries.put(i * 2, i);
+            }
+            tree.bulkLoad(entries.entrySet().iterator());
+            for (int i = 0; i < size; i++) {
+                assertEquals(i, tree.get(i * 2));
+                assertNull(tree.get(i * 2 + 1));
+            }
+            assertEquals(size, tree.range(null, null).size());
+            //the bulk loaded tree still supports inserts and deletes
+            for (int i = 0; i < size; i++) {
+                assertNull(tree.put(i * 2 + 1, i));
+            }
+            for (int i = 0; i < size; i++) {
+                assertEquals(i, tree.delete(i * 2));
+            }
+            assertEquals(size, tree.range(null, null).size());
+        }
+    }
+
+    @Test
+    void testBulkLoadRejectsBadInput() {
+        assertThrows(IllegalStateException.class, () -> hashTable.bulkLoad(List.of(Map.entry("a", 1)).iterator()));
+        BTree<Integer, Integer> tree = new BTreeImpl<>();
+        assertThrows(IllegalArgumentException.class, () -> tree.bulkLoad(List.of(Map.entry(2, 2), Map.entry(1, 1)).iterator()));
+    }
+
+    @Test
+    void testCompute() {
+        assertEquals(1, hashTable.compute("one", (key, value) -> value + 10));
+        assertEquals(11, hashTable.get("one"));
+        assertNull(hashTable.compute("four", (key, value) -> value == null ? 4 : value + 1));
+        assertEquals(4, hashTable.get("four"));
+        assertNull(hashTable.compute("five", (key, value) -> null));
+        assertNull(hashTable.get("five"));
+        assertEquals(2, hashTable.compute("two", (key, value) -> null));
+        assertNull(hashTable.get("two"));
+        assertEquals(List.of("four", "one", "three"), hashTable.range(null, null));
+    }
+
+    @Test
+    void testPutBlindDoesNotReadFromDisk() throws IOException {
+        CountingPersistenceManager pm = new CountingPersistenceManager();
+        hashTable.setPersistenceManager(pm);
+        hashTable.moveToDisk("one");
+        assertEquals(1, pm.disk.get("one"));
+
+        assertTrue(hashTable.putBlind("one", 100));
+        assertEquals(0, pm.deserializeCalls);
+        assertFalse(pm.disk.containsKey("one"));
+        assertEquals(100, hashTable.get("one"));
+        assertFalse(hashTable.putBlind("four", 4));
+        assertEquals(4, hashTable.get("four"));
+
+        hashTable.moveToDisk("two");
+        assertEquals(2, hashTable.put("two", 20));
+        assertEquals(1, pm.deserializeCalls);
+    }
+
+    @Test
+    void testStandIns() throws IOException {
+        CountingPersistenceManager pm = new CountingPersistenceManager();
+        hashTable.setPersistenceManager(pm);
+        //the stand-in of a value is its negative, and is handed the value back
+        hashTable.setStandIns(new BTree.StandIns<>() {
+            @Override
+            public Integer standIn(Integer value) {
+                return -value;
+            }
+
+            @Override
+            public Integer restore(Integer standIn, Integer value) {
+                assertEquals(-value, standIn);
+                return value * 10;
+            }
+        });
+        hashTable.moveAllToDisk(List.of("one", "two", "three"));
+        assertEquals(-1, hashTable.get("one"));
+        assertEquals(0, pm.deserializeCalls);
+        //already on disk, so not written again
+        hashTable.moveToDisk("one");
+        assertEquals(3, pm.serializeCalls);
+
+        hashTable.prefetch(List.of("one", "two"));
+        assertEquals(10, hashTable.get("one"));
+        assertEquals(20, hashTable.get("two"));
+        assertEquals(30, hashTable.compute("three", (key, value) -> value + 1));
+        assertEquals(31, hashTable.get("three"));
+        hashTable.moveToDisk("two");
+        assertEquals(200, hashTable.delete("two"));
+        assertTrue(pm.disk.isEmpty());
+    }
+
+    //keeps "disk" in a map and counts how often values are read back
+    private static class CountingPersistenceManager implements PersistenceManager<String, Integer> {
+        private final HashMap<String, Integer> disk = new HashMap<>();
+        private int serializeCalls;
+        private int deserializeCalls;
+        private int peekCalls;
+        private int batches;
+        private int readBatches;
+
+        @Override
+        public List<Integer> deserializeAll(List<String> keys) {
+            readBatches++;
+            return PersistenceManager.super.deserializeAll(keys);
+        }
+
+        @Override
+        public void serializeAll(List<? extends Map.Entry<String, Integer>> entries) {
+            batches++;
+            for (Map.Entry<String, Integer> entry : entries) {
+                serialize(entry.getKey(), entry.getValue());
+            }
+        }
+
+        @Override
+        public void serialize(String key, Integer val) {
+            serializeCalls++;
+            disk.put(key, val);
+        }
 
+        @Override
+        public Integer deserialize(String key) {
+            deserializeCalls++;
+            return disk.remove(key);
+        }
+
+        @Override
+        public Integer peek(String key) {
+            peekCalls++;
+            return disk.get(key);
+        }
+
+        @Override
+        public boolean delete(String key) {
+            return disk.remove(key) != null;
+        }
+    }
+
+    @Test
+    void testInvalidOrder() {
+        assertThrows(IllegalArgumentException.class, () -> new BTreeImpl<String, Integer>(2));
+        assertThrows(IllegalArgumentException.class, () -> new BTreeImpl<String, Integer>(65));
+    }
+
+    @Test
+    void testBinaryKeys() {
+        BTree<URI, Integer> tree = new BTreeImpl<>(4, URI::create);
+        TreeMap<URI, Integer> expected = new TreeMap<>(tree.comparator());
+        Random random = new Random(3);
+        for (int i = 0; i < 20000; i++) {
+            //long shared prefixes, and some keys that diverge early
+            URI key = URI.create((random.nextInt(10) == 0 ? "https://other.org/" : "http://www.example.com/docs/")
+                    + random.nextInt(50) + "/page" + random.nextInt(40));
+            if (random.nextInt(3) == 0) {
+                assertEquals(expected.remove(key), tree.delete(key));
+            } else {
+                assertEquals(expected.put(key, i), tree.put(key, i));
+            }
+        }
+        for (Map.Entry<URI, Integer> entry : expected.entrySet()) {
+            assertEquals(entry.getValue(), tree.get(entry.getKey()));
+        }
+        assertEquals(new ArrayList<>(expected.keySet()), tree.range(null, null));
+        URI from = URI.create("http://www.example.com/docs/2");
+        URI to = URI.create("http://www.example.com/docs/3");
+        assertEquals(new ArrayList<>(expected.subMap(from, to).keySet()), tree.range(from, to));
+
+        BTree<URI, Integer> loaded = new BTreeImpl<>(4, URI::create);
+        loaded.bulkLoad(expected.entrySet().iterator());
+        assertEquals(new ArrayList<>(expected.keySet()), loaded.range(null, null));
+        BTree.Cursor<URI, Integer> cursor = loaded.cursor(null);
+        assertTrue(cursor.next());
+        assertEquals(expected.firstKey(), cursor.getKey());
+        assertEquals(expected.firstEntry().getValue(), cursor.getValue());
+    }
+
+    @Test
+    void testSnapshot() throws IOException {
+        BTree<Integer, Integer> tree = new BTreeImpl<>(4);
+        TreeMap<Integer, Integer> expected = new TreeMap<>();
+        for (int i = 0; i < 1000; i++) {
+            tree.put(i, i);
+            expected.put(i, i);
+        }
+        BTree<Integer, Integer> snapshot = tree.snapshot();
+        //splits, merges and replaced values in the tree
+        for (int i = 0; i < 1000; i += 2) {
+            tree.delete(i);
+        }
+        for (int i = 1000; i < 2000; i++) {
+            tree.put(i, i);
+        }
+        for (int i = 1; i < 1000; i += 2) {
+            tree.put(i, -i);
+        }
+        assertEquals(new ArrayList<>(expected.keySet()), snapshot.range(null, null));
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(i, snapshot.get(i));
+            assertEquals(i % 2 == 0 ? null : -i, tree.get(i));
+        }
+        assertNull(snapshot.get(1500));
+        assertEquals(1500, tree.range(null, null).size());
+        BTree.Cursor<Integer, Integer> cursor = snapshot.cursor(500);
+        assertTrue(cursor.next());
+        assertEquals(500, cursor.getValue());
+        assertTrue(cursor.previous());
+        assertEquals(499, cursor.getKey());
+        assertThrows(UnsupportedOperationException.class, () -> snapshot.put(1, 1));
+        assertThrows(UnsupportedOperationException.class, () -> snapshot.delete(1));
+
+        //a value moved to disk after the snapshot stays in memory for the snapshot
+        BTree<String, Integer> strings = new BTreeImpl<>();
+        CountingPersistenceManager pm = new CountingPersistenceManager();
+        strings.setPersistenceManager(pm);
+        strings.put("one", 1);
+        strings.put("two", 2);
+        strings.moveToDisk("two");
+        BTree<String, Integer> stringSnapshot = strings.snapshot();
+        strings.moveToDisk("one");
+        assertEquals(1, stringSnapshot.get("one"));
+        assertEquals(0, pm.deserializeCalls);
+        //a value that was already on disk is read back without taking it off disk
+        assertEquals(2, stringSnapshot.get("two"));
+        assertEquals(2, pm.disk.get("two"));
+        assertEquals(2, strings.get("two"));
+        assertEquals(1, strings.get("one"));
+    }
+
+    @Test
+    void testStats() throws IOException {
+        BTreeImpl<Integer, Integer> tree = new BTreeImpl<>(4);
+        BTreeImpl.Stats stats = tree.stats();
+        assertEquals(0, stats.getHeight());
+        assertEquals(1, stats.getNodeCount());
+        Random random = new Random(3);
+        List<Integer> keys = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            keys.add(i);
+        }
+        Collections.shuffle(keys, random);
+        for (int key : keys) {
+            tree.put(key, key);
+        }
+        stats = tree.stats();
+        assertEquals(1000, stats.getEntryCount());
+        assertTrue(stats.getHeight() >= 6);
+        assertTrue(stats.getSplits() > 0);
+        //every split added a node to the one the tree started with, and each root split a new root too
+        assertEquals(stats.getSplits() + stats.getHeight() + 1, stats.getNodeCount());
+        assertTrue(stats.getAverageFill() >= 0.5 && stats.getAverageFill() <= 1);
+
+        HashMap<Integer, Integer> disk = new HashMap<>();
+        tree.setPersistenceManager(new PersistenceManager<>() {
+            public void serialize(Integer key, Integer val) {
+                disk.put(key, val);
+            }
+            public Integer deserialize(Integer key) {
+                return disk.remove(key);
+            }
+            public boolean delete(Integer key) {
+                return disk.remove(key) != null;
+            }
+        });
+        for (int i = 0; i < 100; i++) {
+            tree.moveToDisk(i);
+        }
+        assertEquals(100, tree.stats().getOnDiskCount());
+        assertEquals(100, tree.stats().getDiskWrites());
+        for (int i = 0; i < 20; i++) {
+            assertEquals(i, tree.get(i));
+        }
+        assertEquals(150, tree.get(150));
+        tree.put(20, 20);
+        tree.putBlind(21, 21);
+        tree.delete(22);
+        stats = tree.stats();
+        assertEquals(21, stats.getGets());
+        assertEquals(1, stats.getMemoryHits());
+        assertEquals(22, stats.getDiskReads());
+        assertEquals(77, stats.getOnDiskCount());
+
+        //deleting everything merges the tree back into a single node
+        for (int key : keys) {
+            tree.delete(key);
+        }
+        stats = tree.stats();
+        assertEquals(0, stats.getEntryCount());
+        assertEquals(0, stats.getOnDiskCount());
+        assertEquals(0, stats.getHeight());
+        assertEquals(1, stats.getNodeCount());
+        assertTrue(stats.getMerges() > 0);
+
+        tree.bulkLoad(new TreeMap<>(Map.of(1, 1, 2, 2, 3, 3, 4, 4, 5, 5)).entrySet().iterator());
+        stats = tree.stats();
+        assertEquals(2, stats.getExternalNodeCount());
+        assertEquals(1, stats.getInternalNodeCount());
+        assertEquals(5.0 / 6, stats.getAverageFill(), 1e-9);
+    }
+
+    @Test
+    void testMoveAllToDisk() throws IOException {
+        BTreeImpl<String, Integer> tree = new BTreeImpl<>(4);
+        CountingPersistenceManager pm = new CountingPersistenceManager();
+        tree.setPersistenceManager(pm);
+        for (int i = 0; i < 50; i++) {
+            tree.put("key" + i, i);
+        }
+        BTree<String, Integer> snapshot = tree.snapshot();
+        List<String> keys = new ArrayList<>();
+        for (int i = 0; i < 50; i += 5) {
+            keys.add("key" + i);
+        }
+        //missing keys are skipped and a repeated key is moved once
+        keys.add("missing");
+        keys.add("key0");
+        tree.moveAllToDisk(keys);
+        assertEquals(1, pm.batches);
+        assertEquals(10, pm.serializeCalls);
+        assertEquals(10, pm.disk.size());
+        BTreeImpl.Stats stats = tree.stats();
+        assertEquals(10, stats.getOnDiskCount());
+        assertEquals(10, stats.getDiskWrites());
+        assertEquals(1, stats.getDiskWriteBatches());
+        assertTrue(stats.getDiskWriteBatchNanos() > 0);
+        assertEquals(stats.getDiskWriteBatchNanos(), stats.getAverageDiskWriteBatchNanos());
+
+        //the snapshot keeps its values in memory
+        assertEquals(5, snapshot.get("key5"));
+        assertEquals(0, pm.deserializeCalls);
+        assertEquals(5, tree.get("key5"));
+        assertEquals(1, pm.deserializeCalls);
+
+        //nothing left to move is not a batch
+        tree.moveAllToDisk(List.of("missing", "key10"));
+        assertEquals(1, pm.batches);
+        assertEquals(1, tree.stats().getDiskWriteBatches());
+    }
+    @Test
+    void testSnapshotOfValuesOnDisk() throws IOException {
+        BTreeImpl<String, Integer> tree = new BTreeImpl<>(4);
+        CountingPersistenceManager pm = new CountingPersistenceManager();
+        tree.setPersistenceManager(pm);
+        for (int i = 0; i < 50; i++) {
+            tree.put("key" + i, i);
+        }
+        tree.moveAllToDisk(List.of("key3", "key4"));
+        BTree<String, Integer> snapshot = tree.snapshot();
+
+        //neither the snapshot nor the tree takes a value off disk from a leaf they share
+        assertEquals(3, snapshot.get("key3"));
+        assertEquals(3, tree.get("key3"));
+        tree.prefetch(List.of("key4"));
+        assertEquals(0, pm.readBatches);
+        assertEquals(4, snapshot.get("key4"));
+        assertEquals(0, pm.deserializeCalls);
+        assertEquals(3, pm.peekCalls);
+        assertEquals(Set.of("key3", "key4"), pm.disk.keySet());
+        assertEquals(2, tree.stats().getOnDiskCount());
+
+        //a change copies the leaf, and while the snapshot is reachable the tree peeks at what it may read
+        assertEquals(3, tree.put("key3", 33));
+        assertEquals(0, pm.deserializeCalls);
+        assertEquals(33, tree.get("key3"));
+        assertEquals(1, tree.stats().getOnDiskCount());
+        assertEquals(2, ((BTreeImpl<String, Integer>) snapshot).stats().getOnDiskCount());
+        assertEquals(3, snapshot.get("key3"));
+
+        //moving the new value to disk doesn't write over the snapshot's, and a delete leaves it too
+        tree.moveToDisk("key3");
+        tree.moveAllToDisk(List.of("key3"));
+        assertEquals(3, snapshot.get("key3"));
+        assertEquals(33, tree.get("key3"));
+        assertEquals(4, tree.delete("key4"));
+        assertNull(tree.get("key4"));
+        assertEquals(4, snapshot.get("key4"));
+        assertEquals(List.of("key4"), snapshot.range("key4", "key40"));
+        assertEquals(List.of(), tree.range("key4", "key40"));
+        assertEquals(0, pm.deserializeCalls);
+
+        //once the snapshot can't be read, the next change deletes what was left for it
+        snapshot = null;
+        for (int i = 0; i < 20 && pm.disk.containsKey("key4"); i++) {
+            System.gc();
+            tree.moveToDisk("key3");
+        }
+        assertEquals(Set.of("key3"), pm.disk.keySet());
+        assertEquals(33, pm.disk.get("key3"));
+        assertEquals(33, tree.get("key3"));
+        assertEquals(1, pm.deserializeCalls);
+    }
+
+    @Test
+    void testDroppedSnapshotGivesItsLeavesBack() throws IOException {
+        BTreeImpl<String, Integer> tree = new BTreeImpl<>(4);
+        CountingPersistenceManager pm = new CountingPersistenceManager();
+        tree.setPersistenceManager(pm);
+        for (int i = 0; i < 50; i++) {
+            tree.put("key" + i, i);
+        }
+        tree.moveAllToDisk(List.of("key3", "key4"));
+        BTree<String, Integer> snapshot = tree.snapshot();
+        assertEquals(3, snapshot.get("key3"));
+        WeakReference<BTree<String, Integer>> dropped = new WeakReference<>(snapshot);
+        snapshot = null;
+        for (int i = 0; i < 20 && dropped.get() != null; i++) {
+            System.gc();
+        }
+        assertNull(dropped.get());
+
+        //with no snapshot left to share them, the leaves are the tree's: the value is read off disk once and kept
+        int peeks = pm.peekCalls;
+        long hits = tree.stats().getMemoryHits();
+        assertEquals(3, tree.get("key3"));
+        assertEquals(3, tree.get("key3"));
+        assertEquals(1, pm.deserializeCalls);
+        assertEquals(peeks, pm.peekCalls);
+        assertEquals(hits + 1, tree.stats().getMemoryHits());
+        assertEquals(1, tree.stats().getOnDiskCount());
+        tree.prefetch(List.of("key4"));
+        assertEquals(1, pm.readBatches);
+        assertEquals(0, tree.stats().getOnDiskCount());
+        assertTrue(pm.disk.isEmpty());
+    }
+
+    @Test
+    void testSnapshotCopiesValuesChangedInPlace() {
+        BTreeImpl<String, StringBuilder> tree = new BTreeImpl<>(4);
+        for (int i = 0; i < 20; i++) {
+            tree.put("key" + i, new StringBuilder("value" + i));
+        }
+        BTree<String, StringBuilder> shared = tree.snapshot();
+        BTree<String, StringBuilder> copied = tree.snapshot(StringBuilder::new);
+        tree.get("key3").append(" changed");
+        tree.compute("key7", (key, value) -> value.append(" changed"));
+        BTree.Cursor<String, StringBuilder> cursor = tree.cursor("key12");
+        assertTrue(cursor.next());
+        cursor.getValue().append(" changed");
+
+        assertEquals("value3 changed", tree.get("key3").toString());
+        assertEquals("value7 changed", tree.get("key7").toString());
+        assertEquals("value12 changed", tree.get("key12").toString());
+        assertEquals("value3", copied.get("key3").toString());
+        assertEquals("value7", copied.get("key7").toString());
+        assertEquals("value12", copied.get("key12").toString());
+        //a snapshot taken without a copy function was taken before the copies, so it shares what the tree had
+        assertEquals("value3", shared.get("key3").toString());
+        assertEquals("value5", copied.get("key5").toString());
+    }
+
+    @Test
+    void testBulkLoadOnDisk() throws IOException {
+        BTreeImpl<String, Integer> tree = new BTreeImpl<>(4);
+        List<String> keys = new ArrayList<>();
+        for (int i = 0; i < 49; i++) {
+            keys.add(String.format("key%02d", i));
+        }
+        assertThrows(IllegalStateException.class, () -> tree.bulkLoadOnDisk(keys.iterator()));
+        CountingPersistenceManager pm = new CountingPersistenceManager();
+        tree.setPersistenceManager(pm);
+        for (int i = 0; i < 49; i++) {
+            pm.serialize(keys.get(i), i);
+        }
+        tree.bulkLoadOnDisk(keys.iterator());
+        assertEquals(49, tree.stats().getOnDiskCount());
+        assertEquals(0, pm.deserializeCalls);
+        assertEquals(keys, tree.range("key00", "key99"));
+
+        //read back on first use, from memory after that
+        assertEquals(48, tree.get("key48"));
+        assertEquals(48, tree.get("key48"));
+        assertEquals(1, pm.deserializeCalls);
+        assertEquals(48, tree.stats().getOnDiskCount());
+        //the entry evened out into the last leaf is still on disk
+        assertEquals(47, tree.get("key47"));
+        assertEquals(2, pm.deserializeCalls);
+
+        assertEquals(3, tree.delete("key03"));
+        assertFalse(pm.disk.containsKey("key03"));
+        tree.put("key60", 60);
+        assertEquals(60, tree.get("key60"));
+        assertThrows(IllegalStateException.class, () -> tree.bulkLoadOnDisk(keys.iterator()));
+    }
+    @Test
+    void testPrefetch() throws IOException {
+        BTreeImpl<String, Integer> tree = new BTreeImpl<>(4);
+        CountingPersistenceManager pm = new CountingPersistenceManager();
+        tree.setPersistenceManager(pm);
+        List<String> keys = new ArrayList<>();
+        for (int i = 0; i < 40; i++) {
+            tree.put("key" + i, i);
+            keys.add("key" + i);
+        }
+        tree.moveAllToDisk(keys.subList(0, 30));
+        //in memory, missing and repeated keys are skipped
+        tree.prefetch(List.of("key1", "key2", "key3", "key35", "missing", "key1"));
+        assertEquals(1, pm.readBatches);
+        assertEquals(3, pm.deserializeCalls);
+        assertEquals(27, tree.stats().getOnDiskCount());
+        assertEquals(1, tree.stats().getDiskReadBatches());
+        int calls = pm.deserializeCalls;
+        assertEquals(2, tree.get("key2"));
+        assertEquals(calls, pm.deserializeCalls);
+
+        //a value that can't be read stays on disk
+        pm.disk.remove("key4");
+        tree.prefetch(List.of("key4", "key5"));
+        assertEquals(26, tree.stats().getOnDiskCount());
+        assertEquals(5, tree.get("key5"));
+        //nothing on disk to read is not a batch
+        tree.prefetch(List.of("key5", "key36"));
+        assertEquals(2, pm.readBatches);
+    }
+}
@@ -0,0 +1,99 @@
+package edu.yu.cs.com1320.project.impl;
+
+import edu.yu.cs.com1320.project.BTree;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Rough benchmark of ConcurrentBTreeImpl: throughput of a mixed lookup/insert workload as threads are added,
+ * against BTreeImpl guarded by a single lock.
+ * Not a unit test - run the main method directly.
+ */
+public class ConcurrentBTreeImplBenchmark {
+
+    private static final int[] THREADS = {1, 2, 4, 8};
+    private static final int SIZE = 200_000;
+    private static final int OPS_PER_THREAD = 500_000;
+    private static final int ORDER = 64;
+    //percentage of operations that are puts
+    private static final int WRITE_PERCENT = 10;
+
+    public static void main(String[] args) throws InterruptedException {
+        URI[] keys = BTreeImplBenchmark.createKeys(SIZE);
+        System.out.println("mixed throughput, " + WRITE_PERCENT + "% puts (ops/s)");
+        System.out.printf("%10s%15s%15s%10s%n", "threads", "locked", "latched", "gain");
+        for (int threads : THREADS) {
+            //warm up
+            throughput(new LockedBTree(), keys, threads);
+            throughput(new ConcurrentBTreeImpl<>(ORDER), keys, threads);
+            double locked = throughput(new LockedBTree(), keys, threads);
+            double latched = throughput(new ConcurrentBTreeImpl<>(ORDER), keys, threads);
+            System.out.printf("%10d%15.0f%15.0f%9.2fx%n", threads, locked, latched, latched / locked);
+        }
+    }
+
+    private static double throughput(BTree<URI, Integer> tree, URI[] keys, int threads) throws InterruptedException {
+        //load half of the keys; puts pick from all of them so some insert and some replace
+        for (int i = 0; i < keys.length; i += 2) {
+            tree.put(keys[i], i);
+        }
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(threads);
+        AtomicLong checksum = new AtomicLong();
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            Random random = new Random(t);
+            Thread worker = new Thread(() -> {
+                long sum = 0;
+                try {
+                    start.await();
+                    for (int i = 0; i < OPS_PER_THREAD; i++) {
+                        int k = random.nextInt(keys.length);
+                        if (random.nextInt(100) < WRITE_PERCENT) {
+                            tree.put(keys[k], k);
+                        } else {
+                            Integer value = tree.get(keys[k]);
+                            sum += value == null ? 0 : value;
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                checksum.addAndGet(sum);
+                done.countDown();
+            });
+            workers.add(worker);
+            worker.start();
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        done.await();
+        long elapsed = System.nanoTime() - begin;
+        if (checksum.get() == 42) {
+            System.out.print("");
+        }
+        return (double) threads * OPS_PER_THREAD / (elapsed / 1e9);
+    }
+
+    //the baseline: BTreeImpl with every get and put behind one lock
+    private static class LockedBTree extends BTreeImpl<URI, Integer> {
+        LockedBTree() {
+            super(ORDER);
+        }
+
+        @Override
+        public synchronized Integer get(URI k) {
+            return super.get(k);
+        }
+
+        @Override
+        public synchronized Integer put(URI k, Integer v) {
+            return super.put(k, v);
+        }
+    }
+}
@@ -0,0 +1,227 @@
+package edu.yu.cs.com1320.project.impl;
+
+import edu.yu.cs.com1320.project.BTree;
+import edu.yu.cs.com1320.project.stage6.PersistenceManager;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.AbstractMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ConcurrentBTreeImplTest {
+    private static final int THREADS = 8;
+
+    private BTree<String, Integer> tree;
+
+    @BeforeEach
+    void setUp() {
+        tree = new ConcurrentBTreeImpl<>(4);
+        tree.put("one", 1);
+        tree.put("two", 2);
+        tree.put("three", 3);
+    }
+
+    @Test
+    void testGetPutDelete() {
+        assertEquals(1, tree.get("one"));
+        assertEquals(1, tree.put("one", 10));
+        assertEquals(10, tree.get("one"));
+        assertNull(tree.put("four", 4));
+        assertEquals(2, tree.delete("two"));
+        assertNull(tree.get("two"));
+        assertEquals(List.of("four", "one", "three"), tree.range(null, null));
+    }
+
+    @Test
+    void testRandomPutsAndDeletes() {
+        BTree<Integer, Integer> tree = new ConcurrentBTreeImpl<>(4);
+        TreeMap<Integer, Integer> expected = new TreeMap<>();
+        Random random = new Random(7);
+        for (int i = 0; i < 20000; i++) {
+            int key = random.nextInt(2000);
+            if (random.nextInt(3) == 0) {
+                assertEquals(expected.remove(key), tree.delete(key));
+            } else {
+                assertEquals(expected.put(key, i), tree.put(key, i));
+            }
+        }
+        assertEquals(new ArrayList<>(expected.keySet()), tree.range(null, null));
+        assertEquals(new ArrayList<>(expected.subMap(500, 1500).keySet()), tree.range(500, 1500));
+    }
+
+    @Test
+    void testCursor() {
+        BTree<Integer, Integer> tree = new ConcurrentBTreeImpl<>(4);
+        for (int i = 0; i < 100; i += 2) {
+            tree.put(i, i);
+        }
+        BTree.Cursor<Integer, Integer> cursor = tree.cursor(41);
+        assertTrue(cursor.next());
+        assertEquals(42, cursor.getKey());
+        assertEquals(42, cursor.getValue());
+        assertTrue(cursor.previous());
+        assertEquals(40, cursor.getKey());
+        for (int i = 38; i >= 0; i -= 2) {
+            assertTrue(cursor.previous());
+            assertEquals(i, cursor.getKey());
+        }
+        assertFalse(cursor.previous());
+        assertTrue(cursor.next());
+        assertEquals(0, cursor.getKey());
+
+        cursor = tree.cursor(null);
+        int count = 0;
+        while (cursor.next()) {
+            assertEquals(count * 2, cursor.getKey());
+            count++;
+        }
+        assertEquals(50, count);
+        assertTrue(cursor.previous());
+        assertEquals(98, cursor.getKey());
+    }
+
+    @Test
+    void testBulkLoad() {
+        BTree<Integer, Integer> tree = new ConcurrentBTreeImpl<>(4);
+        List<Map.Entry<Integer, Integer>> entries = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            entries.add(new AbstractMap.SimpleEntry<>(i, i * 2));
+        }
+        tree.bulkLoad(entries.iterator());
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(i * 2, tree.get(i));
+        }
+        assertThrows(IllegalStateException.class, () -> tree.bulkLoad(entries.iterator()));
+        for (int i = 0; i < 1000; i += 3) {
+            assertEquals(i * 2, tree.delete(i));
+        }
+        assertEquals(666, tree.range(null, null).size());
+    }
+
+    @Test
+    void testBulkLoadOnDisk() {
+        BTree<Integer, Integer> tree = new ConcurrentBTreeImpl<>(4);
+        Map<Integer, Integer> disk = new ConcurrentSkipListMap<>();
+        List<Integer> keys = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            disk.put(i, i * 2);
+            keys.add(i);
+        }
+        assertThrows(IllegalStateException.class, () -> tree.bulkLoadOnDisk(keys.iterator()));
+        tree.setPersistenceManager(new PersistenceManager<>() {
+            @Override
+            public void serialize(Integer key, Integer val) {
+                disk.put(key, val);
+            }
+
+            @Override
+            public Integer deserialize(Integer key) {
+                return disk.remove(key);
+            }
+
+            @Override
+            public boolean delete(Integer key) {
+                return disk.remove(key) != null;
+            }
+        });
+        tree.bulkLoadOnDisk(keys.iterator());
+        assertEquals(200, disk.size());
+        assertEquals(keys, tree.range(null, null));
+        assertEquals(100, tree.get(50));
+        assertFalse(disk.containsKey(50));
+        assertEquals(6, tree.delete(3));
+        assertEquals(198, disk.size());
+    }
+
+    @Test
+    void testConcurrentWriters() throws Exception {
+        BTree<Integer, Integer> tree = new ConcurrentBTreeImpl<>(4);
+        int perThread = 5000;
+        runConcurrently(thread -> {
+            //interleave the threads' keys so they all work on the same leaves
+            for (int i = 0; i < perThread; i++) {
+                tree.put(i * THREADS + thread, thread);
+            }
+            for (int i = 0; i < perThread; i += 2) {
+                assertEquals(thread, tree.delete(i * THREADS + thread));
+            }
+        });
+        List<Integer> keys = tree.range(null, null);
+        assertEquals(THREADS * perThread / 2, keys.size());
+        for (int key : keys) {
+            int thread = key % THREADS;
+            assertEquals(1, (key / THREADS) % 2);
+            assertEquals(thread, tree.get(key));
+        }
+    }
+
+    @Test
+    void testConcurrentReadersAndWriters() throws Exception {
+        BTree<Integer, Integer> tree = new ConcurrentBTreeImpl<>(8);
+        ConcurrentSkipListMap<Integer, Integer> stable = new ConcurrentSkipListMap<>();
+        for (int i = 0; i < 10000; i += 2) {
+            tree.put(i, i);
+            stable.put(i, i);
+        }
+        runConcurrently(thread -> {
+            Random random = new Random(thread);
+            for (int i = 0; i < 20000; i++) {
+                int key = random.nextInt(10000);
+                if (key % 2 == 0) {
+                    //even keys are never changed
+                    assertEquals(key, tree.get(key));
+                } else if (random.nextBoolean()) {
+                    tree.compute(key, (k, existing) -> existing == null ? k : null);
+                } else {
+                    List<Integer> range = tree.range(key, key + 50);
+                    for (int j = 1; j < range.size(); j++) {
+                        assertTrue(range.get(j - 1) < range.get(j));
+                    }
+                    assertTrue(range.containsAll(stable.subMap(key, key + 50).keySet()));
+                }
+            }
+        });
+        for (int i = 0; i < 10000; i += 2) {
+            assertEquals(i, tree.get(i));
+        }
+    }
+
+    private interface Worker {
+        void run(int thread) throws Exception;
+    }
+
+    //start every worker at once and rethrow the first failure
+    private static void runConcurrently(Worker worker) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            int thread = t;
+            futures.add(executor.submit(() -> {
+                start.await();
+                worker.run(thread);
+                return null;
+            }));
+        }
+        start.countDown();
+        try {
+            for (Future<?> future : futures) {
+                future.get(60, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
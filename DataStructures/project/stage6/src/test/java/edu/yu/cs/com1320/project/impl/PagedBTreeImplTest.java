@@ -0,0 +1,280 @@
+package edu.yu.cs.com1320.project.impl;
+
+import edu.yu.cs.com1320.project.BTree;
+import edu.yu.cs.com1320.project.stage6.PersistenceManager;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.ConcurrentModificationException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PagedBTreeImplTest {
+    //small pages and a small pool so the tests split, free and evict plenty of pages
+    private static final int PAGE_SIZE = 256;
+    private static final int POOL_PAGES = 8;
+
+    @TempDir
+    File dir;
+    private File file;
+    private PagedBTreeImpl<Integer, String> tree;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        file = new File(dir, "btree.pages");
+        tree = new PagedBTreeImpl<>(file, Integer::valueOf, PAGE_SIZE, POOL_PAGES);
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        tree.close();
+        assertFalse(file.exists());
+    }
+
+    @Test
+    void testGetPutDelete() {
+        assertNull(tree.put(1, "one"));
+        assertEquals("one", tree.put(1, "uno"));
+        assertEquals("uno", tree.get(1));
+        assertEquals("uno", tree.delete(1));
+        assertNull(tree.get(1));
+        assertNull(tree.delete(1));
+    }
+
+    @Test
+    void testRandomPutsAndDeletes() {
+        TreeMap<Integer, String> expected = new TreeMap<>();
+        Random random = new Random(11);
+        for (int i = 0; i < 30000; i++) {
+            int key = random.nextInt(5000);
+            if (random.nextInt(3) == 0) {
+                assertEquals(expected.remove(key), tree.delete(key));
+            } else {
+                assertEquals(expected.put(key, "v" + i), tree.put(key, "v" + i));
+            }
+        }
+        for (int key = 0; key < 5000; key++) {
+            assertEquals(expected.get(key), tree.get(key));
+        }
+        assertEquals(new ArrayList<>(expected.keySet()), tree.range(null, null));
+        assertEquals(new ArrayList<>(expected.subMap(1000, 2000).keySet()), tree.range(1000, 2000));
+        //the file grows with the tree, the pool doesn't
+        assertTrue(file.length() > (long) PAGE_SIZE * POOL_PAGES);
+    }
+
+    @Test
+    void testDeleteEverything() {
+        for (int i = 0; i < 2000; i++) {
+            tree.put(i, "v" + i);
+        }
+        for (int i = 0; i < 2000; i++) {
+            assertEquals("v" + i, tree.delete(i));
+        }
+        assertTrue(tree.range(null, null).isEmpty());
+        tree.put(5, "five");
+        assertEquals(List.of(5), tree.range(null, null));
+    }
+
+    @Test
+    void testEmptiedPagesAreReused() {
+        for (int i = 0; i < 2000; i++) {
+            tree.put(i, "v" + i);
+        }
+        long full = file.length();
+        //leave one key in ten: the pages they are spread over are merged, and the rest freed for the keys that follow
+        for (int i = 0; i < 2000; i++) {
+            if (i % 10 != 0) {
+                assertEquals("v" + i, tree.delete(i));
+            }
+        }
+        for (int i = 10000; i < 11800; i++) {
+            tree.put(i, "v" + i);
+        }
+        assertTrue(file.length() < full * 5 / 4, file.length() + " bytes, from " + full);
+        for (int i = 0; i < 2000; i += 10) {
+            assertEquals("v" + i, tree.get(i));
+        }
+        assertEquals(2000, tree.range(null, null).size());
+        assertEquals(1800, tree.range(10000, null).size());
+    }
+
+    @Test
+    void testCursor() {
+        for (int i = 0; i < 1000; i += 2) {
+            tree.put(i, "v" + i);
+        }
+        BTree.Cursor<Integer, String> cursor = tree.cursor(401);
+        assertTrue(cursor.next());
+        assertEquals(402, cursor.getKey());
+        assertEquals("v402", cursor.getValue());
+        assertTrue(cursor.previous());
+        assertEquals(400, cursor.getKey());
+        tree.put(1, "one");
+        assertThrows(ConcurrentModificationException.class, cursor::next);
+
+        cursor = tree.cursor(null);
+        int count = 0;
+        while (cursor.next()) {
+            count++;
+        }
+        assertEquals(501, count);
+        assertTrue(cursor.previous());
+        assertEquals(998, cursor.getKey());
+    }
+
+    @Test
+    void testBulkLoad() {
+        List<Map.Entry<Integer, String>> entries = new ArrayList<>();
+        for (int i = 0; i < 5000; i++) {
+            entries.add(new AbstractMap.SimpleEntry<>(i, "v" + i));
+        }
+        tree.bulkLoad(entries.iterator());
+        for (int i = 0; i < 5000; i++) {
+            assertEquals("v" + i, tree.get(i));
+        }
+        assertEquals(5000, tree.range(null, null).size());
+        assertThrows(IllegalStateException.class, () -> tree.bulkLoad(entries.iterator()));
+        tree.put(-1, "first");
+        assertEquals(-1, tree.range(null, 0).get(0));
+    }
+
+    @Test
+    void testBulkLoadRejectsBadInput() {
+        List<Map.Entry<Integer, String>> unsorted = List.of(new AbstractMap.SimpleEntry<>(2, "two"), new AbstractMap.SimpleEntry<>(1, "one"));
+        assertThrows(IllegalArgumentException.class, () -> tree.bulkLoad(unsorted.iterator()));
+        //the failed load left nothing behind
+        assertNull(tree.get(2));
+        assertTrue(tree.range(null, null).isEmpty());
+    }
+
+    @Test
+    void testMoveToDisk() throws IOException {
+        Map<Integer, String> disk = new HashMap<>();
+        tree.setPersistenceManager(new PersistenceManager<>() {
+            @Override
+            public void serialize(Integer key, String val) {
+                disk.put(key, val);
+            }
+
+            @Override
+            public String deserialize(Integer key) {
+                return disk.remove(key);
+            }
+
+            @Override
+            public boolean delete(Integer key) {
+                return disk.remove(key) != null;
+            }
+        });
+        for (int i = 0; i < 500; i++) {
+            tree.put(i, "v" + i);
+        }
+        for (int i = 0; i < 500; i += 2) {
+            tree.moveToDisk(i);
+        }
+        assertEquals(250, disk.size());
+        assertEquals("v10", tree.get(10));
+        assertFalse(disk.containsKey(10));
+        assertTrue(tree.putBlind(12, "twelve"));
+        assertFalse(disk.containsKey(12));
+        assertEquals("v14", tree.delete(14));
+        assertEquals(247, disk.size());
+        assertNull(tree.get(14));
+    }
+
+    @Test
+    void testMoveAllToDisk() throws IOException {
+        Map<Integer, String> disk = new HashMap<>();
+        List<Integer> batches = new ArrayList<>();
+        tree.setPersistenceManager(new PersistenceManager<>() {
+            @Override
+            public void serializeAll(List<? extends Map.Entry<Integer, String>> entries) {
+                batches.add(entries.size());
+                for (Map.Entry<Integer, String> entry : entries) {
+                    disk.put(entry.getKey(), entry.getValue());
+                }
+            }
+
+            @Override
+            public void serialize(Integer key, String val) {
+                disk.put(key, val);
+            }
+
+            @Override
+            public String deserialize(Integer key) {
+                return disk.remove(key);
+            }
+
+            @Override
+            public boolean delete(Integer key) {
+                return disk.remove(key) != null;
+            }
+        });
+        for (int i = 0; i < 500; i++) {
+            tree.put(i, "v" + i);
+        }
+        List<Integer> keys = new ArrayList<>();
+        for (int i = 0; i < 500; i += 5) {
+            keys.add(i);
+        }
+        //twice, and one that isn't in the tree
+        keys.add(0);
+        keys.add(1000);
+        tree.moveAllToDisk(keys);
+        assertEquals(List.of(100), batches);
+        assertEquals(100, disk.size());
+        //already on disk
+        tree.moveAllToDisk(List.of(5, 10));
+        assertEquals(1, batches.size());
+        assertEquals("v5", tree.get(5));
+        assertFalse(disk.containsKey(5));
+        assertEquals("v6", tree.get(6));
+    }
+
+    @Test
+    void testBulkLoadOnDisk() {
+        Map<Integer, String> disk = new HashMap<>();
+        List<Integer> keys = new ArrayList<>();
+        for (int i = 0; i < 300; i++) {
+            disk.put(i, "v" + i);
+            keys.add(i);
+        }
+        assertThrows(IllegalStateException.class, () -> tree.bulkLoadOnDisk(keys.iterator()));
+        tree.setPersistenceManager(new PersistenceManager<>() {
+            @Override
+            public void serialize(Integer key, String val) {
+                disk.put(key, val);
+            }
+
+            @Override
+            public String deserialize(Integer key) {
+                return disk.remove(key);
+            }
+
+            @Override
+            public boolean delete(Integer key) {
+                return disk.remove(key) != null;
+            }
+        });
+        tree.bulkLoadOnDisk(keys.iterator());
+        //nothing is read back to load them
+        assertEquals(300, disk.size());
+        assertEquals(keys, tree.range(null, null));
+        assertEquals("v150", tree.get(150));
+        assertFalse(disk.containsKey(150));
+        assertEquals("v7", tree.delete(7));
+        assertEquals(298, disk.size());
+        assertNull(tree.get(7));
+    }
+}
@@ -0,0 +1,70 @@
+package edu.yu.cs.com1320.project.impl;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Comparator;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TrieImplTest {
+    @TempDir
+    File dir;
+
+    private static TrieImpl<Integer> trie() {
+        TrieImpl<Integer> trie = new TrieImpl<>();
+        for (int i = 0; i < 300; i++) {
+            trie.put("word" + (i % 40), i);
+            trie.put("w" + i, i);
+            trie.put("shared", i);
+        }
+        trie.put("", -1);
+        trie.put("naïve", 7);
+        return trie;
+    }
+
+    @Test
+    void testSnapshotRoundTrip() throws IOException {
+        TrieImpl<Integer> trie = trie();
+        File file = new File(dir, "index.trie");
+        trie.save(file, 7);
+        assertFalse(new File(dir, "index.trie.tmp").exists());
+
+        TrieImpl<Integer> loaded = new TrieImpl<>();
+        assertTrue(loaded.load(file, Integer::valueOf, 7));
+        for (String key : new String[]{"word3", "w250", "shared", "", "naïve", "wor", "missing"}) {
+            assertEquals(trie.get(key), loaded.get(key), key);
+        }
+        assertEquals(trie.getAllWithPrefixSorted("word1", Comparator.naturalOrder()),
+                loaded.getAllWithPrefixSorted("word1", Comparator.naturalOrder()));
+        //a loaded trie changes like any other
+        assertEquals(Integer.valueOf(5), loaded.delete("word5", 5));
+        loaded.put("new", 1000);
+        assertEquals(Set.of(1000), loaded.get("new"));
+        assertThrows(IllegalStateException.class, () -> loaded.load(file, Integer::valueOf, 7));
+    }
+
+    @Test
+    void testStaleOrDamagedSnapshotIsNotLoaded() throws IOException {
+        TrieImpl<Integer> trie = trie();
+        File file = new File(dir, "index.trie");
+        trie.save(file, 7);
+
+        TrieImpl<Integer> loaded = new TrieImpl<>();
+        assertFalse(loaded.load(new File(dir, "missing.trie"), Integer::valueOf, 7));
+        assertFalse(loaded.load(file, Integer::valueOf, 8));
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(raf.length() / 2);
+            int b = raf.read();
+            raf.seek(raf.length() / 2);
+            raf.write(b ^ 1);
+        }
+        assertFalse(loaded.load(file, Integer::valueOf, 7));
+        //left empty, so a rebuild can go ahead
+        assertTrue(loaded.getAllWithPrefixSorted("", null).isEmpty());
+    }
+}
@@ -0,0 +1,100 @@
+package edu.yu.cs.com1320.project.stage6.impl;
+
+import edu.yu.cs.com1320.project.stage6.Document;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.util.Random;
+
+/**
+ * Rough benchmark of the document formats: bytes written and serialize/deserialize throughput,
+ * for text documents and for binary ones.
+ * Encodes to memory so the file system doesn't hide the difference. Not a unit test - run the main method directly.
+ */
+public class DocumentCodecBenchmark {
+
+    private static final int DOCUMENTS = 2_000;
+    private static final int TEXT_WORDS = 500;
+    private static final int BINARY_BYTES = 8 * 1024;
+    private static final int ROUNDS = 5;
+
+    public static void main(String[] args) throws IOException {
+        Document[] text = createTextDocuments();
+        Document[] binary = createBinaryDocuments();
+        DocumentCodec[] codecs = {new JsonDocumentCodec(), new BinaryDocumentCodec(), new CompressedDocumentCodec()};
+        System.out.printf("%-8s%-8s%15s%15s%15s%n", "docs", "codec", "bytes/doc", "write docs/s", "read docs/s");
+        for (Document[] documents : new Document[][]{text, binary}) {
+            String kind = documents == text ? "text" : "binary";
+            for (DocumentCodec codec : codecs) {
+                //warm up
+                run(codec, documents);
+                run(codec, documents);
+                double[] result = run(codec, documents);
+                System.out.printf("%-8s%-8s%15.0f%15.0f%15.0f%n", kind, codec.extension().substring(1), result[0], result[1], result[2]);
+            }
+        }
+    }
+
+    //bytes per document, then documents written and read per second
+    private static double[] run(DocumentCodec codec, Document[] documents) throws IOException {
+        byte[][] encoded = new byte[documents.length][];
+        long bytes = 0;
+        long begin = System.nanoTime();
+        for (int round = 0; round < ROUNDS; round++) {
+            for (int i = 0; i < documents.length; i++) {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                codec.write(documents[i], out);
+                encoded[i] = out.toByteArray();
+            }
+        }
+        long writeTime = System.nanoTime() - begin;
+        for (byte[] e : encoded) {
+            bytes += e.length;
+        }
+        long checksum = 0;
+        begin = System.nanoTime();
+        for (int round = 0; round < ROUNDS; round++) {
+            for (byte[] e : encoded) {
+                checksum += codec.read(new ByteArrayInputStream(e)).getWords().size();
+            }
+        }
+        long readTime = System.nanoTime() - begin;
+        if (checksum == 42) {
+            System.out.print("");
+        }
+        double operations = (double) ROUNDS * documents.length;
+        return new double[]{(double) bytes / documents.length, operations / (writeTime / 1e9), operations / (readTime / 1e9)};
+    }
+
+    private static Document[] createTextDocuments() {
+        Random random = new Random(1);
+        String[] vocabulary = new String[2000];
+        for (int i = 0; i < vocabulary.length; i++) {
+            vocabulary[i] = Integer.toString(i * 7919, 36);
+        }
+        Document[] documents = new Document[DOCUMENTS];
+        for (int i = 0; i < DOCUMENTS; i++) {
+            StringBuilder text = new StringBuilder();
+            for (int w = 0; w < TEXT_WORDS; w++) {
+                text.append(vocabulary[random.nextInt(vocabulary.length)]).append(' ');
+            }
+            documents[i] = new DocumentImpl(URI.create("http://www.example.com/text/doc" + i), text.toString(), null);
+            documents[i].setMetadataValue("author", "author" + random.nextInt(100));
+        }
+        return documents;
+    }
+
+    private static Document[] createBinaryDocuments() {
+        Random random = new Random(2);
+        Document[] documents = new Document[DOCUMENTS];
+        for (int i = 0; i < DOCUMENTS; i++) {
+            byte[] data = new byte[BINARY_BYTES];
+            random.nextBytes(data);
+            documents[i] = new DocumentImpl(URI.create("http://www.example.com/binary/doc" + i), data);
+            documents[i].setMetadataValue("type", "application/octet-stream");
+        }
+        return documents;
+    }
+}
@@ -0,0 +1,437 @@
+package edu.yu.cs.com1320.project.stage6.impl;
+
+import edu.yu.cs.com1320.project.stage6.Document;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+import java.util.zip.Deflater;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DocumentPersistenceManagerTest {
+    @TempDir
+    File baseDir;
+
+    private final URI textUri = URI.create("http://www.example.com/docs/text");
+    private final URI binaryUri = URI.create("https://www.example.com/docs/binary");
+
+    @Test
+    void testJsonRoundTrip() throws IOException {
+        roundTrip(new DocumentPersistenceManager(baseDir), ".json");
+    }
+
+    @Test
+    void testBinaryRoundTrip() throws IOException {
+        roundTrip(new DocumentPersistenceManager(baseDir, new BinaryDocumentCodec()), ".bin");
+    }
+
+    @Test
+    void testCompressedRoundTrip() throws IOException {
+        roundTrip(new DocumentPersistenceManager(baseDir, new CompressedDocumentCodec()), ".bin.z");
+        roundTrip(new DocumentPersistenceManager(baseDir, new CompressedDocumentCodec(new JsonDocumentCodec(), Deflater.BEST_COMPRESSION)), ".json.z");
+    }
+
+    private void roundTrip(DocumentPersistenceManager pm, String extension) throws IOException {
+        Document text = new DocumentImpl(textUri, "the quick brown fox jumps over the lazy dog – naïve café", null);
+        text.setMetadataValue("author", "someone");
+        byte[] bytes = new byte[300];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) i;
+        }
+        Document binary = new DocumentImpl(binaryUri, bytes);
+        binary.setMetadataValue("type", "image/png");
+
+        pm.serialize(textUri, text);
+        pm.serialize(binaryUri, binary);
+        assertTrue(new File(baseDir, "www.example.com/docs/text" + extension).exists());
+        assertTrue(new File(baseDir, "www.example.com/docs/binary" + extension).exists());
+
+        Document readText = pm.deserialize(textUri);
+        assertEquals(textUri, readText.getKey());
+        assertEquals(text.getDocumentTxt(), readText.getDocumentTxt());
+        assertNull(readText.getDocumentBinaryData());
+        assertEquals(text.getMetadata(), readText.getMetadata());
+        assertEquals(text.getWordMap(), readText.getWordMap());
+        assertEquals(2, readText.wordCount("the"));
+        assertEquals(text, readText);
+
+        Document readBinary = pm.deserialize(binaryUri);
+        assertArrayEquals(bytes, readBinary.getDocumentBinaryData());
+        assertNull(readBinary.getDocumentTxt());
+        assertEquals("image/png", readBinary.getMetadataValue("type"));
+        assertEquals(0, readBinary.wordCount("the"));
+
+        //reading a document back removes it from disk
+        assertNull(pm.deserialize(textUri));
+        assertFalse(pm.delete(binaryUri));
+    }
+
+    @Test
+    void testBinaryIsSmaller() throws IOException {
+        byte[] bytes = new byte[10000];
+        new Random(1).nextBytes(bytes);
+        Document binary = new DocumentImpl(binaryUri, bytes);
+        ByteArrayOutputStream json = new ByteArrayOutputStream();
+        ByteArrayOutputStream compact = new ByteArrayOutputStream();
+        new JsonDocumentCodec().write(binary, json);
+        new BinaryDocumentCodec().write(binary, compact);
+        assertTrue(compact.size() < bytes.length + 100);
+        assertTrue(json.size() > 3 * compact.size());
+    }
+
+    @Test
+    void testBinaryRejectsOtherFormats() throws IOException {
+        Document text = new DocumentImpl(textUri, "some text", new HashMap<>());
+        ByteArrayOutputStream json = new ByteArrayOutputStream();
+        new JsonDocumentCodec().write(text, json);
+        BinaryDocumentCodec codec = new BinaryDocumentCodec();
+        assertThrows(IOException.class, () -> codec.read(new ByteArrayInputStream(json.toByteArray())));
+        ByteArrayOutputStream compact = new ByteArrayOutputStream();
+        codec.write(text, compact);
+        byte[] truncated = Arrays.copyOf(compact.toByteArray(), compact.size() - 3);
+        assertThrows(IOException.class, () -> codec.read(new ByteArrayInputStream(truncated)));
+    }
+
+    @Test
+    void testCompressionStats() throws IOException {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 500; i++) {
+            text.append("the quick brown fox jumps over the lazy dog ").append(i % 7).append(' ');
+        }
+        CompressedDocumentCodec codec = new CompressedDocumentCodec();
+        DocumentPersistenceManager pm = new DocumentPersistenceManager(baseDir, codec);
+        pm.serialize(textUri, new DocumentImpl(textUri, text.toString(), null));
+        File file = new File(baseDir, "www.example.com/docs/text.bin.z");
+        CompressedDocumentCodec.Stats stats = codec.stats();
+        assertEquals(1, stats.getDocumentsWritten());
+        assertEquals(file.length(), stats.getCompressedBytesWritten() + 8);
+        assertTrue(stats.getCompressionRatio() > 5, stats.toString());
+        assertEquals(0, stats.getDocumentsRead());
+
+        assertEquals(text.toString(), pm.deserialize(textUri).getDocumentTxt());
+        stats = codec.stats();
+        assertEquals(1, stats.getDocumentsRead());
+        assertEquals(stats.getRawBytesWritten(), stats.getRawBytesRead());
+        assertEquals(stats.getCompressedBytesWritten(), stats.getCompressedBytesRead());
+
+        //a record cut short is an error, not a partial document
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        codec.write(new DocumentImpl(textUri, text.toString(), null), out);
+        byte[] truncated = Arrays.copyOf(out.toByteArray(), out.size() - 10);
+        assertThrows(IOException.class, () -> codec.read(new ByteArrayInputStream(truncated)));
+        assertThrows(IllegalArgumentException.class, () -> new CompressedDocumentCodec(new BinaryDocumentCodec(), 10));
+    }
+
+    @Test
+    void testRawBinaryData() throws IOException {
+        DocumentPersistenceManager pm = new DocumentPersistenceManager(baseDir, new BinaryDocumentCodec(), 1024);
+        byte[] bytes = new byte[100_000];
+        new Random(2).nextBytes(bytes);
+        Document binary = new DocumentImpl(binaryUri, bytes);
+        binary.setMetadataValue("type", "image/png");
+        pm.serialize(binaryUri, binary);
+        File raw = new File(baseDir, "www.example.com/docs/binary.raw");
+        assertEquals(bytes.length, raw.length());
+        //the record only holds the uri and metadata
+        assertTrue(new File(baseDir, "www.example.com/docs/binary.bin").length() < 100);
+
+        //served from disk without taking the document off it
+        ByteArrayOutputStream copy = new ByteArrayOutputStream();
+        assertEquals(bytes.length, pm.transferBinaryData(binaryUri, Channels.newChannel(copy)));
+        assertArrayEquals(bytes, copy.toByteArray());
+        try (InputStream in = pm.openBinaryData(binaryUri)) {
+            assertArrayEquals(bytes, in.readAllBytes());
+        }
+
+        //peek reads it whole and leaves both files
+        Document peeked = pm.peek(binaryUri);
+        assertArrayEquals(bytes, peeked.getDocumentBinaryData());
+        assertEquals("image/png", peeked.getMetadataValue("type"));
+        assertTrue(raw.exists());
+
+        Document read = pm.deserialize(binaryUri);
+        assertArrayEquals(bytes, read.getDocumentBinaryData());
+        assertEquals("image/png", read.getMetadataValue("type"));
+        assertFalse(raw.exists());
+        assertNull(pm.peek(binaryUri));
+        assertNull(pm.openBinaryData(binaryUri));
+        assertEquals(-1, pm.transferBinaryData(binaryUri, Channels.newChannel(copy)));
+
+        //small data stays in the record, and a stale .raw file is dropped
+        pm.serialize(binaryUri, binary);
+        pm.serialize(binaryUri, new DocumentImpl(binaryUri, new byte[]{1, 2, 3}));
+        assertFalse(raw.exists());
+        copy.reset();
+        assertEquals(3, pm.transferBinaryData(binaryUri, Channels.newChannel(copy)));
+        assertArrayEquals(new byte[]{1, 2, 3}, pm.deserialize(binaryUri).getDocumentBinaryData());
+        pm.serialize(textUri, new DocumentImpl(textUri, "not binary", null));
+        assertNull(pm.openBinaryData(textUri));
+        assertTrue(pm.delete(textUri));
+    }
+
+    @Test
+    void testSyncedBatch() throws IOException {
+        DocumentPersistenceManager pm = new DocumentPersistenceManager(baseDir, new BinaryDocumentCodec(), 1024);
+        pm.setSyncWrites(true);
+        byte[] bytes = new byte[4096];
+        new Random(5).nextBytes(bytes);
+        List<Map.Entry<URI, Document>> batch = new ArrayList<>();
+        batch.add(new AbstractMap.SimpleImmutableEntry<>(textUri, new DocumentImpl(textUri, "first write", null)));
+        batch.add(new AbstractMap.SimpleImmutableEntry<>(binaryUri, new DocumentImpl(binaryUri, bytes)));
+        //a key written twice keeps the last write
+        batch.add(new AbstractMap.SimpleImmutableEntry<>(textUri, new DocumentImpl(textUri, "second write", null)));
+        pm.serializeAll(batch);
+        File docs = new File(baseDir, "www.example.com/docs");
+        assertEquals(List.of("binary.bin", "binary.raw", "text.bin"), Arrays.stream(docs.list()).sorted().toList());
+        assertEquals("second write", pm.deserialize(textUri).getDocumentTxt());
+        assertArrayEquals(bytes, pm.deserialize(binaryUri).getDocumentBinaryData());
+    }
+
+    @Test
+    void testMappedDocument() throws IOException {
+        DocumentPersistenceManager pm = new DocumentPersistenceManager(baseDir, new BinaryDocumentCodec(), 1024);
+        pm.setMapThreshold(4096);
+        byte[] bytes = new byte[100_000];
+        new Random(3).nextBytes(bytes);
+        MappedDocument mapped = pm.map(binaryUri, new ByteArrayInputStream(bytes));
+        File raw = new File(baseDir, "www.example.com/docs/binary.raw");
+        assertEquals(bytes.length, raw.length());
+        assertEquals(bytes.length, mapped.length());
+        assertArrayEquals(bytes, mapped.getDocumentBinaryData());
+        assertEquals(bytes[500], mapped.slice(500, 10).get(0));
+        assertEquals(10, mapped.slice(500, 10).remaining());
+        assertThrows(IndexOutOfBoundsException.class, () -> mapped.slice(bytes.length - 5, 10));
+        try (InputStream in = mapped.openStream()) {
+            assertArrayEquals(bytes, in.readAllBytes());
+        }
+        assertEquals(new DocumentImpl(binaryUri, bytes).hashCode(), mapped.hashCode());
+        assertNull(mapped.getDocumentTxt());
+        assertTrue(mapped.getWords().isEmpty());
+
+        //the data is already on disk, so only the record is written
+        mapped.setMetadataValue("type", "video/mp4");
+        pm.serialize(binaryUri, mapped);
+        assertTrue(new File(baseDir, "www.example.com/docs/binary.bin").length() < 100);
+        Document read = pm.deserialize(binaryUri);
+        assertInstanceOf(MappedDocument.class, read);
+        assertEquals("video/mp4", read.getMetadataValue("type"));
+        assertTrue(raw.exists());
+
+        //writing another document at the key replaces the file, so the mapping still reads the old data
+        byte[] other = new byte[50_000];
+        pm.serialize(binaryUri, new DocumentImpl(binaryUri, other));
+        assertArrayEquals(bytes, read.getDocumentBinaryData());
+        assertEquals(other.length, raw.length());
+        //and writing the mapped document back puts its data back in the file
+        pm.serialize(binaryUri, read);
+        try (InputStream in = pm.openBinaryData(binaryUri)) {
+            assertArrayEquals(bytes, in.readAllBytes());
+        }
+
+        //data under the threshold is read back onto the heap
+        pm.serialize(textUri, new DocumentImpl(textUri, new byte[2048]));
+        assertInstanceOf(DocumentImpl.class, pm.deserialize(textUri));
+        assertTrue(pm.delete(binaryUri));
+        assertFalse(raw.exists());
+    }
+
+    @Test
+    void testScan() throws IOException {
+        DocumentPersistenceManager pm = new DocumentPersistenceManager(baseDir, new BinaryDocumentCodec(), 1024, new HashedPathLayout());
+        pm.scan(document -> fail());
+        for (int i = 0; i < 200; i++) {
+            URI uri = URI.create("http://www.example.com/scan/doc" + i);
+            Document document = new DocumentImpl(uri, "scanned document " + i, null);
+            document.setMetadataValue("number", Integer.toString(i));
+            pm.serialize(uri, document);
+        }
+        byte[] bytes = new byte[5000];
+        Document binary = new DocumentImpl(binaryUri, bytes);
+        binary.setMetadataValue("type", "image/png");
+        pm.serialize(binaryUri, binary);
+        //not records of this manager
+        assertTrue(new File(baseDir, "notes.txt").createNewFile());
+        Files.write(new File(baseDir, "stray.bin").toPath(), new byte[]{1, 2, 3});
+
+        Map<URI, DocumentPersistenceManager.ScannedDocument> scanned = new ConcurrentHashMap<>();
+        pm.scan(document -> scanned.put(document.getKey(), document));
+        assertEquals(201, scanned.size());
+        DocumentPersistenceManager.ScannedDocument doc7 = scanned.get(URI.create("http://www.example.com/scan/doc7"));
+        assertEquals("7", doc7.getMetadata().get("number"));
+        assertEquals(Set.of("scanned", "document", "7"), doc7.getWords());
+        assertEquals("image/png", scanned.get(binaryUri).getMetadata().get("type"));
+        assertTrue(scanned.get(binaryUri).getWords().isEmpty());
+        //collected into plain lists, one per task, merged as the tasks finish
+        List<URI> collected = pm.scan(Collectors.mapping(DocumentPersistenceManager.ScannedDocument::getKey, Collectors.toList()));
+        assertEquals(scanned.keySet(), Set.copyOf(collected));
+        assertEquals(201, collected.size());
+        //nothing is taken off disk
+        assertArrayEquals(bytes, pm.deserialize(binaryUri).getDocumentBinaryData());
+        assertEquals("scanned document 7", pm.deserialize(doc7.getKey()).getDocumentTxt());
+    }
+
+    @Test
+    void testDeserializeAll() throws IOException {
+        DocumentPersistenceManager pm = new DocumentPersistenceManager(baseDir, new BinaryDocumentCodec());
+        List<URI> keys = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            URI uri = URI.create("http://www.example.com/batch/doc" + i);
+            pm.serialize(uri, new DocumentImpl(uri, "batch document " + i, null));
+            keys.add(uri);
+        }
+        keys.add(50, URI.create("http://www.example.com/batch/missing"));
+        List<Document> documents = pm.deserializeAll(keys);
+        assertEquals(101, documents.size());
+        assertNull(documents.get(50));
+        //in the order of the keys
+        assertEquals("batch document 0", documents.get(0).getDocumentTxt());
+        assertEquals("batch document 50", documents.get(51).getDocumentTxt());
+        assertEquals("batch document 99", documents.get(100).getDocumentTxt());
+        //and taken off disk, like deserialize
+        assertFalse(new File(baseDir, "www.example.com/batch/doc7.bin").exists());
+        assertEquals(List.of(), pm.deserializeAll(List.of()));
+        //closing stops the readers, and a batch is then read on the calling thread
+        pm.close();
+        pm.serializeAll(List.of(Map.entry(keys.get(1), documents.get(1)), Map.entry(keys.get(2), documents.get(2))));
+        List<Document> afterClose = pm.deserializeAll(List.of(keys.get(1), keys.get(2)));
+        assertEquals("batch document 1", afterClose.get(0).getDocumentTxt());
+        assertEquals("batch document 2", afterClose.get(1).getDocumentTxt());
+    }
+
+    @Test
+    void testHashedLayout() throws IOException {
+        DocumentPersistenceManager pm = new DocumentPersistenceManager(baseDir, new BinaryDocumentCodec(),
+                DocumentPersistenceManager.DEFAULT_RAW_THRESHOLD, new HashedPathLayout());
+        for (int i = 0; i < 2000; i++) {
+            URI uri = URI.create("http://www.example.com/popular/doc" + i);
+            pm.serialize(uri, new DocumentImpl(uri, "document " + i, null));
+        }
+        //one host, one path, spread over the directories
+        File[] top = baseDir.listFiles();
+        assertTrue(top.length > 200, "only " + top.length + " directories");
+        for (File dir : top) {
+            for (File second : dir.listFiles()) {
+                assertTrue(second.list().length < 10);
+            }
+        }
+        assertEquals("document 1234", pm.deserialize(URI.create("http://www.example.com/popular/doc1234")).getDocumentTxt());
+
+        HashedPathLayout layout = new HashedPathLayout();
+        URI unusual = URI.create("http://www.example.com/a%20b/../c?q=%C3%BC&x=*#frag");
+        String path = layout.pathFor(unusual);
+        assertTrue(path.matches("[0-9a-f]{2}/[0-9a-f]{2}/[A-Za-z0-9_%^-][A-Za-z0-9._%^-]*"), path);
+        assertEquals(path, layout.pathFor(URI.create(unusual.toString())));
+        pm.serialize(unusual, new DocumentImpl(unusual, new byte[]{7}));
+        assertArrayEquals(new byte[]{7}, pm.deserialize(unusual).getDocumentBinaryData());
+
+        //uris that differ only in case don't share a file where case is ignored
+        URI upper = URI.create("http://www.example.com/Docs/Readme");
+        URI lower = URI.create("http://www.example.com/docs/readme");
+        String upperName = layout.pathFor(upper).substring(6);
+        assertEquals("http%3a%2f%2fwww.example.com%2f^Docs%2f^Readme", upperName);
+        assertNotEquals(upperName.toLowerCase(), layout.pathFor(lower).substring(6).toLowerCase());
+
+        //long uris that differ only at the end still get their own files
+        String longPath = "http://www.example.com/" + "long/".repeat(60);
+        URI long1 = URI.create(longPath + "1");
+        URI long2 = URI.create(longPath + "2");
+        assertNotEquals(layout.pathFor(long1), layout.pathFor(long2));
+        assertTrue(layout.pathFor(long1).length() < 200);
+        pm.serialize(long1, new DocumentImpl(long1, "first", null));
+        pm.serialize(long2, new DocumentImpl(long2, "second", null));
+        assertEquals("first", pm.deserialize(long1).getDocumentTxt());
+        assertEquals("second", pm.deserialize(long2).getDocumentTxt());
+    }
+
+    @Test
+    void testKeepCleanCopies() throws IOException {
+        CompressedDocumentCodec codec = new CompressedDocumentCodec();
+        DocumentPersistenceManager pm = new DocumentPersistenceManager(baseDir, codec);
+        pm.setKeepCleanCopies(true);
+        File file = new File(baseDir, "www.example.com/docs/text.bin.z");
+        pm.serialize(textUri, new DocumentImpl(textUri, "kept on disk", null));
+        assertEquals(1, codec.stats().getDocumentsWritten());
+
+        //read back, the file stays, and dropping the unchanged document writes nothing
+        Document read = pm.deserialize(textUri);
+        assertTrue(file.exists());
+        pm.serialize(textUri, read);
+        assertEquals(1, codec.stats().getDocumentsWritten());
+        assertEquals("kept on disk", pm.deserialize(textUri).getDocumentTxt());
+
+        //a change is written
+        read = pm.deserialize(textUri);
+        read.setMetadataValue("changed", "yes");
+        pm.serialize(textUri, read);
+        assertEquals(2, codec.stats().getDocumentsWritten());
+        Document changed = pm.deserialize(textUri);
+        assertEquals("yes", changed.getMetadataValue("changed"));
+
+        //another document written at the key since means the file no longer holds the first one
+        pm.serialize(textUri, new DocumentImpl(textUri, "replacement", null));
+        pm.serialize(textUri, changed);
+        assertEquals(4, codec.stats().getDocumentsWritten());
+        assertEquals("kept on disk", pm.deserialize(textUri).getDocumentTxt());
+
+        assertTrue(pm.delete(textUri));
+        assertFalse(file.exists());
+        pm.setKeepCleanCopies(false);
+        pm.serialize(textUri, new DocumentImpl(textUri, "moved off disk", null));
+        pm.deserialize(textUri);
+        assertFalse(file.exists());
+    }
+
+    @Test
+    void testGeneration() throws IOException {
+        DocumentPersistenceManager pm = new DocumentPersistenceManager(baseDir, new BinaryDocumentCodec());
+        pm.setKeepCleanCopies(true);
+        URI uri = URI.create("http://www.example.com/generation/doc");
+        pm.serialize(uri, new DocumentImpl(uri, "first", null));
+        //nothing is kept until a generation is stamped
+        File file = new File(baseDir, "documents.generation");
+        assertFalse(file.exists());
+        long stamped = pm.snapshotGeneration();
+        assertTrue(file.exists());
+        assertEquals(stamped, pm.getGeneration());
+
+        //reading and dropping an unchanged document leaves it
+        pm.serialize(uri, pm.deserialize(uri));
+        pm.peek(uri);
+        assertEquals(stamped, pm.getGeneration());
+        //and so does a restart
+        assertEquals(stamped, new DocumentPersistenceManager(baseDir, new BinaryDocumentCodec()).getGeneration());
+
+        //a write moves on, once until it is stamped again
+        pm.serialize(uri, new DocumentImpl(uri, "second", null));
+        long next = pm.getGeneration();
+        assertNotEquals(stamped, next);
+        pm.serialize(uri, new DocumentImpl(uri, "third", null));
+        assertEquals(next, pm.getGeneration());
+
+        //so does a removal, in a manager created since
+        DocumentPersistenceManager restarted = new DocumentPersistenceManager(baseDir, new BinaryDocumentCodec());
+        stamped = restarted.snapshotGeneration();
+        assertFalse(restarted.delete(URI.create("http://www.example.com/generation/missing")));
+        assertEquals(stamped, restarted.getGeneration());
+        assertTrue(restarted.delete(uri));
+        assertNotEquals(stamped, restarted.getGeneration());
+    }
+}
@@ -4,15 +4,22 @@ import edu.yu.cs.com1320.project.stage6.Document;
 import edu.yu.cs.com1320.project.stage6.DocumentStore;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.UncheckedIOException;
 import java.net.URI;
+import java.nio.channels.Channels;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -617,6 +624,692 @@ class DocumentStoreImplTest {
 
     }
 
+    @Test
+    public void getAllWithUriPrefix() throws IOException {
+        URI uriTxt1 = URI.create("http://www.example.com/document/txt1");
+        URI uriTxt2 = URI.create("http://www.example.com/document/txt2");
+        URI uriOther = URI.create("http://www.example.com/other/txt3");
+        documentStore.put(new ByteArrayInputStream("first doc".getBytes()), uriTxt2, DocumentStore.DocumentFormat.TXT);
+        documentStore.put(new ByteArrayInputStream("second doc".getBytes()), uriOther, DocumentStore.DocumentFormat.TXT);
+        documentStore.put(new ByteArrayInputStream("third doc".getBytes()), uriTxt1, DocumentStore.DocumentFormat.TXT);
+        documentStore.put(new ByteArrayInputStream(new byte[]{0, 1, 2}), uriBinary, DocumentStore.DocumentFormat.BINARY);
+        documentStore.setMaxDocumentCount(1);
 
-}
+        List<Document> results = documentStore.getAllWithUriPrefix("http://www.example.com/document/txt");
+        assertEquals(2, results.size());
+        assertEquals(uriTxt1, results.get(0).getKey());
+        assertEquals(uriTxt2, results.get(1).getKey());
+        assertEquals(3, documentStore.getAllWithUriPrefix("http://www.example.com/document/").size());
+        assertTrue(documentStore.getAllWithUriPrefix("http://www.example.org/").isEmpty());
+    }
+
+    @Test
+    public void putAll() throws IOException {
+        URI uriTxt1 = URI.create("http://www.example.com/document/txt1");
+        URI uriTxt2 = URI.create("http://www.example.com/document/txt2");
+        URI uriTxt3 = URI.create("http://www.example.com/document/txt3");
+        Map<URI, InputStream> batch = new HashMap<>();
+        batch.put(uriTxt2, new ByteArrayInputStream("apple banana".getBytes()));
+        batch.put(uriTxt1, new ByteArrayInputStream("apple".getBytes()));
+        assertEquals(2, documentStore.putAll(batch, DocumentStore.DocumentFormat.TXT));
+        assertEquals("apple", documentStore.get(uriTxt1).getDocumentTxt());
+        assertEquals(2, documentStore.search("apple").size());
+
+        //a second batch goes into a store that isn't empty, replacing one document
+        batch = new HashMap<>();
+        batch.put(uriTxt3, new ByteArrayInputStream("banana".getBytes()));
+        batch.put(uriTxt2, new ByteArrayInputStream("cherry".getBytes()));
+        assertEquals(2, documentStore.putAll(batch, DocumentStore.DocumentFormat.TXT));
+        assertEquals(List.of(uriTxt3), documentStore.search("banana").stream().map(Document::getKey).toList());
+        assertEquals("cherry", documentStore.get(uriTxt2).getDocumentTxt());
+        assertEquals(1, documentStore.search("apple").size());
+
+        documentStore.undo();
+        assertNull(documentStore.get(uriTxt3));
+        assertEquals("apple banana", documentStore.get(uriTxt2).getDocumentTxt());
+        assertEquals(2, documentStore.search("apple").size());
+        documentStore.undo(uriTxt1);
+        assertNull(documentStore.get(uriTxt1));
+        assertNotNull(documentStore.get(uriTxt2));
+        documentStore.undo();
+        assertNull(documentStore.get(uriTxt2));
+        assertTrue(documentStore.search("apple").isEmpty());
+    }
 
+    @Test
+    public void pagedIndex(@TempDir File dir) throws IOException {
+        File indexFile = new File(dir, "documents.index");
+        DocumentStoreImpl store = new DocumentStoreImpl(dir, indexFile);
+        for (int i = 0; i < 300; i++) {
+            URI uri = URI.create("http://www.example.com/paged/doc" + i);
+            store.put(new ByteArrayInputStream(("apple doc" + i).getBytes()), uri, DocumentStore.DocumentFormat.TXT);
+        }
+        store.setMaxDocumentCount(50);
+        assertEquals("apple doc7", store.get(URI.create("http://www.example.com/paged/doc7")).getDocumentTxt());
+        assertEquals(300, store.search("apple").size());
+        //doc1, doc10 - doc19 and doc100 - doc199
+        assertEquals(111, store.getAllWithUriPrefix("http://www.example.com/paged/doc1").size());
+        assertTrue(store.delete(URI.create("http://www.example.com/paged/doc7")));
+        assertNull(store.get(URI.create("http://www.example.com/paged/doc7")));
+        assertEquals(299, store.getAllWithUriPrefix("http://www.example.com/paged/").size());
+        store.close();
+        assertFalse(indexFile.exists());
+    }
+
+    @Test
+    public void writeBehind() throws IOException {
+        DocumentStoreImpl store = new DocumentStoreImpl(null, 2, 8);
+        for (int i = 0; i < 100; i++) {
+            URI uri = URI.create("http://www.example.com/behind/doc" + i);
+            store.put(new ByteArrayInputStream(("pear doc" + i).getBytes()), uri, DocumentStore.DocumentFormat.TXT);
+        }
+        store.setMaxDocumentCount(10);
+        //read back whether or not it has been written yet
+        assertEquals("pear doc3", store.get(URI.create("http://www.example.com/behind/doc3")).getDocumentTxt());
+        store.flush();
+        assertEquals(100, store.search("pear").size());
+        assertEquals("pear doc50", store.get(URI.create("http://www.example.com/behind/doc50")).getDocumentTxt());
+        assertTrue(store.delete(URI.create("http://www.example.com/behind/doc60")));
+        store.flush();
+        assertNull(store.get(URI.create("http://www.example.com/behind/doc60")));
+        assertEquals(99, store.getAllWithUriPrefix("http://www.example.com/behind/").size());
+        store.close();
+    }
+
+    @Test
+    public void segmentStore(@TempDir File dir) throws IOException {
+        SegmentPersistenceManager pm = new SegmentPersistenceManager(dir, new BinaryDocumentCodec(), 4096);
+        DocumentStoreImpl store = new DocumentStoreImpl();
+        store.setPersistenceManager(pm);
+        for (int i = 0; i < 100; i++) {
+            URI uri = URI.create("http://www.example.com/segment/doc" + i);
+            store.put(new ByteArrayInputStream(("plum doc" + i).getBytes()), uri, DocumentStore.DocumentFormat.TXT);
+        }
+        store.setMaxDocumentCount(10);
+        assertEquals(90, pm.size());
+        //only segment files, not a file per document
+        assertEquals(pm.segmentCount(), dir.listFiles().length);
+        assertEquals("plum doc3", store.get(URI.create("http://www.example.com/segment/doc3")).getDocumentTxt());
+        assertEquals(100, store.search("plum").size());
+        assertTrue(store.delete(URI.create("http://www.example.com/segment/doc60")));
+        assertEquals(99, store.getAllWithUriPrefix("http://www.example.com/segment/").size());
+        assertThrows(IllegalStateException.class, () -> store.setPersistenceManager(pm));
+        pm.close();
+    }
+
+    @Test
+    public void failedEvictionKeepsDocuments(@TempDir File dir) throws IOException {
+        AtomicInteger failures = new AtomicInteger();
+        DocumentPersistenceManager pm = new DocumentPersistenceManager(dir) {
+            @Override
+            public void serializeAll(List<? extends Map.Entry<URI, Document>> entries) throws IOException {
+                if (failures.getAndDecrement() > 0) {
+                    throw new IOException("disk full");
+                }
+                super.serializeAll(entries);
+            }
+        };
+        DocumentStoreImpl store = new DocumentStoreImpl();
+        store.setPersistenceManager(pm);
+        for (int i = 0; i < 5; i++) {
+            store.put(new ByteArrayInputStream(("fig doc" + i).getBytes()), URI.create("http://www.example.com/fail/doc" + i), DocumentStore.DocumentFormat.TXT);
+        }
+        failures.set(1);
+        assertThrows(UncheckedIOException.class, () -> store.setMaxDocumentCount(2));
+        //nothing was written, so every document is still whole in memory
+        assertEquals(0, dir.list().length);
+        for (int i = 0; i < 5; i++) {
+            assertEquals("fig doc" + i, store.get(URI.create("http://www.example.com/fail/doc" + i)).getDocumentTxt());
+        }
+
+        //the next change over the limits moves them, the put itself can still be undone
+        URI last = URI.create("http://www.example.com/fail/doc5");
+        store.put(new ByteArrayInputStream("fig doc5".getBytes()), last, DocumentStore.DocumentFormat.TXT);
+        assertEquals(4, new File(dir, "www.example.com/fail").list().length);
+        assertEquals(6, store.search("fig").size());
+        store.undo(last);
+        assertNull(store.get(last));
+    }
+
+    @Test
+    public void binaryDataStaysOnDisk(@TempDir File dir) throws IOException {
+        AtomicInteger reads = new AtomicInteger();
+        DocumentPersistenceManager pm = new DocumentPersistenceManager(dir, new BinaryDocumentCodec(), 1024) {
+            @Override
+            public Document deserialize(URI key) throws IOException {
+                reads.incrementAndGet();
+                return super.deserialize(key);
+            }
+
+            @Override
+            public Document peek(URI key) throws IOException {
+                reads.incrementAndGet();
+                return super.peek(key);
+            }
+        };
+        DocumentStoreImpl store = new DocumentStoreImpl();
+        store.setPersistenceManager(pm);
+        byte[] data = new byte[5000];
+        new Random(7).nextBytes(data);
+        URI image = URI.create("http://www.example.com/zero/image");
+        URI text = URI.create("http://www.example.com/zero/text");
+        store.put(new ByteArrayInputStream(data), image, DocumentStore.DocumentFormat.BINARY);
+        //in memory
+        assertArrayEquals(data, store.openBinaryData(image).readAllBytes());
+        store.put(new ByteArrayInputStream("zero copy".getBytes()), text, DocumentStore.DocumentFormat.TXT);
+        store.setMaxDocumentCount(1);
+
+        //on disk, and read from the .raw file without the document being read back
+        try (InputStream in = store.openBinaryData(image)) {
+            assertArrayEquals(data, in.readAllBytes());
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals(data.length, store.transferBinaryData(image, Channels.newChannel(out)));
+        assertArrayEquals(data, out.toByteArray());
+        assertEquals(0, reads.get());
+        assertEquals(1, store.getEvictionStats().getDocumentsEvicted());
+
+        assertNull(store.openBinaryData(text));
+        assertEquals(-1, store.transferBinaryData(text, Channels.newChannel(out)));
+        assertNull(store.openBinaryData(URI.create("http://www.example.com/zero/missing")));
+    }
+
+    @Test
+    public void recoverFromLog(@TempDir File dir) throws IOException {
+        DocumentStoreImpl store = new DocumentStoreImpl(dir, WriteAheadLog.SyncPolicy.ALWAYS);
+        for (int i = 0; i < 20; i++) {
+            URI uri = URI.create("http://www.example.com/logged/doc" + i);
+            store.put(new ByteArrayInputStream(("kiwi doc" + i).getBytes()), uri, DocumentStore.DocumentFormat.TXT);
+        }
+        URI uri3 = URI.create("http://www.example.com/logged/doc3");
+        URI uri4 = URI.create("http://www.example.com/logged/doc4");
+        URI uri5 = URI.create("http://www.example.com/logged/doc5");
+        store.put(new ByteArrayInputStream("replaced kiwi".getBytes()), uri3, DocumentStore.DocumentFormat.TXT);
+        store.setMetadata(uri4, "colour", "green");
+        store.delete(uri5);
+        store.deleteAll("doc6");
+        store.setMetadata(uri4, "size", "small");
+        store.undo();
+        store.put(new ByteArrayInputStream(new byte[]{1, 2, 3}), URI.create("http://www.example.com/logged/binary"), DocumentStore.DocumentFormat.BINARY);
+        store.setMaxDocumentCount(5);
+
+        //a new store on the same directory, without the first being shut down
+        DocumentStoreImpl recovered = new DocumentStoreImpl(dir, WriteAheadLog.SyncPolicy.NONE);
+        assertEquals(19, recovered.getAllWithUriPrefix("http://www.example.com/logged/").size());
+        assertEquals("replaced kiwi", recovered.get(uri3).getDocumentTxt());
+        assertNull(recovered.get(uri5));
+        assertNull(recovered.get(URI.create("http://www.example.com/logged/doc6")));
+        assertEquals("green", recovered.getMetadata(uri4, "colour"));
+        assertNull(recovered.getMetadata(uri4, "size"));
+        assertEquals(1, recovered.searchByMetadata(Map.of("colour", "green")).size());
+        assertEquals(18, recovered.search("kiwi").size());
+        assertArrayEquals(new byte[]{1, 2, 3}, recovered.get(URI.create("http://www.example.com/logged/binary")).getDocumentBinaryData());
+
+        //changes after recovery are logged too
+        recovered.delete(uri3);
+        recovered.checkpoint();
+        DocumentStoreImpl again = new DocumentStoreImpl(dir, WriteAheadLog.SyncPolicy.BATCHED);
+        assertNull(again.get(uri3));
+        assertEquals(17, again.search("kiwi").size());
+        assertEquals(18, again.getAllWithUriPrefix("http://www.example.com/logged/").size());
+        again.close();
+        recovered.close();
+        store.close();
+    }
+
+    @Test
+    public void closeLeavesOnlyTheDocuments(@TempDir File dir) throws IOException {
+        DocumentStoreImpl store = new DocumentStoreImpl(dir, WriteAheadLog.SyncPolicy.ALWAYS);
+        for (int i = 0; i < 10; i++) {
+            store.put(new ByteArrayInputStream(("lime doc" + i).getBytes()), URI.create("http://www.example.com/closed/doc" + i), DocumentStore.DocumentFormat.TXT);
+        }
+        store.setMetadata(URI.create("http://www.example.com/closed/doc2"), "colour", "green");
+        store.close();
+        //every document is in its file, so the log is down to the limits
+        assertEquals(10, new File(dir, "www.example.com/closed").list().length);
+        assertTrue(new File(dir, "documentstore.wal").length() < 32);
+
+        DocumentStoreImpl reopened = new DocumentStoreImpl(dir, WriteAheadLog.SyncPolicy.BATCHED);
+        assertEquals(10, reopened.search("lime").size());
+        assertEquals("green", reopened.getMetadata(URI.create("http://www.example.com/closed/doc2"), "colour"));
+        assertEquals("lime doc7", reopened.get(URI.create("http://www.example.com/closed/doc7")).getDocumentTxt());
+        reopened.close();
+    }
+
+    @Test
+    public void recoveryStaysWithinLimits(@TempDir File dir) throws IOException {
+        DocumentStoreImpl store = new DocumentStoreImpl(dir, WriteAheadLog.SyncPolicy.NONE);
+        store.setMaxDocumentCount(5);
+        for (int i = 0; i < 50; i++) {
+            store.put(new ByteArrayInputStream(("date doc" + i).getBytes()), URI.create("http://www.example.com/limited/doc" + i), DocumentStore.DocumentFormat.TXT);
+        }
+
+        //replaying the 50 puts moves documents to disk as it goes, as the puts did
+        DocumentStoreImpl recovered = new DocumentStoreImpl(dir, WriteAheadLog.SyncPolicy.NONE);
+        assertTrue(recovered.getEvictionStats().getDocumentsEvicted() >= 45);
+        assertEquals(50, recovered.search("date").size());
+        assertEquals("date doc0", recovered.get(URI.create("http://www.example.com/limited/doc0")).getDocumentTxt());
+        recovered.close();
+        store.close();
+    }
+
+    @Test
+    public void replayOverCheckpointedDocuments(@TempDir File dir) throws IOException {
+        DocumentStoreImpl store = new DocumentStoreImpl(dir, WriteAheadLog.SyncPolicy.NONE);
+        for (int i = 0; i < 3; i++) {
+            store.put(new ByteArrayInputStream(("kiwi doc" + i).getBytes()), URI.create("http://www.example.com/replayed/doc" + i), DocumentStore.DocumentFormat.TXT);
+        }
+        store.checkpoint();
+        store.put(new ByteArrayInputStream("plum doc0".getBytes()), URI.create("http://www.example.com/replayed/doc0"), DocumentStore.DocumentFormat.TXT);
+        store.put(new ByteArrayInputStream("kiwi doc3".getBytes()), URI.create("http://www.example.com/replayed/doc3"), DocumentStore.DocumentFormat.TXT);
+        store.delete(URI.create("http://www.example.com/replayed/doc3"));
+
+        DocumentStoreImpl recovered = new DocumentStoreImpl(dir, WriteAheadLog.SyncPolicy.NONE);
+        //the replayed put replaces doc0, which the recovered store read back first, taking its old words with it
+        assertEquals(2, recovered.search("kiwi").size());
+        assertEquals(1, recovered.search("plum").size());
+        //each record parses a URI of its own, so the delete finds doc3's heap node by value, not by the put's URI
+        assertNull(recovered.get(URI.create("http://www.example.com/replayed/doc3")));
+        recovered.setMaxDocumentCount(1);
+        for (int i = 0; i < 3; i++) {
+            assertTrue(recovered.get(URI.create("http://www.example.com/replayed/doc" + i)).getDocumentTxt().endsWith("doc" + i));
+        }
+        recovered.close();
+        store.close();
+    }
+
+    @Test
+    public void checkpointAfterInterval(@TempDir File dir) throws IOException {
+        DocumentStoreImpl store = new DocumentStoreImpl(dir, WriteAheadLog.SyncPolicy.NONE);
+        //every change finds the last checkpoint too old, so the log never holds more than one change
+        store.setCheckpointInterval(Long.MAX_VALUE, 0);
+        for (int i = 0; i < 20; i++) {
+            store.put(new ByteArrayInputStream(("fig doc" + i).getBytes()), URI.create("http://www.example.com/timed/doc" + i), DocumentStore.DocumentFormat.TXT);
+        }
+        assertEquals(19, new File(dir, "www.example.com/timed").list().length);
+        assertTrue(new File(dir, "documentstore.wal").length() < 200);
+
+        DocumentStoreImpl recovered = new DocumentStoreImpl(dir, WriteAheadLog.SyncPolicy.NONE);
+        assertEquals(20, recovered.search("fig").size());
+        recovered.close();
+        store.close();
+    }
+
+    @Test
+    public void cleanCopiesAreNotRewritten(@TempDir File dir) throws IOException {
+        CompressedDocumentCodec codec = new CompressedDocumentCodec();
+        DocumentPersistenceManager pm = new DocumentPersistenceManager(dir, codec);
+        pm.setKeepCleanCopies(true);
+        DocumentStoreImpl store = new DocumentStoreImpl();
+        store.setPersistenceManager(pm);
+        store.setMaxDocumentCount(1);
+        URI uri1 = URI.create("http://www.example.com/clean/doc1");
+        URI uri2 = URI.create("http://www.example.com/clean/doc2");
+        store.put(new ByteArrayInputStream("first".getBytes()), uri1, DocumentStore.DocumentFormat.TXT);
+        store.put(new ByteArrayInputStream("second".getBytes()), uri2, DocumentStore.DocumentFormat.TXT);
+        assertEquals(1, codec.stats().getDocumentsWritten());
+        //each get brings one back and evicts the other, but only the first eviction of each has anything to write
+        for (int i = 0; i < 5; i++) {
+            assertEquals("first", store.get(uri1).getDocumentTxt());
+            assertEquals("second", store.get(uri2).getDocumentTxt());
+        }
+        assertEquals(2, codec.stats().getDocumentsWritten());
+        store.setMetadata(uri2, "colour", "red");
+        store.get(uri1);
+        assertEquals(3, codec.stats().getDocumentsWritten());
+        assertEquals("red", store.getMetadata(uri2, "colour"));
+
+        //deleting a document removes its kept copy
+        store.delete(uri2);
+        assertFalse(new File(dir, "www.example.com/clean/doc2.bin.z").exists());
+        store.undo();
+        assertEquals("red", store.getMetadata(uri2, "colour"));
+    }
+    @Test
+    public void evictedBodiesLoadOnDemand(@TempDir File dir) throws IOException {
+        CompressedDocumentCodec codec = new CompressedDocumentCodec();
+        DocumentStoreImpl store = new DocumentStoreImpl();
+        store.setPersistenceManager(new DocumentPersistenceManager(dir, codec));
+        store.setMaxDocumentCount(2);
+        for (int i = 0; i < 6; i++) {
+            URI uri = URI.create("http://www.example.com/lazy/doc" + i);
+            store.put(new ByteArrayInputStream(("lazy body " + i).getBytes()), uri, DocumentStore.DocumentFormat.TXT);
+            store.setMetadata(uri, "number", Integer.toString(i));
+        }
+        assertEquals(4, codec.stats().getDocumentsWritten());
+        //metadata and word counts only need what stays in memory
+        URI uri1 = URI.create("http://www.example.com/lazy/doc1");
+        assertEquals("1", store.getMetadata(uri1, "number"));
+        assertEquals(1, store.get(uri1).wordCount("lazy"));
+        assertEquals(0, codec.stats().getDocumentsRead());
+        //uri1 came back without its body, and evicted doc4, which was never written
+        assertEquals(5, codec.stats().getDocumentsWritten());
+
+        Document doc0 = store.get(URI.create("http://www.example.com/lazy/doc0"));
+        assertEquals("lazy body 0", doc0.getDocumentTxt());
+        assertEquals(1, codec.stats().getDocumentsRead());
+
+        //a deleted document takes its body with it, so undo can put it back
+        URI uri4 = URI.create("http://www.example.com/lazy/doc4");
+        store.delete(uri4);
+        assertNull(store.get(uri4));
+        store.undo();
+        assertEquals("lazy body 4", store.get(uri4).getDocumentTxt());
+    }
+    @Test
+    public void metadataOfColdDocumentsIsWritten(@TempDir File dir) throws IOException {
+        CompressedDocumentCodec codec = new CompressedDocumentCodec();
+        DocumentStoreImpl store = new DocumentStoreImpl();
+        store.setPersistenceManager(new DocumentPersistenceManager(dir, codec));
+        store.setMaxDocumentCount(1);
+        URI uri0 = URI.create("http://www.example.com/cold/doc0");
+        URI uri1 = URI.create("http://www.example.com/cold/doc1");
+        store.put(new ByteArrayInputStream("cold zero".getBytes()), uri0, DocumentStore.DocumentFormat.TXT);
+        Document doc0 = store.get(uri0);
+        store.put(new ByteArrayInputStream("cold one".getBytes()), uri1, DocumentStore.DocumentFormat.TXT);
+
+        //a body asked for while its document is out of memory is peeked at, and stays on disk
+        File file0 = new File(dir, "www.example.com/cold/doc0.bin.z");
+        assertEquals("cold zero", doc0.getDocumentTxt());
+        assertTrue(file0.exists());
+
+        //metadata set without reading the body is written when the document next goes to disk
+        store.setMetadata(uri0, "colour", "blue");
+        store.put(new ByteArrayInputStream("cold two".getBytes()), URI.create("http://www.example.com/cold/doc2"), DocumentStore.DocumentFormat.TXT);
+        assertEquals("blue", new DocumentPersistenceManager(dir, codec).peek(uri0).getMetadataValue("colour"));
+
+        DocumentStoreImpl.EvictionStats stats = store.getEvictionStats();
+        assertEquals(3, stats.getBatches());
+        assertEquals(3, stats.getDocumentsEvicted());
+        assertEquals(3, stats.getDocumentsWritten());
+        assertTrue(stats.getBatchNanos() > 0);
+    }
+
+    @Test
+    public void largeBinariesAreMapped(@TempDir File dir) throws IOException {
+        DocumentPersistenceManager pm = new DocumentPersistenceManager(dir, new BinaryDocumentCodec(), 1024);
+        pm.setMapThreshold(64 * 1024);
+        DocumentStoreImpl store = new DocumentStoreImpl();
+        store.setPersistenceManager(pm);
+        store.setMaxDocumentBytes(4096);
+        for (int i = 0; i < 5; i++) {
+            store.put(new ByteArrayInputStream(("small hot text " + i).getBytes()), URI.create("http://www.example.com/mapped/text" + i), DocumentStore.DocumentFormat.TXT);
+        }
+        //far over the byte limit, but only its uri counts against it
+        byte[] bytes = new byte[1024 * 1024];
+        new Random(4).nextBytes(bytes);
+        URI blob = URI.create("http://www.example.com/mapped/blob");
+        store.put(new ByteArrayInputStream(bytes), blob, DocumentStore.DocumentFormat.BINARY);
+        Document mapped = store.get(blob);
+        assertInstanceOf(MappedDocument.class, mapped);
+        assertEquals(bytes[1000], ((MappedDocument) mapped).slice(1000, 1).get());
+        assertArrayEquals(bytes, mapped.getDocumentBinaryData());
+        //none of the text was pushed out
+        assertFalse(new File(dir, "www.example.com/mapped/text0.bin").exists());
+        assertEquals(5, store.search("hot").size());
+
+        //moved out and back by the count limit, still mapped
+        store.setMaxDocumentCount(5);
+        assertTrue(new File(dir, "www.example.com/mapped/blob.bin").exists());
+        Document back = store.get(blob);
+        assertInstanceOf(MappedDocument.class, back);
+        assertArrayEquals(bytes, back.getDocumentBinaryData());
+
+        //small binaries still go on the heap
+        URI small = URI.create("http://www.example.com/mapped/small");
+        store.put(new ByteArrayInputStream(new byte[]{1, 2, 3}), small, DocumentStore.DocumentFormat.BINARY);
+        assertInstanceOf(DocumentImpl.class, store.get(small));
+
+        store.delete(blob);
+        assertNull(store.get(blob));
+        assertFalse(new File(dir, "www.example.com/mapped/blob.raw").exists());
+        store.undo(blob);
+        assertArrayEquals(bytes, store.get(blob).getDocumentBinaryData());
+    }
+    @Test
+    public void mapThresholdOnTheConstructor(@TempDir File dir) throws IOException {
+        DocumentStoreImpl store = new DocumentStoreImpl(dir, 256 * 1024);
+        Random random = new Random(5);
+        //past what is read to decide, but short of the threshold: back on the heap, with no file left behind
+        byte[] shorter = new byte[200 * 1024];
+        random.nextBytes(shorter);
+        URI heap = URI.create("http://www.example.com/mapped/heap");
+        store.put(new ByteArrayInputStream(shorter), heap, DocumentStore.DocumentFormat.BINARY);
+        assertInstanceOf(DocumentImpl.class, store.get(heap));
+        assertArrayEquals(shorter, store.get(heap).getDocumentBinaryData());
+        assertFalse(new File(dir, "www.example.com/mapped/heap.raw").exists());
+
+        byte[] longer = new byte[300 * 1024];
+        random.nextBytes(longer);
+        URI blob = URI.create("http://www.example.com/mapped/blob");
+        store.put(new ByteArrayInputStream(longer), blob, DocumentStore.DocumentFormat.BINARY);
+        assertInstanceOf(MappedDocument.class, store.get(blob));
+        assertArrayEquals(longer, store.get(blob).getDocumentBinaryData());
+        assertThrows(IllegalArgumentException.class, () -> new DocumentStoreImpl(dir, 0));
+        store.close();
+    }
+
+    @Test
+    public void tooBigMappedDocumentLeavesThePreviousOne(@TempDir File dir) throws IOException {
+        DocumentPersistenceManager pm = new DocumentPersistenceManager(dir, new BinaryDocumentCodec(), 16);
+        pm.setMapThreshold(64 * 1024);
+        DocumentStoreImpl store = new DocumentStoreImpl();
+        store.setPersistenceManager(pm);
+        URI url = URI.create("http://www.example.com/mapped/replaced");
+        byte[] old = {1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16, 17, 18, 19, 20};
+        store.put(new ByteArrayInputStream(old), url, DocumentStore.DocumentFormat.BINARY);
+        //pushed out to its .raw file
+        store.setMaxDocumentBytes(old.length);
+        store.put(new ByteArrayInputStream(new byte[old.length]), URI.create("http://www.example.com/mapped/other"), DocumentStore.DocumentFormat.BINARY);
+        assertTrue(new File(dir, "www.example.com/mapped/replaced.raw").exists());
+
+        //a mapped document counts its uri, which is longer than the limit
+        byte[] bytes = new byte[128 * 1024];
+        assertThrows(IllegalArgumentException.class,
+                () -> store.put(new ByteArrayInputStream(bytes), url, DocumentStore.DocumentFormat.BINARY));
+        assertFalse(new File(dir, "www.example.com/mapped/replaced.raw.tmp").exists());
+
+        //its files are as they were, for the next store. It leaves them, so the first store can still read them too
+        DocumentPersistenceManager restartedPm = new DocumentPersistenceManager(dir, new BinaryDocumentCodec(), 16);
+        restartedPm.setKeepCleanCopies(true);
+        DocumentStoreImpl restarted = new DocumentStoreImpl();
+        restarted.setPersistenceManager(restartedPm);
+        restarted.restoreFromDisk();
+        assertArrayEquals(old, restarted.get(url).getDocumentBinaryData());
+        assertArrayEquals(old, store.get(url).getDocumentBinaryData());
+    }
+    @Test
+    public void restoreFromDisk(@TempDir File dir) throws IOException {
+        DocumentStoreImpl store = new DocumentStoreImpl();
+        store.setPersistenceManager(new DocumentPersistenceManager(dir));
+        store.setMaxDocumentCount(1);
+        for (int i = 0; i < 100; i++) {
+            URI uri = URI.create("http://www.example.com/restore/doc" + i);
+            String text = "restored " + "apple ".repeat(i % 5) + i;
+            store.put(new ByteArrayInputStream(text.getBytes()), uri, DocumentStore.DocumentFormat.TXT);
+            store.setMetadata(uri, "parity", i % 2 == 0 ? "even" : "odd");
+        }
+        //every document but the last was moved to disk
+
+        DocumentStoreImpl restarted = new DocumentStoreImpl();
+        restarted.setPersistenceManager(new DocumentPersistenceManager(dir));
+        DocumentStoreImpl.RestoreStats stats = restarted.restoreFromDisk();
+        assertEquals(99, stats.getDocuments());
+        assertTrue(stats.getTotalNanos() >= stats.getScanNanos());
+        //nothing was read back to index them
+        assertEquals(99, new File(dir, "www.example.com/restore").list().length);
+        assertEquals(50, restarted.searchByMetadata(Map.of("parity", "even")).size());
+
+        List<Document> apples = restarted.search("apple");
+        assertEquals(79, apples.size());
+        assertEquals(4, apples.get(0).wordCount("apple"));
+        assertEquals("restored apple 1", restarted.get(URI.create("http://www.example.com/restore/doc1")).getDocumentTxt());
+        assertTrue(restarted.delete(URI.create("http://www.example.com/restore/doc2")));
+        restarted.undo();
+        assertEquals("even", restarted.getMetadata(URI.create("http://www.example.com/restore/doc2"), "parity"));
+        assertThrows(IllegalStateException.class, restarted::restoreFromDisk);
+    }
+    @Test
+    public void restoreIntoLoggedStore(@TempDir File dir) throws IOException {
+        DocumentStoreImpl store = new DocumentStoreImpl();
+        store.setPersistenceManager(new DocumentPersistenceManager(dir));
+        store.setMaxDocumentCount(1);
+        for (int i = 0; i < 30; i++) {
+            store.put(new ByteArrayInputStream(("melon doc" + i).getBytes()), URI.create("http://www.example.com/adopt/doc" + i), DocumentStore.DocumentFormat.TXT);
+        }
+
+        //a store on the directory doesn't log unless it is given a sync policy
+        new DocumentStoreImpl(dir).close();
+        assertFalse(new File(dir, "documentstore.wal").exists());
+        //no log yet, so the store starts empty and restores what is on disk
+        DocumentStoreImpl logged = new DocumentStoreImpl(dir, WriteAheadLog.SyncPolicy.BATCHED);
+        assertTrue(logged.search("melon").isEmpty());
+        assertEquals(29, logged.restoreFromDisk().getDocuments());
+        assertEquals(29, logged.search("melon").size());
+        logged.close();
+        //from then on the log has them
+        DocumentStoreImpl reopened = new DocumentStoreImpl(dir, WriteAheadLog.SyncPolicy.BATCHED);
+        assertEquals(29, reopened.search("melon").size());
+        assertThrows(IllegalStateException.class, reopened::restoreFromDisk);
+        reopened.close();
+    }
+    @Test
+    public void restoreIntoPagedIndex(@TempDir File dir) throws IOException {
+        DocumentStoreImpl store = new DocumentStoreImpl();
+        store.setPersistenceManager(new DocumentPersistenceManager(dir));
+        store.setMaxDocumentCount(1);
+        for (int i = 0; i < 30; i++) {
+            store.put(new ByteArrayInputStream(("grape doc" + i).getBytes()), URI.create("http://www.example.com/pages/doc" + i), DocumentStore.DocumentFormat.TXT);
+        }
+        File indexFile = new File(dir, "documents.index");
+        DocumentStoreImpl restarted = new DocumentStoreImpl(dir, indexFile);
+        assertEquals(29, restarted.restoreFromDisk().getDocuments());
+        assertEquals(29, restarted.search("grape").size());
+        assertEquals("grape doc4", restarted.get(URI.create("http://www.example.com/pages/doc4")).getDocumentTxt());
+        restarted.close();
+    }
+    @Test
+    public void restoreWithIndexSnapshot(@TempDir File dir) throws IOException {
+        File docs = new File(dir, "docs");
+        File snapshot = new File(dir, "index.trie");
+        DocumentStoreImpl store = new DocumentStoreImpl();
+        store.setPersistenceManager(new DocumentPersistenceManager(docs));
+        store.setMaxDocumentCount(1);
+        for (int i = 0; i < 50; i++) {
+            store.put(new ByteArrayInputStream(("snapshot pear " + i).getBytes()), URI.create("http://www.example.com/snap/doc" + i), DocumentStore.DocumentFormat.TXT);
+        }
+        store.put(new ByteArrayInputStream("last".getBytes()), URI.create("http://www.example.com/snap/last"), DocumentStore.DocumentFormat.TXT);
+        //the first restart rebuilds the trie and saves it, since there is no snapshot yet.
+        //the restarted stores keep what they read on disk, so the next restart finds it
+        DocumentPersistenceManager pm = new DocumentPersistenceManager(docs);
+        pm.setKeepCleanCopies(true);
+        DocumentStoreImpl restarted = new DocumentStoreImpl();
+        restarted.setPersistenceManager(pm);
+        assertFalse(restarted.restoreFromDisk(snapshot).isIndexLoaded());
+        assertTrue(snapshot.exists());
+
+        restarted = new DocumentStoreImpl();
+        restarted.setPersistenceManager(pm);
+        DocumentStoreImpl.RestoreStats stats = restarted.restoreFromDisk(snapshot);
+        assertTrue(stats.isIndexLoaded());
+        assertEquals(50, stats.getDocuments());
+        assertEquals(50, restarted.search("pear").size());
+        assertEquals(1, restarted.search("7").size());
+        assertEquals("snapshot pear 7", restarted.search("7").get(0).getDocumentTxt());
+
+        //documents that changed since make it stale
+        restarted.delete(URI.create("http://www.example.com/snap/doc3"));
+        restarted = new DocumentStoreImpl();
+        restarted.setPersistenceManager(pm);
+        stats = restarted.restoreFromDisk(snapshot);
+        assertFalse(stats.isIndexLoaded());
+        assertEquals(0, restarted.search("3").size());
+        assertEquals(49, restarted.search("pear").size());
+    }
+    @Test
+    public void saveIndexWithDocumentsInMemory(@TempDir File dir) throws IOException {
+        File docs = new File(dir, "docs");
+        File snapshot = new File(dir, "index.trie");
+        DocumentStoreImpl store = new DocumentStoreImpl();
+        store.setPersistenceManager(new DocumentPersistenceManager(docs));
+        store.setMaxDocumentCount(2);
+        for (int i = 0; i < 5; i++) {
+            store.put(new ByteArrayInputStream(("kiwi " + i).getBytes()), URI.create("http://www.example.com/kiwi/doc" + i), DocumentStore.DocumentFormat.TXT);
+        }
+        //two of them are only in memory until the snapshot is saved
+        store.saveIndex(snapshot);
+
+        //searching reads the documents back, and they are kept on disk so the snapshot stays current
+        DocumentPersistenceManager pm = new DocumentPersistenceManager(docs);
+        pm.setKeepCleanCopies(true);
+        DocumentStoreImpl restarted = new DocumentStoreImpl();
+        restarted.setPersistenceManager(pm);
+        DocumentStoreImpl.RestoreStats stats = restarted.restoreFromDisk(snapshot);
+        assertTrue(stats.isIndexLoaded());
+        assertEquals(5, stats.getDocuments());
+        assertEquals(5, restarted.search("kiwi").size());
+        assertEquals("kiwi 4", restarted.search("4").get(0).getDocumentTxt());
+
+        //a file removed behind the store's back leaves the snapshot current, but what it names there isn't searched for
+        assertTrue(new File(docs, "www.example.com/kiwi/doc3.json").delete());
+        restarted = new DocumentStoreImpl();
+        restarted.setPersistenceManager(new DocumentPersistenceManager(docs));
+        stats = restarted.restoreFromDisk(snapshot);
+        assertTrue(stats.isIndexLoaded());
+        assertEquals(4, restarted.search("kiwi").size());
+        assertEquals(0, restarted.search("3").size());
+    }
+    @Test
+    public void coldSearchHitsAreReadTogether(@TempDir File dir) throws IOException {
+        DocumentStoreImpl store = new DocumentStoreImpl();
+        store.setPersistenceManager(new DocumentPersistenceManager(dir));
+        store.setMaxDocumentCount(1);
+        for (int i = 0; i < 40; i++) {
+            String text = "cold " + "plum ".repeat(i % 7 + 1) + i;
+            store.put(new ByteArrayInputStream(text.getBytes()), URI.create("http://www.example.com/cold/doc" + i), DocumentStore.DocumentFormat.TXT);
+        }
+        store.put(new ByteArrayInputStream("last".getBytes()), URI.create("http://www.example.com/cold/last"), DocumentStore.DocumentFormat.TXT);
+
+        //counts the batches, and how many reads are in flight at once
+        AtomicInteger batches = new AtomicInteger();
+        AtomicInteger reading = new AtomicInteger();
+        AtomicInteger mostReading = new AtomicInteger();
+        DocumentPersistenceManager pm = new DocumentPersistenceManager(dir) {
+            @Override
+            public List<Document> deserializeAll(List<URI> keys) {
+                batches.incrementAndGet();
+                return super.deserializeAll(keys);
+            }
+
+            @Override
+            public Document deserialize(URI key) throws IOException {
+                mostReading.accumulateAndGet(reading.incrementAndGet(), Math::max);
+                try {
+                    Thread.sleep(5);
+                    return super.deserialize(key);
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                } finally {
+                    reading.decrementAndGet();
+                }
+            }
+        };
+        DocumentStoreImpl restarted = new DocumentStoreImpl();
+        restarted.setPersistenceManager(pm);
+        restarted.restoreFromDisk();
+        restarted.setMaxDocumentCount(10);
+        List<Document> plums = restarted.search("plum");
+        assertEquals(40, plums.size());
+        assertEquals(1, batches.get());
+        assertTrue(mostReading.get() > 1);
+        //still ranked
+        for (int i = 1; i < plums.size(); i++) {
+            assertTrue(plums.get(i - 1).wordCount("plum") >= plums.get(i).wordCount("plum"));
+        }
+        assertEquals(7, plums.get(0).wordCount("plum"));
+        //the limits sent thirty of them back to disk, leaving them in memory without their bodies: a search reads
+        //those back together too
+        assertEquals(40, restarted.searchByPrefix("pl").size());
+        assertEquals(2, batches.get());
+    }
+}
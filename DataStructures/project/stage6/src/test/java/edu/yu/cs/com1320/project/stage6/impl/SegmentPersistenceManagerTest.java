@@ -0,0 +1,153 @@
+package edu.yu.cs.com1320.project.stage6.impl;
+
+import edu.yu.cs.com1320.project.stage6.Document;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.URI;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SegmentPersistenceManagerTest {
+    @TempDir
+    File dir;
+
+    private static URI uri(int i) {
+        return URI.create("http://www.example.com/segment/doc" + i);
+    }
+
+    private static Document document(int i) {
+        Document document = new DocumentImpl(uri(i), "segment document number " + i, null);
+        document.setMetadataValue("number", Integer.toString(i));
+        return document;
+    }
+
+    @Test
+    void testSerializeAndDeserialize() throws IOException {
+        SegmentPersistenceManager pm = new SegmentPersistenceManager(dir);
+        for (int i = 0; i < 100; i++) {
+            pm.serialize(uri(i), document(i));
+        }
+        assertEquals(100, pm.size());
+        assertEquals(1, pm.segmentCount());
+        //peeking appends nothing
+        assertEquals("segment document number 42", pm.peek(uri(42)).getDocumentTxt());
+        assertEquals(100, pm.size());
+        Document read = pm.deserialize(uri(42));
+        assertEquals("segment document number 42", read.getDocumentTxt());
+        assertEquals("42", read.getMetadataValue("number"));
+        assertEquals(1, read.wordCount("42"));
+        //reading it back removed it
+        assertNull(pm.deserialize(uri(42)));
+        assertTrue(pm.delete(uri(43)));
+        assertFalse(pm.delete(uri(43)));
+        assertNull(pm.deserialize(uri(43)));
+        //a newer record replaces the older one
+        pm.serialize(uri(44), new DocumentImpl(uri(44), new byte[]{1, 2, 3}));
+        assertArrayEquals(new byte[]{1, 2, 3}, pm.deserialize(uri(44)).getDocumentBinaryData());
+        assertEquals(97, pm.size());
+        pm.close();
+        assertThrows(IllegalStateException.class, () -> pm.deserialize(uri(1)));
+    }
+
+    @Test
+    void testRecoversAfterRestart() throws IOException {
+        SegmentPersistenceManager pm = new SegmentPersistenceManager(dir, new BinaryDocumentCodec(), 4096);
+        for (int i = 0; i < 200; i++) {
+            pm.serialize(uri(i), document(i));
+        }
+        for (int i = 0; i < 200; i += 2) {
+            pm.delete(uri(i));
+        }
+        pm.serialize(uri(1), document(1001));
+        int segments = pm.segmentCount();
+        assertTrue(segments > 1);
+        pm.close();
+
+        //a record cut short, as if the process died while appending it
+        File[] files = dir.listFiles();
+        Arrays.sort(files);
+        File last = files[files.length - 1];
+        try (RandomAccessFile file = new RandomAccessFile(last, "rw")) {
+            file.seek(file.length());
+            file.write(new byte[]{0, 0, 0, 1, 0, 0, 0, 100, 0});
+        }
+
+        SegmentPersistenceManager reopened = new SegmentPersistenceManager(dir, new BinaryDocumentCodec(), 4096);
+        assertEquals(100, reopened.size());
+        assertNull(reopened.deserialize(uri(0)));
+        assertEquals("segment document number 1001", reopened.deserialize(uri(1)).getDocumentTxt());
+        assertEquals("segment document number 199", reopened.deserialize(uri(199)).getDocumentTxt());
+        //the cut-short record was dropped, so new records follow the last good one
+        reopened.serialize(uri(5000), document(5000));
+        reopened.close();
+        reopened = new SegmentPersistenceManager(dir, new BinaryDocumentCodec(), 4096);
+        assertEquals("segment document number 5000", reopened.deserialize(uri(5000)).getDocumentTxt());
+        reopened.close();
+    }
+
+    @Test
+    void testCompaction() throws IOException {
+        SegmentPersistenceManager pm = new SegmentPersistenceManager(dir, new BinaryDocumentCodec(), 4096);
+        for (int i = 0; i < 500; i++) {
+            pm.serialize(uri(i), document(i));
+        }
+        int segments = pm.segmentCount();
+        //leave one document in ten
+        for (int i = 0; i < 500; i++) {
+            if (i % 10 != 0) {
+                pm.delete(uri(i));
+            }
+        }
+        pm.compact();
+        //closing waits out a background compaction, so the files stop changing under the asserts
+        pm.close();
+        assertTrue(pm.segmentCount() < segments / 2);
+        assertEquals(dir.listFiles().length, pm.segmentCount());
+        assertEquals(50, pm.size());
+
+        //compaction kept the live documents and the deletes
+        SegmentPersistenceManager reopened = new SegmentPersistenceManager(dir, new BinaryDocumentCodec(), 4096);
+        assertEquals(50, reopened.size());
+        for (int i = 0; i < 500; i++) {
+            Document read = reopened.deserialize(uri(i));
+            if (i % 10 == 0) {
+                assertEquals(Integer.toString(i), read.getMetadataValue("number"));
+            } else {
+                assertNull(read);
+            }
+        }
+        reopened.close();
+    }
+
+    @Test
+    void testSerializeAll() throws IOException {
+        SegmentPersistenceManager pm = new SegmentPersistenceManager(dir, new BinaryDocumentCodec(), 4096);
+        pm.serialize(uri(0), document(0));
+        List<Map.Entry<URI, Document>> batch = new ArrayList<>();
+        for (int i = 0; i < 300; i++) {
+            batch.add(new AbstractMap.SimpleEntry<>(uri(i), document(i + 1000)));
+        }
+        pm.serializeAll(batch);
+        //the batch spread over new segments as the active one filled up
+        assertTrue(pm.segmentCount() > 5);
+        assertEquals(300, pm.size());
+        assertEquals("segment document number 1000", pm.deserialize(uri(0)).getDocumentTxt());
+        pm.close();
+
+        SegmentPersistenceManager reopened = new SegmentPersistenceManager(dir, new BinaryDocumentCodec(), 4096);
+        assertEquals(299, reopened.size());
+        for (int i = 1; i < 300; i++) {
+            assertEquals("segment document number " + (i + 1000), reopened.deserialize(uri(i)).getDocumentTxt());
+        }
+        reopened.close();
+    }
+}
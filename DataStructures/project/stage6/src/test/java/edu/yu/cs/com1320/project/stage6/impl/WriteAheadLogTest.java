@@ -0,0 +1,159 @@
+package edu.yu.cs.com1320.project.stage6.impl;
+
+import edu.yu.cs.com1320.project.stage6.Document;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class WriteAheadLogTest {
+    @TempDir
+    File dir;
+
+    private static URI uri(int i) {
+        return URI.create("http://www.example.com/wal/doc" + i);
+    }
+
+    private static Document document(int i) {
+        return new DocumentImpl(uri(i), "logged document " + i, null);
+    }
+
+    //what a log holds, in the order the documents were last stored
+    private static class Replayed implements WriteAheadLog.Replayer {
+        private final Map<URI, Document> documents = new LinkedHashMap<>();
+        private int maxDocumentCount = -1;
+        private int maxDocumentBytes = -1;
+
+        @Override
+        public void document(Document document) {
+            documents.remove(document.getKey());
+            documents.put(document.getKey(), document);
+        }
+
+        @Override
+        public void remove(URI uri) {
+            documents.remove(uri);
+        }
+
+        @Override
+        public void metadata(URI uri, String key, String value) {
+            Document document = documents.get(uri);
+            if (document != null) {
+                document.setMetadataValue(key, value);
+            }
+        }
+
+        @Override
+        public void limits(int maxDocumentCount, int maxDocumentBytes) {
+            this.maxDocumentCount = maxDocumentCount;
+            this.maxDocumentBytes = maxDocumentBytes;
+        }
+    }
+
+    private static Replayed replay(WriteAheadLog log) throws IOException {
+        Replayed replayed = new Replayed();
+        log.replay(replayed);
+        return replayed;
+    }
+
+    @Test
+    void testReplay() throws IOException {
+        File file = new File(dir, "test.wal");
+        WriteAheadLog log = new WriteAheadLog(file, WriteAheadLog.SyncPolicy.ALWAYS);
+        assertTrue(replay(log).documents.isEmpty());
+        for (int i = 0; i < 10; i++) {
+            log.logDocument(document(i));
+        }
+        log.logRemove(uri(3));
+        log.logMetadata(uri(4), "colour", "red");
+        log.logMetadata(uri(4), "size", "big");
+        log.logMetadata(uri(4), "size", null);
+        log.logDocument(new DocumentImpl(uri(5), new byte[]{5, 5}));
+        log.logLimits(7, 1000);
+        log.close();
+
+        WriteAheadLog reopened = new WriteAheadLog(file, WriteAheadLog.SyncPolicy.NONE);
+        Replayed replayed = replay(reopened);
+        Map<URI, Document> documents = replayed.documents;
+        assertEquals(9, documents.size());
+        assertFalse(documents.containsKey(uri(3)));
+        assertEquals("red", documents.get(uri(4)).getMetadataValue("colour"));
+        assertNull(documents.get(uri(4)).getMetadataValue("size"));
+        assertEquals(1, documents.get(uri(4)).wordCount("logged"));
+        assertArrayEquals(new byte[]{5, 5}, documents.get(uri(5)).getDocumentBinaryData());
+        assertEquals(7, replayed.maxDocumentCount);
+        assertEquals(1000, replayed.maxDocumentBytes);
+        //in the order they were last stored
+        assertEquals(uri(5), List.copyOf(documents.keySet()).get(8));
+        reopened.close();
+    }
+
+    @Test
+    void testTornRecordIsDropped() throws IOException {
+        File file = new File(dir, "test.wal");
+        WriteAheadLog log = new WriteAheadLog(file, WriteAheadLog.SyncPolicy.NONE);
+        log.logDocument(document(1));
+        log.logDocument(document(2));
+        long goodSize = log.size();
+        log.close();
+        //half of a third record, as if the process died while writing it
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(goodSize);
+            raf.write(new byte[]{1, 2, 3, 4, 0, 0, 0, 50, 0, 1});
+        }
+        WriteAheadLog reopened = new WriteAheadLog(file, WriteAheadLog.SyncPolicy.NONE);
+        assertEquals(2, replay(reopened).documents.size());
+        assertEquals(goodSize, file.length());
+        reopened.logDocument(document(3));
+        reopened.close();
+        reopened = new WriteAheadLog(file, WriteAheadLog.SyncPolicy.NONE);
+        assertEquals(3, replay(reopened).documents.size());
+        reopened.close();
+    }
+
+    @Test
+    void testBatchedWritersShareSyncs() throws Exception {
+        File file = new File(dir, "test.wal");
+        WriteAheadLog log = new WriteAheadLog(file, WriteAheadLog.SyncPolicy.BATCHED);
+        //each writer returns only once its records are on disk, whichever thread forced them
+        ExecutorService writers = Executors.newFixedThreadPool(8);
+        List<Future<?>> done = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            int first = t * 50;
+            done.add(writers.submit(() -> {
+                for (int i = first; i < first + 50; i++) {
+                    log.logDocument(document(i));
+                    if (i % 10 == 0) {
+                        log.reset(i, i);
+                    }
+                }
+                return null;
+            }));
+        }
+        for (Future<?> writer : done) {
+            writer.get();
+        }
+        writers.shutdown();
+        log.logLimits(1, 2);
+        log.close();
+
+        WriteAheadLog reopened = new WriteAheadLog(file, WriteAheadLog.SyncPolicy.NONE);
+        Replayed replayed = replay(reopened);
+        assertEquals(1, replayed.maxDocumentCount);
+        //the documents logged since the last reset
+        assertTrue(replayed.documents.size() < 400);
+        reopened.close();
+    }
+}
@@ -0,0 +1,130 @@
+package edu.yu.cs.com1320.project.stage6.impl;
+
+import edu.yu.cs.com1320.project.stage6.PersistenceManager;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class WriteBehindPersistenceManagerTest {
+    private WriteBehindPersistenceManager<String, String> manager;
+
+    @AfterEach
+    void tearDown() throws IOException {
+        if (manager != null) {
+            manager.close();
+        }
+    }
+
+    @Test
+    void testWritesInBackground() throws IOException {
+        GatedPersistenceManager disk = new GatedPersistenceManager();
+        manager = new WriteBehindPersistenceManager<>(disk, 2, 16);
+        for (int i = 0; i < 10; i++) {
+            manager.serialize("key" + i, "value" + i);
+        }
+        //nothing can be written yet, but everything can be read back
+        assertTrue(disk.stored.isEmpty());
+        assertEquals("value3", manager.deserialize("key3"));
+        assertTrue(manager.delete("key4"));
+        disk.gate.countDown();
+        manager.flush();
+        assertEquals(0, manager.pendingCount());
+        assertEquals(8, disk.stored.size());
+        assertFalse(disk.stored.containsKey("key3"));
+        assertFalse(disk.stored.containsKey("key4"));
+        assertEquals("value5", manager.deserialize("key5"));
+        assertNull(manager.deserialize("key5"));
+    }
+
+    @Test
+    void testLatestValueWins() throws IOException {
+        GatedPersistenceManager disk = new GatedPersistenceManager();
+        manager = new WriteBehindPersistenceManager<>(disk, 1, 16);
+        manager.serialize("key", "first");
+        manager.serialize("key", "second");
+        manager.serialize("key", "third");
+        disk.gate.countDown();
+        manager.flush();
+        //the writer may already have been writing the first value, but the second is skipped
+        assertTrue(disk.writes.get() <= 2);
+        assertEquals("third", disk.stored.get("key"));
+        assertEquals("third", manager.deserialize("key"));
+    }
+
+    @Test
+    void testBackpressure() throws Exception {
+        GatedPersistenceManager disk = new GatedPersistenceManager();
+        manager = new WriteBehindPersistenceManager<>(disk, 1, 2);
+        //one held by the writer, two in the queue
+        for (int i = 0; i < 3; i++) {
+            manager.serialize("key" + i, "value" + i);
+        }
+        CountDownLatch queued = new CountDownLatch(1);
+        Thread producer = new Thread(() -> {
+            try {
+                manager.serialize("key3", "value3");
+                queued.countDown();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        producer.start();
+        assertFalse(queued.await(200, TimeUnit.MILLISECONDS));
+        disk.gate.countDown();
+        assertTrue(queued.await(10, TimeUnit.SECONDS));
+        manager.flush();
+        assertEquals(4, disk.stored.size());
+    }
+
+    @Test
+    void testFailedWriteStaysReadable() throws IOException {
+        GatedPersistenceManager disk = new GatedPersistenceManager();
+        disk.fail = true;
+        disk.gate.countDown();
+        manager = new WriteBehindPersistenceManager<>(disk, 1, 4);
+        manager.serialize("key", "value");
+        assertThrows(IOException.class, () -> manager.flush());
+        assertEquals("value", manager.deserialize("key"));
+        manager.flush();
+    }
+
+    //stores values in memory, but only once the gate is opened
+    private static class GatedPersistenceManager implements PersistenceManager<String, String> {
+        private final CountDownLatch gate = new CountDownLatch(1);
+        private final Map<String, String> stored = new ConcurrentHashMap<>();
+        private final AtomicInteger writes = new AtomicInteger();
+        private volatile boolean fail;
+
+        @Override
+        public void serialize(String key, String val) throws IOException {
+            try {
+                gate.await();
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            if (fail) {
+                throw new IOException("disk full");
+            }
+            writes.incrementAndGet();
+            stored.put(key, val);
+        }
+
+        @Override
+        public String deserialize(String key) {
+            return stored.remove(key);
+        }
+
+        @Override
+        public boolean delete(String key) {
+            return stored.remove(key) != null;
+        }
+    }
+}